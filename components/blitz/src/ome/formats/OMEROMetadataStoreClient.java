@@ -47,6 +47,7 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -321,6 +322,12 @@ public class OMEROMetadataStoreClient
     /** Image channel minimums and maximums. */
     private double[][][] imageChannelGlobalMinMax;
 
+    /**
+     * Number of container batches {@link #saveToDB(FilesetJobLink)} keeps
+     * in flight, or <code>0</code> to use "omero.import.batches_in_flight".
+     */
+    private int batchesInFlight = 0;
+
     /** Executor that will run our keep alive task. */
     private ScheduledThreadPoolExecutor executor;
 
@@ -338,6 +345,16 @@ public class OMEROMetadataStoreClient
     public static final String OMERO_EXCITATION_FILTER_SUFFIX =
         ":OMERO_EXCITATION_FILTER";
 
+    /**
+     * Call context key carrying the sequence number of a batch of objects
+     * sent by {@link #saveToDB(FilesetJobLink)} while other batches are
+     * still in flight. The server adds the batches to its graph in this order.
+     */
+    public static final String BATCH_CONTEXT_KEY = "omero.import.batch";
+
+    /** Round trip time that adaptive container batches aim for. */
+    private static final long TARGET_BATCH_MILLIS = 1000;
+
     /** The default longest side of a thumbnail in OMERO.insight. */
     private static final int DEFAULT_INSIGHT_THUMBNAIL_LONGEST_SIDE = 96;
 
@@ -506,6 +523,33 @@ public class OMEROMetadataStoreClient
         return getDefaultInt("omero.block_size", omero.constants.DEFAULTBLOCKSIZE.value);
     }
 
+    /**
+     * @return the number of container batches sent to the server at a time,
+     * as set by {@link #setBatchesInFlight(int)}, otherwise user-configured
+     * "omero.import.batches_in_flight" or <code>1</code> if none is set.
+     */
+    public int getBatchesInFlight()
+    {
+        if (batchesInFlight > 0)
+        {
+            return batchesInFlight;
+        }
+        return Math.max(1, getDefaultInt("omero.import.batches_in_flight", 1));
+    }
+
+    /**
+     * Sets the number of container batches sent to the server at a time by
+     * {@link #saveToDB(FilesetJobLink)}. With more than one batch in flight
+     * the batch size adapts to the measured round trip time, up to
+     * {@link #getDefaultBatchSize()}.
+     * @param batchesInFlight the number of batches, <code>0</code> or lower
+     * to use the configured value
+     */
+    public void setBatchesInFlight(int batchesInFlight)
+    {
+        this.batchesInFlight = batchesInFlight;
+    }
+
     /**
      * @return IQuery proxy
      */
@@ -1817,24 +1861,31 @@ public class OMEROMetadataStoreClient
             }
 
             int maxBatchSize = getDefaultBatchSize();
-            int containerBatchCount = 0;
-            int containerPointer = 0;
+            int inFlight = getBatchesInFlight();
             log.info("Handling # of containers: {}", containerArray.length);
-            while (containerPointer < containerArray.length)
+            if (inFlight > 1)
+            {
+                updateObjectsPipelined(containerArray, maxBatchSize, inFlight);
+            }
+            else
             {
-                int nObjects = (int) Math.min(
-                    maxBatchSize, containerArray.length - containerPointer);
+                int containerBatchCount = 0;
+                int containerPointer = 0;
+                while (containerPointer < containerArray.length)
+                {
+                    int nObjects = (int) Math.min(
+                        maxBatchSize, containerArray.length - containerPointer);
 
-                IObjectContainer[] batch = Arrays.copyOfRange(
-                        containerArray, containerPointer, containerPointer+nObjects);
+                    IObjectContainer[] batch = Arrays.copyOfRange(
+                            containerArray, containerPointer, containerPointer+nObjects);
 
-                delegate.updateObjects(batch);
-                containerPointer += nObjects;
+                    delegate.updateObjects(batch);
+                    containerPointer += nObjects;
 
-                containerBatchCount += 1;
-                if (containerBatchCount > 1)
-                {
-                    log.info("Starting containerBatch #{}", containerBatchCount);
+                    containerBatchCount += 1;
+                    log.info("Saved containerBatch #{}: {} of {} containers",
+                            containerBatchCount, containerPointer,
+                            containerArray.length);
                 }
             }
 
@@ -1883,6 +1934,146 @@ public class OMEROMetadataStoreClient
         }
     }
 
+    /**
+     * Sends the containers to the {@link #delegate} with up to
+     * <code>inFlight</code> asynchronous calls outstanding.
+     * @see #updateObjectsPipelined(BatchSender, IObjectContainer[], int, int)
+     */
+    private void updateObjectsPipelined(IObjectContainer[] containers,
+            int maxBatchSize, int inFlight) throws ServerError
+    {
+        final Map<String, String> proxyCtx = delegate.ice_getContext();
+        updateObjectsPipelined(new BatchSender<Ice.AsyncResult>() {
+            public Ice.AsyncResult begin(IObjectContainer[] batch, int sequence)
+            {
+                Map<String, String> callCtx =
+                    new HashMap<String, String>(proxyCtx);
+                callCtx.put(BATCH_CONTEXT_KEY, Integer.toString(sequence));
+                return delegate.begin_updateObjects(batch, callCtx);
+            }
+
+            public void end(Ice.AsyncResult result) throws ServerError
+            {
+                delegate.end_updateObjects(result);
+            }
+        }, containers, maxBatchSize, inFlight);
+    }
+
+    /**
+     * Sends the containers with up to <code>inFlight</code> asynchronous
+     * calls outstanding, so that the serialization of a batch overlaps with
+     * the server handling the previous ones. Each batch carries its sequence
+     * number under {@link #BATCH_CONTEXT_KEY}. Batches start at a quarter of
+     * <code>maxBatchSize</code> and are resized after each round trip to
+     * take about {@link #TARGET_BATCH_MILLIS}; they never exceed
+     * <code>maxBatchSize</code>, which bounds the message size. If a batch
+     * fails no further batches are sent and the outstanding calls are still
+     * ended before the failure is rethrown.
+     * @param sender sends the batches
+     * @param containers the containers to send, in graph order
+     * @param maxBatchSize the largest number of containers per batch
+     * @param inFlight the number of batches to keep outstanding
+     * @throws ServerError if a batch failed on the server
+     */
+    <R> void updateObjectsPipelined(BatchSender<R> sender,
+            IObjectContainer[] containers, int maxBatchSize, int inFlight)
+        throws ServerError
+    {
+        LinkedList<BatchCall<R>> pending = new LinkedList<BatchCall<R>>();
+        int batchSize = Math.max(1, maxBatchSize / 4);
+        int sequence = 0;
+        int containerPointer = 0;
+        int saved = 0;
+        try
+        {
+            while (containerPointer < containers.length || !pending.isEmpty())
+            {
+                if (containerPointer < containers.length
+                        && pending.size() < inFlight)
+                {
+                    int nObjects = Math.min(
+                            batchSize, containers.length - containerPointer);
+                    IObjectContainer[] batch = Arrays.copyOfRange(containers,
+                            containerPointer, containerPointer+nObjects);
+                    long start = System.currentTimeMillis();
+                    pending.add(new BatchCall<R>(nObjects, start,
+                            sender.begin(batch, sequence++)));
+                    containerPointer += nObjects;
+                    continue;
+                }
+
+                BatchCall<R> call = pending.removeFirst();
+                sender.end(call.result);
+                long elapsed =
+                    Math.max(1, System.currentTimeMillis() - call.start);
+                saved += call.size;
+                log.info("Saved containerBatch #{}: {} of {} containers in {} ms",
+                        sequence - pending.size(), saved, containers.length,
+                        elapsed);
+
+                // Scale the next batches towards the target round trip time,
+                // by at most a factor of two at a time.
+                long target = call.size * TARGET_BATCH_MILLIS / elapsed;
+                target = Math.max(call.size / 2, Math.min(call.size * 2, target));
+                batchSize = (int) Math.max(1, Math.min(maxBatchSize, target));
+            }
+        }
+        finally
+        {
+            // Only left over after a failure: wait for the outstanding calls
+            // so that none of them is still running once we return.
+            for (BatchCall<R> call : pending)
+            {
+                try
+                {
+                    sender.end(call.result);
+                }
+                catch (Exception e)
+                {
+                    log.debug("Outstanding containerBatch failed", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends the batches of
+     * {@link OMEROMetadataStoreClient#updateObjectsPipelined(BatchSender, IObjectContainer[], int, int)}.
+     * @param <R> the type of the handle on an outstanding call
+     */
+    interface BatchSender<R>
+    {
+        /**
+         * Starts sending a batch.
+         * @param batch the containers of the batch
+         * @param sequence the sequence number of the batch
+         * @return the handle on the outstanding call
+         */
+        R begin(IObjectContainer[] batch, int sequence);
+
+        /**
+         * Waits for a batch to be handled by the server.
+         * @param result the handle returned by {@link #begin}
+         * @throws ServerError if the batch failed on the server
+         */
+        void end(R result) throws ServerError;
+    }
+
+    /** An outstanding call of {@link #updateObjectsPipelined}. */
+    private static class BatchCall<R>
+    {
+        final int size;
+        final long start;
+        final R result;
+
+        BatchCall(int size, long start, R result)
+        {
+            this.size = size;
+            this.start = start;
+            this.result = result;
+        }
+    }
+
     public List<InteractiveProcessorPrx> launchProcessing()
     {
         try {
@@ -143,6 +143,8 @@ public class ImportConfig {
     public final FileValue savedDirectory;
     public final StrValue readersPath;
     public final StrValue checksumAlgorithm;
+    public final IntValue parallelUpload;
+    public final IntValue parallelFileset;
 
     public final BoolValue encryptedConnection;
     public final BoolValue autoClose;
@@ -294,6 +296,8 @@ public class ImportConfig {
 
         readersPath = new StrValue("readersPath", this);
         checksumAlgorithm = new StrValue("checksumAlgorithm", this);
+        parallelUpload = new IntValue("parallelUpload", this);
+        parallelFileset = new IntValue("parallelFileset", this, 1);
     }
 
     public String getBioFormatsVersion() {
@@ -975,6 +979,10 @@ public class ImportConfig {
     }
 
     public static class IntValue extends Value<Integer> {
+        public IntValue(String key, ImportConfig config) {
+            super(key, config);
+        }
+
         public IntValue(String key, ImportConfig config, int defValue) {
             super(key, config, Integer.valueOf(defValue));
         }
@@ -289,11 +289,22 @@ public class ImportEvent {
         public final int step;
         public final int series;
         public final int seriesCount;
+        /** Pixel bytes read so far for the series, or -1 if unknown. */
+        public final long bytes;
+        /** Rate at which the pixel bytes are read, or -1 if unknown. */
+        public final long bytesPerSecond;
 
         public IMPORT_STEP(int step, int series, int seriesCount) {
+            this(step, series, seriesCount, -1, -1);
+        }
+
+        public IMPORT_STEP(int step, int series, int seriesCount,
+                long bytes, long bytesPerSecond) {
             this.step = step;
             this.series = series;
             this.seriesCount = seriesCount;
+            this.bytes = bytes;
+            this.bytesPerSecond = bytesPerSecond;
         }
 
         @Override
@@ -303,6 +314,10 @@ public class ImportEvent {
             sb.append(" ");
             sb.append(String.format("Image: %d Series: %d Total Series: %d",
                     step, series, seriesCount));
+            if (bytes >= 0) {
+                sb.append(String.format(" Bytes: %d (%d bytes/s)",
+                        bytes, bytesPerSecond));
+            }
             return sb.toString();
         }
     }
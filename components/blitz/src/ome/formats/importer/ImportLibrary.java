@@ -27,6 +27,17 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import loci.common.Location;
 import loci.formats.FormatException;
@@ -37,6 +48,7 @@ import ome.formats.importer.targets.ImportTarget;
 import ome.formats.importer.transfers.FileTransfer;
 import ome.formats.importer.transfers.TransferState;
 import ome.formats.importer.transfers.UploadFileTransfer;
+import ome.formats.importer.util.ConcurrentTimeEstimatorImpl;
 import ome.formats.importer.util.ErrorHandler;
 import ome.formats.importer.util.ProportionalTimeEstimatorImpl;
 import ome.formats.importer.util.TimeEstimator;
@@ -145,6 +157,12 @@ public class ImportLibrary implements IObservable
      */
     private final String category;
 
+    /**
+     * Number of files of a fileset uploaded concurrently. If 1 (default),
+     * the files are uploaded one after the other.
+     */
+    private volatile int uploadThreads = 1;
+
     static {
         final Set<ChecksumType> availableTypes = checksumProviderFactory.getAvailableTypes();
         final ImmutableList.Builder<ChecksumAlgorithm> builder = ImmutableList.builder();
@@ -226,12 +244,12 @@ public class ImportLibrary implements IObservable
     // Observable methods
     //
 
-    public boolean addObserver(IObserver object)
+    public synchronized boolean addObserver(IObserver object)
     {
         return observers.add(object);
     }
 
-    public boolean deleteObserver(IObserver object)
+    public synchronized boolean deleteObserver(IObserver object)
     {
         return observers.remove(object);
 
@@ -240,7 +258,7 @@ public class ImportLibrary implements IObservable
     /* (non-Javadoc)
      * @see ome.formats.importer.IObservable#notifyObservers(ome.formats.importer.ImportEvent)
      */
-    public void notifyObservers(ImportEvent event)
+    public synchronized void notifyObservers(ImportEvent event)
     {
         for (IObserver observer : observers) {
             observer.update(this, event);
@@ -248,11 +266,51 @@ public class ImportLibrary implements IObservable
     }
 
 
+    /**
+     * Sets the number of files of a fileset which are uploaded concurrently,
+     * each by its own thread. Filesets made of many small files benefit the
+     * most on high-latency connections.
+     * @param uploadThreads the number of files; 1 or lower uploads the files
+     * one after the other
+     */
+    public void setUploadThreads(int uploadThreads)
+    {
+        this.uploadThreads = Math.max(1, uploadThreads);
+    }
+
+    /**
+     * @return the number of files of a fileset uploaded concurrently
+     */
+    public int getUploadThreads()
+    {
+        return uploadThreads;
+    }
+
+    /**
+     * Returns the number of files of a fileset to upload concurrently with
+     * the given configuration: {@link ImportConfig#parallelUpload} if it was
+     * set, e.g. from the command line, otherwise the number passed to
+     * {@link #setUploadThreads(int)}.
+     * @param config The configuration information.
+     * @param uploadThreads The number set on the library.
+     * @return See above.
+     */
+    static int getUploadThreads(ImportConfig config, int uploadThreads)
+    {
+        Integer configured = config.parallelUpload.get();
+        return configured == null ? uploadThreads : configured;
+    }
+
     // ~ Actions
     // =========================================================================
 
     /**
      * Primary user method for importing a number of import candidates.
+     * If {@link ImportConfig#parallelFileset} is greater than 1, that many
+     * containers are imported at a time, each by its own
+     * {@link ImportLibrary} and {@link OMEROMetadataStoreClient} created via
+     * {@link ImportConfig#createStore()}; the events of all the imports are
+     * passed to the observers of this instance.
      * @param config The configuration information.
      * @param candidates Hosts information about the files to import.
      * @return if the import did not exit because of an error
@@ -260,44 +318,26 @@ public class ImportLibrary implements IObservable
     public boolean importCandidates(ImportConfig config, ImportCandidates candidates)
     {
         List<ImportContainer> containers = candidates.getContainers();
-        if (containers != null) {
-            int numDone = 0;
+        setUploadThreads(getUploadThreads(config, uploadThreads));
+        if (containers == null) {
+            return true;
+        }
+        final ImportThroughput throughput = new ImportThroughput();
+        final int threads = config.parallelFileset.get() == null ? 1
+                : Math.min(config.parallelFileset.get(), containers.size());
+        try {
+            if (threads > 1) {
+                return importCandidates(config, containers, threads,
+                        throughput);
+            }
             for (int index = 0; index < containers.size(); index++) {
                 ImportContainer ic = containers.get(index);
-                ImportTarget target = config.getTarget();
-                if (target != null) {
-                    try {
-                        IObject obj = target.load(store, ic);
-                        if (!(obj instanceof Annotation)) {
-                            ic.setTarget(obj);
-                        } else {
-                            // This is likely a "post-processing" annotation
-                            // so that we don't have to resolve the target
-                            // until later.
-                            ic.getCustomAnnotationList().add((Annotation) obj);
-                        }
-                    } catch (Exception e) {
-                        log.error("Could not load target: {}", target);
-                        throw new RuntimeException("Failed to load target", e);
-                    }
-                }
-
-                if (config.checksumAlgorithm.get() != null) {
-                    ic.setChecksumAlgorithm(config.checksumAlgorithm.get());
-                }
-
+                prepareContainer(config, ic);
                 try {
-                    importImage(ic,index,numDone,containers.size());
-                    numDone++;
+                    importImage(ic,index,throughput.getDone(),containers.size());
+                    throughput.done(ic);
                 } catch (Throwable t) {
-                    String message = "Error on import";
-                    if (t instanceof ServerError) {
-                        final ServerError se = (ServerError) t;
-                        if (StringUtils.isNotBlank(se.message)) {
-                            message += ": " + se.message;
-                        }
-                    }
-                    log.error(message, t);
+                    logImportError(t);
                     if (!config.contOnError.get()) {
                         log.info("Exiting on error");
                         return false;
@@ -306,10 +346,211 @@ public class ImportLibrary implements IObservable
                     }
                 }
             }
+            return true;
+        } finally {
+            throughput.report(containers.size(), threads);
+        }
+    }
+
+    /**
+     * Imports the containers <code>threads</code> at a time.
+     * @see #importCandidates(ImportConfig, ImportCandidates)
+     */
+    private boolean importCandidates(final ImportConfig config,
+            final List<ImportContainer> containers, final int threads,
+            final ImportThroughput throughput)
+    {
+        final IObserver forward = new IObserver() {
+            public void update(IObservable importLibrary, ImportEvent event) {
+                notifyObservers(event);
+            }
+        };
+        final BlockingQueue<ImportLibrary> idle =
+                new ArrayBlockingQueue<ImportLibrary>(threads);
+        final List<ImportLibrary> opened = new ArrayList<ImportLibrary>();
+        final ExecutorService executor = Executors.newFixedThreadPool(threads,
+                new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r,
+                                "ImportLibrary-fileset-" + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        // Set by the first failed import unless continuing on error so that
+        // no further imports are started.
+        final AtomicBoolean failed = new AtomicBoolean();
+        final List<Future<?>> imports = new ArrayList<Future<?>>();
+        try {
+            for (int index = 0; index < containers.size(); index++) {
+                if (failed.get()) {
+                    break;
+                }
+                final ImportContainer ic = containers.get(index);
+                final int i = index;
+                prepareContainer(config, ic);
+                imports.add(executor.submit(new Runnable() {
+                    public void run() {
+                        if (failed.get()) {
+                            return;
+                        }
+                        ImportLibrary library = null;
+                        try {
+                            library = idle.poll();
+                            if (library == null) {
+                                library = createWorker(config, forward);
+                                synchronized (opened) {
+                                    opened.add(library);
+                                }
+                            }
+                            library.importImage(ic, i, throughput.getDone(),
+                                    containers.size());
+                            throughput.done(ic);
+                        } catch (Throwable t) {
+                            logImportError(t);
+                            if (!config.contOnError.get()) {
+                                failed.set(true);
+                            } else {
+                                log.info("Continuing after error");
+                            }
+                        } finally {
+                            if (library != null) {
+                                idle.add(library);
+                            }
+                        }
+                    }
+                }));
+            }
+            for (Future<?> future : imports) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    log.error("Unexpected import failure", e.getCause());
+                    failed.set(true);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failed.set(true);
+        } finally {
+            executor.shutdown();
+            synchronized (opened) {
+                for (ImportLibrary library : opened) {
+                    library.store.logout();
+                }
+            }
+        }
+        if (failed.get()) {
+            log.info("Exiting on error");
+            return false;
         }
         return true;
     }
 
+    /**
+     * Creates a library with its own session for importing in parallel.
+     * @param config the configuration to log in with
+     * @param observer receives the events of the library
+     * @return the new library
+     * @throws Exception if the session could not be created
+     */
+    private ImportLibrary createWorker(ImportConfig config, IObserver observer)
+        throws Exception
+    {
+        final OMEROMetadataStoreClient client = config.createStore();
+        try {
+            final ImportLibrary library = new ImportLibrary(client,
+                    new OMEROWrapper(config), transfer, exclusions,
+                    minutesToWait);
+            library.setUploadThreads(uploadThreads);
+            library.addObserver(observer);
+            return library;
+        } catch (RuntimeException e) {
+            client.logout();
+            throw e;
+        }
+    }
+
+    /**
+     * Sets the target and the checksum algorithm of a container before its
+     * import.
+     */
+    private void prepareContainer(ImportConfig config, ImportContainer ic)
+    {
+        ImportTarget target = config.getTarget();
+        if (target != null) {
+            try {
+                IObject obj = target.load(store, ic);
+                if (!(obj instanceof Annotation)) {
+                    ic.setTarget(obj);
+                } else {
+                    // This is likely a "post-processing" annotation
+                    // so that we don't have to resolve the target
+                    // until later.
+                    ic.getCustomAnnotationList().add((Annotation) obj);
+                }
+            } catch (Exception e) {
+                log.error("Could not load target: {}", target);
+                throw new RuntimeException("Failed to load target", e);
+            }
+        }
+
+        if (config.checksumAlgorithm.get() != null) {
+            ic.setChecksumAlgorithm(config.checksumAlgorithm.get());
+        }
+    }
+
+    private void logImportError(Throwable t)
+    {
+        String message = "Error on import";
+        if (t instanceof ServerError) {
+            final ServerError se = (ServerError) t;
+            if (StringUtils.isNotBlank(se.message)) {
+                message += ": " + se.message;
+            }
+        }
+        log.error(message, t);
+    }
+
+    /**
+     * Counts the containers imported by
+     * {@link ImportLibrary#importCandidates(ImportConfig, ImportCandidates)}
+     * and logs the resulting throughput.
+     */
+    private static class ImportThroughput
+    {
+        private final long start = System.currentTimeMillis();
+
+        private int done;
+
+        private int files;
+
+        private long bytes;
+
+        synchronized int getDone()
+        {
+            return done;
+        }
+
+        synchronized void done(ImportContainer ic)
+        {
+            done++;
+            files += ic.getUsedFiles().length;
+            bytes += ic.getUsedFilesTotalSize();
+        }
+
+        synchronized void report(int total, int threads)
+        {
+            final long elapsed = Math.max(1, System.currentTimeMillis() - start);
+            log.info(String.format("Imported %d of %d filesets (%d files, "
+                    + "%d bytes) in %.3f s with %d thread(s): "
+                    + "%.2f filesets/s, %.2f MB/s", done, total, files, bytes,
+                    elapsed / 1000.0, threads, done * 1000.0 / elapsed,
+                    bytes * 1000.0 / elapsed / (1024 * 1024)));
+        }
+    }
+
     /**
      * Delete files from the managed repository.
      * @param container The current import container containing usedFiles to be
@@ -391,26 +632,139 @@ public class ImportLibrary implements IObservable
     public List<String> uploadFilesToRepository(
             final String[] srcFiles, final ImportProcessPrx proc)
     {
-        final byte[] buf = new byte[store.getDefaultBlockSize()];
-        final int fileTotal = srcFiles.length;
-        final List<String> checksums = new ArrayList<String>(fileTotal);
+        final List<String> checksums = new ArrayList<String>(srcFiles.length);
         // TODO Fix with proper code instead of 10000L
-        final TimeEstimator estimator = new ProportionalTimeEstimatorImpl(10000L);
+        final TimeEstimator estimator = newTimeEstimator(10000L);
 
         log.debug("Used files created:");
-        for (int i = 0; i < fileTotal; i++) {
-            try {
+        try {
+            uploadFiles(proc, srcFiles, estimator, checksums);
+        } catch (ServerError e) {
+            log.error("Server error uploading file.", e);
+        } catch (IOException e) {
+            log.error("I/O error uploading file.", e);
+        }
+        return checksums;
+    }
+
+    /**
+     * Uploads the files of a fileset, {@link #getUploadThreads()} at a time.
+     * Each file is uploaded with its own buffer and {@link ChecksumProvider}
+     * by {@link #uploadFile(ImportProcessPrx, String[], int,
+     * ChecksumProviderFactory, TimeEstimator, byte[])}.
+     * @param proc the server import process to use for the upload
+     * @param srcFiles the files to upload
+     * @param estimator the estimator of the upload time left, which must be
+     * thread-safe if several files are uploaded at a time
+     * @param checksums filled in with the client-side hash of each file, in
+     * the order of <code>srcFiles</code>, up to the first file which failed
+     * @throws ServerError if the upload of a file failed
+     * @throws IOException if a file could not be read
+     */
+    private void uploadFiles(final ImportProcessPrx proc,
+            final String[] srcFiles, final TimeEstimator estimator,
+            final List<String> checksums) throws ServerError, IOException
+    {
+        final int threads = Math.min(uploadThreads, srcFiles.length);
+        if (threads <= 1) {
+            final byte[] buf = new byte[store.getDefaultBlockSize()];
+            for (int i = 0; i < srcFiles.length; i++) {
                 checksums.add(uploadFile(proc, srcFiles, i,
                         checksumProviderFactory, estimator, buf));
-            } catch (ServerError e) {
-                log.error("Server error uploading file.", e);
-                break;
-            } catch (IOException e) {
-                log.error("I/O error uploading file.", e);
-                break;
             }
+            return;
+        }
+
+        // At most one buffer per thread is in use at a time.
+        final BlockingQueue<byte[]> buffers =
+                new ArrayBlockingQueue<byte[]>(threads);
+        for (int i = 0; i < threads; i++) {
+            buffers.add(new byte[store.getDefaultBlockSize()]);
+        }
+        final ExecutorService executor = Executors.newFixedThreadPool(threads,
+                new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r,
+                                "ImportLibrary-upload-" + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        final List<Future<String>> uploads =
+                new ArrayList<Future<String>>(srcFiles.length);
+        try {
+            for (int i = 0; i < srcFiles.length; i++) {
+                final int index = i;
+                uploads.add(executor.submit(new Callable<String>() {
+                    public String call() throws Exception {
+                        final byte[] buf = buffers.take();
+                        try {
+                            return uploadFile(proc, srcFiles, index,
+                                    checksumProviderFactory, estimator, buf);
+                        } finally {
+                            buffers.add(buf);
+                        }
+                    }
+                }));
+            }
+            for (Future<String> upload : uploads) {
+                checksums.add(upload.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while uploading files", e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof ServerError) {
+                throw (ServerError) cause;
+            } else if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        } finally {
+            for (Future<String> upload : uploads) {
+                upload.cancel(false);
+            }
+            executor.shutdown();
+            awaitUploads(executor);
+        }
+    }
+
+    /**
+     * Waits for the uploads already running to end, so that none is still
+     * writing to the server once {@link #uploadFiles(ImportProcessPrx,
+     * String[], TimeEstimator, List)} returned or failed. Stops waiting if
+     * the thread is interrupted, keeping its interrupted status.
+     * @param executor the shut down executor running the uploads
+     */
+    private void awaitUploads(ExecutorService executor)
+    {
+        try {
+            while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                log.info("Waiting for the running uploads to end.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.warn("Interrupted while waiting for the running uploads.");
         }
-        return checksums;
+    }
+
+    /**
+     * @param size the number of bytes to upload
+     * @return an estimator of the upload time left suitable for
+     * {@link #getUploadThreads()}
+     */
+    private TimeEstimator newTimeEstimator(long size)
+    {
+        if (uploadThreads > 1) {
+            return new ConcurrentTimeEstimatorImpl(size);
+        }
+        return new ProportionalTimeEstimatorImpl(size);
     }
 
     public String uploadFile(final ImportProcessPrx proc,
@@ -500,18 +854,14 @@ public class ImportLibrary implements IObservable
         final ImportProcessPrx proc = createImport(container);
         final String[] srcFiles = container.getUsedFiles();
         final List<String> checksums = new ArrayList<String>();
-        final byte[] buf = new byte[store.getDefaultBlockSize()];
-        final TimeEstimator estimator = new ProportionalTimeEstimatorImpl(
+        final TimeEstimator estimator = newTimeEstimator(
                 container.getUsedFilesTotalSize());
         Map<Integer, String> failingChecksums = new HashMap<Integer, String>();
 
         notifyObservers(new ImportEvent.FILESET_UPLOAD_START(
                 null, index, srcFiles.length, null, null, null));
 
-        for (int i = 0; i < srcFiles.length; i++) {
-            checksums.add(uploadFile(proc, srcFiles, i, checksumProviderFactory,
-                    estimator, buf));
-        }
+        uploadFiles(proc, srcFiles, estimator, checksums);
 
         try {
             handle = proc.verifyUpload(checksums);
@@ -79,6 +79,11 @@ public class OMEROWrapper extends MinMaxCalculator {
 
     private ImportConfig config;
 
+    /** Memoizer settings, kept for {@link #newReader()}. */
+    private final long elapsedTime;
+
+    private final File cacheDirectory;
+
     /**
      * Wrapper for bio-formats
      *
@@ -92,6 +97,8 @@ public class OMEROWrapper extends MinMaxCalculator {
     public OMEROWrapper(ImportConfig config, long elapsedTime, File cacheDirectory) {
         super(createReader(config));
         this.config = config;
+        this.elapsedTime = elapsedTime;
+        this.cacheDirectory = cacheDirectory;
         this.iReader = (ImageReader) reader; // Save old value
         this.reader = null;
         filler = new ChannelFiller(iReader);
@@ -114,6 +121,17 @@ public class OMEROWrapper extends MinMaxCalculator {
         iReader.setFlattenedResolutions(false);
     };
 
+    /**
+     * Creates an unopened reader with the same configuration and memoizer
+     * settings as this one, e.g. to read the pixel data of the same file on
+     * another thread, reusing the memo saved when this reader was opened.
+     * @return See above.
+     */
+    public OMEROWrapper newReader()
+    {
+        return new OMEROWrapper(config, elapsedTime, cacheDirectory);
+    }
+
     private static ImageReader createReader(ImportConfig config)
     {
         if (config == null) {
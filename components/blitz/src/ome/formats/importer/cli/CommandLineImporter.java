@@ -440,6 +440,12 @@ public class CommandLineImporter {
             + "    --no-upgrade-check\t\tDisable upgrade check for each import\n"
             + "  e.g. $ bin/omero import -- --no-upgrade-check foo.tiff\n"
             + "       $ ./importer-cli --no-upgrade-check bar.tiff\n\n"
+            + "    --parallel-upload=ARG\tNumber of files of a fileset uploaded in parallel (default 1)\n"
+            + "  e.g. $ bin/omero import -- --parallel-upload=8 plate.xdce\n"
+            + "       $ ./importer-cli --parallel-upload=8 plate.xdce\n\n"
+            + "    --parallel-fileset=ARG\tNumber of filesets imported in parallel, each in its own session (default 1)\n"
+            + "  e.g. $ bin/omero import -- --parallel-fileset=4 some_directory/\n"
+            + "       $ ./importer-cli --parallel-fileset=4 some_directory/\n\n"
             + "\n"
             + "  Feedback:\n"
             + "  ---------\n\n"
@@ -567,6 +573,10 @@ public class CommandLineImporter {
                 new LongOpt("no-stats-info", LongOpt.NO_ARGUMENT, null, 23);
         LongOpt noUpgradeCheck =
                 new LongOpt("no-upgrade-check", LongOpt.NO_ARGUMENT, null, 24);
+        LongOpt parallelUpload =
+                new LongOpt("parallel-upload", LongOpt.REQUIRED_ARGUMENT, null, 25);
+        LongOpt parallelFileset =
+                new LongOpt("parallel-fileset", LongOpt.REQUIRED_ARGUMENT, null, 26);
 
         // DEPRECATED OPTIONS
         LongOpt plateName = new LongOpt(
@@ -592,7 +602,8 @@ public class CommandLineImporter {
                                 checksumAlgorithm, minutesWait,
                                 closeCompleted, waitCompleted, autoClose,
                                 exclude, target, noStatsInfo,
-                                noUpgradeCheck, qaBaseURL,
+                                noUpgradeCheck, qaBaseURL, parallelUpload,
+                                parallelFileset,
                                 plateName, plateDescription,
                                 noThumbnailsDeprecated,
                                 checksumAlgorithmDeprecated,
@@ -735,6 +746,18 @@ public class CommandLineImporter {
                 config.checkUpgrade.set(false);
                 break;
             }
+            case 25: {
+                int arg = Integer.parseInt(g.getOptarg());
+                log.info("Setting number of files uploaded in parallel to {}", arg);
+                config.parallelUpload.set(arg);
+                break;
+            }
+            case 26: {
+                int arg = Integer.parseInt(g.getOptarg());
+                log.info("Setting number of filesets imported in parallel to {}", arg);
+                config.parallelFileset.set(arg);
+                break;
+            }
             // ADVANCED END ---------------------------------------------------
             // DEPRECATED OPTIONS
             case 90: {
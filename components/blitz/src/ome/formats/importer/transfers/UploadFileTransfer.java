@@ -35,7 +35,12 @@ import org.apache.commons.lang.ArrayUtils;
  * files using the API. This is done by reading from
  * {@link TransferState#getFile()} into {@link TransferState#getBuffer()}
  * and then {@link RawFileStorePrx#write(byte[], long, int) writing} to the
- * server. <em>Not thread safe</em>
+ * server. Each block is written asynchronously while the next one is read
+ * and checksummed so that the disk, the checksum and the round trip to the
+ * server overlap; only one write is outstanding at a time since the server
+ * does not accept concurrent calls to the same {@link RawFileStorePrx}.
+ * <em>Not thread safe</em>: concurrent transfers must each be given their
+ * own {@link TransferState} and buffer.
  *
  * @since 5.0
  */
@@ -61,7 +66,10 @@ public class UploadFileTransfer extends AbstractFileTransfer {
             rawFileStore.write(ArrayUtils.EMPTY_BYTE_ARRAY, offset, 0);
             state.stop();
             state.uploadBytes(offset);
-    
+
+            // The write in progress, if any. Its arguments are marshaled
+            // by begin_write, so the buffer can be refilled meanwhile.
+            Ice.AsyncResult pending = null;
             while (true) {
                 state.start();
                 rlen = stream.read(buf);
@@ -76,9 +84,16 @@ public class UploadFileTransfer extends AbstractFileTransfer {
                 } else {
                     bufferToWrite = buf;
                 }
-                rawFileStore.write(bufferToWrite, offset, rlen);
+                if (pending != null) {
+                    rawFileStore.end_write(pending);
+                    state.uploadBytes(offset);
+                }
+                pending = rawFileStore.begin_write(bufferToWrite, offset, rlen);
                 offset += rlen;
                 state.stop(rlen);
+            }
+            if (pending != null) {
+                rawFileStore.end_write(pending);
                 state.uploadBytes(offset);
             }
 
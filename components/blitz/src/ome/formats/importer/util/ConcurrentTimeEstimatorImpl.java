@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2016 University of Dundee & Open Microscopy Environment.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package ome.formats.importer.util;
+
+/**
+ * Thread-safe {@link TimeEstimator} for files uploaded concurrently. Since
+ * the time frames sampled by several threads overlap, the estimate is based
+ * on the wall-clock time elapsed since the first call to {@link #start()}
+ * rather than on the sum of the time frames.
+ *
+ * @since 5.2.4
+ */
+public class ConcurrentTimeEstimatorImpl implements TimeEstimator {
+
+    private long imageContainerSize;
+
+    private long totalBytes = 0;
+
+    private long timeLeft = 0;
+
+    private long startTime = -1;
+
+    /**
+     * Creates a new object of this class.
+     *
+     * @param imageContainerSize
+     *            The total size in bytes of the data container for which upload
+     *            time is being estimated.
+     */
+    public ConcurrentTimeEstimatorImpl(long imageContainerSize) {
+        this.imageContainerSize = imageContainerSize;
+    }
+
+    /**
+     * @see TimeEstimator#start()
+     */
+    public synchronized void start() {
+        if (startTime < 0) {
+            startTime = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * @see TimeEstimator#stop()
+     */
+    public void stop() {
+        // Only the bytes uploaded change the estimate.
+    }
+
+    /**
+     * @see TimeEstimator#stop(long)
+     */
+    public synchronized void stop(long uploadedBytes) {
+        totalBytes += uploadedBytes;
+        imageContainerSize -= uploadedBytes;
+        long totalTime = System.currentTimeMillis() - startTime;
+        if (startTime >= 0 && totalTime > 0 && totalBytes > 0) {
+            float averageBps = totalBytes / ((float) totalTime / 1000);
+            timeLeft = (long) Math
+                    .ceil((imageContainerSize / averageBps) * 1000);
+        }
+    }
+
+    /**
+     * @see TimeEstimator#getUploadTimeLeft()
+     */
+    public synchronized long getUploadTimeLeft() {
+        return timeLeft;
+    }
+
+}
@@ -0,0 +1,121 @@
+/*
+ *   Copyright 2016 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.services.blitz.impl;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import ome.conditions.ApiUsageException;
+import ome.formats.OMEROMetadataStoreClient;
+
+/**
+ * Applies the batches of objects of a pipelined client in the order of their
+ * sequence numbers, see {@link OMEROMetadataStoreClient#BATCH_CONTEXT_KEY}.
+ * A batch which arrives ahead of its turn waits until all the batches before
+ * it have been applied. Once a sequenced batch failed, the batches waiting
+ * behind it and any later ones fail too instead of waiting for it. Not
+ * thread-safe: callers synchronize on the sequencer.
+ *
+ * @param <T> the type of the batches
+ */
+abstract class BatchSequencer<T> {
+
+    /** Batches which arrived ahead of their sequence number. */
+    private final Map<Integer, T> pending = new HashMap<Integer, T>();
+
+    /** Sequence number of the next batch to apply. */
+    private int next = 0;
+
+    /** Sequence number of the batch which failed, if any. */
+    private Integer failed;
+
+    /**
+     * Applies the batch, e.g. adds its objects to the graph.
+     */
+    protected abstract void apply(T batch);
+
+    /**
+     * Applies the batch now if it is unsequenced or its turn has come, then
+     * any pending batches which follow it.
+     * @param sequence the sequence number of the batch, <code>null</code>
+     * to apply it now
+     * @param batch the batch
+     * @throws ApiUsageException if the sequence number was already used or
+     * an earlier batch failed
+     */
+    void add(Integer sequence, T batch) {
+        if (sequence == null) {
+            apply(batch);
+            return;
+        }
+        checkFailed();
+        if (sequence < next || pending.containsKey(sequence)) {
+            throw new ApiUsageException(String.format(
+                    "Batch %d of objects was already received", sequence));
+        }
+        pending.put(sequence, batch);
+        while ((batch = pending.remove(next)) != null) {
+            try {
+                apply(batch);
+            } catch (RuntimeException e) {
+                fail(next);
+                throw e;
+            }
+            next++;
+        }
+    }
+
+    /**
+     * Records that a sequenced batch failed before it could be added, and
+     * drops the batches waiting behind it.
+     * @param sequence the sequence number of the batch, <code>null</code>
+     * for unsequenced batches, which are ignored
+     */
+    void fail(Integer sequence) {
+        if (sequence != null && failed == null) {
+            failed = sequence;
+            pending.clear();
+        }
+    }
+
+    /**
+     * Fails if a batch failed or some batches never arrived, since the graph
+     * would be missing their objects.
+     * @throws ApiUsageException if the batches cannot be saved as a whole
+     */
+    void check() {
+        checkFailed();
+        if (!pending.isEmpty()) {
+            throw new ApiUsageException(String.format(
+                    "Batch %d of objects is missing, %d later batches pending",
+                    next, pending.size()));
+        }
+    }
+
+    /**
+     * Starts a new sequence of batches, forgetting any pending ones.
+     */
+    void reset() {
+        pending.clear();
+        next = 0;
+        failed = null;
+    }
+
+    /**
+     * @return the number of batches waiting for an earlier one
+     */
+    int pendingCount() {
+        return pending.size();
+    }
+
+    private void checkFailed() {
+        if (failed != null) {
+            throw new ApiUsageException(String.format(
+                    "Batch %d of objects failed", failed));
+        }
+    }
+
+}
@@ -0,0 +1,121 @@
+/*
+ *   Copyright 2016 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.services.blitz.impl;
+
+import java.util.List;
+
+import ome.conditions.ApiUsageException;
+import ome.parameters.Parameters;
+
+/**
+ * Pages through the rows of a projection by key rather than by offset, for
+ * {@link QueryCursorI}. The first column of every row is a unique, ascending
+ * long key, and each page is read by running the query again with the key
+ * of the last row read so far bound to {@link #LAST}. Pages thus cost the
+ * same however far into the result they are, and nothing is held open
+ * between them. Not thread-safe: callers synchronize on the pager.
+ */
+class KeysetPager {
+
+    /** Name of the parameter bound to the key of the last row read. */
+    static final String LAST = "last";
+
+    /** Largest number of rows per page. */
+    static final int MAX_PAGE_SIZE = omero.constants.MAXQUERYCURSORPAGE.value;
+
+    private final String query;
+
+    /** The parameters of the client, limited to one page. */
+    private final Parameters base;
+
+    private final int pageSize;
+
+    /** Key of the last row read. */
+    private long last = Long.MIN_VALUE;
+
+    /** If a page shorter than {@link #pageSize} was read. */
+    private boolean done = false;
+
+    /**
+     * @param query the HQL projection, restricting its key to values greater
+     * than {@link #LAST}
+     * @param params the other parameters of the query, may be null
+     * @param pageSize the largest number of rows per page
+     * @throws ApiUsageException if the page size is out of range or the
+     * parameters bind {@link #LAST} or a page of their own
+     */
+    KeysetPager(String query, Parameters params, int pageSize) {
+        if (query == null) {
+            throw new ApiUsageException("Query may not be null");
+        }
+        if (pageSize < 1 || pageSize > MAX_PAGE_SIZE) {
+            throw new ApiUsageException(String.format(
+                    "Page size must be from 1 to %d, not %d", MAX_PAGE_SIZE,
+                    pageSize));
+        }
+        if (params != null) {
+            if (params.keySet().contains(LAST)) {
+                throw new ApiUsageException("Parameter " + LAST
+                        + " is bound by the cursor");
+            }
+            if (params.isPagination()) {
+                throw new ApiUsageException("Cursor queries are paged by "
+                        + "the cursor, not by their parameters");
+            }
+        }
+        this.query = query;
+        this.base = new Parameters(params);
+        this.base.page(0, pageSize);
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * @return the HQL projection
+     */
+    String getQuery() {
+        return query;
+    }
+
+    /**
+     * @return if all the rows were read
+     */
+    boolean isDone() {
+        return done;
+    }
+
+    /**
+     * @return the parameters which read the page after the last row read
+     */
+    Parameters nextParameters() {
+        return new Parameters(base).addLong(LAST, last);
+    }
+
+    /**
+     * Records the page read with {@link #nextParameters()}.
+     * @param rows the rows of the page
+     * @throws ApiUsageException if a key is not a long or does not follow
+     * the previous one, as the query would then skip or repeat rows
+     */
+    void onPage(List<Object[]> rows) {
+        for (Object[] row : rows) {
+            Object key = row == null || row.length == 0 ? null : row[0];
+            if (!(key instanceof Long)) {
+                throw new ApiUsageException("The first column of a cursor "
+                        + "query must be a not null long, not " + key);
+            }
+            long value = (Long) key;
+            if (value <= last) {
+                throw new ApiUsageException(String.format("Cursor query "
+                        + "returned key %d after %d: its first column must "
+                        + "be unique and ascending, and greater than :%s",
+                        value, last, LAST));
+            }
+            last = value;
+        }
+        done = rows.size() < pageSize;
+    }
+
+}
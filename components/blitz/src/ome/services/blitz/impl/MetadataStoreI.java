@@ -19,6 +19,7 @@ import ome.api.IQuery;
 import ome.conditions.InternalException;
 import ome.conditions.ResourceError;
 import ome.formats.OMEROMetadataStore;
+import ome.formats.OMEROMetadataStoreClient;
 import ome.io.nio.OriginalFilesService;
 import ome.model.IObject;
 import ome.model.core.OriginalFile;
@@ -87,6 +88,24 @@ public class MetadataStoreI extends AbstractCloseableAmdServant implements
 
     protected final String omeroDataDir;
 
+    protected int saveBatchSize = 0;
+
+    /**
+     * Adds the batches of
+     * {@link #updateObjects_async(AMD_MetadataStore_updateObjects, IObjectContainer[], Current)}
+     * to the {@link #store} in the order of their sequence number, see
+     * {@link OMEROMetadataStoreClient#BATCH_CONTEXT_KEY}, so that pipelined
+     * clients still build the graph parents first. Also guards every call to
+     * {@link OMEROMetadataStore#updateObject(String, IObject, Map)}.
+     */
+    private final BatchSequencer<ObjectBatch> batches =
+        new BatchSequencer<ObjectBatch>() {
+            @Override
+            protected void apply(ObjectBatch batch) {
+                addToStore(batch);
+            }
+        };
+
     public MetadataStoreI(final BlitzExecutor be, PopulateRoiJob popRoi,
             SqlAction sql, OriginalFilesService filesService,
             String omeroDataDir) throws Exception {
@@ -102,10 +121,22 @@ public class MetadataStoreI extends AbstractCloseableAmdServant implements
         this.sf = sf;
     }
 
+    /**
+     * Sets the number of plane information saved per flush of the session
+     * by {@link #saveToDB_async(AMD_MetadataStore_saveToDB, FilesetJobLink, Current)}.
+     * @param saveBatchSize the batch size, <code>0</code> to save the whole
+     * graph at once
+     * @see OMEROMetadataStore#setSaveBatchSize(int)
+     */
+    public void setSaveBatchSize(int saveBatchSize) {
+        this.saveBatchSize = saveBatchSize;
+    }
+
     @Override
     public void onSetOmeroContext(final OmeroContext ctx) throws Exception {
         ServiceFactory sf = new InternalServiceFactory(ctx);
         this.store = new OMEROMetadataStore(sf, sql);
+        this.store.setSaveBatchSize(saveBatchSize);
     }
 
     @SuppressWarnings("unchecked")
@@ -162,6 +193,44 @@ public class MetadataStoreI extends AbstractCloseableAmdServant implements
         return null;
     }
 
+    /**
+     * Model objects of one call to
+     * {@link #updateObjects_async(AMD_MetadataStore_updateObjects, IObjectContainer[], Current)},
+     * already reversed from their Ice form.
+     */
+    private static class ObjectBatch {
+
+        final IObjectContainer[] containers;
+
+        final IObject[] sourceObjects;
+
+        ObjectBatch(IObjectContainer[] containers, IObject[] sourceObjects) {
+            this.containers = containers;
+            this.sourceObjects = sourceObjects;
+        }
+
+    }
+
+    private void addToStore(ObjectBatch batch) {
+        for (int i = 0; i < batch.containers.length; i++) {
+            IObjectContainer o = batch.containers[i];
+            store.updateObject(o.LSID, batch.sourceObjects[i], o.indexes);
+        }
+    }
+
+    /**
+     * Reads the sequence number of a pipelined batch of objects from the
+     * call context, <code>null</code> for unsequenced calls.
+     */
+    private Integer batchSequence(Current __current) {
+        if (__current == null || __current.ctx == null) {
+            return null;
+        }
+        String sequence = __current.ctx.get(
+                OMEROMetadataStoreClient.BATCH_CONTEXT_KEY);
+        return sequence == null ? null : Integer.valueOf(sequence);
+    }
+
     // ~ Service methods
     // =========================================================================
 
@@ -174,7 +243,10 @@ public class MetadataStoreI extends AbstractCloseableAmdServant implements
                         this, "createRoot") {
                     @Transactional(readOnly = true)
                     public Object doWork(Session session, ServiceFactory sf) {
-                        store.createRoot();
+                        synchronized (batches) {
+                            batches.reset();
+                            store.createRoot();
+                        }
                         return null;
                     }
                 }));
@@ -210,8 +282,12 @@ public class MetadataStoreI extends AbstractCloseableAmdServant implements
                         this, "saveToDb") {
                     @Transactional(readOnly = false)
                     public Object doWork(Session session, ServiceFactory sf) {
+                        synchronized (batches) {
+                            batches.check();
+                            batches.reset();
+                        }
                         Map<String, List<? extends IObject>> rv = new HashMap<String, List<? extends IObject>>();
-                        List<Pixels> pix = store.saveToDB(link_);
+                        List<Pixels> pix = store.saveToDB(link_, session);
                         rv.put("Pixels", pix);
                         parsePixels(pix, rv, sf.getQueryService());
                         return rv;
@@ -223,22 +299,32 @@ public class MetadataStoreI extends AbstractCloseableAmdServant implements
             final IObjectContainer[] objects, Current __current)
             throws ServerError {
         final IceMapper mapper = new IceMapper(IceMapper.VOID);
+        final Integer sequence = batchSequence(__current);
         runnableCall(__current, new Adapter(__cb, __current, mapper,
                 this.sf.executor, this.sf.principal, new Executor.SimpleWork(
                         this, "updateObjects") {
                     @Transactional(readOnly = true)
                     public Object doWork(Session session, ServiceFactory sf) {
-                        for (IObjectContainer o : objects) {
-                            IObject sourceObject;
+                        // Reversing is the costly part and may overlap with
+                        // other batches; only adding to the store is ordered.
+                        IObject[] sourceObjects = new IObject[objects.length];
+                        for (int i = 0; i < objects.length; i++) {
                             try {
-                                sourceObject = (IObject) mapper
-                                        .reverse(o.sourceObject);
+                                sourceObjects[i] = (IObject) mapper
+                                        .reverse(objects[i].sourceObject);
                             } catch (Exception e) {
+                                // The later batches must not wait for this one.
+                                synchronized (batches) {
+                                    batches.fail(sequence);
+                                }
                                 // TODO: This is **WRONG**; exception handling
                                 // here is messed up.
                                 throw new RuntimeException(e);
                             }
-                            store.updateObject(o.LSID, sourceObject, o.indexes);
+                        }
+                        synchronized (batches) {
+                            batches.add(sequence,
+                                    new ObjectBatch(objects, sourceObjects));
                         }
                         return null;
                     }
@@ -254,7 +340,10 @@ public class MetadataStoreI extends AbstractCloseableAmdServant implements
                         this, "updateReferences") {
                     @Transactional(readOnly = true)
                     public Object doWork(Session session, ServiceFactory sf) {
-                        store.updateReferences(references);
+                        synchronized (batches) {
+                            batches.check();
+                            store.updateReferences(references);
+                        }
                         return null;
                     }
                 }));
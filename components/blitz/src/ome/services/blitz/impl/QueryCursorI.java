@@ -0,0 +1,120 @@
+/*
+ *   Copyright 2016 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.services.blitz.impl;
+
+import java.util.Collections;
+import java.util.List;
+
+import ome.services.blitz.util.BlitzExecutor;
+import ome.services.blitz.util.BlitzOnly;
+import ome.services.blitz.util.ServiceFactoryAware;
+import ome.services.throttling.Adapter;
+import ome.services.util.Executor;
+import ome.system.ServiceFactory;
+import omero.ServerError;
+import omero.api.AMD_QueryCursor_next;
+import omero.api.AMD_QueryCursor_open;
+import omero.api._QueryCursorOperations;
+import omero.sys.Parameters;
+import omero.util.IceMapper;
+
+import org.hibernate.Session;
+import org.springframework.transaction.annotation.Transactional;
+
+import Ice.Current;
+
+/**
+ * Implementation of the QueryCursor service. Each call to
+ * {@link #next_async(AMD_QueryCursor_next, Current)} runs the projection
+ * again for one page after the key of the last row returned, see
+ * {@link KeysetPager}, so no transaction or database connection is held
+ * between calls.
+ *
+ * @see ome.api.IQuery#projection(String, ome.parameters.Parameters)
+ */
+public class QueryCursorI extends AbstractCloseableAmdServant implements
+        _QueryCursorOperations, ServiceFactoryAware, BlitzOnly {
+
+    protected ServiceFactoryI sf;
+
+    /** The projection being read, <code>null</code> until opened. */
+    private KeysetPager pager;
+
+    public QueryCursorI(BlitzExecutor be) {
+        super(null, be);
+    }
+
+    public void setServiceFactory(ServiceFactoryI sf) throws ServerError {
+        this.sf = sf;
+    }
+
+    // Interface methods
+    // =========================================================================
+
+    public void open_async(AMD_QueryCursor_open __cb, String query,
+            Parameters params, int pageSize, Current __current) {
+        IceMapper mapper = new IceMapper();
+        try {
+            KeysetPager opened = new KeysetPager(query, mapper.convert(params),
+                    pageSize);
+            synchronized (this) {
+                pager = opened;
+            }
+            __cb.ice_response();
+        } catch (Exception e) {
+            __cb.ice_exception(mapper.handleException(e,
+                    sf.executor.getContext()));
+        }
+    }
+
+    public void next_async(AMD_QueryCursor_next __cb, Current __current)
+            throws ServerError {
+        final KeysetPager pager;
+        synchronized (this) {
+            pager = this.pager;
+        }
+        if (pager == null) {
+            __cb.ice_exception(new omero.ApiUsageException(null, null,
+                    "Cursor is not open"));
+            return;
+        }
+        IceMapper mapper = new IceMapper(
+                IceMapper.LISTOBJECTARRAY_TO_RTYPESEQSEQ);
+        runnableCall(__current, new Adapter(__cb, __current, mapper,
+                this.sf.executor, this.sf.principal, new Executor.SimpleWork(
+                        this, "next") {
+                    @Transactional(readOnly = true)
+                    public Object doWork(Session session, ServiceFactory sf) {
+                        // Pages of one cursor follow each other.
+                        synchronized (pager) {
+                            if (pager.isDone()) {
+                                return Collections.emptyList();
+                            }
+                            List<Object[]> rows = sf.getQueryService()
+                                .projection(pager.getQuery(),
+                                        pager.nextParameters());
+                            pager.onPage(rows);
+                            return rows;
+                        }
+                    }
+                }));
+    }
+
+    // Close logic
+    // =========================================================================
+
+    @Override
+    protected void preClose(Current current) {
+        synchronized (this) {
+            pager = null;
+        }
+    }
+
+    @Override
+    protected void postClose(Current current) {
+        // no-op
+    }
+}
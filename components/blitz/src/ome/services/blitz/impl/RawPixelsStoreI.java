@@ -15,6 +15,7 @@ import omero.ServerError;
 import omero.api.AMD_RawPixelsStore_calculateMessageDigest;
 import omero.api.AMD_RawPixelsStore_getByteWidth;
 import omero.api.AMD_RawPixelsStore_getCol;
+import omero.api.AMD_RawPixelsStore_getHistogram;
 import omero.api.AMD_RawPixelsStore_getHypercube;
 import omero.api.AMD_RawPixelsStore_getPixelsId;
 import omero.api.AMD_RawPixelsStore_getPixelsPath;
@@ -30,6 +31,7 @@ import omero.api.AMD_RawPixelsStore_getStack;
 import omero.api.AMD_RawPixelsStore_getStackOffset;
 import omero.api.AMD_RawPixelsStore_getStackSize;
 import omero.api.AMD_RawPixelsStore_getTile;
+import omero.api.AMD_RawPixelsStore_getTiles;
 import omero.api.AMD_RawPixelsStore_getTimepoint;
 import omero.api.AMD_RawPixelsStore_getTimepointOffset;
 import omero.api.AMD_RawPixelsStore_getTimepointSize;
@@ -46,6 +48,8 @@ import omero.api.AMD_RawPixelsStore_setStack;
 import omero.api.AMD_RawPixelsStore_setTile;
 import omero.api.AMD_RawPixelsStore_setTimepoint;
 import omero.api._RawPixelsStoreOperations;
+import omero.romio.PlaneDef;
+import omero.util.IceMapper;
 import Ice.Current;
 
 /**
@@ -265,6 +269,17 @@ public class RawPixelsStoreI extends AbstractPyramidServant implements
         callInvokerOnRawArgs(__cb, __current, z, c, t, x, y, w, h);
     }
 
+    /* (non-Javadoc)
+     * @see omero.api._RawPixelsStoreOperations#getTiles_async(omero.api.AMD_RawPixelsStore_getTiles, int[][], Ice.Current)
+     */
+    public void getTiles_async(AMD_RawPixelsStore_getTiles __cb,
+            int[][] tiles, Current __current) throws ServerError
+    {
+        // Arrays of arrays are passed and returned as they are.
+        IceMapper mapper = new IceMapper(IceMapper.UNMAPPED);
+        callInvokerOnMappedArgs(mapper, __cb, __current, (Object) tiles);
+    }
+
     /* (non-Javadoc)
      * @see omero.api._RawPixelsStoreOperations#setTile_async(omero.api.AMD_RawPixelsStore_setTile, byte[], int, int, int, int, int, int, int, Ice.Current)
      */
@@ -274,4 +289,18 @@ public class RawPixelsStoreI extends AbstractPyramidServant implements
     {
         callInvokerOnRawArgs(__cb, __current, buf, z, c, t, x, y, w, h);
     }
+
+    /* (non-Javadoc)
+     * @see omero.api._RawPixelsStoreOperations#getHistogram_async(omero.api.AMD_RawPixelsStore_getHistogram, int[], int, boolean, omero.romio.PlaneDef, Ice.Current)
+     */
+    public void getHistogram_async(AMD_RawPixelsStore_getHistogram __cb,
+            int[] channels, int binCount, boolean globalRange, PlaneDef plane,
+            Current __current) throws ServerError
+    {
+        // The histograms are returned as they are, the null plane meaning
+        // all the planes.
+        IceMapper mapper = new IceMapper(IceMapper.UNMAPPED);
+        callInvokerOnMappedArgs(mapper, __cb, __current, channels, binCount,
+                globalRange, plane == null ? null : IceMapper.convert(plane));
+    }
 }
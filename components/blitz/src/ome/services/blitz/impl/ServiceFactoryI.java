@@ -68,6 +68,8 @@ import omero.api.IUpdatePrx;
 import omero.api.IUpdatePrxHelper;
 import omero.api.JobHandlePrx;
 import omero.api.JobHandlePrxHelper;
+import omero.api.QueryCursorPrx;
+import omero.api.QueryCursorPrxHelper;
 import omero.api.RawPixelsStorePrx;
 import omero.api.RawPixelsStorePrxHelper;
 import omero.api.RenderingEnginePrx;
@@ -92,6 +94,7 @@ import omero.constants.LDAPSERVICE;
 import omero.constants.METADATASERVICE;
 import omero.constants.PIXELSSERVICE;
 import omero.constants.PROJECTIONSERVICE;
+import omero.constants.QUERYCURSOR;
 import omero.constants.QUERYSERVICE;
 import omero.constants.RAWFILESTORE;
 import omero.constants.RAWPIXELSSTORE;
@@ -378,6 +381,12 @@ public final class ServiceFactoryI extends omero.cmd.SessionI implements _Servic
                 current));
     }
 
+    public QueryCursorPrx createQueryCursor(Ice.Current current)
+            throws ServerError {
+        return QueryCursorPrxHelper.uncheckedCast(createByName(QUERYCURSOR.value,
+                current));
+    }
+
     public RenderingEnginePrx createRenderingEngine(Ice.Current current)
             throws ServerError {
         return RenderingEnginePrxHelper.uncheckedCast(createByName(
@@ -23,6 +23,7 @@ import omero.api.AMD_PyramidService_setResolutionLevel;
 import omero.api.AMD_RawPixelsStore_calculateMessageDigest;
 import omero.api.AMD_RawPixelsStore_getByteWidth;
 import omero.api.AMD_RawPixelsStore_getCol;
+import omero.api.AMD_RawPixelsStore_getHistogram;
 import omero.api.AMD_RawPixelsStore_getHypercube;
 import omero.api.AMD_RawPixelsStore_getPixelsId;
 import omero.api.AMD_RawPixelsStore_getPixelsPath;
@@ -38,6 +39,7 @@ import omero.api.AMD_RawPixelsStore_getStack;
 import omero.api.AMD_RawPixelsStore_getStackOffset;
 import omero.api.AMD_RawPixelsStore_getStackSize;
 import omero.api.AMD_RawPixelsStore_getTile;
+import omero.api.AMD_RawPixelsStore_getTiles;
 import omero.api.AMD_RawPixelsStore_getTimepoint;
 import omero.api.AMD_RawPixelsStore_getTimepointOffset;
 import omero.api.AMD_RawPixelsStore_getTimepointSize;
@@ -302,6 +304,12 @@ public class BfPixelsStoreI extends _RawPixelsStoreDisp {
         throw new UnsupportedOperationException("NYI");
     }
 
+    public void getHistogram_async(AMD_RawPixelsStore_getHistogram __cb,
+            int[] channels, int binCount, boolean globalRange,
+            omero.romio.PlaneDef plane, Current __current) throws ServerError {
+        throw new UnsupportedOperationException("NYI");
+    }
+
     public void setPixelsId_async(AMD_RawPixelsStore_setPixelsId __cb,
             long pixelsId, boolean bypassOriginalFile, Current __current)
             throws ServerError {
@@ -433,6 +441,15 @@ public class BfPixelsStoreI extends _RawPixelsStoreDisp {
         throw new UnsupportedOperationException("NYI");
     }
 
+    /* (non-Javadoc)
+     * @see omero.api._RawPixelsStoreOperations#getTiles_async(omero.api.AMD_RawPixelsStore_getTiles, int[][], Ice.Current)
+     */
+    public void getTiles_async(AMD_RawPixelsStore_getTiles __cb,
+            int[][] tiles, Current __current) throws ServerError
+    {
+        throw new UnsupportedOperationException("NYI");
+    }
+
     /* (non-Javadoc)
      * @see omero.api._RawPixelsStoreOperations#setTile_async(omero.api.AMD_RawPixelsStore_setTile, byte[], int, int, int, int, int, int, int, Ice.Current)
      */
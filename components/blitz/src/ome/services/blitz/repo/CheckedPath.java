@@ -347,6 +347,15 @@ public class CheckedPath {
     protected String getFullFsPath() {
         return this.fsFile.toString();
     }
+
+    /**
+     * The absolute path of the file on the server, from which further
+     * BioFormats readers may open it, see {@link #bfSetId(ReaderWrapper)}.
+     * @return the server path
+     */
+    protected String getServerPath() {
+        return this.file.getAbsolutePath();
+    }
     
     /**
      * Get a {@link FileBuffer} corresponding to this instance.
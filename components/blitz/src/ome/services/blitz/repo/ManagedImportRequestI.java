@@ -19,8 +19,6 @@ package ome.services.blitz.repo;
 
 import java.io.File;
 import java.io.IOException;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -99,7 +97,17 @@ public class ManagedImportRequestI extends ImportRequest implements IRequest {
      */
     private Helper helper;
 
-    private byte[] arrayBuf = new byte[omero.constants.DEFAULTBLOCKSIZE.value];  // not yet server-configurable
+    /**
+     * Number of threads reading the pixel data in {@link #pixelData}, see
+     * {@link PixelDataParser}.
+     */
+    private int parseThreads;
+
+    /**
+     * Number of metadata batches {@link #importMetadata} keeps in flight,
+     * see {@link OMEROMetadataStoreClient#setBatchesInFlight(int)}.
+     */
+    private int batchesInFlight;
 
     private final Registry reg;
 
@@ -186,6 +194,24 @@ public class ManagedImportRequestI extends ImportRequest implements IRequest {
         this.resources = resources;
     }
 
+    /**
+     * Sets the number of threads reading the pixel data to compute its
+     * checksum and statistics.
+     * @param parseThreads if <code>0</code> or lower, the number of
+     * available processors up to {@link PixelDataParser#DEFAULT_MAX_THREADS}
+     */
+    public void setParseThreads(int parseThreads) {
+        this.parseThreads = parseThreads;
+    }
+
+    /**
+     * Sets the number of metadata batches saved at a time.
+     * @see OMEROMetadataStoreClient#setBatchesInFlight(int)
+     */
+    public void setBatchesInFlight(int batchesInFlight) {
+        this.batchesInFlight = batchesInFlight;
+    }
+
     //
     // IRequest methods
     //
@@ -219,6 +245,7 @@ public class ManagedImportRequestI extends ImportRequest implements IRequest {
             store = new OMEROMetadataStoreClient();
             store.setCurrentLogFile(logFilename, token);
             store.initialize(sf);
+            store.setBatchesInFlight(batchesInFlight);
             registerKeepAlive();
 
             fileName = file.getFullFsPath();
@@ -633,16 +660,26 @@ public class ManagedImportRequestI extends ImportRequest implements IRequest {
         if (!reader.isMinMaxSet() && !noStatsInfo)
         {
             // Parse the binary data to generate min/max values
-            int seriesCount = reader.getSeriesCount();
-            for (int series = 0; series < seriesCount; series++) {
-                ImportSize size = new ImportSize(fileName,
-                        pixList.get(series), reader.getDimensionOrder());
-                Pixels pixels = pixList.get(series);
-                MessageDigest md = parseData(fileName, series, size);
-                if (md != null) {
-                   final String s = Hex.encodeHexString(md.digest());
-                   pixels.setSha1(store.toRType(s));
+            final PixelDataParser parser =
+                    new PixelDataParser(reader, file.getServerPath(),
+                            parseThreads);
+            try {
+                int seriesCount = reader.getSeriesCount();
+                for (int series = 0; series < seriesCount; series++) {
+                    ImportSize size = new ImportSize(fileName,
+                            pixList.get(series), reader.getDimensionOrder());
+                    Pixels pixels = pixList.get(series);
+                    PixelDataParser.Result result =
+                            parseData(parser, series, size);
+                    if (result != null) {
+                        final String s =
+                                Hex.encodeHexString(result.digest.digest());
+                        pixels.setSha1(store.toRType(s));
+                        setChannelGlobalMinMax(series, result);
+                    }
                 }
+            } finally {
+                parser.close();
             }
         }
 
@@ -729,15 +766,19 @@ public class ManagedImportRequestI extends ImportRequest implements IRequest {
 
     /**
      * Parse the binary data to generate min/max values and
-     * allow an md to be calculated.
+     * allow an md to be calculated. The tiles are decoded concurrently by
+     * the parser's readers.
      *
-     * @param series
-     * @return The SHA1 message digest for the binary data.
+     * @param parser Reads the pixel data.
+     * @param series The series to parse.
+     * @param size Sizes of the Pixels set.
+     * @return The SHA1 message digest and the channel statistics of the
+     * binary data, or <code>null</code> if the planes are too large to be
+     * parsed during import.
      */
-    public MessageDigest parseData(
-            String fileName, int series,
-            ImportSize size)
-        throws FormatException, IOException, ServerError
+    private PixelDataParser.Result parseData(
+            PixelDataParser parser, final int series, ImportSize size)
+        throws FormatException, IOException
     {
         reader.setSeries(series);
         int maxPlaneSize = sizes.getMaxPlaneWidth() * sizes.getMaxPlaneHeight();
@@ -746,97 +787,30 @@ public class ManagedImportRequestI extends ImportRequest implements IRequest {
             return null;
         }
 
-        int bytesPerPixel = getBytesPerPixel(reader.getPixelType());
-        MessageDigest md;
-        try {
-            md = MessageDigest.getInstance("SHA-1");
-        }
-        catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(
-                "Required SHA-1 message digest algorithm unavailable.");
-        }
-        int planeNo = 1;
-        for (int t = 0; t < size.sizeT; t++) {
-            for (int c = 0; c < size.sizeC; c++) {
-                for (int z = 0; z < size.sizeZ; z++) {
-                    parseDataByPlane(size, z, c, t,
-                            bytesPerPixel, fileName, md);
-                    notifyObservers(new ImportEvent.IMPORT_STEP(
-                            planeNo, series, reader.getSeriesCount()));
-                    planeNo++;
-                }
+        final int seriesCount = reader.getSeriesCount();
+        return parser.parse(series, size, new PixelDataParser.Progress() {
+            public void planeParsed(int plane, long bytes,
+                    long bytesPerSecond) {
+                notifyObservers(new ImportEvent.IMPORT_STEP(
+                        plane, series, seriesCount, bytes, bytesPerSecond));
             }
-        }
-        return md;
+        });
     }
 
-
     /**
-     * Read a plane and update the pixels checksum
-     *
-     * @param size Sizes of the Pixels set.
-     * @param z The Z-section offset to write to.
-     * @param c The channel offset to write to.
-     * @param t The timepoint offset to write to.
-     * @param bytesPerPixel Number of bytes per pixel.
-     * @param fileName Name of the file.
-     * @param md Current Pixels set message digest.
-     * @throws FormatException If there is an error reading Pixel data via
-     * Bio-Formats.
-     * @throws IOException If there is an I/O error reading Pixel data via
-     * Bio-Formats.
+     * Passes the channel statistics computed by {@link PixelDataParser} to
+     * the metadata store, in place of the minimum and maximum the reader
+     * tracks when it reads every plane itself.
+     * @param series The series parsed.
+     * @param result The result of parsing the series.
      */
-    private void parseDataByPlane(
-            ImportSize size, int z, int c, int t,
-            int bytesPerPixel, String fileName,
-            MessageDigest md)
-        throws FormatException, IOException
+    private void setChannelGlobalMinMax(
+            int series, PixelDataParser.Result result)
     {
-        int tileHeight = reader.getOptimalTileHeight();
-        int tileWidth = reader.getOptimalTileWidth();
-        int planeNumber, x, y, w, h;
-        for (int tileOffsetY = 0;
-             tileOffsetY < (size.sizeY + tileHeight - 1) / tileHeight;
-             tileOffsetY++)
-        {
-            for (int tileOffsetX = 0;
-                 tileOffsetX < (size.sizeX + tileWidth - 1) / tileWidth;
-                 tileOffsetX++)
-            {
-                x = tileOffsetX * tileWidth;
-                y = tileOffsetY * tileHeight;
-                w = tileWidth;
-                h = tileHeight;
-                if ((x + tileWidth) > size.sizeX)
-                {
-                    w = size.sizeX - x;
-                }
-                if ((y + tileHeight) > size.sizeY)
-                {
-                    h = size.sizeY - y;
-                }
-                int bytesToRead = w * h * bytesPerPixel;
-                if (arrayBuf.length != bytesToRead)
-                {
-                    arrayBuf = new byte[bytesToRead];
-                }
-                planeNumber = reader.getIndex(z, c, t);
-                if (log.isDebugEnabled())
-                {
-                    log.debug(String.format(
-                            "Plane:%d X:%d Y:%d TileWidth:%d TileHeight:%d " +
-                            "arrayBuf.length:%d", planeNumber, x, y, w, h,
-                            arrayBuf.length));
-                }
-                arrayBuf = reader.openBytes(
-                        planeNumber, arrayBuf, x, y, w, h);
-                try {
-                    md.update(arrayBuf);
-                }
-                catch (Exception e) {
-                    // This better not happen. :)
-                    throw new RuntimeException(e);
-                }
+        for (int c = 0; c < result.channelMinMax.length; c++) {
+            double[] minMax = result.channelMinMax[c];
+            if (minMax != null) {
+                store.setChannelGlobalMinMax(c, minMax[0], minMax[1], series);
             }
         }
     }
@@ -869,29 +843,6 @@ public class ManagedImportRequestI extends ImportRequest implements IRequest {
         }
     }
 
-    /**
-     * Retrieves how many bytes per pixel the current plane or section has.
-     * @return the number of bytes per pixel.
-     */
-    private int getBytesPerPixel(int type)
-    {
-        switch(type) {
-            case 0:
-            case 1:
-                return 1;  // INT8 or UINT8
-            case 2:
-            case 3:
-                return 2;  // INT16 or UINT16
-            case 4:
-            case 5:
-            case 6:
-                return 4;  // INT32, UINT32 or FLOAT
-            case 7:
-                return 8;  // DOUBLE
-        }
-        throw new RuntimeException("Unknown type with id: '" + type + "'");
-    }
-
     private List<Long> pixelIds() {
         List<Long> pixelsIds = new ArrayList<Long>(pixList.size());
         for (Pixels pixels : pixList)
@@ -0,0 +1,444 @@
+/*
+ * Copyright (C) 2016 University of Dundee & Open Microscopy Environment.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package ome.services.blitz.repo;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import ome.formats.importer.ImportSize;
+import ome.formats.importer.OMEROWrapper;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads the pixel data of an imported file once to compute both the SHA-1
+ * of each series and the minimum and maximum of each of its channels. The
+ * tiles are decoded concurrently, each worker thread with its own reader,
+ * and fed to the digest in the order in which a single reader would read
+ * them, so that the checksums are unchanged. Each worker opens the file
+ * again, so by default at most {@link #DEFAULT_MAX_THREADS} are used per
+ * import.
+ *
+ * @since 5.2.4
+ */
+public class PixelDataParser {
+
+    private static final Logger log =
+            LoggerFactory.getLogger(PixelDataParser.class);
+
+    /**
+     * Most worker threads, and so readers, used when the number of threads
+     * is not configured.
+     */
+    public static final int DEFAULT_MAX_THREADS = 4;
+
+    /** How many decoded tiles may wait for the digest, per thread. */
+    private static final int PENDING_PER_THREAD = 2;
+
+    /**
+     * Receives the progress of {@link PixelDataParser#parse}.
+     */
+    public interface Progress {
+
+        /**
+         * Called once all the tiles of a plane were digested.
+         * @param plane the number of planes digested so far, from 1
+         * @param bytes the number of bytes digested so far
+         * @param bytesPerSecond the rate at which they were digested
+         */
+        void planeParsed(int plane, long bytes, long bytesPerSecond);
+    }
+
+    /**
+     * The result of parsing a series.
+     */
+    public static class Result {
+
+        /** The SHA-1 of the pixel data. */
+        public final MessageDigest digest;
+
+        /**
+         * The minimum and maximum of each channel, <code>null</code> for
+         * channels without planes.
+         */
+        public final double[][] channelMinMax;
+
+        /** The number of bytes of pixel data read. */
+        public final long bytes;
+
+        Result(MessageDigest digest, double[][] channelMinMax, long bytes) {
+            this.digest = digest;
+            this.channelMinMax = channelMinMax;
+            this.bytes = bytes;
+        }
+    }
+
+    private final OMEROWrapper reader;
+
+    private final String path;
+
+    private final int threads;
+
+    /** The worker readers not currently decoding a tile. */
+    private final ConcurrentLinkedQueue<OMEROWrapper> idle =
+            new ConcurrentLinkedQueue<OMEROWrapper>();
+
+    /** All the worker readers, closed by {@link #close()}. */
+    private final List<OMEROWrapper> opened = new ArrayList<OMEROWrapper>();
+
+    private final ExecutorService executor;
+
+    /**
+     * Creates a new instance.
+     * @param reader the reader the file was imported with, which is only
+     * used for the metadata of the series since the worker threads open
+     * their own readers
+     * @param path the absolute path of the file on the server, to open the
+     * readers of the worker threads with
+     * @param threads the number of worker threads; if <code>0</code> or
+     * lower, the number of available processors up to
+     * {@link #DEFAULT_MAX_THREADS}
+     */
+    public PixelDataParser(OMEROWrapper reader, String path, int threads) {
+        this.reader = reader;
+        this.path = path;
+        this.threads = threads > 0 ? threads : Math.min(DEFAULT_MAX_THREADS,
+                Runtime.getRuntime().availableProcessors());
+        this.executor = Executors.newFixedThreadPool(this.threads,
+                new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r,
+                                "PixelDataParser-" + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+    }
+
+    /**
+     * Parses the pixel data of a series.
+     * @param series the series
+     * @param size the dimensions of the series
+     * @param progress notified as the planes are parsed, may be
+     * <code>null</code>
+     * @return the checksum and statistics of the pixel data
+     * @throws FormatException if a tile could not be decoded
+     * @throws IOException if a tile could not be read
+     */
+    public Result parse(final int series, ImportSize size, Progress progress)
+            throws FormatException, IOException {
+        reader.setSeries(series);
+        final int pixelType = reader.getPixelType();
+        final int bytesPerPixel = FormatTools.getBytesPerPixel(pixelType);
+        final ByteOrder order = reader.isLittleEndian() ?
+                ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+        final int tileWidth = reader.getOptimalTileWidth();
+        final int tileHeight = reader.getOptimalTileHeight();
+        final int tilesX = (size.sizeX + tileWidth - 1) / tileWidth;
+        final int tilesY = (size.sizeY + tileHeight - 1) / tileHeight;
+        // A plane of an RGB series holds several channels.
+        final int samples = Math.max(1, reader.getRGBChannelCount());
+        final boolean interleaved = reader.isInterleaved();
+        final int planeC = size.sizeC / samples;
+
+        final Digester digester = new Digester(size.sizeC, progress);
+        final Deque<Future<Tile>> pending = new ArrayDeque<Future<Tile>>();
+        final int window = threads * PENDING_PER_THREAD;
+        try {
+            for (int t = 0; t < size.sizeT; t++) {
+                for (int c = 0; c < planeC; c++) {
+                    for (int z = 0; z < size.sizeZ; z++) {
+                        final int planeNumber = reader.getIndex(z, c, t);
+                        final int channel = c * samples;
+                        for (int ty = 0; ty < tilesY; ty++) {
+                            for (int tx = 0; tx < tilesX; tx++) {
+                                final int x = tx * tileWidth;
+                                final int y = ty * tileHeight;
+                                final int w =
+                                        Math.min(tileWidth, size.sizeX - x);
+                                final int h =
+                                        Math.min(tileHeight, size.sizeY - y);
+                                final boolean last =
+                                        tx == tilesX - 1 && ty == tilesY - 1;
+                                if (pending.size() == window) {
+                                    digester.add(await(pending.removeFirst()));
+                                }
+                                pending.addLast(executor.submit(
+                                        new Callable<Tile>() {
+                                    public Tile call() throws Exception {
+                                        byte[] buf = read(series, planeNumber,
+                                                x, y, w, h,
+                                                w * h * bytesPerPixel * samples);
+                                        return new Tile(buf, channel, last,
+                                                minMax(buf, pixelType, order,
+                                                        samples, interleaved));
+                                    }
+                                }));
+                            }
+                        }
+                    }
+                }
+            }
+            while (!pending.isEmpty()) {
+                digester.add(await(pending.removeFirst()));
+            }
+        } finally {
+            for (Future<Tile> future : pending) {
+                future.cancel(true);
+            }
+        }
+        log.info(String.format(
+                "Parsed series %d: %d bytes in %d ms (%d bytes/s), " +
+                "%d threads", series, digester.bytes,
+                (System.nanoTime() - digester.start) / 1000000,
+                digester.rate(), threads));
+        return new Result(digester.md, digester.channelMinMax,
+                digester.bytes);
+    }
+
+    /**
+     * Feeds the tiles, in order, to the digest and the statistics and
+     * reports the progress.
+     */
+    private static class Digester {
+
+        final MessageDigest md;
+
+        final double[][] channelMinMax;
+
+        final Progress progress;
+
+        final long start = System.nanoTime();
+
+        long bytes;
+
+        int planes;
+
+        Digester(int sizeC, Progress progress) {
+            try {
+                md = MessageDigest.getInstance("SHA-1");
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(
+                    "Required SHA-1 message digest algorithm unavailable.");
+            }
+            this.channelMinMax = new double[sizeC][];
+            this.progress = progress;
+        }
+
+        void add(Tile tile) {
+            md.update(tile.data);
+            bytes += tile.data.length;
+            for (int s = 0; s < tile.minMax.length; s++) {
+                double[] minMax = channelMinMax[tile.channel + s];
+                if (minMax == null) {
+                    channelMinMax[tile.channel + s] = tile.minMax[s];
+                } else {
+                    minMax[0] = Math.min(minMax[0], tile.minMax[s][0]);
+                    minMax[1] = Math.max(minMax[1], tile.minMax[s][1]);
+                }
+            }
+            if (tile.lastOfPlane) {
+                planes++;
+                if (progress != null) {
+                    progress.planeParsed(planes, bytes, rate());
+                }
+            }
+        }
+
+        long rate() {
+            long elapsed = System.nanoTime() - start;
+            return elapsed > 0 ? bytes * 1000000000L / elapsed : 0;
+        }
+    }
+
+    private static Tile await(Future<Tile> future)
+            throws FormatException, IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while parsing pixel data", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof FormatException) {
+                throw (FormatException) cause;
+            } else if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * Reads a tile with an idle reader, opening a new one if all are busy.
+     */
+    private byte[] read(int series, int planeNumber, int x, int y, int w,
+            int h, int length) throws FormatException, IOException {
+        OMEROWrapper r = idle.poll();
+        if (r == null) {
+            r = reader.newReader();
+            synchronized (opened) {
+                opened.add(r);
+            }
+            r.setId(path);
+        }
+        try {
+            if (r.getSeries() != series) {
+                r.setSeries(series);
+            }
+            return r.openBytes(planeNumber, new byte[length], x, y, w, h);
+        } finally {
+            idle.add(r);
+        }
+    }
+
+    /**
+     * Returns the minimum and maximum of the pixels of a tile.
+     */
+    public static double[] minMax(byte[] buf, int pixelType,
+            ByteOrder order) {
+        return minMax(buf, pixelType, order, 1, false)[0];
+    }
+
+    /**
+     * Returns the minimum and maximum of each channel of a tile which holds
+     * several channels, as the planes of RGB series do.
+     * @param buf the pixels of the tile
+     * @param pixelType the type of the pixels
+     * @param order the byte order of the pixels
+     * @param samples the number of channels in the tile
+     * @param interleaved if the channels of each pixel follow each other,
+     * otherwise the tile holds all the pixels of a channel, then of the next
+     * @return the minimum and maximum of each channel of the tile
+     */
+    public static double[][] minMax(byte[] buf, int pixelType,
+            ByteOrder order, int samples, boolean interleaved) {
+        ByteBuffer b = ByteBuffer.wrap(buf).order(order);
+        double[][] minMax = new double[samples][];
+        for (int s = 0; s < samples; s++) {
+            minMax[s] = new double[] {
+                    Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY};
+        }
+        int pixels = buf.length / FormatTools.getBytesPerPixel(pixelType);
+        int perSample = pixels / samples;
+        for (int i = 0; b.hasRemaining(); i++) {
+            double v = value(b, pixelType);
+            double[] sample =
+                    minMax[interleaved ? i % samples : i / perSample];
+            if (v < sample[0]) {
+                sample[0] = v;
+            }
+            if (v > sample[1]) {
+                sample[1] = v;
+            }
+        }
+        return minMax;
+    }
+
+    /**
+     * Reads the next pixel of the given type.
+     */
+    private static double value(ByteBuffer b, int pixelType) {
+        switch (pixelType) {
+            case FormatTools.INT8:
+                return b.get();
+            case FormatTools.UINT8:
+                return b.get() & 0xFF;
+            case FormatTools.INT16:
+                return b.getShort();
+            case FormatTools.UINT16:
+                return b.getShort() & 0xFFFF;
+            case FormatTools.INT32:
+                return b.getInt();
+            case FormatTools.UINT32:
+                return b.getInt() & 0xFFFFFFFFL;
+            case FormatTools.FLOAT:
+                return b.getFloat();
+            case FormatTools.DOUBLE:
+                return b.getDouble();
+            default:
+                throw new IllegalArgumentException(
+                        "Unknown type with id: '" + pixelType + "'");
+        }
+    }
+
+    /**
+     * Stops the worker threads and closes the readers opened for them.
+     */
+    public void close() {
+        executor.shutdownNow();
+        synchronized (opened) {
+            for (OMEROWrapper r : opened) {
+                try {
+                    r.close();
+                } catch (IOException e) {
+                    log.warn("Failed to close reader", e);
+                }
+            }
+            opened.clear();
+        }
+    }
+
+    /**
+     * A decoded tile.
+     */
+    private static class Tile {
+
+        final byte[] data;
+
+        /** The first channel of the tile. */
+        final int channel;
+
+        final boolean lastOfPlane;
+
+        /** The minimum and maximum of each channel, from {@link #channel}. */
+        final double[][] minMax;
+
+        Tile(byte[] data, int channel, boolean lastOfPlane,
+                double[][] minMax) {
+            this.data = data;
+            this.channel = channel;
+            this.lastOfPlane = lastOfPlane;
+            this.minMax = minMax;
+        }
+    }
+}
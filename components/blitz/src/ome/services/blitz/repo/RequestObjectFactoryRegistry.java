@@ -56,6 +56,10 @@ public class RequestObjectFactoryRegistry extends
 
     private/* final */OmeroContext ctx;
 
+    private int parseThreads;
+
+    private int batchesInFlight;
+
     public RequestObjectFactoryRegistry(Registry reg, TileSizes sizes,
             RepositoryDao repositoryDao, Ring ring,
             PixelsService pixels) {
@@ -72,6 +76,22 @@ public class RequestObjectFactoryRegistry extends
         this.resources = resources;
     }
 
+    /**
+     * Sets the number of threads each import uses to read the pixel data,
+     * see {@link ManagedImportRequestI#setParseThreads(int)}.
+     */
+    public void setParseThreads(int parseThreads) {
+        this.parseThreads = parseThreads;
+    }
+
+    /**
+     * Sets the number of metadata batches each import saves at a time,
+     * see {@link ManagedImportRequestI#setBatchesInFlight(int)}.
+     */
+    public void setBatchesInFlight(int batchesInFlight) {
+        this.batchesInFlight = batchesInFlight;
+    }
+
     public void setApplicationContext(ApplicationContext ctx)
             throws BeansException {
         this.ctx = (OmeroContext) ctx;
@@ -90,6 +110,8 @@ public class RequestObjectFactoryRegistry extends
                                 pixels.getMemoizerDirectory()),
                         ring.uuid);
                 mir.setResources(resources);
+                mir.setParseThreads(parseThreads);
+                mir.setBatchesInFlight(batchesInFlight);
                 return mir;
             }
 
@@ -30,12 +30,32 @@ public abstract class AbstractThrottlingStrategy implements ApplicationContextAw
 
     protected /*final*/ OmeroContext ctx;
 
+    /** Whether this is the strategy in use, once known. */
+    private volatile Boolean active;
+
     public void setApplicationContext(ApplicationContext applicationContext)
             throws BeansException {
         this.ctx = (OmeroContext) applicationContext;
     }
 
+    /**
+     * Returns whether this is the strategy aliased as
+     * <code>throttlingStrategy</code>. Only that one handles the stats
+     * messages, so that defining several strategies does not block or abort
+     * the callers more than once.
+     */
+    protected boolean isActive() {
+        if (active == null) {
+            active = ctx == null || !ctx.containsBean("throttlingStrategy")
+                    || ctx.getBean("throttlingStrategy") == this;
+        }
+        return active;
+    }
+
     public void onApplicationEvent(ApplicationEvent event) {
+        if (!(event instanceof AbstractStatsMessage) || !isActive()) {
+            return;
+        }
         if (event instanceof ObjectsReadStatsMessage) {
             ObjectsReadStatsMessage read = (ObjectsReadStatsMessage) event;
             handle(read, read.getObjectsRead() + " objects read.");
@@ -0,0 +1,345 @@
+/*
+ *   Copyright 2016 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.services.throttling;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import ome.system.metrics.Counter;
+import ome.system.metrics.Histogram;
+import ome.system.metrics.Metrics;
+import ome.system.metrics.Timer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded pool of worker threads which shares them fairly between the
+ * sessions submitting tasks. Each session has its own queue and the sessions
+ * with queued tasks take turns, so that a session submitting many tasks only
+ * delays its own. A session never has more than a given number of tasks
+ * running at once.
+ * <p>
+ * The number of tasks queued, both in total and per session, is bounded.
+ * Once a bound is reached, {@link #submit(String, Runnable)} rejects the
+ * task rather than letting the backlog grow without limit.
+ * </p>
+ * <p>
+ * Worker threads are only started when there are tasks to run and stop after
+ * a minute without any. The queue depth at submission time is published as
+ * the <code>queueDepth</code> histogram, the time a task spent waiting for a
+ * worker as the <code>waitTimes</code> timer, the time spent running as the
+ * <code>taskTimes</code> timer and the number of rejected tasks as the
+ * <code>rejected</code> counter, each prefixed by the name of the pool.
+ * </p>
+ *
+ * @since 5.2.4
+ */
+public class FairExecutor {
+
+    private final static Logger log = LoggerFactory.getLogger(FairExecutor.class);
+
+    /** How long an idle worker waits for a task before stopping. */
+    private final static long KEEP_ALIVE = TimeUnit.SECONDS.toMillis(60);
+
+    /** Set in the worker threads of all the pools. */
+    private final static ThreadLocal<Boolean> worker = new ThreadLocal<Boolean>();
+
+    private final String name;
+
+    private final int threads;
+
+    private final int queueSize;
+
+    private final int sessionQueueSize;
+
+    private final int sessionThreads;
+
+    private final Object lock = new Object();
+
+    /** The sessions with queued or running tasks. */
+    private final Map<String, SessionQueue> sessions = new HashMap<String, SessionQueue>();
+
+    /**
+     * The sessions with queued tasks which are allowed to start one, in the
+     * order they take turns.
+     */
+    private final Deque<SessionQueue> ready = new ArrayDeque<SessionQueue>();
+
+    /** The number of queued tasks. */
+    private int queued;
+
+    /** The number of worker threads. */
+    private int workers;
+
+    /** The number of worker threads waiting for a task. */
+    private int idle;
+
+    private boolean shutdown;
+
+    /** Used to name the worker threads. */
+    private int count;
+
+    private final Histogram queueDepth;
+
+    private final Timer waitTimes;
+
+    private final Timer taskTimes;
+
+    private final Counter rejected;
+
+    /**
+     * Creates a new instance.
+     *
+     * @param name The name of the pool, used for its threads and metrics.
+     * @param threads The number of worker threads. If <code>0</code> or
+     *            lower, the number of available processors is used.
+     * @param queueSize The maximum number of tasks waiting for a worker.
+     * @param sessionQueueSize The maximum number of tasks of a single session
+     *            waiting for a worker.
+     * @param sessionThreads The maximum number of tasks of a single session
+     *            running at once.
+     * @param metrics Where to publish the queue and task metrics.
+     */
+    public FairExecutor(String name, int threads, int queueSize,
+            int sessionQueueSize, int sessionThreads, Metrics metrics) {
+        if (threads <= 0) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+        if (queueSize < 1 || sessionQueueSize < 1 || sessionThreads < 1) {
+            throw new IllegalArgumentException(String.format(
+                    "Invalid %s pool limits: queue=%d, session queue=%d, "
+                    + "session threads=%d", name, queueSize,
+                    sessionQueueSize, sessionThreads));
+        }
+        this.name = name;
+        this.threads = threads;
+        this.queueSize = queueSize;
+        this.sessionQueueSize = sessionQueueSize;
+        this.sessionThreads = sessionThreads;
+        this.queueDepth = metrics.histogram(this, name + ".queueDepth");
+        this.waitTimes = metrics.timer(this, name + ".waitTimes");
+        this.taskTimes = metrics.timer(this, name + ".taskTimes");
+        this.rejected = metrics.counter(this, name + ".rejected");
+        log.info(String.format("Throttling pool %s: threads=%d, queueSize=%d, "
+                + "sessionQueueSize=%d, sessionThreads=%d", name, threads,
+                queueSize, sessionQueueSize, sessionThreads));
+    }
+
+    /**
+     * Returns whether the calling thread is a worker of any pool. Tasks which
+     * make further calls needing a worker should make them in place, since
+     * waiting for another worker could exhaust the pool.
+     *
+     * @return See above.
+     */
+    public static boolean isWorker() {
+        return worker.get() != null;
+    }
+
+    /**
+     * Returns the name of the pool.
+     *
+     * @return See above.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the number of tasks waiting for a worker.
+     *
+     * @return See above.
+     */
+    public int getQueued() {
+        synchronized (lock) {
+            return queued;
+        }
+    }
+
+    /**
+     * Queues a task to be run by a worker.
+     *
+     * @param session The session on behalf of which the task is run.
+     * @param task The task.
+     * @return <code>false</code> if the task was rejected because too many
+     *         tasks are already queued or the pool is shut down.
+     */
+    public boolean submit(String session, Runnable task) {
+        synchronized (lock) {
+            if (shutdown) {
+                return false;
+            }
+            SessionQueue s = sessions.get(session);
+            if (s == null) {
+                s = new SessionQueue(session);
+            }
+            if (queued >= queueSize || s.pending.size() >= sessionQueueSize) {
+                rejected.inc();
+                return false;
+            }
+            sessions.put(session, s);
+            s.pending.add(new Entry(s, task));
+            queued++;
+            if (s.pending.size() == 1 && s.running < sessionThreads) {
+                ready.add(s);
+            }
+            queueDepth.update(queued);
+            if (idle > 0) {
+                lock.notify();
+            }
+            if (workers < threads && queued > idle) {
+                workers++;
+                Thread t = new Thread(new Worker(),
+                        "Throttling-" + name + "-" + (++count));
+                t.setDaemon(true);
+                t.start();
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Stops the workers once the running tasks have completed.
+     *
+     * @return The tasks which were queued and will not be run.
+     */
+    public List<Runnable> shutdown() {
+        List<Runnable> tasks = new ArrayList<Runnable>();
+        synchronized (lock) {
+            shutdown = true;
+            for (SessionQueue s : sessions.values()) {
+                for (Entry e : s.pending) {
+                    tasks.add(e.task);
+                }
+                s.pending.clear();
+            }
+            ready.clear();
+            queued = 0;
+            lock.notifyAll();
+        }
+        return tasks;
+    }
+
+    /**
+     * Waits for the next task a worker may run, taking the sessions in turns.
+     *
+     * @return See above, or <code>null</code> if the worker should stop.
+     */
+    private Entry next() {
+        synchronized (lock) {
+            long deadline = System.currentTimeMillis() + KEEP_ALIVE;
+            while (ready.isEmpty()) {
+                long wait = deadline - System.currentTimeMillis();
+                if (shutdown || wait <= 0) {
+                    workers--;
+                    return null;
+                }
+                idle++;
+                try {
+                    lock.wait(wait);
+                } catch (InterruptedException e) {
+                    log.warn("Throttling pool {} interrupted during wait", name);
+                } finally {
+                    idle--;
+                }
+            }
+            SessionQueue s = ready.poll();
+            Entry e = s.pending.poll();
+            queued--;
+            s.running++;
+            if (!s.pending.isEmpty() && s.running < sessionThreads) {
+                ready.add(s);
+            }
+            return e;
+        }
+    }
+
+    /**
+     * Records that a task of a session has completed, letting the session
+     * take its turn again if it was running as many tasks as it may.
+     */
+    private void done(SessionQueue s) {
+        synchronized (lock) {
+            s.running--;
+            if (s.pending.isEmpty()) {
+                if (s.running == 0) {
+                    sessions.remove(s.session);
+                }
+            } else if (s.running == sessionThreads - 1) {
+                ready.add(s);
+                lock.notify();
+            }
+        }
+    }
+
+    /**
+     * The queued tasks of a session and the number of them running.
+     */
+    private static class SessionQueue {
+
+        final String session;
+
+        final Deque<Entry> pending = new ArrayDeque<Entry>();
+
+        int running;
+
+        SessionQueue(String session) {
+            this.session = session;
+        }
+    }
+
+    /**
+     * Wraps a task so that its time in the queue and its running time are
+     * recorded.
+     */
+    private class Entry implements Runnable {
+
+        private final SessionQueue session;
+
+        private final Runnable task;
+
+        private final Timer.Context waiting;
+
+        Entry(SessionQueue session, Runnable task) {
+            this.session = session;
+            this.task = task;
+            this.waiting = waitTimes.time();
+        }
+
+        public void run() {
+            waiting.stop();
+            Timer.Context running = taskTimes.time();
+            try {
+                task.run();
+            } catch (Throwable t) {
+                log.error("Exception in throttling pool " + name, t);
+            } finally {
+                running.stop();
+                done(session);
+            }
+        }
+    }
+
+    /**
+     * Runs the tasks until none is left for a while or the pool is shut down.
+     */
+    private class Worker implements Runnable {
+
+        public void run() {
+            worker.set(Boolean.TRUE);
+            Entry e;
+            while ((e = next()) != null) {
+                e.run();
+            }
+        }
+    }
+}
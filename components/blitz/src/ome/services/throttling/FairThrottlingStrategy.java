@@ -0,0 +1,199 @@
+/*
+ *   Copyright 2016 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.services.throttling;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import ome.api.ServiceInterface;
+import ome.conditions.TryAgain;
+import ome.security.basic.CurrentDetails;
+import ome.services.blitz.util.IceMethodInvoker;
+import omero.util.IceMapper;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import Ice.Current;
+
+/**
+ * Throttling implementation which runs the invocations in two bounded pools
+ * of worker threads, one for the services which read or render pixel data or
+ * import files and one for all the others, so that heavy calls cannot delay
+ * the interactive ones. Within each pool the sessions take turns and are
+ * limited in the number of their calls running at once, so that a session
+ * making many calls only delays its own.
+ * <p>
+ * When a pool has too many calls queued, either in total or for the calling
+ * session, the call fails with {@link omero.TryAgain} rather than waiting.
+ * Calls made from a worker thread, such as calls between collocated
+ * servants, run in place.
+ * </p>
+ *
+ * @see FairExecutor
+ * @since 5.2.4
+ */
+public class FairThrottlingStrategy extends AbstractThrottlingStrategy {
+
+    private final static Logger log = LoggerFactory
+            .getLogger(FairThrottlingStrategy.class);
+
+    private final CurrentDetails cd;
+
+    private final FairExecutor heavy;
+
+    private final FairExecutor light;
+
+    private final List<String> heavyServices = new ArrayList<String>();
+
+    private final long backOff;
+
+    /**
+     * Creates a new instance.
+     *
+     * @param cd Holds the context of the calls for the worker threads.
+     * @param heavy The pool running calls to the heavy services.
+     * @param light The pool running all the other calls.
+     * @param heavyServices Comma-separated names of the heavy services, e.g.
+     *            <code>omero.api.RawPixelsStore</code>.
+     * @param backOff The time in milliseconds after which rejected callers
+     *            are advised to try again.
+     */
+    public FairThrottlingStrategy(CurrentDetails cd, FairExecutor heavy,
+            FairExecutor light, String heavyServices, long backOff) {
+        this.cd = cd;
+        this.heavy = heavy;
+        this.light = light;
+        this.backOff = backOff;
+        for (String service : heavyServices.split(",")) {
+            service = service.trim();
+            if (service.length() > 0) {
+                this.heavyServices.add(service);
+            }
+        }
+    }
+
+    /**
+     * Returns the pool which runs the calls to the servant of the given
+     * identity, whose name ends with the name of its service.
+     */
+    FairExecutor getExecutor(Ice.Identity id) {
+        for (String service : heavyServices) {
+            if (id.name.endsWith(service)) {
+                return heavy;
+            }
+        }
+        return light;
+    }
+
+    /**
+     * Stops both pools, failing the calls still queued.
+     */
+    public void destroy() {
+        List<Runnable> cancelled = new ArrayList<Runnable>();
+        cancelled.addAll(heavy.shutdown());
+        cancelled.addAll(light.shutdown());
+        for (Runnable r : cancelled) {
+            ((Dispatch) r).cancel();
+        }
+    }
+
+    void setup(Ice.Current current) {
+        if (current != null) {
+            cd.setContext(current.ctx);
+        }
+    }
+
+    void teardown() {
+        cd.setContext(null);
+    }
+
+    /**
+     * Runs the task in a worker of the pool for the called servant, or in
+     * place if there is no current or this is a worker already.
+     */
+    void dispatch(Ice.Current current, Task task) {
+        Dispatch d = new Dispatch(current, task);
+        if (current == null || FairExecutor.isWorker()) {
+            d.run();
+            return;
+        }
+        FairExecutor executor = getExecutor(current.id);
+        if (!executor.submit(current.id.category, d)) {
+            log.warn("Rejecting {} on {}: too many calls queued in {} pool",
+                    current.operation, current.id.name, executor.getName());
+            d.fail(new TryAgain(String.format(
+                    "Server busy: too many %s calls queued", executor.getName()),
+                    backOff));
+        }
+    }
+
+    public void callInvokerOnRawArgs(ServiceInterface service,
+            IceMethodInvoker invoker, Object __cb, Ice.Current __current,
+            Object... args) {
+        IceMapper mapper = new IceMapper();
+        dispatch(__current, new Callback(service, invoker, mapper, __cb,
+                __current, args));
+    }
+
+    public void callInvokerWithMappedArgs(ServiceInterface service,
+            IceMethodInvoker invoker, IceMapper mapper, Object __cb,
+            Current __current, Object... args) {
+        dispatch(__current, new Callback(service, invoker, mapper, __cb,
+                __current, args));
+    }
+
+    public <R> void safeRunnableCall(Current __current, Object __cb,
+            boolean isVoid, Callable<R> callable) {
+        dispatch(__current, new Callback2<R>(__current, __cb, isVoid, callable));
+    }
+
+    public void runnableCall(Current __current, Task runnable) {
+        dispatch(__current, runnable);
+    }
+
+    /**
+     * Runs a task with the context of its call.
+     */
+    private class Dispatch implements Runnable {
+
+        private final Ice.Current current;
+
+        private final Task task;
+
+        Dispatch(Ice.Current current, Task task) {
+            this.current = current;
+            this.task = task;
+        }
+
+        public void run() {
+            setup(current);
+            try {
+                task.run(ctx);
+            } catch (Exception e) {
+                log.error("Exception during dispatch", e);
+            } finally {
+                teardown();
+            }
+        }
+
+        /**
+         * Passes the exception to the caller instead of running the task.
+         */
+        void fail(Throwable t) {
+            try {
+                task.exception(t, ctx);
+            } catch (Exception e) {
+                log.error("Failed to reject " + task, e);
+            }
+        }
+
+        void cancel() {
+            fail(new Queue.CancelledException());
+        }
+    }
+}
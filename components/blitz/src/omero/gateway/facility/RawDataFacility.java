@@ -20,6 +20,7 @@
  */
 package omero.gateway.facility;
 
+import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 
@@ -69,7 +70,7 @@ public class RawDataFacility extends Facility {
      *            The timepoint at which data is to be fetched.
      * @param c
      *            The channel at which data is to be fetched.
-     * @return A plane 2D object that encapsulates the actual plane pixels.
+     * @return A plane 2D object that reads the plane pixels on request.
      * @throws DataSourceException
      *             If an error occurs while retrieving the plane data from the
      *             pixels source.
@@ -95,7 +96,7 @@ public class RawDataFacility extends Facility {
      * @param close
      *            Pass <code>true></code> to close the connection to the
      *            Pixelstore, <code>false</code> to leave it open.
-     * @return A plane 2D object that encapsulates the actual plane pixels.
+     * @return A plane 2D object that reads the plane pixels on request.
      * @throws DataSourceException
      *             If an error occurs while retrieving the plane data from the
      *             pixels source.
@@ -136,7 +137,7 @@ public class RawDataFacility extends Facility {
      *            The width of the tile
      * @param h
      *            The height of the tile
-     * @return A plane 2D object that encapsulates the actual tile pixels.
+     * @return A plane 2D object that reads the tile pixels on request.
      * @throws DataSourceException
      *             If an error occurs while retrieving the plane data from the
      *             pixels source.
@@ -171,7 +172,7 @@ public class RawDataFacility extends Facility {
      * @param close
      *            Pass <code>true></code> to close the connection to the
      *            Pixelstore, <code>false</code> to leave it open.
-     * @return A plane 2D object that encapsulates the actual tile pixels.
+     * @return A plane 2D object that reads the tile pixels on request.
      * @throws DataSourceException
      *             If an error occurs while retrieving the plane data from the
      *             pixels source.
@@ -191,6 +192,67 @@ public class RawDataFacility extends Facility {
         return data;
     }
 
+    /**
+     * Extracts several 2D tiles from the pixels set, with as few calls to the
+     * server as possible. Connection to the PixelsStore will be closed
+     * automatically.
+     * 
+     * @param ctx
+     *            The security context.
+     * @param pixels
+     *            The {@link PixelsData} object to fetch the data from.
+     * @param tiles
+     *            The tiles, each <code>{z, t, c, x, y, w, h}</code> as passed
+     *            to {@link #getTile(SecurityContext, PixelsData, int, int, int, int, int, int, int)}
+     *            or <code>{z, t, c, x, y, w, h, level}</code> to read it at
+     *            another resolution level.
+     * @return The plane 2D objects that read the tiles pixels on request, in
+     *         the order of the tiles.
+     * @throws DataSourceException
+     *             If an error occurs while retrieving the tiles data from the
+     *             pixels source.
+     */
+    public List<Plane2D> getTiles(SecurityContext ctx, PixelsData pixels,
+            int[][] tiles) throws DataSourceException {
+        return getTiles(ctx, pixels, tiles, true);
+    }
+
+    /**
+     * Extracts several 2D tiles from the pixels set, with as few calls to the
+     * server as possible.
+     * 
+     * @param ctx
+     *            The security context.
+     * @param pixels
+     *            The {@link PixelsData} object to fetch the data from.
+     * @param tiles
+     *            The tiles, each <code>{z, t, c, x, y, w, h}</code> as passed
+     *            to {@link #getTile(SecurityContext, PixelsData, int, int, int, int, int, int, int)}
+     *            or <code>{z, t, c, x, y, w, h, level}</code> to read it at
+     *            another resolution level.
+     * @param close
+     *            Pass <code>true></code> to close the connection to the
+     *            Pixelstore, <code>false</code> to leave it open.
+     * @return The plane 2D objects that read the tiles pixels on request, in
+     *         the order of the tiles.
+     * @throws DataSourceException
+     *             If an error occurs while retrieving the tiles data from the
+     *             pixels source.
+     */
+    public List<Plane2D> getTiles(SecurityContext ctx, PixelsData pixels,
+            int[][] tiles, boolean close) throws DataSourceException {
+        List<Plane2D> data = null;
+        try {
+            DataSink ds = RawDataFacility.getDataSink(pixels, gateway);
+            data = ds.getTiles(ctx, tiles, close);
+            if (close)
+                cache.invalidate(pixels.getId());
+        } catch (ExecutionException e) {
+            throw new DataSourceException("Can't initiate DataSink", e);
+        }
+        return data;
+    }
+
     /**
      * Retrieves a data sink corresponding the pixels.
      *
@@ -20,6 +20,9 @@
  */
 package omero.gateway.rnd;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import omero.api.RawPixelsStorePrx;
 import omero.gateway.Gateway;
 import omero.gateway.SecurityContext;
@@ -106,6 +109,13 @@ public class DataSink
         return new DataSink(source, gw, cacheSize);
     }
 
+    /**
+     * The largest number of bytes of pixel data requested in one call by
+     * {@link #getTiles(SecurityContext, int[][], boolean)}, well below the
+     * default maximum size of a message.
+     */
+    static final long MAX_TILES_BATCH_BYTES = 16 * 1024 * 1024;
+
     /** The data source. */
     private PixelsData source;
 
@@ -305,6 +315,90 @@ public class DataSink
         return new Plane2D(array, w, h, bytesPerPixels, strategy);
     }
 
+    /**
+     * Extracts 2D tiles from the pixels set this object is working for.
+     * The tiles are requested in batches, the next batch being requested
+     * before the tiles of the previous one are handled.
+     *
+     * @param ctx
+     *            The security context.
+     * @param tiles
+     *            The tiles, each <code>{z, t, c, x, y, w, h}</code> at the
+     *            current resolution level or
+     *            <code>{z, t, c, x, y, w, h, level}</code>.
+     * @param close
+     *            Indicates to close the service if <code>true</code>.
+     * @return The plane 2D objects that read the tiles pixels on request, in
+     *         the order of the tiles.
+     * @throws DataSourceException
+     *             If an error occurs while retrieving the tiles data from the
+     *             pixels source.
+     */
+    public List<Plane2D> getTiles(SecurityContext ctx, int[][] tiles,
+            boolean close) throws DataSourceException {
+        for (int i = 0; i < tiles.length; i++) {
+            if (tiles[i] == null ||
+                    (tiles[i].length != 7 && tiles[i].length != 8))
+                throw new IllegalArgumentException("Tile "+i+
+                        " is not {z, t, c, x, y, w, h[, level]}.");
+        }
+        List<Plane2D> planes = new ArrayList<Plane2D>(tiles.length);
+        try {
+            // initializes if null.
+            if (store == null) {
+                store = gw.createPixelsStore(ctx);
+                store.setPixelsId(source.getId(), false);
+            }
+            int start = 0;
+            int[][] pendingBatch = null;
+            Ice.AsyncResult pending = null;
+            while (start < tiles.length || pending != null) {
+                int[][] batch = null;
+                Ice.AsyncResult next = null;
+                if (start < tiles.length) {
+                    int end = start;
+                    long bytes = 0;
+                    do {
+                        bytes += (long) tiles[end][5]*tiles[end][6]*
+                                bytesPerPixels;
+                        end++;
+                    } while (end < tiles.length && bytes+(long) tiles[end][5]*
+                            tiles[end][6]*bytesPerPixels <=
+                            MAX_TILES_BATCH_BYTES);
+                    batch = new int[end-start][];
+                    for (int i = start; i < end; i++) {
+                        // The server expects {z, c, t, ...}.
+                        int[] tile = tiles[i].clone();
+                        tile[1] = tiles[i][2];
+                        tile[2] = tiles[i][1];
+                        batch[i-start] = tile;
+                    }
+                    next = store.begin_getTiles(batch);
+                    start = end;
+                }
+                if (pending != null) {
+                    byte[][] data = store.end_getTiles(pending);
+                    for (int i = 0; i < data.length; i++) {
+                        ReadOnlyByteArray array = new ReadOnlyByteArray(
+                                data[i], 0, data[i].length);
+                        planes.add(new Plane2D(array, pendingBatch[i][5],
+                                pendingBatch[i][6], bytesPerPixels, strategy));
+                    }
+                }
+                pending = next;
+                pendingBatch = batch;
+            }
+        } catch (Exception e) {
+            throw new DataSourceException("Cannot retrieve the tiles", e);
+        } finally {
+            if (close) {
+                gw.closeService(ctx, store);
+                store = null;
+            }
+        }
+        return planes;
+    }
+
     /**
      * Extracts a 2D plane from the pixels set this object is working for.
      *
@@ -20,10 +20,17 @@
  */
 package omero.gateway.rnd;
 
+import java.nio.ByteBuffer;
+
 import omero.util.ReadOnlyByteArray;
 
 /** 
  * Holds structure used to mapped the raw pixels data.
+ * The pixels values are read from the raw data when requested rather than
+ * converted beforehand, either one at a time or a row or tile at a time
+ * into an <code>int</code> or <code>float</code> array. A
+ * <code>double</code> copy of the whole plane is only made by
+ * {@link #toDoubleArray()}.
  *
  * @author Jean-Marie Burel &nbsp;&nbsp;&nbsp;&nbsp;
  * <a href="mailto:j.burel@dundee.ac.uk">j.burel@dundee.ac.uk</a>
@@ -41,14 +48,20 @@ public class Plane2D
     /** The number of elements along the x-axis. */
     private int sizeX;
 
+    /** The number of elements along the y-axis. */
+    private int sizeY;
+
     /** The original array. */
     private ReadOnlyByteArray data;
 
-    /** Strategy used to transform original data. */
-    private BytesConverter strategy;
+    /** Big-endian view of the original array. */
+    private ByteBuffer buffer;
+
+    /** Whether the values are signed integers. */
+    private boolean signed;
 
-    /** The converted raw data. */
-    private double[][] mappedData;
+    /** Whether the values are floating point numbers. */
+    private boolean floatingPoint;
 
     /** 
      * Determines the offset value.
@@ -63,20 +76,70 @@ public class Plane2D
     }
 
     /**
-     * Converts the raw data.
+     * Makes sure that the specified rectangle is within the plane.
      *
-     * @param sizeY The number of pixels along the y-axis.
+     * @param x The x-coordinate of the top left corner.
+     * @param y The y-coordinate of the top left corner.
+     * @param w The width of the rectangle.
+     * @param h The height of the rectangle.
      */
-    private void mappedData(int sizeY)
+    private void checkBounds(int x, int y, int w, int h)
     {
-        mappedData = new double[sizeX][sizeY];
-        int offset;
-        for (int x = 0; x < sizeX; x++) {
-            for (int y = 0; y < sizeY; y++) {
-                offset = calculateOffset(x, y);
-                mappedData[x][y] = strategy.pack(data, offset, bytesPerPixel);
-            }
+        if (x < 0 || y < 0 || w < 0 || h < 0 || x+w > sizeX || y+h > sizeY)
+            throw new IndexOutOfBoundsException("Rectangle ("+x+", "+y+", "+
+                    w+", "+h+") not in [0, "+sizeX+") x [0, "+sizeY+").");
+    }
+
+    /**
+     * Makes sure that an array can hold the values of a rectangle.
+     *
+     * @param actual The length of the array.
+     * @param length The number of values of the rectangle.
+     */
+    private static void checkLength(int actual, int length)
+    {
+        if (actual < length)
+            throw new IllegalArgumentException("Array of "+actual+
+                    " elements is too small for "+length+" values.");
+    }
+
+    /**
+     * Reads the value at the specified offset as a 64-bit integer, without
+     * loss for all the integral types.
+     *
+     * @param offset The offset of the first byte of the value.
+     * @return See above.
+     */
+    private long readLong(int offset)
+    {
+        switch (bytesPerPixel) {
+            case 1:
+                byte b = buffer.get(offset);
+                return signed ? b : b & 0xFF;
+            case 2:
+                short s = buffer.getShort(offset);
+                return signed ? s : s & 0xFFFF;
+            case 4:
+                int i = buffer.getInt(offset);
+                return signed ? i : i & 0xFFFFFFFFL;
+            default:
+                return buffer.getLong(offset);
+        }
+    }
+
+    /**
+     * Reads the value at the specified offset.
+     *
+     * @param offset The offset of the first byte of the value.
+     * @return See above.
+     */
+    private double readDouble(int offset)
+    {
+        if (floatingPoint) {
+            return bytesPerPixel == 4 ? buffer.getFloat(offset) :
+                buffer.getDouble(offset);
         }
+        return readLong(offset);
     }
 
     /**
@@ -91,13 +154,35 @@ public class Plane2D
     public Plane2D(ReadOnlyByteArray data, int sizeX, int sizeY,
             int bytesPerPixel, BytesConverter strategy)
     {
+        if (strategy == null)
+            throw new NullPointerException("No strategy.");
+        if (data.length < sizeX*sizeY*bytesPerPixel)
+            throw new IllegalArgumentException("Not enough data for "+
+                    sizeX+"x"+sizeY+" pixels.");
         this.bytesPerPixel = bytesPerPixel;
         this.data = data;
-        this.strategy = strategy;
         this.sizeX = sizeX;
-        mappedData(sizeY);
+        this.sizeY = sizeY;
+        buffer = data.asByteBuffer();
+        floatingPoint = strategy instanceof FloatConverter ||
+                strategy instanceof DoubleConverter;
+        signed = floatingPoint || strategy instanceof IntConverter;
     }
 
+    /**
+     * Returns the number of pixels along the x-axis.
+     *
+     * @return See above.
+     */
+    public int getSizeX() { return sizeX; }
+
+    /**
+     * Returns the number of pixels along the y-axis.
+     *
+     * @return See above.
+     */
+    public int getSizeY() { return sizeY; }
+
     /**
      * Returns the pixels value at the point specified by the x-coordinate
      * and y-coordinate.
@@ -108,7 +193,157 @@ public class Plane2D
      */
     public double getPixelValue(int x, int y)
     {
-        return mappedData[x][y];
+        checkBounds(x, y, 1, 1);
+        return readDouble(calculateOffset(x, y));
+    }
+
+    /**
+     * Returns the pixels value at the point specified by the x-coordinate
+     * and y-coordinate as an <code>int</code>. Floating point values are
+     * truncated and <code>uint32</code> values above
+     * {@link Integer#MAX_VALUE} wrap around.
+     *
+     * @param x The x-coordinate.
+     * @param y The y-coordinate.
+     * @return See above.
+     */
+    public int getIntValue(int x, int y)
+    {
+        checkBounds(x, y, 1, 1);
+        int offset = calculateOffset(x, y);
+        return floatingPoint ? (int) readDouble(offset) :
+            (int) readLong(offset);
+    }
+
+    /**
+     * Returns the pixels value at the point specified by the x-coordinate
+     * and y-coordinate as a <code>float</code>.
+     *
+     * @param x The x-coordinate.
+     * @param y The y-coordinate.
+     * @return See above.
+     */
+    public float getFloatValue(int x, int y)
+    {
+        checkBounds(x, y, 1, 1);
+        return (float) readDouble(calculateOffset(x, y));
+    }
+
+    /**
+     * Copies the values of a rectangle of the plane, row after row, as
+     * {@link #getIntValue(int, int)} returns them.
+     *
+     * @param x The x-coordinate of the top left corner.
+     * @param y The y-coordinate of the top left corner.
+     * @param w The width of the rectangle.
+     * @param h The height of the rectangle.
+     * @param values The array to copy the values into, or <code>null</code>
+     *               to allocate one of <code>w*h</code> elements.
+     * @return The array holding the values.
+     */
+    public int[] getIntTile(int x, int y, int w, int h, int[] values)
+    {
+        checkBounds(x, y, w, h);
+        if (values == null) values = new int[w*h];
+        checkLength(values.length, w*h);
+        int i = 0;
+        for (int row = y; row < y+h; row++) {
+            int offset = calculateOffset(x, row);
+            int end = offset+w*bytesPerPixel;
+            if (floatingPoint) {
+                for (; offset < end; offset += bytesPerPixel)
+                    values[i++] = (int) readDouble(offset);
+            } else if (bytesPerPixel == 1) {
+                int mask = signed ? -1 : 0xFF;
+                for (; offset < end; offset++)
+                    values[i++] = buffer.get(offset) & mask;
+            } else if (bytesPerPixel == 2) {
+                int mask = signed ? -1 : 0xFFFF;
+                for (; offset < end; offset += 2)
+                    values[i++] = buffer.getShort(offset) & mask;
+            } else {
+                for (; offset < end; offset += bytesPerPixel)
+                    values[i++] = (int) readLong(offset);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Copies the values of a rectangle of the plane, row after row, as
+     * {@link #getFloatValue(int, int)} returns them.
+     *
+     * @param x The x-coordinate of the top left corner.
+     * @param y The y-coordinate of the top left corner.
+     * @param w The width of the rectangle.
+     * @param h The height of the rectangle.
+     * @param values The array to copy the values into, or <code>null</code>
+     *               to allocate one of <code>w*h</code> elements.
+     * @return The array holding the values.
+     */
+    public float[] getFloatTile(int x, int y, int w, int h, float[] values)
+    {
+        checkBounds(x, y, w, h);
+        if (values == null) values = new float[w*h];
+        checkLength(values.length, w*h);
+        int i = 0;
+        for (int row = y; row < y+h; row++) {
+            int offset = calculateOffset(x, row);
+            int end = offset+w*bytesPerPixel;
+            if (floatingPoint && bytesPerPixel == 4) {
+                for (; offset < end; offset += 4)
+                    values[i++] = buffer.getFloat(offset);
+            } else {
+                for (; offset < end; offset += bytesPerPixel)
+                    values[i++] = (float) readDouble(offset);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Copies the values of a row of the plane as
+     * {@link #getIntValue(int, int)} returns them.
+     *
+     * @param y The y-coordinate of the row.
+     * @param values The array to copy the values into, or <code>null</code>
+     *               to allocate one of {@link #getSizeX()} elements.
+     * @return The array holding the values.
+     */
+    public int[] getIntRow(int y, int[] values)
+    {
+        return getIntTile(0, y, sizeX, 1, values);
+    }
+
+    /**
+     * Copies the values of a row of the plane as
+     * {@link #getFloatValue(int, int)} returns them.
+     *
+     * @param y The y-coordinate of the row.
+     * @param values The array to copy the values into, or <code>null</code>
+     *               to allocate one of {@link #getSizeX()} elements.
+     * @return The array holding the values.
+     */
+    public float[] getFloatRow(int y, float[] values)
+    {
+        return getFloatTile(0, y, sizeX, 1, values);
+    }
+
+    /**
+     * Converts the whole plane, indexed by x-coordinate then y-coordinate.
+     * This takes 8 bytes per pixel: prefer the other accessors.
+     *
+     * @return See above.
+     */
+    public double[][] toDoubleArray()
+    {
+        double[][] mappedData = new double[sizeX][sizeY];
+        for (int y = 0; y < sizeY; y++) {
+            int offset = calculateOffset(0, y);
+            for (int x = 0; x < sizeX; x++, offset += bytesPerPixel)
+                mappedData[x][y] = readDouble(offset);
+        }
+        return mappedData;
     }
 
     /**
@@ -191,7 +191,7 @@ public class IceMapper extends ome.util.ModelMapper implements
             }
 
             List<Object[]> listObjArr = (List<Object[]>) value;
-            List<List<RType>> rv = new ArrayList<List<RType>>();
+            List<List<RType>> rv = new ArrayList<List<RType>>(listObjArr.size());
             for (Object[] objs : listObjArr) {
                 rv.add((List<RType>)OBJECTARRAY_TO_RTYPESEQ.mapReturnValue(mapper, objs));
             }
@@ -23,6 +23,8 @@
 
 package omero.util;
 
+import java.nio.ByteBuffer;
+
 /** 
  * A read-only slice of a given array.
  * Given a <code>base</code> array and an interval <code>[offset, offset+length]
@@ -110,4 +112,16 @@ public class ReadOnlyByteArray
 		return base[offset+index];
 	}
 
+	/**
+	 * Returns a read-only, big-endian view of this slice, index
+	 * <code>0</code> of the buffer being the first element of the slice.
+	 * The elements are not copied.
+	 * 
+	 * @return See above.
+	 */
+	public ByteBuffer asByteBuffer()
+	{
+		return ByteBuffer.wrap(base, offset, length).slice().asReadOnlyBuffer();
+	}
+
 }
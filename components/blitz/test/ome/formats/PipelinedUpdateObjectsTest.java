@@ -0,0 +1,123 @@
+/*
+ *   Copyright 2016 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package ome.formats;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import omero.ServerError;
+import omero.metadatastore.IObjectContainer;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Checks that {@link OMEROMetadataStoreClient} keeps the configured number
+ * of batches of containers in flight, sends them in order and still ends the
+ * outstanding calls when a batch fails.
+ */
+@Test(groups = "unit")
+public class PipelinedUpdateObjectsTest {
+
+    /**
+     * Records the batches sent. The handle on a call is its sequence number.
+     */
+    private static class Sender
+        implements OMEROMetadataStoreClient.BatchSender<Integer> {
+
+        final List<String> sent = new ArrayList<String>();
+
+        final Set<Integer> outstanding = new HashSet<Integer>();
+
+        final List<Integer> ended = new ArrayList<Integer>();
+
+        int maxOutstanding;
+
+        int begun;
+
+        Integer failing;
+
+        public Integer begin(IObjectContainer[] batch, int sequence) {
+            Assert.assertEquals(sequence, begun++);
+            Assert.assertTrue(batch.length > 0);
+            for (IObjectContainer container : batch) {
+                sent.add(container.LSID);
+            }
+            outstanding.add(sequence);
+            maxOutstanding = Math.max(maxOutstanding, outstanding.size());
+            return sequence;
+        }
+
+        public void end(Integer sequence) throws ServerError {
+            Assert.assertTrue(outstanding.remove(sequence));
+            ended.add(sequence);
+            if (sequence.equals(failing)) {
+                throw new ServerError(null, null, "batch " + sequence);
+            }
+        }
+    }
+
+    private static IObjectContainer[] containers(int count) {
+        IObjectContainer[] containers = new IObjectContainer[count];
+        for (int i = 0; i < count; i++) {
+            containers[i] = new IObjectContainer();
+            containers[i].LSID = "Image:" + i;
+        }
+        return containers;
+    }
+
+    private static List<String> lsids(IObjectContainer[] containers) {
+        List<String> lsids = new ArrayList<String>();
+        for (IObjectContainer container : containers) {
+            lsids.add(container.LSID);
+        }
+        return lsids;
+    }
+
+    public void testBatchesInFlight() throws Exception {
+        IObjectContainer[] containers = containers(100);
+        Sender sender = new Sender();
+        new OMEROMetadataStoreClient().updateObjectsPipelined(sender,
+                containers, 8, 3);
+        // Every container is sent once, in graph order.
+        Assert.assertEquals(sender.sent, lsids(containers));
+        Assert.assertEquals(sender.maxOutstanding, 3);
+        Assert.assertTrue(sender.outstanding.isEmpty());
+        Assert.assertEquals(sender.ended.size(), sender.begun);
+        for (int i = 0; i < sender.ended.size(); i++) {
+            Assert.assertEquals(sender.ended.get(i).intValue(), i);
+        }
+    }
+
+    public void testFewerBatchesThanInFlight() throws Exception {
+        IObjectContainer[] containers = containers(3);
+        Sender sender = new Sender();
+        new OMEROMetadataStoreClient().updateObjectsPipelined(sender,
+                containers, 4, 8);
+        Assert.assertEquals(sender.sent, lsids(containers));
+        Assert.assertEquals(sender.maxOutstanding, 3);
+        Assert.assertTrue(sender.outstanding.isEmpty());
+    }
+
+    public void testFailedBatchEndsOutstanding() throws Exception {
+        IObjectContainer[] containers = containers(100);
+        Sender sender = new Sender();
+        sender.failing = 1;
+        try {
+            new OMEROMetadataStoreClient().updateObjectsPipelined(sender,
+                    containers, 4, 3);
+            Assert.fail("failed batch was ignored");
+        } catch (ServerError e) {
+            Assert.assertEquals(e.message, "batch 1");
+        }
+        // Batches 0 to 2 were in flight, batch 3 was sent once batch 0 was
+        // saved; nothing was sent after batch 1 failed.
+        Assert.assertEquals(sender.begun, 4);
+        Assert.assertTrue(sender.outstanding.isEmpty());
+        Assert.assertEquals(sender.ended.size(), 4);
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ *   Copyright 2016 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package ome.formats.importer;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+import java.util.Properties;
+
+import org.testng.annotations.Test;
+
+/**
+ * Checks that {@link ImportConfig#parallelUpload} only overrides the number
+ * of upload threads set on an {@link ImportLibrary} when it was set.
+ */
+public class ImportLibraryUploadThreadsTest {
+
+    private ImportConfig config(Properties p) {
+        return new ImportConfig(null, null, p);
+    }
+
+    @Test
+    public void testUnsetKeepsLibraryValue() {
+        ImportConfig config = config(new Properties());
+        config.parallelUpload.load();
+        assertNull(config.parallelUpload.get());
+        // As set by ImportLibrary#setUploadThreads(int).
+        assertEquals(ImportLibrary.getUploadThreads(config, 8), 8);
+        assertEquals(ImportLibrary.getUploadThreads(config, 1), 1);
+    }
+
+    @Test
+    public void testSetOverridesLibraryValue() {
+        // As set by the --parallel-upload option of the command line.
+        ImportConfig config = config(new Properties());
+        config.parallelUpload.set(4);
+        assertEquals(ImportLibrary.getUploadThreads(config, 8), 4);
+        assertEquals(ImportLibrary.getUploadThreads(config, 1), 4);
+    }
+
+    @Test
+    public void testLoadedOverridesLibraryValue() {
+        Properties p = new Properties();
+        p.setProperty("parallelUpload", "3");
+        ImportConfig config = config(p);
+        config.parallelUpload.load();
+        assertEquals(ImportLibrary.getUploadThreads(config, 8), 3);
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ *   Copyright 2016 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package ome.services.blitz.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import ome.conditions.ApiUsageException;
+
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Checks that {@link BatchSequencer} applies the batches of a pipelined
+ * client in order and that a failed batch fails those behind it.
+ */
+@Test(groups = "unit")
+public class BatchSequencerTest {
+
+    /** Batch whose application fails. */
+    private static final String BROKEN = "broken";
+
+    private List<String> applied;
+
+    private BatchSequencer<String> batches;
+
+    @BeforeMethod
+    public void setUp() {
+        applied = new ArrayList<String>();
+        batches = new BatchSequencer<String>() {
+            @Override
+            protected void apply(String batch) {
+                if (BROKEN.equals(batch)) {
+                    throw new RuntimeException(batch);
+                }
+                applied.add(batch);
+            }
+        };
+    }
+
+    private void assertApplied(String... expected) {
+        Assert.assertEquals(applied, Arrays.asList(expected));
+    }
+
+    private void assertRejected(Integer sequence, String batch) {
+        try {
+            batches.add(sequence, batch);
+            Assert.fail("batch " + sequence + " was accepted");
+        } catch (ApiUsageException e) {
+            // expected
+        }
+    }
+
+    private void assertCheckFails() {
+        try {
+            batches.check();
+            Assert.fail("check passed");
+        } catch (ApiUsageException e) {
+            // expected
+        }
+    }
+
+    public void testInOrder() {
+        batches.add(0, "a");
+        batches.add(1, "b");
+        batches.add(2, "c");
+        assertApplied("a", "b", "c");
+        batches.check();
+    }
+
+    public void testUnsequencedAppliedNow() {
+        batches.add(null, "a");
+        batches.add(1, "c");
+        batches.add(null, "b");
+        assertApplied("a", "b");
+        Assert.assertEquals(batches.pendingCount(), 1);
+    }
+
+    public void testLaterBatchWaitsForEarlier() {
+        batches.add(1, "b");
+        batches.add(2, "c");
+        // Nothing is applied until batch 0 arrives.
+        assertApplied();
+        Assert.assertEquals(batches.pendingCount(), 2);
+        batches.add(0, "a");
+        assertApplied("a", "b", "c");
+        Assert.assertEquals(batches.pendingCount(), 0);
+        batches.check();
+    }
+
+    public void testReordered() {
+        batches.add(0, "a");
+        batches.add(3, "d");
+        batches.add(2, "c");
+        assertApplied("a");
+        batches.add(1, "b");
+        assertApplied("a", "b", "c", "d");
+    }
+
+    public void testGapFailsCheck() {
+        batches.add(0, "a");
+        batches.add(2, "c");
+        assertApplied("a");
+        assertCheckFails();
+        // A new sequence starts afresh.
+        batches.reset();
+        batches.check();
+        batches.add(0, "x");
+        assertApplied("a", "x");
+    }
+
+    public void testDuplicateRejected() {
+        batches.add(0, "a");
+        batches.add(2, "c");
+        // Already applied.
+        assertRejected(0, "a2");
+        // Already pending.
+        assertRejected(2, "c2");
+        batches.add(1, "b");
+        assertApplied("a", "b", "c");
+        batches.check();
+    }
+
+    public void testFailedBatchFailsPending() {
+        batches.add(0, "a");
+        batches.add(2, "c");
+        batches.add(3, "d");
+        // Batch 1 could not be read by the server.
+        batches.fail(1);
+        Assert.assertEquals(batches.pendingCount(), 0);
+        assertRejected(4, "e");
+        assertRejected(1, "b");
+        assertApplied("a");
+        assertCheckFails();
+        batches.reset();
+        batches.add(0, "x");
+        assertApplied("a", "x");
+    }
+
+    public void testFailedApplyFailsPending() {
+        batches.add(1, "b");
+        try {
+            batches.add(0, BROKEN);
+            Assert.fail("broken batch was applied");
+        } catch (RuntimeException e) {
+            Assert.assertEquals(e.getMessage(), BROKEN);
+        }
+        // Batch 1 is not applied after the failed batch 0.
+        assertApplied();
+        assertRejected(2, "c");
+        assertCheckFails();
+    }
+
+    public void testUnsequencedFailureIgnored() {
+        batches.fail(null);
+        batches.add(0, "a");
+        assertApplied("a");
+        batches.check();
+    }
+}
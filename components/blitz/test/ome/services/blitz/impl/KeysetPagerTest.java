@@ -0,0 +1,104 @@
+/*
+ *   Copyright 2016 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package ome.services.blitz.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import ome.conditions.ApiUsageException;
+import ome.parameters.Parameters;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Checks that {@link KeysetPager} reads each page after the key of the last
+ * row read and stops after a short page.
+ */
+@Test(groups = "unit")
+public class KeysetPagerTest {
+
+    private static final String QUERY =
+        "select i.id, i.name from Image i where i.id > :last order by i.id";
+
+    private static List<Object[]> rows(long... keys) {
+        List<Object[]> rows = new ArrayList<Object[]>();
+        for (long key : keys) {
+            rows.add(new Object[] { key, "image " + key });
+        }
+        return rows;
+    }
+
+    private static void assertRejected(Parameters params, int pageSize) {
+        try {
+            new KeysetPager(QUERY, params, pageSize);
+            Assert.fail("pager was created");
+        } catch (ApiUsageException e) {
+            // expected
+        }
+    }
+
+    public void testPages() {
+        Parameters params = new Parameters().addString("name", "x");
+        KeysetPager pager = new KeysetPager(QUERY, params, 3);
+        Assert.assertEquals(pager.getQuery(), QUERY);
+
+        Parameters first = pager.nextParameters();
+        Assert.assertEquals(first.get(KeysetPager.LAST).value, Long.MIN_VALUE);
+        Assert.assertEquals(first.get("name").value, "x");
+        Assert.assertEquals(first.getOffset().intValue(), 0);
+        Assert.assertEquals(first.getLimit().intValue(), 3);
+        // The client's parameters are left as they were.
+        Assert.assertFalse(params.isPagination());
+        Assert.assertNull(params.get(KeysetPager.LAST));
+
+        pager.onPage(rows(2, 5, 9));
+        Assert.assertFalse(pager.isDone());
+        Parameters second = pager.nextParameters();
+        Assert.assertEquals(second.get(KeysetPager.LAST).value, 9L);
+        Assert.assertEquals(second.getOffset().intValue(), 0);
+
+        pager.onPage(rows(11));
+        Assert.assertTrue(pager.isDone());
+    }
+
+    public void testFullLastPage() {
+        KeysetPager pager = new KeysetPager(QUERY, null, 2);
+        pager.onPage(rows(1, 2));
+        Assert.assertFalse(pager.isDone());
+        pager.onPage(rows());
+        Assert.assertTrue(pager.isDone());
+        Assert.assertEquals(pager.nextParameters().get(KeysetPager.LAST).value,
+                2L);
+    }
+
+    public void testBadParameters() {
+        assertRejected(null, 0);
+        assertRejected(null, KeysetPager.MAX_PAGE_SIZE + 1);
+        assertRejected(new Parameters().addLong(KeysetPager.LAST, 0L), 10);
+        assertRejected(new Parameters().page(0, 10), 10);
+        new KeysetPager(QUERY, null, KeysetPager.MAX_PAGE_SIZE);
+    }
+
+    public void testBadKeys() {
+        KeysetPager pager = new KeysetPager(QUERY, null, 10);
+        pager.onPage(rows(4));
+        try {
+            // Not ascending: the next page would repeat rows.
+            pager.onPage(rows(3));
+            Assert.fail("key was accepted");
+        } catch (ApiUsageException e) {
+            // expected
+        }
+        List<Object[]> notLong = new ArrayList<Object[]>();
+        notLong.add(new Object[] { "name", 5L });
+        try {
+            pager.onPage(notLong);
+            Assert.fail("key was accepted");
+        } catch (ApiUsageException e) {
+            // expected
+        }
+    }
+}
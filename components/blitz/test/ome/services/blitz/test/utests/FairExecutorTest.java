@@ -0,0 +1,156 @@
+/*
+ *   Copyright 2016 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package ome.services.blitz.test.utests;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ome.services.throttling.FairExecutor;
+import ome.system.metrics.NullMetrics;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Checks the fair scheduling and the limits of {@link FairExecutor}.
+ */
+@Test(groups = "unit")
+public class FairExecutorTest {
+
+    private FairExecutor executor;
+
+    private CountDownLatch release;
+
+    @BeforeMethod
+    public void setUp() {
+        release = new CountDownLatch(1);
+        executor = null;
+    }
+
+    @AfterMethod
+    public void shutdown() {
+        release.countDown();
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    /** A task which waits for {@link #release}. */
+    private Runnable blocker(final CountDownLatch started) {
+        return new Runnable() {
+            public void run() {
+                started.countDown();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    // ok
+                }
+            }
+        };
+    }
+
+    /** A task which records its name once run. */
+    private static Runnable recorder(final String name,
+            final List<String> order, final CountDownLatch done) {
+        return new Runnable() {
+            public void run() {
+                order.add(name);
+                done.countDown();
+            }
+        };
+    }
+
+    public void testSessionsTakeTurns() throws Exception {
+        executor = new FairExecutor("test", 1, 10, 10, 1, new NullMetrics());
+        List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(4);
+        Assert.assertTrue(executor.submit("a", blocker(started)));
+        for (String name : new String[] { "a1", "a2", "a3" }) {
+            Assert.assertTrue(executor.submit("a", recorder(name, order, done)));
+        }
+        Assert.assertTrue(executor.submit("b", recorder("b1", order, done)));
+        Assert.assertTrue(started.await(1, TimeUnit.SECONDS));
+        release.countDown();
+        Assert.assertTrue(done.await(1, TimeUnit.SECONDS));
+        Assert.assertEquals(order, Arrays.asList("b1", "a1", "a2", "a3"));
+    }
+
+    public void testQueueLimits() throws Exception {
+        executor = new FairExecutor("test", 1, 3, 2, 1, new NullMetrics());
+        CountDownLatch started = new CountDownLatch(1);
+        Runnable noop = new Runnable() {
+            public void run() {
+            }
+        };
+        Assert.assertTrue(executor.submit("a", blocker(started)));
+        Assert.assertTrue(started.await(1, TimeUnit.SECONDS));
+        Assert.assertTrue(executor.submit("a", noop));
+        Assert.assertTrue(executor.submit("a", noop));
+        // The session has as many tasks queued as it may.
+        Assert.assertFalse(executor.submit("a", noop));
+        Assert.assertTrue(executor.submit("b", noop));
+        // The pool has as many tasks queued as it may.
+        Assert.assertFalse(executor.submit("c", noop));
+        Assert.assertEquals(executor.getQueued(), 3);
+        Assert.assertEquals(executor.shutdown().size(), 3);
+        Assert.assertFalse(executor.submit("c", noop));
+    }
+
+    public void testSessionThreads() throws Exception {
+        executor = new FairExecutor("test", 4, 10, 10, 2, new NullMetrics());
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger max = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(2);
+        final CountDownLatch done = new CountDownLatch(5);
+        for (int i = 0; i < 5; i++) {
+            executor.submit("a", new Runnable() {
+                public void run() {
+                    int now = running.incrementAndGet();
+                    synchronized (max) {
+                        max.set(Math.max(max.get(), now));
+                    }
+                    started.countDown();
+                    try {
+                        release.await(5, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        // ok
+                    }
+                    running.decrementAndGet();
+                    done.countDown();
+                }
+            });
+        }
+        Assert.assertTrue(started.await(1, TimeUnit.SECONDS));
+        Thread.sleep(50);
+        Assert.assertEquals(running.get(), 2);
+        Assert.assertEquals(executor.getQueued(), 3);
+        release.countDown();
+        Assert.assertTrue(done.await(1, TimeUnit.SECONDS));
+        Assert.assertEquals(max.get(), 2);
+    }
+
+    public void testWorkerFlag() throws Exception {
+        executor = new FairExecutor("test", 1, 10, 10, 1, new NullMetrics());
+        final boolean[] flag = new boolean[1];
+        final CountDownLatch done = new CountDownLatch(1);
+        executor.submit("a", new Runnable() {
+            public void run() {
+                flag[0] = FairExecutor.isWorker();
+                done.countDown();
+            }
+        });
+        Assert.assertTrue(done.await(1, TimeUnit.SECONDS));
+        Assert.assertTrue(flag[0]);
+        Assert.assertFalse(FairExecutor.isWorker());
+    }
+}
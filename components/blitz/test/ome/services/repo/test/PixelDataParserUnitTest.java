@@ -0,0 +1,148 @@
+/*
+ *   Copyright 2016 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.services.repo.test;
+
+import static omero.rtypes.rint;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import loci.formats.FormatTools;
+import ome.formats.importer.ImportConfig;
+import ome.formats.importer.ImportSize;
+import ome.formats.importer.OMEROWrapper;
+import ome.services.blitz.repo.PixelDataParser;
+import omero.model.Pixels;
+import omero.model.PixelsI;
+import omero.util.TempFileManager;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the checksum and statistics computed while parsing the pixel data of
+ * an import.
+ */
+@Test(groups = { "repo" })
+public class PixelDataParserUnitTest {
+
+    public void testMinMaxUnsigned() {
+        byte[] buf = new byte[] { 3, (byte) 0xFF, 0, 7 };
+        double[] minMax = PixelDataParser.minMax(buf, FormatTools.UINT8,
+                ByteOrder.BIG_ENDIAN);
+        Assert.assertEquals(minMax[0], 0.0);
+        Assert.assertEquals(minMax[1], 255.0);
+    }
+
+    public void testMinMaxByteOrder() {
+        ByteBuffer b = ByteBuffer.allocate(6).order(ByteOrder.LITTLE_ENDIAN);
+        b.putShort((short) -2).putShort((short) 40000).putShort((short) 5);
+        double[] minMax = PixelDataParser.minMax(b.array(),
+                FormatTools.INT16, ByteOrder.LITTLE_ENDIAN);
+        Assert.assertEquals(minMax[0], (double) (short) 40000);
+        Assert.assertEquals(minMax[1], 5.0);
+        minMax = PixelDataParser.minMax(b.array(), FormatTools.UINT16,
+                ByteOrder.LITTLE_ENDIAN);
+        Assert.assertEquals(minMax[0], 5.0);
+        Assert.assertEquals(minMax[1], 65534.0);
+    }
+
+    public void testMinMaxFloat() {
+        ByteBuffer b = ByteBuffer.allocate(8);
+        b.putFloat(-1.5f).putFloat(2.25f);
+        double[] minMax = PixelDataParser.minMax(b.array(), FormatTools.FLOAT,
+                ByteOrder.BIG_ENDIAN);
+        Assert.assertEquals(minMax[0], -1.5);
+        Assert.assertEquals(minMax[1], 2.25);
+    }
+
+    public void testMinMaxInterleaved() {
+        byte[] buf = new byte[] { 1, 10, 3, 20, 2, 15 };
+        double[][] minMax = PixelDataParser.minMax(buf, FormatTools.UINT8,
+                ByteOrder.BIG_ENDIAN, 2, true);
+        Assert.assertEquals(minMax[0], new double[] { 1, 3 });
+        Assert.assertEquals(minMax[1], new double[] { 10, 20 });
+    }
+
+    public void testMinMaxPlanar() {
+        byte[] buf = new byte[] { 1, 10, 3, 20, 2, 15 };
+        double[][] minMax = PixelDataParser.minMax(buf, FormatTools.UINT8,
+                ByteOrder.BIG_ENDIAN, 2, false);
+        Assert.assertEquals(minMax[0], new double[] { 1, 10 });
+        Assert.assertEquals(minMax[1], new double[] { 2, 20 });
+    }
+
+    /**
+     * Parses a fake file with worker readers which open it again from its
+     * path, and checks the result against reading its planes in turn.
+     */
+    public void testParseFakeFile() throws Exception {
+        File dir = TempFileManager.create_path("pixeldataparser.", "", true);
+        File fake = new File(dir, "parse&sizeX=70&sizeY=50&sizeZ=2&sizeC=3"
+                + "&sizeT=2&pixelType=uint16.fake");
+        FileUtils.touch(fake);
+        OMEROWrapper reader = new OMEROWrapper(new ImportConfig());
+        try {
+            reader.setId(fake.getAbsolutePath());
+            Pixels pixels = new PixelsI();
+            pixels.setSizeX(rint(reader.getSizeX()));
+            pixels.setSizeY(rint(reader.getSizeY()));
+            pixels.setSizeZ(rint(reader.getSizeZ()));
+            pixels.setSizeC(rint(reader.getSizeC()));
+            pixels.setSizeT(rint(reader.getSizeT()));
+            ImportSize size = new ImportSize(fake.getAbsolutePath(), pixels,
+                    reader.getDimensionOrder());
+
+            PixelDataParser.Result parallel = parse(reader, fake, size, 3);
+            PixelDataParser.Result serial = parse(reader, fake, size, 1);
+            Assert.assertEquals(parallel.digest.digest(),
+                    serial.digest.digest());
+            Assert.assertEquals(parallel.bytes, 70L * 50 * 2 * 3 * 2 * 2);
+            Assert.assertEquals(parallel.bytes, serial.bytes);
+
+            // The statistics of each channel are those of its planes.
+            ByteOrder order = reader.isLittleEndian() ?
+                    ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+            for (int c = 0; c < size.sizeC; c++) {
+                double[] expected = null;
+                for (int t = 0; t < size.sizeT; t++) {
+                    for (int z = 0; z < size.sizeZ; z++) {
+                        double[] plane = PixelDataParser.minMax(
+                                reader.openBytes(reader.getIndex(z, c, t)),
+                                FormatTools.UINT16, order);
+                        if (expected == null) {
+                            expected = plane;
+                        } else {
+                            expected[0] = Math.min(expected[0], plane[0]);
+                            expected[1] = Math.max(expected[1], plane[1]);
+                        }
+                    }
+                }
+                Assert.assertEquals(parallel.channelMinMax[c], expected,
+                        "channel " + c + ": "
+                        + Arrays.toString(parallel.channelMinMax[c]));
+                Assert.assertEquals(serial.channelMinMax[c], expected);
+            }
+        } finally {
+            reader.close();
+            FileUtils.deleteQuietly(dir);
+        }
+    }
+
+    private PixelDataParser.Result parse(OMEROWrapper reader, File fake,
+            ImportSize size, int threads) throws Exception {
+        PixelDataParser parser = new PixelDataParser(reader,
+                fake.getAbsolutePath(), threads);
+        try {
+            return parser.parse(0, size, null);
+        } finally {
+            parser.close();
+        }
+    }
+}
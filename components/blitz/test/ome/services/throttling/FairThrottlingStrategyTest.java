@@ -0,0 +1,185 @@
+/*
+ *   Copyright 2016 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package ome.services.throttling;
+
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import ome.security.basic.CurrentDetails;
+import ome.system.metrics.NullMetrics;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Checks which pool {@link FairThrottlingStrategy} runs the calls of each
+ * servant in and that a call it cannot queue fails with
+ * {@link omero.TryAgain}.
+ */
+@Test(groups = "unit")
+public class FairThrottlingStrategyTest {
+
+    private static final String HEAVY_SERVICES = "omero.api.RawPixelsStore,"
+        + "omero.api.RenderingEngine,omero.api.ThumbnailStore,"
+        + "omero.api.RawFileStore,omero.api.Exporter,RepoRawFileStoreI";
+
+    private static final long BACK_OFF = 1234;
+
+    private FairExecutor heavy;
+
+    private FairExecutor light;
+
+    private FairThrottlingStrategy strategy;
+
+    private CountDownLatch release;
+
+    @BeforeMethod
+    public void setUp() {
+        heavy = new FairExecutor("heavy", 1, 1, 1, 1, new NullMetrics());
+        light = new FairExecutor("light", 1, 10, 10, 1, new NullMetrics());
+        strategy = new FairThrottlingStrategy(new CurrentDetails(), heavy,
+                light, HEAVY_SERVICES, BACK_OFF);
+        release = new CountDownLatch(1);
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        release.countDown();
+        strategy.destroy();
+    }
+
+    /**
+     * Callback of the calls made by the tests, recording their outcome.
+     */
+    public interface AMD_Test {
+        void ice_response(Object rv);
+        void ice_exception(Exception ex);
+    }
+
+    private static class Result implements AMD_Test {
+
+        final CountDownLatch done = new CountDownLatch(1);
+
+        volatile Object rv;
+
+        volatile Exception ex;
+
+        public void ice_response(Object rv) {
+            this.rv = rv;
+            done.countDown();
+        }
+
+        public void ice_exception(Exception ex) {
+            this.ex = ex;
+            done.countDown();
+        }
+
+        void await() throws InterruptedException {
+            Assert.assertTrue(done.await(1, TimeUnit.SECONDS));
+        }
+    }
+
+    private static Ice.Current current(String session, String name) {
+        Ice.Current current = new Ice.Current();
+        current.id = new Ice.Identity(name, session);
+        current.operation = "test";
+        current.ctx = new HashMap<String, String>();
+        return current;
+    }
+
+    private static Ice.Identity id(String name) {
+        return new Ice.Identity(name, "session");
+    }
+
+    /** Makes a call which returns the name of the thread running it. */
+    private Result call(Ice.Current current, final CountDownLatch started) {
+        Result result = new Result();
+        strategy.safeRunnableCall(current, result, false,
+                new Callable<Object>() {
+                    public Object call() throws Exception {
+                        if (started != null) {
+                            started.countDown();
+                            release.await(5, TimeUnit.SECONDS);
+                        }
+                        return Thread.currentThread().getName();
+                    }
+                });
+        return result;
+    }
+
+    public void testClassification() {
+        // Stateful services are named after their service.
+        Assert.assertSame(strategy.getExecutor(
+                id("2a5d3b7e-0c4f-4d55-9a4e-1b2c3d4e5f60omero.api.RawPixelsStore")),
+                heavy);
+        Assert.assertSame(strategy.getExecutor(
+                id("2a5d3b7e-0c4f-4d55-9a4e-1b2c3d4e5f60omero.api.ThumbnailStore")),
+                heavy);
+        // Stateless services are named after their service only.
+        Assert.assertSame(strategy.getExecutor(id("omero.api.IQuery")), light);
+        Assert.assertSame(strategy.getExecutor(id("omero.api.IRenderingSettings")),
+                light);
+        // Servants registered by the repositories are named after their class.
+        Assert.assertSame(strategy.getExecutor(
+                id("2a5d3b7e-0c4f-4d55-9a4e-1b2c3d4e5f60-RepoRawFileStoreI")),
+                heavy);
+        Assert.assertSame(strategy.getExecutor(
+                id("2a5d3b7e-0c4f-4d55-9a4e-1b2c3d4e5f60-ManagedImportProcessI")),
+                light);
+    }
+
+    public void testDispatchToPool() throws Exception {
+        Result result = call(current("s", "omero.api.IQuery"), null);
+        result.await();
+        Assert.assertNull(result.ex);
+        Assert.assertTrue(((String) result.rv).startsWith("Throttling-light-"));
+        result = call(current("s", "uuid-RepoRawFileStoreI"), null);
+        result.await();
+        Assert.assertTrue(((String) result.rv).startsWith("Throttling-heavy-"));
+        // Without a current the call is run in place.
+        result = call(null, null);
+        result.await();
+        Assert.assertEquals(result.rv, Thread.currentThread().getName());
+    }
+
+    public void testRejectedCallTriesAgain() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        Result running = call(current("a", "uuidomero.api.RawPixelsStore"),
+                started);
+        Assert.assertTrue(started.await(1, TimeUnit.SECONDS));
+        Result queued = call(current("b", "uuidomero.api.RawPixelsStore"), null);
+        Result rejected = call(current("c", "uuidomero.api.RawPixelsStore"),
+                null);
+        rejected.await();
+        Assert.assertNull(rejected.rv);
+        Assert.assertTrue(rejected.ex instanceof omero.TryAgain,
+                String.valueOf(rejected.ex));
+        Assert.assertEquals(((omero.TryAgain) rejected.ex).backOff, BACK_OFF);
+        // The light pool is not affected.
+        Result light = call(current("c", "omero.api.IQuery"), null);
+        light.await();
+        Assert.assertNull(light.ex);
+        release.countDown();
+        running.await();
+        queued.await();
+        Assert.assertNull(running.ex);
+        Assert.assertNull(queued.ex);
+    }
+
+    public void testDestroyCancelsQueuedCalls() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        call(current("a", "uuidomero.api.RawPixelsStore"), started);
+        Assert.assertTrue(started.await(1, TimeUnit.SECONDS));
+        Result queued = call(current("b", "uuidomero.api.RawPixelsStore"), null);
+        strategy.destroy();
+        queued.await();
+        Assert.assertNotNull(queued.ex);
+        Assert.assertNull(queued.rv);
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2016 University of Dundee & Open Microscopy Environment.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package omero.gateway.rnd;
+
+import java.util.Random;
+
+import omero.util.ReadOnlyByteArray;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Checks that the values read by {@link Plane2D} from the raw data match
+ * those of the {@link BytesConverter} of each pixel type.
+ */
+@Test(groups = "unit")
+public class Plane2DTest {
+
+    private static final int SIZE_X = 13;
+
+    private static final int SIZE_Y = 7;
+
+    /**
+     * Checks all the accessors of a plane of random bytes, offset within a
+     * larger array.
+     */
+    private static void assertValues(String pixelsType, int bytesPerPixel) {
+        BytesConverter strategy = BytesConverter.getConverter(pixelsType);
+        byte[] bytes = new byte[3 + SIZE_X * SIZE_Y * bytesPerPixel];
+        new Random(bytesPerPixel).nextBytes(bytes);
+        if (pixelsType.equals(DataSink.FLOAT)
+                || pixelsType.equals(DataSink.DOUBLE)) {
+            // Keep the exponents finite, so that no value is NaN.
+            for (int i = 3; i < bytes.length; i += bytesPerPixel) {
+                bytes[i] &= 0x3F;
+            }
+        }
+        ReadOnlyByteArray data =
+                new ReadOnlyByteArray(bytes, 3, bytes.length - 3);
+        Plane2D plane = new Plane2D(data, SIZE_X, SIZE_Y, bytesPerPixel,
+                strategy);
+        int[] ints = plane.getIntTile(0, 0, SIZE_X, SIZE_Y, null);
+        float[] floats = plane.getFloatTile(0, 0, SIZE_X, SIZE_Y, null);
+        double[][] doubles = plane.toDoubleArray();
+        for (int y = 0; y < SIZE_Y; y++) {
+            int[] intRow = plane.getIntRow(y, new int[SIZE_X + 1]);
+            float[] floatRow = plane.getFloatRow(y, null);
+            for (int x = 0; x < SIZE_X; x++) {
+                int offset = bytesPerPixel * (y * SIZE_X + x);
+                double expected = strategy.pack(data, offset, bytesPerPixel);
+                String at = pixelsType + " (" + x + ", " + y + ")";
+                Assert.assertEquals(plane.getPixelValue(x, y), expected, at);
+                Assert.assertEquals(doubles[x][y], expected, at);
+                Assert.assertEquals(plane.getFloatValue(x, y),
+                        (float) expected, at);
+                Assert.assertEquals(floats[y * SIZE_X + x],
+                        (float) expected, at);
+                Assert.assertEquals(floatRow[x], (float) expected, at);
+                if (pixelsType.equals(DataSink.UINT_32)) {
+                    expected = (int) (long) expected;
+                } else {
+                    expected = (int) expected;
+                }
+                Assert.assertEquals(plane.getIntValue(x, y), (int) expected,
+                        at);
+                Assert.assertEquals(ints[y * SIZE_X + x], (int) expected, at);
+                Assert.assertEquals(intRow[x], (int) expected, at);
+            }
+        }
+    }
+
+    public void testUint8() {
+        assertValues(DataSink.UINT_8, 1);
+    }
+
+    public void testInt8() {
+        assertValues(DataSink.INT_8, 1);
+    }
+
+    public void testUint16() {
+        assertValues(DataSink.UINT_16, 2);
+    }
+
+    public void testInt16() {
+        assertValues(DataSink.INT_16, 2);
+    }
+
+    public void testUint32() {
+        assertValues(DataSink.UINT_32, 4);
+    }
+
+    public void testInt32() {
+        assertValues(DataSink.INT_32, 4);
+    }
+
+    public void testFloat() {
+        assertValues(DataSink.FLOAT, 4);
+    }
+
+    public void testDouble() {
+        assertValues(DataSink.DOUBLE, 8);
+    }
+
+    public void testSubTile() {
+        byte[] bytes = new byte[SIZE_X * SIZE_Y];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) i;
+        }
+        Plane2D plane = new Plane2D(
+                new ReadOnlyByteArray(bytes, 0, bytes.length), SIZE_X, SIZE_Y,
+                1, BytesConverter.getConverter(DataSink.UINT_8));
+        int[] tile = plane.getIntTile(2, 3, 4, 2, null);
+        Assert.assertEquals(tile, new int[] { 41, 42, 43, 44, 54, 55, 56, 57 });
+    }
+
+    @Test(expectedExceptions = IndexOutOfBoundsException.class)
+    public void testOutOfPlane() {
+        byte[] bytes = new byte[SIZE_X * SIZE_Y];
+        Plane2D plane = new Plane2D(
+                new ReadOnlyByteArray(bytes, 0, bytes.length), SIZE_X, SIZE_Y,
+                1, BytesConverter.getConverter(DataSink.UINT_8));
+        plane.getPixelValue(SIZE_X, 0);
+    }
+}
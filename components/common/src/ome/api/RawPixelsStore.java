@@ -8,10 +8,12 @@
 package ome.api;
 
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import ome.annotations.Validate;
 import ome.model.core.Pixels;
+import omeis.providers.re.data.PlaneDef;
 
 /**
  * Binary data provider. Initialized with the id of a
@@ -82,6 +84,19 @@ public interface RawPixelsStore extends StatefulServiceInterface {
 
     public byte[] getTile(int z, int c, int t, int x, int y, int w, int h);
 
+    /**
+     * Returns several tiles at once, in the order they are requested. Unless
+     * the pixels are a pyramid, the tiles are read concurrently and
+     * horizontally adjacent tiles of the same plane and rows are read
+     * together; the tiles of pyramids are read one at a time, through the
+     * tile cache.
+     * @param tiles The tiles, each <code>{z, c, t, x, y, w, h}</code> at the
+     * current resolution level or <code>{z, c, t, x, y, w, h, level}</code>.
+     * The resolution level is restored afterwards.
+     * @return The pixels of each tile, as {@link #getTile} returns them.
+     */
+    public byte[][] getTiles(int[][] tiles);
+
     public byte[] getRegion(int size, long offset);
     
     public byte[] getRow(int y, int z, int c, int t);
@@ -132,4 +147,19 @@ public interface RawPixelsStore extends StatefulServiceInterface {
 
     public int[] getTileSize();
 
+    /**
+     * Returns the histograms of the pixel values of channels, counted on the
+     * server at full resolution.
+     * @param channels The channels.
+     * @param binCount The number of bins of each histogram.
+     * @param globalRange Whether the bins span the global minimum and maximum
+     * of each channel rather than the minimum and maximum of the pixels
+     * counted.
+     * @param plane The XY plane, possibly restricted to a region, whose
+     * pixels are counted, or <code>null</code> to count all the planes.
+     * @return The number of pixels in each bin, by channel.
+     */
+    public Map<Integer, long[]> getHistogram(int[] channels, int binCount,
+            boolean globalRange, PlaneDef plane);
+
 }
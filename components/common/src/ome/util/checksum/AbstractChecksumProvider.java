@@ -19,15 +19,22 @@
 
 package ome.util.checksum;
 
-import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import com.google.common.base.Optional;
 import com.google.common.hash.HashCode;
 import com.google.common.hash.HashFunction;
 import com.google.common.hash.Hasher;
-import com.google.common.io.Files;
 
 /**
  * Abstract skeleton class implementing {@link ChecksumProvider} and providing
@@ -35,14 +42,37 @@ import com.google.common.io.Files;
  * object. Classes extending this class shall pass in a concrete checksum
  * algorithm implementation (a {@link HashFunction} instance) as the constructor
  * parameter.
+ * <br/>
+ * Files are hashed through windows mapped from a {@link FileChannel}, the next
+ * window being loaded in the background while the current one is hashed, and
+ * byte buffers without an accessible array, such as direct and mapped
+ * buffers, are hashed through a small reusable chunk rather than copied whole.
  *
  * @author Blazej Pindelski, bpindelski at dundee.ac.uk
  * @since 4.4.7
  */
 public class AbstractChecksumProvider implements ChecksumProvider {
 
+    /** The size of the windows of a file mapped at once by putFile. */
+    static final long WINDOW_SIZE = 64 * 1024 * 1024;
+
+    /** The size of the chunks copied from buffers without accessible array. */
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    /** Loads the next window of the files being hashed. */
+    private static final ExecutorService readAhead =
+            Executors.newCachedThreadPool(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "ChecksumReadAhead");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
     private final HashFunction hashFunction;
 
+    private byte[] chunk;
+
     private Hasher hasher;
 
     private Optional<HashCode> hashCode = Optional.absent();
@@ -81,26 +111,97 @@ public class AbstractChecksumProvider implements ChecksumProvider {
      */
     public ChecksumProvider putBytes(ByteBuffer byteBuffer) {
         this.verifyState(this.hashBytes, this.hashString);
-        if (byteBuffer.hasArray()) {
-            this.hasher.putBytes(byteBuffer.array(), 0, byteBuffer.limit());
-            return this;
-        } else {
-            throw new IllegalArgumentException("Supplied ByteBuffer has " +
-                    "inaccessible array.");
-        }
+        this.putRemaining(this.hasher, byteBuffer);
+        return this;
     }
 
     /**
      * @see ChecksumProvider#putFile(String)
      */
     public ChecksumProvider putFile(String filePath) {
+        return this.putFile(filePath, WINDOW_SIZE);
+    }
+
+    /**
+     * Hashes a file through windows of the given size.
+     * @param filePath the path of the file.
+     * @param windowSize the number of bytes mapped at once.
+     * @return this provider.
+     */
+    ChecksumProvider putFile(String filePath, final long windowSize) {
         this.verifyState(this.hashBytes, this.hashString);
+        final Hasher fileHasher = this.hashFunction.newHasher();
+        RandomAccessFile file = null;
         try {
-            this.hashCode = Optional.of(
-                    Files.hash(new File(filePath), this.hashFunction));
+            file = new RandomAccessFile(filePath, "r");
+            final FileChannel channel = file.getChannel();
+            final long size = channel.size();
+            ByteBuffer window = size > 0 ?
+                    map(channel, 0, Math.min(windowSize, size)) : null;
+            for (long position = 0; position < size; position += windowSize) {
+                final long next = position + windowSize;
+                Future<ByteBuffer> nextWindow = null;
+                if (next < size) {
+                    nextWindow = readAhead.submit(new Callable<ByteBuffer>() {
+                        public ByteBuffer call() throws IOException {
+                            return map(channel, next,
+                                    Math.min(windowSize, size - next));
+                        }
+                    });
+                }
+                this.putRemaining(fileHasher, window);
+                window = nextWindow == null ? null : nextWindow.get();
+            }
+            this.hashCode = Optional.of(fileHasher.hash());
             return this;
         } catch (IOException io) {
             throw new RuntimeException(io);
+        } catch (ExecutionException ee) {
+            throw new RuntimeException(ee.getCause());
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ie);
+        } finally {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException io) {
+                    // Only read from.
+                }
+            }
+        }
+    }
+
+    /**
+     * Maps a window of a file and loads its content into memory.
+     */
+    private static ByteBuffer map(FileChannel channel, long position,
+            long size) throws IOException {
+        MappedByteBuffer window =
+                channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+        window.load();
+        return window;
+    }
+
+    /**
+     * Hashes the bytes between the position and the limit of a buffer,
+     * without changing its position.
+     */
+    private void putRemaining(Hasher target, ByteBuffer byteBuffer) {
+        if (byteBuffer.hasArray()) {
+            target.putBytes(byteBuffer.array(),
+                    byteBuffer.arrayOffset() + byteBuffer.position(),
+                    byteBuffer.remaining());
+            return;
+        }
+        final ByteBuffer source = byteBuffer.duplicate();
+        if (this.chunk == null) {
+            this.chunk = new byte[CHUNK_SIZE];
+        }
+        while (source.hasRemaining()) {
+            final int length = Math.min(this.chunk.length, source.remaining());
+            source.get(this.chunk, 0, length);
+            target.putBytes(this.chunk, 0, length);
         }
     }
 
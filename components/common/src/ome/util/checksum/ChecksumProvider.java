@@ -68,9 +68,10 @@ public interface ChecksumProvider {
     ChecksumProvider putBytes(byte[] byteArray, int offset, int length);
 
     /**
-     * Updates the internal checksum value with data from a byte buffer.
-     * If the array underlying the byte buffer is not accessible, throws an
-     * IllegalArgumentException.
+     * Updates the internal checksum value with the data from a byte buffer
+     * between its position and its limit. The position of the buffer is
+     * left unchanged. Direct and memory-mapped buffers are read without
+     * being copied whole to the heap.
      *
      * @param byteBuffer The input byte buffer.
      * @return ChecksumProvider
@@ -81,6 +82,8 @@ public interface ChecksumProvider {
      * Updates the internal checksum value with data from a file identified by a
      * path. Throws a RuntimeException in a case of an IO error.
      * Input previous to this method does not affect the calculated checksum.
+     * Large files are read through memory-mapped windows rather than copied
+     * to the heap.
      *
      * @param filePath <code>String</code> representing the absolute file path.
      * @return ChecksumProvider
@@ -60,12 +60,7 @@ public class FileSizeChecksumProviderImpl implements ChecksumProvider {
     public ChecksumProvider putBytes(ByteBuffer byteBuffer) {
         verifyState();
 
-        if (!byteBuffer.hasArray()) {
-            throw new IllegalArgumentException("Supplied ByteBuffer has " +
-                    "inaccessible array.");
-        }
-
-        size += byteBuffer.limit() - byteBuffer.position();
+        size += byteBuffer.remaining();
         return this;
     }
 
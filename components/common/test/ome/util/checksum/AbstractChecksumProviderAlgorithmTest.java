@@ -133,12 +133,57 @@ public abstract class AbstractChecksumProviderAlgorithmTest {
                 .get(ChecksumTestVector.ABC));
     }
 
-    @Test(expectedExceptions = IllegalArgumentException.class)
-    public void testChecksumAsBytesWithEmptyByteBufferShouldThrowIAE() {
-        byte[] actual = this.checksumProvider
+    @Test
+    public void testChecksumAsStringWithByteBufferFromPosition() {
+        ByteBuffer buffer = ByteBuffer.wrap("defabc".getBytes());
+        buffer.position(3);
+        String actual = this.checksumProvider
+                .putBytes(buffer)
+                .checksumAsString();
+        Assert.assertEquals(actual, this.checksumValues
+                .get(ChecksumTestVector.ABC));
+        Assert.assertEquals(buffer.position(), 3);
+    }
+
+    @Test
+    public void testChecksumAsStringWithSlicedByteBuffer() {
+        ByteBuffer buffer = ByteBuffer.wrap("defabc".getBytes());
+        buffer.position(3);
+        String actual = this.checksumProvider
+                .putBytes(buffer.slice())
+                .checksumAsString();
+        Assert.assertEquals(actual, this.checksumValues
+                .get(ChecksumTestVector.ABC));
+    }
+
+    @Test
+    public void testChecksumAsStringWithDirectByteBuffer() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(6);
+        buffer.put("abcdef".getBytes()).position(0).limit(3);
+        String actual = this.checksumProvider
+                .putBytes(buffer)
+                .checksumAsString();
+        Assert.assertEquals(actual, this.checksumValues
+                .get(ChecksumTestVector.ABC));
+        Assert.assertEquals(buffer.position(), 0);
+    }
+
+    @Test
+    public void testChecksumAsStringWithReadOnlyByteBuffer() {
+        String actual = this.checksumProvider
+                .putBytes(ByteBuffer.wrap("abc".getBytes()).asReadOnlyBuffer())
+                .checksumAsString();
+        Assert.assertEquals(actual, this.checksumValues
+                .get(ChecksumTestVector.ABC));
+    }
+
+    @Test
+    public void testChecksumAsStringWithEmptyDirectByteBuffer() {
+        String actual = this.checksumProvider
                 .putBytes(ByteBuffer.allocateDirect(0))
-                .checksumAsBytes();
-        Assert.assertNull(actual);
+                .checksumAsString();
+        Assert.assertEquals(actual, this.checksumValues
+                .get(ChecksumTestVector.EMPTYARRAY));
     }
 
     @Test
@@ -171,6 +216,20 @@ public abstract class AbstractChecksumProviderAlgorithmTest {
                 .get(ChecksumTestVector.BIGFILE));
     }
 
+    @Test
+    public void testChecksumAsStringWithBigFileInSeveralWindows() {
+        if (!(this.checksumProvider instanceof AbstractChecksumProvider)) {
+            return;
+        }
+        // Also check a last window shorter than the others.
+        String actual = ((AbstractChecksumProvider) this.checksumProvider)
+                .putFile(this.bigFile.getAbsolutePath(), 4099)
+                .checksumAsString();
+
+        Assert.assertEquals(actual, this.checksumValues
+                .get(ChecksumTestVector.BIGFILE));
+    }
+
     @Test
     public void testChecksumAsStringWithEmptyObject() {
         String actual = this.checksumProvider.checksumAsString();
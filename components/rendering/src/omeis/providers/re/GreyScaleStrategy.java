@@ -12,8 +12,6 @@ import java.io.IOException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import ome.conditions.ResourceError;
-import ome.io.nio.PixelBuffer;
 import ome.model.core.Pixels;
 import ome.model.display.ChannelBinding;
 
@@ -65,8 +63,7 @@ class GreyScaleStrategy extends RenderingStrategy {
         {
             return getRgbBuffer();
         }
-        PixelBuffer pixels = renderer.getPixels();
-        RenderingStats performanceStats = renderer.getStats();
+        RenderingStats performanceStats = stats;
         QuantumStrategy qs = 
         	renderer.getQuantumManager().getStrategyFor(channel);
         CodomainChain cc = renderer.getCodomainChain();
@@ -137,32 +134,16 @@ class GreyScaleStrategy extends RenderingStrategy {
         {
             return getIntBuffer();
         }
-        PixelBuffer pixels = renderer.getPixels();
-        RenderingStats performanceStats = renderer.getStats();
+        RenderingStats performanceStats = stats;
         QuantumStrategy qs = 
         	renderer.getQuantumManager().getStrategyFor(channel);
         CodomainChain cc = renderer.getCodomainChain();
         
         // Retrieve the planar data to render
-        
-        Plane2D plane;
-        try {
-        	performanceStats.startIO(channel);
-        	plane = PlaneFactory.createPlane(planeDef, channel, metadata, pixels);
-        	performanceStats.endIO(channel);
-		} finally
-		{
-			try
-            {
-                pixels.close();
-            } 
-            catch (IOException e)
-            {
-                log.error("Pixels could not be closed successfully.", e);
-    			throw new ResourceError(
-    					e.getMessage() + " Please check server log.");
-            }
-		}
+        performanceStats.startIO(channel);
+        Plane2D plane =
+        	PlaneFactory.createPlane(planeDef, channel, metadata, pixels);
+        performanceStats.endIO(channel);
        
 	    RGBIntBuffer dataBuf = getIntBuffer();
 	    
@@ -215,8 +196,7 @@ class GreyScaleStrategy extends RenderingStrategy {
         {
             return getRGBAIntBuffer();
         }
-        PixelBuffer pixels = renderer.getPixels();
-        RenderingStats performanceStats = renderer.getStats();
+        RenderingStats performanceStats = stats;
         QuantumStrategy qs = 
         	renderer.getQuantumManager().getStrategyFor(channel);
         CodomainChain cc = renderer.getCodomainChain();
@@ -12,16 +12,10 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import ome.conditions.ResourceError;
-import ome.io.nio.PixelBuffer;
 import ome.model.core.Pixels;
 import ome.model.display.ChannelBinding;
 import ome.model.display.QuantumDef;
@@ -42,14 +36,16 @@ import omeis.providers.re.quantum.QuantumStrategy;
  * each wavelength is mapped to a color. All these things are specified by the
  * rendering context.
  * <p>
- * This strategy renders the in "regions", dividing the planar data up based
- * on {@link #maxTasks} and assigning each task to its own thread. This should
- * result in parallel rendering on multi-processor machines.
+ * This strategy renders the in "regions", dividing the planar data up into
+ * bands of rows based on the number of threads of the {@link Renderer}'s
+ * {@link RenderingExecutor} and handing each task to one of those threads.
+ * This should result in parallel rendering on multi-processor machines.
  * </p>
  * <p>
  * Thread-safety relies on the fact that the rendering context is not going to
- * change during the whole image rendering process and that each task is
- * working on its own atomic unit of work.
+ * change during the whole image rendering process, that the state of the
+ * request is held by the strategy and that each task is working on its own
+ * atomic unit of work.
  * </p>
  * 
  * @author Jean-Marie Burel &nbsp;&nbsp;&nbsp;&nbsp; <a
@@ -67,19 +63,22 @@ class HSBStrategy extends RenderingStrategy {
     private static Logger log = LoggerFactory.getLogger(HSBStrategy.class);
     
     /**
-     * Retrieves the maximum number of reasonable tasks to schedule based on
-     * image size and <i>maxTasks</i>.
+     * The minimum number of pixels a rendering task should cover. Splitting
+     * a plane further than this costs more in scheduling than it gains.
+     */
+    static final int MIN_TASK_PIXELS = 16384;
+
+    /**
+     * Retrieves the number of reasonable tasks to schedule based on the image
+     * size and the number of rendering threads available.
      * 
-     * @param size The width along the X2 axis.
      * @return the number of tasks to schedule.
      */
-    private int numTasks(int size) {
-        for (int i = maxTasks; i > 0; i--) {
-            if (size % i == 0) {
-                return i;
-            }
-        }
-        return 1;
+    private int numTasks() {
+        int threads = renderer.getExecutor().getThreads();
+        int bySize = (int) Math.max(1L,
+                ((long) sizeX1 * sizeX2) / MIN_TASK_PIXELS);
+        return Math.max(1, Math.min(Math.min(threads, bySize), sizeX2));
     }
 
     /**
@@ -90,47 +89,23 @@ class HSBStrategy extends RenderingStrategy {
     private List<Plane2D> getWavelengthData(PlaneDef pDef) {
         ChannelBinding[] channelBindings = renderer.getChannelBindings();
         Pixels metadata = renderer.getMetadata();
-        PixelBuffer pixels = renderer.getPixels();
-        List<Plane2D> wData = null;
-        try
-        {
-        	RenderingStats performanceStats = renderer.getStats();
-        	wData = new ArrayList<Plane2D>();
-
-        	for (int w = 0; w < channelBindings.length; w++) {
-        		if (channelBindings[w].getActive()) {
-        			performanceStats.startIO(w);
-        			wData.add(PlaneFactory.createPlane(pDef, w, metadata, 
-        					pixels));
-        			performanceStats.endIO(w);
-        		}
-        	}
-        	Map<byte[], Integer> overlays = renderer.getOverlays();
-        	if (overlays != null)
-        	{
-        		for (byte[] overlay : overlays.keySet())
-        		{
-				ome.util.PixelData data =
-					new PixelData(PlaneFactory.BIT, ByteBuffer.wrap(overlay));
-        			wData.add(new Plane2D(pDef, metadata, data));
-        		}
-        	}
+        List<Plane2D> wData = new ArrayList<Plane2D>();
+        for (int w = 0; w < channelBindings.length; w++) {
+            if (channelBindings[w].getActive()) {
+                stats.startIO(w);
+                wData.add(PlaneFactory.createPlane(pDef, w, metadata, pixels));
+                stats.endIO(w);
+            }
         }
-        finally
+        if (overlays != null)
         {
-            // Make sure that the pixel buffer is cleansed properly.
-            try
-            {
-                pixels.close();
-            } 
-            catch (IOException e)
+            for (byte[] overlay : overlays.keySet())
             {
-                log.error("Pixels could not be closed successfully.", e);
-    			throw new ResourceError(
-    					e.getMessage() + " Please check server log.");
-            }        	
+                PixelData data =
+                    new PixelData(PlaneFactory.BIT, ByteBuffer.wrap(overlay));
+                wData.add(new Plane2D(pDef, metadata, data));
+            }
         }
-
         return wData;
     }
 
@@ -152,7 +127,6 @@ class HSBStrategy extends RenderingStrategy {
                 colors.add(theNewColor);
             }
         }
-    	Map<byte[], Integer> overlays = renderer.getOverlays();
     	if (overlays != null)
     	{
     		for (byte[] overlay : overlays.keySet())
@@ -181,7 +155,6 @@ class HSBStrategy extends RenderingStrategy {
                 strats.add(qManager.getStrategyFor(w));
             }
         }
-    	Map<byte[], Integer> overlays = renderer.getOverlays();
     	if (overlays != null)
     	{
     		QuantumDef def = new QuantumDef();  // Just to fulfill interface
@@ -217,18 +190,18 @@ class HSBStrategy extends RenderingStrategy {
         List<Plane2D> wData = getWavelengthData(def);
         List<int[]> colors = getColors();
         List<QuantumStrategy> strategies = getStrategies();
-        // Create a number of rendering tasks.
-        int taskCount = numTasks(sizeX2);
-        int delta = sizeX2/taskCount;
+        // Create a number of rendering tasks, each covering a band of rows.
+        // The bands differ in height by at most one row.
+        int taskCount = numTasks();
         int x1Start = 0;
         int x1End = sizeX1;
         int x2Start, x2End;
-        log.info("taskCount: "+taskCount+" delta: "+delta);
+        log.debug("taskCount: "+taskCount);
         for (int i = 0; i < taskCount; i++) {
-            x2Start = i*delta;
-            x2End = (i+1)*delta;
+            x2Start = (int) ((long) i*sizeX2/taskCount);
+            x2End = (int) ((long) (i+1)*sizeX2/taskCount);
             tasks.add(new RenderHSBRegionTask(buf, wData, strategies, cc,
-            		colors, renderer.getOptimizations(),
+            		colors, optimizations,
             		x1Start, x1End, x2Start, x2End));
         }
 
@@ -305,39 +278,12 @@ class HSBStrategy extends RenderingStrategy {
      */
     private void render(RGBBuffer buf, PlaneDef planeDef) throws IOException,
             QuantizationException {
-        RenderingStats performanceStats = renderer.getStats();
-        // Process each active wavelength. If their number N > 1, then
-        // process N-1 async and one in the current thread. If N = 1,
-        // just use the current thread.
+        RenderingStats performanceStats = stats;
+        // Process each band of rows. The first band is rendered in the
+        // current thread, the others by the shared rendering threads.
         RenderingTask[] tasks = makeRenderingTasks(planeDef, buf);
         performanceStats.startRendering();
-        int n = tasks.length;
-        Future[] rndTskFutures = new Future[n]; // [0] unused.
-        ExecutorService processor = Executors.newCachedThreadPool();
-
-        while (0 < --n) {
-            rndTskFutures[n] = processor.submit(tasks[n]);
-        }
-
-        // Call the task in the current thread.
-        if (n == 0) {
-            tasks[0].call();
-        }
-
-        // Wait for all forked tasks (if any) to complete.
-        for (n = 1; n < rndTskFutures.length; ++n) {
-            try {
-                rndTskFutures[n].get();
-            } catch (Exception e) {
-                if (e instanceof QuantizationException) {
-                    throw (QuantizationException) e;
-                }
-                throw new RuntimeException(e);
-            }
-        }
-
-        // Shutdown the task processor
-        processor.shutdown();
+        renderer.getExecutor().invokeAll(tasks);
 
         // End the performance metrics for this rendering event.
         performanceStats.endRendering();
@@ -0,0 +1,161 @@
+/*
+ * omeis.providers.re.PackedColorTable
+ *
+ *   Copyright 2016 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package omeis.providers.re;
+
+/**
+ * Maps the quantized values of one channel onto the colour components of a
+ * packed integer buffer. The contribution of every one of the 256 possible
+ * quantized values is computed once, so that rendering a pixel only takes
+ * table look-ups, integer additions and ORs.
+ * <p>
+ * Three modes are supported, matching the rendering rules of
+ * {@link RenderHSBRegionTask}:
+ * <ul>
+ * <li><i>primary colour</i>: the value is ORed into the component slot of the
+ * channel's colour,</li>
+ * <li><i>mask</i>: pixels with the value 255 replace the pixel with the
+ * channel's colour, others are blended,</li>
+ * <li><i>blended</i>: the colour components are added to the existing ones
+ * and saturated at 255.</li>
+ * </ul>
+ * </p>
+ *
+ * @since 5.2.4
+ */
+final class PackedColorTable {
+
+    /** The number of quantized values. */
+    private static final int SIZE = 256;
+
+    /** Packed value ORed into the buffer in primary colour mode. */
+    private final int[] primary;
+
+    /** The red contribution of each quantized value. */
+    private final int[] red;
+
+    /** The green contribution of each quantized value. */
+    private final int[] green;
+
+    /** The blue contribution of each quantized value. */
+    private final int[] blue;
+
+    /** Whether the value 255 replaces the pixel. */
+    private final boolean isMask;
+
+    /** The bits set for a fully opaque pixel. */
+    private final int alphaBits;
+
+    /** Offsets of the colour components within a packed pixel. */
+    private final int redShift, greenShift, blueShift;
+
+    /**
+     * Creates a new table.
+     *
+     * @param color The colour of the channel, indexed by the
+     *            {@link ColorsFactory} constants.
+     * @param colorOffset The offset of the colour component slot in primary
+     *            colour mode or <code>-1</code> if that mode is disabled.
+     * @param isAlphaless Whether the alpha of the colour is to be ignored.
+     * @param isMask Whether the channel is a binary mask.
+     * @param isRGBA <code>true</code> to pack as <i>RGBA</i>,
+     *            <code>false</code> for <i>ARGB</i>.
+     */
+    PackedColorTable(int[] color, int colorOffset, boolean isAlphaless,
+            boolean isMask, boolean isRGBA) {
+        this.isMask = isMask;
+        if (isRGBA) {
+            alphaBits = 0x000000FF;
+            redShift = 24;
+            greenShift = 16;
+            blueShift = 8;
+        } else {
+            alphaBits = 0xFF000000;
+            redShift = 16;
+            greenShift = 8;
+            blueShift = 0;
+        }
+        if (colorOffset >= 0) {
+            primary = new int[SIZE];
+            red = green = blue = null;
+            for (int v = 0; v < SIZE; v++) {
+                primary[v] = alphaBits | v << colorOffset;
+            }
+            return;
+        }
+        primary = null;
+        red = new int[SIZE];
+        green = new int[SIZE];
+        blue = new int[SIZE];
+        double redRatio = color[ColorsFactory.RED_INDEX] > 0 ?
+                color[ColorsFactory.RED_INDEX] / 255.0 : 0.0;
+        double greenRatio = color[ColorsFactory.GREEN_INDEX] > 0 ?
+                color[ColorsFactory.GREEN_INDEX] / 255.0 : 0.0;
+        double blueRatio = color[ColorsFactory.BLUE_INDEX] > 0 ?
+                color[ColorsFactory.BLUE_INDEX] / 255.0 : 0.0;
+        float alpha = color[ColorsFactory.ALPHA_INDEX] / 255f;
+        for (int v = 0; v < SIZE; v++) {
+            int r = (int) (redRatio * v);
+            int g = (int) (greenRatio * v);
+            int b = (int) (blueRatio * v);
+            // Pre-multiply the alpha for each colour component if the
+            // image has a non-1.0 alpha component.
+            if (!isAlphaless) {
+                r *= alpha;
+                g *= alpha;
+                b *= alpha;
+            }
+            red[v] = r;
+            green[v] = g;
+            blue[v] = b;
+        }
+    }
+
+    /**
+     * Renders a row of quantized values into the buffer.
+     *
+     * @param values The quantized values.
+     * @param count The number of values.
+     * @param buf The packed buffer.
+     * @param pix The index in the buffer of the first value.
+     */
+    void apply(int[] values, int count, int[] buf, int pix) {
+        if (primary != null) {
+            for (int i = 0; i < count; i++, pix++) {
+                buf[pix] |= primary[values[i]];
+            }
+            return;
+        }
+        final int rs = redShift, gs = greenShift, bs = blueShift;
+        for (int i = 0; i < count; i++, pix++) {
+            int v = values[i];
+            if (isMask && v == 255) {
+                // Since the mask is a hard value, we do not want to
+                // compromise on colour fidelity.
+                buf[pix] = alphaBits | red[v] << rs | green[v] << gs
+                        | blue[v] << bs;
+                continue;
+            }
+            int p = buf[pix];
+            int r = ((p >>> rs) & 0xFF) + red[v];
+            int g = ((p >>> gs) & 0xFF) + green[v];
+            int b = ((p >>> bs) & 0xFF) + blue[v];
+            // Ensure that each colour component value is between 0 and
+            // 255 (byte) so that values do not wrap over.
+            if (r > 255) {
+                r = 255;
+            }
+            if (g > 255) {
+                g = 255;
+            }
+            if (b > 255) {
+                b = 255;
+            }
+            buf[pix] = alphaBits | r << rs | g << gs | b << bs;
+        }
+    }
+}
@@ -12,8 +12,6 @@ import java.util.List;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import ome.util.PixelData;
-
 import omeis.providers.re.codomain.CodomainChain;
 import omeis.providers.re.data.Plane2D;
 import omeis.providers.re.quantum.BinaryMaskQuantizer;
@@ -140,12 +138,14 @@ class RenderHSBRegionTask implements RenderingTask {
 
         int width = x1End - x1Start;
         int i = 0;
+        int[] values = new int[width];
         byte[] r = dataBuffer.getRedBand();
         byte[] g = dataBuffer.getGreenBand();
         byte[] b = dataBuffer.getBlueBand();
         for (Plane2D plane : wData) {
             int[] color = colors.get(i);
-            QuantumStrategy qs = strategies.get(i);
+            RowQuantizer quantizer =
+                RowQuantizer.make(plane, strategies.get(i), width);
             int rColor = color[ColorsFactory.RED_INDEX];
             int gColor = color[ColorsFactory.GREEN_INDEX];
             int bColor = color[ColorsFactory.BLUE_INDEX];
@@ -153,10 +153,10 @@ class RenderHSBRegionTask implements RenderingTask {
             float alpha = new Float(
             		color[ColorsFactory.ALPHA_INDEX]).floatValue() / 65025;// 255*255
             for (int x2 = x2Start; x2 < x2End; ++x2) {
+                quantizer.quantizeRow(x2, x1Start, x1End, values);
                 for (int x1 = x1Start; x1 < x1End; ++x1) {
                     pix = width * x2 + x1;
-                    discreteValue = qs.quantize(plane.getPixelValue(x1, x2));
-                    discreteValue = cc.transform(discreteValue);
+                    discreteValue = cc.transform(values[x1 - x1Start]);
 
                     // Pre-multiply the alpha component and add the existing
                     // colour value to the new colour value.
@@ -195,119 +195,8 @@ class RenderHSBRegionTask implements RenderingTask {
      *             if there is an error during pixel value quantization.
      */
     private void renderPackedInt() throws QuantizationException {
-        int discreteValue, pix;
-        double redRatio, greenRatio, blueRatio;
-        int rValue, gValue, bValue;
-        int newRValue, newGValue, newBValue;
-        int colorOffset = 24;  // Only used when we're doing primary color.
-
-        int width = x1End - x1Start;
-        int i = 0;
         int[] buf = ((RGBIntBuffer) dataBuffer).getDataBuffer();
-        boolean isPrimaryColor = optimizations.isPrimaryColorEnabled();
-        boolean isAlphaless = optimizations.isAlphalessRendering();
-        for (Plane2D plane : wData) {
-            int[] color = colors.get(i);
-            QuantumStrategy qs = strategies.get(i);
-            boolean isMask = qs instanceof BinaryMaskQuantizer? true : false;
-            redRatio = color[ColorsFactory.RED_INDEX] > 0 ? 
-            		color[ColorsFactory.RED_INDEX] / 255.0 : 0.0;
-            greenRatio = color[ColorsFactory.GREEN_INDEX] > 0 ? 
-            		color[ColorsFactory.GREEN_INDEX] / 255.0 : 0.0;
-            blueRatio = color[ColorsFactory.BLUE_INDEX] > 0 ? 
-            		color[ColorsFactory.BLUE_INDEX] / 255.0 : 0.0;
-            boolean isXYPlanar = plane.isXYPlanar();
-            PixelData data = plane.getData();
-            int bytesPerPixel = data.bytesPerPixel();
-
-            // Get our color offset if we've got the primary color optimization
-            // enabled.
-            if (isPrimaryColor)
-            	colorOffset = getColorOffset(color);
-            
-            float alpha = new Integer(
-            		color[ColorsFactory.ALPHA_INDEX]).floatValue() / 255;
-            for (int x2 = x2Start; x2 < x2End; ++x2) {
-                for (int x1 = x1Start; x1 < x1End; ++x1) {
-                    pix = width * x2 + x1;
-                    if (isXYPlanar)
-                    	discreteValue = 
-                    		qs.quantize(
-                    			data.getPixelValueDirect(pix * bytesPerPixel));
-                    else
-                    	discreteValue = 
-                    		qs.quantize(plane.getPixelValue(x1, x2));
-                    
-                    // Right now we have no transforms being used so it's safe to
-                    // comment this out for the time being.
-                    //discreteValue = cc.transform(discreteValue);
-
-                    // Primary colour optimization is in effect, we don't need
-                    // to do any of the sillyness below just shift the value
-                    // into the correct colour component slot and move on to
-                    // the next pixel value.
-                    if (colorOffset != 24)
-                    {
-                    	buf[pix] |= 0xFF000000;  // Alpha.
-                    	buf[pix] |= discreteValue << colorOffset;
-                    	continue;
-                    }
-
-                    newRValue = (int) (redRatio * discreteValue);
-                    newGValue = (int) (greenRatio * discreteValue);
-                    newBValue = (int) (blueRatio * discreteValue);
-                    
-                    // Pre-multiply the alpha for each colour component if the
-                    // image has a non-1.0 alpha component.
-                    if (!isAlphaless)
-                    {
-                    	newRValue *= alpha;
-                    	newGValue *= alpha;
-                    	newBValue *= alpha;
-                    }
-
-                    if (isMask && discreteValue == 255) {
-                    	// Since the mask is a hard value, we do not want to
-                    	// compromise on colour fidelity. Packed each colour
-                    	// component along with a 1.0 alpha into the buffer so
-                    	// that buffered images that use this buffer can be
-                    	// type 1 (3 bands, pre-multiplied alpha) or type 2
-                        // (4 bands, alpha component included).
-                        buf[pix] = 0xFF000000 | newRValue << 16
-                                   | newGValue << 8 | newBValue;
-                        continue;
-                    }
-                    // Add the existing colour component values to the new
-                    // colour component values.
-                    rValue = ((buf[pix] & 0x00FF0000) >> 16) + newRValue;
-                    gValue = ((buf[pix] & 0x0000FF00) >> 8) + newGValue;
-                    bValue = (buf[pix] & 0x000000FF) + newBValue;
-
-                    // Ensure that each colour component value is between 0 and
-                    // 255 (byte). We must make *certain* that values do not
-                    // wrap over 255 otherwise there will be corruption
-                    // introduced into the rendered image. The value may be over
-                    // 255 if we have mapped two high intensity channels to
-                    // the same color.
-                    if (rValue > 255) {
-                        rValue = 255;
-                    }
-                    if (gValue > 255) {
-                        gValue = 255;
-                    }
-                    if (bValue > 255) {
-                        bValue = 255;
-                    }
-
-                    // Packed each colour component along with a 1.0 alpha into
-                    // the buffer so that buffered images that use this buffer
-                    // can be type 1 (3 bands, pre-multiplied alpha) or type 2
-                    // (4 bands, alpha component included).
-                    buf[pix] = 0xFF000000 | rValue << 16 | gValue << 8 | bValue;
-                }
-            }
-            i++;
-        }
+        renderPacked(buf, false);
     }
 
     /**
@@ -317,104 +206,51 @@ class RenderHSBRegionTask implements RenderingTask {
      *             if there is an error during pixel value quantization.
      */
     private void renderPackedIntAsRGBA() throws QuantizationException {
-        int discreteValue, pix;
-        double redRatio, greenRatio, blueRatio;
-        int rValue, gValue, bValue;
-        int newRValue, newGValue, newBValue;
-        int colorOffset = 32;  // Only used when we're doing primary color.
+        int[] buf = ((RGBAIntBuffer) dataBuffer).getDataBuffer();
+        renderPacked(buf, true);
+    }
 
+    /**
+     * Renders into a packed integer array. Each row of each wavelength is
+     * quantized by a {@link RowQuantizer} specialized for the pixels type
+     * and then mapped onto the colour components with a
+     * {@link PackedColorTable}, so that no per-pixel conversion or
+     * floating-point arithmetic takes place.
+     * 
+     * @param buf The buffer to render into.
+     * @param isRGBA <code>true</code> to pack the pixels as <i>RGBA</i>,
+     *            <code>false</code> to pack them as <i>ARGB</i>.
+     * @throws QuantizationException
+     *             if there is an error during pixel value quantization.
+     */
+    private void renderPacked(int[] buf, boolean isRGBA)
+            throws QuantizationException {
         int width = x1End - x1Start;
-        int i = 0;
-        int[] buf = ((RGBAIntBuffer) dataBuffer).getDataBuffer();
+        int[] values = new int[width];
         boolean isPrimaryColor = optimizations.isPrimaryColorEnabled();
         boolean isAlphaless = optimizations.isAlphalessRendering();
+        int i = 0;
         for (Plane2D plane : wData) {
             int[] color = colors.get(i);
             QuantumStrategy qs = strategies.get(i);
-            redRatio = color[ColorsFactory.RED_INDEX] > 0 ? 
-            		color[ColorsFactory.RED_INDEX] / 255.0 : 0.0;
-            greenRatio = color[ColorsFactory.GREEN_INDEX] > 0 ? 
-            		color[ColorsFactory.GREEN_INDEX] / 255.0 : 0.0;
-            blueRatio = color[ColorsFactory.BLUE_INDEX] > 0 ? 
-            		color[ColorsFactory.BLUE_INDEX] / 255.0 : 0.0;
-            boolean isXYPlanar = plane.isXYPlanar();
-            PixelData data = plane.getData();
-            int bytesPerPixel = data.bytesPerPixel();
-
+            // Masks are only rendered as hard values in ARGB.
+            boolean isMask = !isRGBA && qs instanceof BinaryMaskQuantizer;
             // Get our color offset if we've got the primary color optimization
             // enabled.
-            if (isPrimaryColor)
-            	colorOffset = getColorOffsetAsRGBA(color);
-
-            float alpha = new Integer(color[ColorsFactory.ALPHA_INDEX]).floatValue() / 255;
+            int colorOffset = -1;
+            if (isPrimaryColor) {
+                colorOffset = isRGBA ?
+                        getColorOffsetAsRGBA(color) : getColorOffset(color);
+            }
+            RowQuantizer quantizer = RowQuantizer.make(plane, qs, width);
+            PackedColorTable table = new PackedColorTable(
+                    color, colorOffset, isAlphaless, isMask, isRGBA);
+            // Right now we have no transforms being used so the codomain
+            // chain is not applied to the quantized values.
             for (int x2 = x2Start; x2 < x2End; ++x2) {
-                for (int x1 = x1Start; x1 < x1End; ++x1) {
-                    pix = width * x2 + x1;
-                    if (isXYPlanar)
-                    	discreteValue = 
-                    		qs.quantize(
-                    			data.getPixelValueDirect(pix * bytesPerPixel));
-                    else
-                    	discreteValue = 
-                    		qs.quantize(plane.getPixelValue(x1, x2));
-                    // Right now we have no transforms being used so it's safe to
-                    // comment this out for the time being.
-                    //discreteValue = cc.transform(discreteValue);
-
-                    // Primary colour optimization is in effect, we don't need
-                    // to do any of the sillyness below just shift the value
-                    // into the correct colour component slot and move on to
-                    // the next pixel value.
-                    if (colorOffset != 32)
-                    {
-                    	buf[pix] |= 0x000000FF;  // Alpha.
-                    	buf[pix] |= discreteValue << colorOffset;
-                    	continue;
-                    }
-
-                    newRValue = (int) (redRatio * discreteValue);
-                    newGValue = (int) (greenRatio * discreteValue);
-                    newBValue = (int) (blueRatio * discreteValue);
-
-                    // Pre-multiply the alpha for each colour component if the
-                    // image has a non-1.0 alpha component.
-                    if (!isAlphaless)
-                    {
-                    	newRValue *= alpha;
-                    	newGValue *= alpha;
-                    	newBValue *= alpha;
-                    }
-
-                    // Add the existing colour component values to the new
-                    // colour component values.
-                    rValue = ((buf[pix] & 0xFF000000) >> 24) + newRValue;
-                    gValue = ((buf[pix] & 0x00FF0000) >> 16) + newGValue;
-                    bValue = ((buf[pix] & 0x0000FF00) >>8) + newBValue;
-
-                    // Ensure that each colour component value is between 0 and
-                    // 255 (byte). We must make *certain* that values do not
-                    // wrap over 255 otherwise there will be corruption
-                    // introduced into the rendered image. The value may be over
-                    // 255 if we have mapped two high intensity channels to
-                    // the same color.
-                    if (rValue > 255) {
-                        rValue = 255;
-                    }
-                    if (gValue > 255) {
-                        gValue = 255;
-                    }
-                    if (bValue > 255) {
-                        bValue = 255;
-                    }
-
-                    // Packed each colour component along with a 1.0 alpha into
-                    // the buffer so that buffered images that use this buffer
-                    // can be type 1 (3 bands, pre-multiplied alpha) or type 2
-                    // (4 bands, alpha component included).
-                    buf[pix] = 0x000000FF | rValue << 24 | gValue << 16 | bValue<<8;
-                }
+                quantizer.quantizeRow(x2, x1Start, x1End, values);
+                table.apply(values, width, buf, width * x2 + x1Start);
             }
-
             i++;
         }
     }
@@ -0,0 +1,201 @@
+/*
+ * omeis.providers.re.RenderedImageCache
+ *
+ *   Copyright 2016 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package omeis.providers.re;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ome.system.metrics.Counter;
+import ome.system.metrics.Metrics;
+
+/**
+ * Server-wide, least recently used cache of compressed rendered images,
+ * bounded by the total number of bytes held. A single instance is shared by
+ * all rendering engines so that a plane or region rendered with the same
+ * settings by several viewers is only rendered and compressed once.
+ * <p>
+ * Entries are keyed by pixels set and by a description of everything else
+ * that determines the output: the plane or region, the resolution level, the
+ * rendering settings and the compression level. Building that description is
+ * left to the caller. All the entries of a pixels set can be dropped at once,
+ * for example once its rendering settings have been saved.
+ * </p>
+ * <p>
+ * Hits, misses and evictions are published as the <code>hits</code>,
+ * <code>misses</code> and <code>evictions</code> counters.
+ * </p>
+ *
+ * @since 5.2.4
+ */
+public class RenderedImageCache {
+
+    /** The logger for this particular class */
+    private static Logger log = LoggerFactory.getLogger(RenderedImageCache.class);
+
+    /** Approximate number of bytes used by an entry besides its data. */
+    private static final int ENTRY_OVERHEAD = 64;
+
+    /** The maximum number of bytes held. */
+    private final long maxSize;
+
+    /** The images, from the least to the most recently used. */
+    private final LinkedHashMap<Key, byte[]> entries =
+        new LinkedHashMap<Key, byte[]>(16, 0.75f, true);
+
+    /** The number of bytes currently held. */
+    private long size;
+
+    private final Counter hits;
+
+    private final Counter misses;
+
+    private final Counter evictions;
+
+    /**
+     * Creates a new instance.
+     *
+     * @param maxSize The maximum number of bytes held. If <code>0</code> or
+     *            lower, nothing is cached.
+     * @param metrics Where to publish the hit, miss and eviction counters.
+     */
+    public RenderedImageCache(long maxSize, Metrics metrics) {
+        this.maxSize = maxSize;
+        this.hits = metrics.counter(this, "hits");
+        this.misses = metrics.counter(this, "misses");
+        this.evictions = metrics.counter(this, "evictions");
+        log.info("Rendered image cache: maxSize=" + maxSize);
+    }
+
+    /**
+     * Returns whether anything is cached at all. Callers can skip building
+     * keys if not.
+     *
+     * @return See above.
+     */
+    public boolean isEnabled() {
+        return maxSize > 0;
+    }
+
+    /**
+     * Returns a rendered image.
+     *
+     * @param pixelsId The id of the pixels set.
+     * @param key The description of the image within the pixels set.
+     * @return The compressed image or <code>null</code> if it is not cached.
+     */
+    public synchronized byte[] get(long pixelsId, String key) {
+        byte[] data = entries.get(new Key(pixelsId, key));
+        if (data == null) {
+            misses.inc();
+            return null;
+        }
+        hits.inc();
+        return data;
+    }
+
+    /**
+     * Adds or replaces a rendered image, evicting the least recently used
+     * ones as necessary. Images larger than the cache are not added.
+     *
+     * @param pixelsId The id of the pixels set.
+     * @param key The description of the image within the pixels set.
+     * @param data The compressed image, which must not be modified
+     *            afterwards.
+     */
+    public synchronized void put(long pixelsId, String key, byte[] data) {
+        Key k = new Key(pixelsId, key);
+        byte[] old = entries.remove(k);
+        if (old != null) {
+            size -= sizeOf(k, old);
+        }
+        long length = sizeOf(k, data);
+        if (length > maxSize) {
+            return;
+        }
+        entries.put(k, data);
+        size += length;
+        Iterator<Map.Entry<Key, byte[]>> i = entries.entrySet().iterator();
+        while (size > maxSize) {
+            Map.Entry<Key, byte[]> eldest = i.next();
+            i.remove();
+            size -= sizeOf(eldest.getKey(), eldest.getValue());
+            evictions.inc();
+        }
+    }
+
+    /**
+     * Removes all the images of a pixels set.
+     *
+     * @param pixelsId The id of the pixels set.
+     */
+    public synchronized void invalidate(long pixelsId) {
+        Iterator<Map.Entry<Key, byte[]>> i = entries.entrySet().iterator();
+        while (i.hasNext()) {
+            Map.Entry<Key, byte[]> entry = i.next();
+            if (entry.getKey().pixelsId == pixelsId) {
+                i.remove();
+                size -= sizeOf(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Returns the number of bytes currently held.
+     *
+     * @return See above.
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * Returns the number of images currently held.
+     *
+     * @return See above.
+     */
+    public synchronized int getCount() {
+        return entries.size();
+    }
+
+    private static long sizeOf(Key key, byte[] data) {
+        return data.length + 2L * key.key.length() + ENTRY_OVERHEAD;
+    }
+
+    /**
+     * The key of a cached image.
+     */
+    private static class Key {
+
+        final long pixelsId;
+
+        final String key;
+
+        Key(long pixelsId, String key) {
+            this.pixelsId = pixelsId;
+            this.key = key;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return pixelsId == other.pixelsId && key.equals(other.key);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (int) (pixelsId ^ (pixelsId >>> 32)) + key.hashCode();
+        }
+    }
+}
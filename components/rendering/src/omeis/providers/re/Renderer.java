@@ -58,6 +58,14 @@ import omeis.providers.re.quantum.QuantumStrategy;
  * which is selected depending on how transformed data is to be mapped into a
  * color space.
  * </p>
+ * <p>
+ * Several planes or regions may be rendered concurrently: a new strategy,
+ * holding the buffers, statistics and overlays of the request, is created for
+ * each of them, and the pixel buffer is only closed once the last concurrent
+ * request has completed. Changing the settings while rendering is not
+ * supported; callers must serialize setters against the rendering methods,
+ * as the rendering engine does with its read-write lock.
+ * </p>
  * 
  * @see RenderingDef
  * @see QuantumManager
@@ -119,16 +127,22 @@ public class Renderer {
     private CodomainChain codomainChain;
 
     /**
-     * Takes care of the actual rendering, using this <code>Renderer</code> as
-     * a rendering context.
+     * The performance measurements collected during the last completed
+     * invocation of one of the <code>render</code> methods.
      */
-    private RenderingStrategy renderingStrategy;
+    private volatile RenderingStats stats;
+
+    /** Guards {@link #activeRenders} and the state of {@link #buffer}. */
+    private final Object bufferLock = new Object();
+
+    /** The number of requests currently reading from {@link #buffer}. */
+    private int activeRenders;
 
     /**
-     * Collects performance measurements during each invocation of the
-     * {@link #render(PlaneDef) render} method.
+     * The resolution level to read from, <code>null</code> to use the default
+     * one of the {@link #buffer}.
      */
-    private RenderingStats stats;
+    private Integer resolutionLevel;
 
     /** Renderer optimizations. */
     private Optimizations optimizations = new Optimizations();
@@ -136,6 +150,9 @@ public class Renderer {
     /** Map of overlays we've currently been told to render. */
     private Map<byte[], Integer> overlays;
 
+    /** The pool of threads the rendering strategy renders regions with. */
+    private final RenderingExecutor executor;
+
     /**
      * Returns a copy of a list of channel bindings with one element removed;
      * the so called "other" channel bindings for the image.
@@ -330,9 +347,30 @@ public class Renderer {
     public Renderer(QuantumFactory quantumFactory,
     		List<RenderingModel> renderingModels, Pixels pixelsObj,
             RenderingDef renderingDefObj, PixelBuffer bufferObj) {
+        this(quantumFactory, renderingModels, pixelsObj, renderingDefObj,
+                bufferObj, RenderingExecutor.getDefault());
+    }
+
+    /**
+     * Creates a new instance to render the specified pixels set and get this
+     * new instance ready for rendering.
+     * 
+     * @param quantumFactory a populated quantum factory.
+     * @param renderingModels an enumerated list of all rendering models.
+     * @param pixelsObj Pixels object.
+     * @param renderingDefObj Rendering definition object.
+     * @param bufferObj PixelBuffer object.
+     * @param executor The shared pool of rendering threads.
+     * @throws NullPointerException If <code>null</code> parameters are passed.
+     */
+    public Renderer(QuantumFactory quantumFactory,
+    		List<RenderingModel> renderingModels, Pixels pixelsObj,
+            RenderingDef renderingDefObj, PixelBuffer bufferObj,
+            RenderingExecutor executor) {
         metadata = pixelsObj;
         rndDef = renderingDefObj;
         buffer = bufferObj;
+        this.executor = executor;
 
         if (metadata == null) {
             throw new NullPointerException("Expecting not null metadata");
@@ -340,6 +378,8 @@ public class Renderer {
             throw new NullPointerException("Expecting not null rndDef");
         } else if (buffer == null) {
             throw new NullPointerException("Expecting not null buffer");
+        } else if (executor == null) {
+            throw new NullPointerException("Expecting not null executor");
         }
 
    
@@ -354,9 +394,6 @@ public class Renderer {
                 .getCdEnd().intValue(), rndDef.<ome.model.display.CodomainMapContext>
                 collectSpatialDomainEnhancement(null));
 
-        // Create an appropriate rendering strategy.
-        renderingStrategy = RenderingStrategy.makeNew(rndDef.getModel());
-        
         // Examine the metadata we've been given and enable optimizations.
         checkOptimizations();
     }
@@ -373,7 +410,6 @@ public class Renderer {
     public void setModel(RenderingModel model)
     {
         rndDef.setModel(model);
-        renderingStrategy = RenderingStrategy.makeNew(model);
     }
 
     /**
@@ -449,18 +485,50 @@ public class Renderer {
      */
     public RGBBuffer render(PlaneDef pd) throws IOException,
             QuantizationException {
+        return render(pd, null);
+    }
+
+    /**
+     * Renders the data selected by <code>pd</code> according to the current
+     * rendering settings, together with the passed overlays.
+     * 
+     * @param pd
+     *            Selects a plane orthogonal to one of the <i>X</i>, <i>Y</i>,
+     *            or <i>Z</i> axes.
+     * @param requestOverlays
+     *            The overlays to render for this request only. If
+     *            <code>null</code> or empty, the overlays set with
+     *            {@link #setOverlays(Map)} are rendered.
+     * @return An <i>RGB</i> image ready to be displayed on screen.
+     * @throws IOException
+     *             If an error occurred while trying to pull out data from the
+     *             pixels data repository.
+     * @throws QuantizationException
+     *             If an error occurred while quantizing the pixels raw data.
+     * @throws NullPointerException
+     *             If <code>pd</code> is <code>null</code>.
+     */
+    public RGBBuffer render(PlaneDef pd, Map<byte[], Integer> requestOverlays)
+            throws IOException, QuantizationException {
         if (pd == null) {
             throw new NullPointerException("No plane definition.");
         }
-        checkRegionDef(pd.getRegion());
-        stats = new RenderingStats(this, pd);
-        log.info("Using: '" + renderingStrategy.getClass().getName()
-                + "' rendering strategy.");
-        RGBBuffer img = renderingStrategy.render(this, pd);
-        stats.stop();
-        // TODO: Commenting this out for now. -- callan
-        //log.info(stats.getStats());
-        return img;
+        PixelBuffer pixels = acquireBuffer(null);
+        try
+        {
+            checkRegionDef(pd.getRegion());
+            RenderingStats requestStats = new RenderingStats(this, pd);
+            RenderingStrategy strategy =
+                newStrategy(pixels, requestStats, requestOverlays);
+            RGBBuffer img = strategy.render(this, pd);
+            requestStats.stop();
+            stats = requestStats;
+            return img;
+        }
+        finally
+        {
+            releaseBuffer(pixels);
+        }
     }
 
     /**
@@ -489,30 +557,143 @@ public class Renderer {
      */
     public int[] renderAsPackedInt(PlaneDef pd, PixelBuffer newBuffer)
         throws IOException, QuantizationException
+    {
+        return renderAsPackedInt(pd, newBuffer, null);
+    }
+
+    /**
+     * Renders the data selected by <code>pd</code> according to the current
+     * rendering settings, together with the passed overlays.
+     * 
+     * @param pd
+     *            Selects a plane orthogonal to one of the <i>X</i>, <i>Y</i>,
+     *            or <i>Z</i> axes.
+     * @param newBuffer
+     *             The pixel buffer to use in place of the one currently
+     *             defined in the renderer. This will not change the state
+     *             of the Renderer. If <code>null</code> is passed the existing
+     *             pixel buffer will be used.
+     * @param requestOverlays
+     *            The overlays to render for this request only. If
+     *            <code>null</code> or empty, the overlays set with
+     *            {@link #setOverlays(Map)} are rendered.
+     * @return An <i>RGB</i> image ready to be displayed on screen.
+     * @throws IOException
+     *             If an error occurred while trying to pull out data from the
+     *             pixels data repository.
+     * @throws QuantizationException
+     *             If an error occurred while quantizing the pixels raw data.
+     * @throws NullPointerException
+     *             If <code>pd</code> is <code>null</code>.
+     */
+    public int[] renderAsPackedInt(PlaneDef pd, PixelBuffer newBuffer,
+            Map<byte[], Integer> requestOverlays)
+        throws IOException, QuantizationException
     {
         if (pd == null) {
             throw new NullPointerException("No plane definition.");
         }
-        checkRegionDef(pd.getRegion());
-        stats = new RenderingStats(this, pd);
-        log.info("Using: '" + renderingStrategy.getClass().getName()
+        PixelBuffer pixels = acquireBuffer(newBuffer);
+        try
+        {
+            checkRegionDef(pd.getRegion());
+            RenderingStats requestStats = new RenderingStats(this, pd);
+            RenderingStrategy strategy =
+                newStrategy(pixels, requestStats, requestOverlays);
+            RGBIntBuffer img = strategy.renderAsPackedInt(this, pd);
+            requestStats.stop();
+            stats = requestStats;
+            return img.getDataBuffer();
+        }
+        finally
+        {
+            releaseBuffer(pixels);
+        }
+    }
+
+    /**
+     * Creates the strategy that renders a single request.
+     * 
+     * @param pixels The object that allows to access the pixels raw data.
+     * @param requestStats Collects the performance measurements.
+     * @param requestOverlays The overlays of the request, may be
+     *            <code>null</code>.
+     * @return See above.
+     */
+    private RenderingStrategy newStrategy(PixelBuffer pixels,
+            RenderingStats requestStats, Map<byte[], Integer> requestOverlays)
+    {
+        Map<byte[], Integer> o = overlays;
+        if (requestOverlays != null && requestOverlays.size() > 0)
+        {
+            o = requestOverlays;
+        }
+        Optimizations opt = optimizations;
+        if (o != null && o.size() > 0 && opt.isPrimaryColorEnabled())
+        {
+            // Same as checkOptimizations() with overlays, without touching
+            // the optimizations shared with the other requests.
+            opt = new Optimizations();
+            opt.setAlphalessRendering(optimizations.isAlphalessRendering());
+            opt.setPrimaryColorEnabled(false);
+        }
+        RenderingStrategy strategy =
+            RenderingStrategy.makeNew(rndDef.getModel());
+        log.info("Using: '" + strategy.getClass().getName()
                 + "' rendering strategy.");
-        PixelBuffer oldBuffer = buffer;
+        strategy.setRequest(this, pixels, requestStats, o, opt);
+        return strategy;
+    }
+
+    /**
+     * Registers a request reading from the pixel buffer, setting the
+     * resolution level again if the buffer was closed by the previous
+     * requests.
+     * 
+     * @param newBuffer The buffer passed by the caller, may be
+     *            <code>null</code>.
+     * @return The buffer to read the pixels data of the request from.
+     */
+    private PixelBuffer acquireBuffer(PixelBuffer newBuffer)
+    {
+        synchronized (bufferLock)
+        {
+            if (activeRenders == 0 && resolutionLevel != null)
+            {
+                buffer.setResolutionLevel(resolutionLevel);
+            }
+            activeRenders++;
+        }
+        return newBuffer != null ? newBuffer : buffer;
+    }
+
+    /**
+     * Closes the buffer passed by the caller and, once no other request is
+     * reading from it, the pixel buffer, cleaning up file state.
+     * 
+     * @param pixels The buffer returned by {@link #acquireBuffer(PixelBuffer)}.
+     */
+    private void releaseBuffer(PixelBuffer pixels)
+    {
         try
         {
-            if (newBuffer != null)
+            synchronized (bufferLock)
             {
-                buffer = newBuffer;
+                if (--activeRenders == 0)
+                {
+                    buffer.close();
+                }
+            }
+            if (pixels != buffer)
+            {
+                pixels.close();
             }
-            RGBIntBuffer img = renderingStrategy.renderAsPackedInt(this, pd);
-            stats.stop();
-            // TODO: Commenting this out for now. -- callan
-            //log.info(stats.getStats());
-            return img.getDataBuffer();
         }
-        finally
+        catch (IOException e)
         {
-            buffer = oldBuffer;
+            log.error("Pixels could not be closed successfully.", e);
+            throw new ResourceError(
+                    e.getMessage() + " Please check server log.");
         }
     }
 
@@ -536,7 +717,8 @@ public class Renderer {
         if (pd == null) {
             throw new NullPointerException("No plane definition.");
         }
-        return renderingStrategy.getImageSize(pd, metadata);
+        return RenderingStrategy.makeNew(rndDef.getModel()).getImageSize(
+                pd, metadata);
     }
 
     /**
@@ -560,7 +742,8 @@ public class Renderer {
         if (pd == null) {
             throw new NullPointerException("No plane definition.");
         }
-        return renderingStrategy.getPlaneDimsAsString(pd, metadata);
+        return RenderingStrategy.makeNew(
+                rndDef.getModel()).getPlaneDimsAsString(pd, metadata);
     }
 
     /**
@@ -644,8 +827,8 @@ public class Renderer {
     }
 
     /**
-     * Returns a {@link RenderingStats} object that the rendering strategy can
-     * use to track performance. A new stats object is created upon each
+     * Returns the {@link RenderingStats} object that tracked the performance
+     * of the last completed request. A new stats object is created upon each
      * invocation of the {@link #render(PlaneDef) render} method.
      * 
      * @return The stats object.
@@ -799,6 +982,16 @@ public class Renderer {
     	return optimizations;
     }
 
+    /**
+     * Returns the pool of threads the rendering strategy should use.
+     * 
+     * @return See above.
+     */
+    public RenderingExecutor getExecutor()
+    {
+        return executor;
+    }
+
 	/**
      * Closes the buffer, cleaning up file state.
      * 
@@ -878,7 +1071,11 @@ public class Renderer {
      **/
     public void setResolutionLevel(int resolutionLevel)
     {
-        buffer.setResolutionLevel(resolutionLevel);
+        synchronized (bufferLock)
+        {
+            buffer.setResolutionLevel(resolutionLevel);
+            this.resolutionLevel = resolutionLevel;
+        }
     }
 
     /**
@@ -887,7 +1084,14 @@ public class Renderer {
      **/
     public int getResolutionLevel()
     {
-        return buffer.getResolutionLevel();
+        synchronized (bufferLock)
+        {
+            if (resolutionLevel != null)
+            {
+                return resolutionLevel;
+            }
+            return buffer.getResolutionLevel();
+        }
     }
 
     /**
@@ -0,0 +1,230 @@
+/*
+ * omeis.providers.re.RenderingExecutor
+ *
+ *   Copyright 2016 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package omeis.providers.re;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ome.system.metrics.Histogram;
+import ome.system.metrics.Metrics;
+import ome.system.metrics.NullMetrics;
+import ome.system.metrics.Timer;
+
+import omeis.providers.re.quantum.QuantizationException;
+
+/**
+ * Server-wide, bounded pool of threads used by the rendering strategies to
+ * render the regions of a plane concurrently. A single instance is shared by
+ * all {@link Renderer} instances so that rendering no longer creates and
+ * destroys threads for every plane.
+ * <p>
+ * The queue in front of the workers is bounded. Once it is full, tasks are
+ * run in the submitting thread, which slows the callers down rather than
+ * letting the backlog grow without limit.
+ * </p>
+ * <p>
+ * The queue depth at submission time is published as the
+ * <code>queueDepth</code> histogram, the time a task spent waiting for a
+ * worker as the <code>waitTimes</code> timer and the time spent rendering as
+ * the <code>taskTimes</code> timer.
+ * </p>
+ *
+ * @since 5.2.4
+ */
+public class RenderingExecutor {
+
+    /** The logger for this particular class */
+    private static Logger log = LoggerFactory.getLogger(RenderingExecutor.class);
+
+    /** The default number of queued tasks per worker thread. */
+    public static final int DEFAULT_QUEUE_FACTOR = 16;
+
+    /** Lazily created instance used when none has been configured. */
+    private static RenderingExecutor defaultInstance;
+
+    /** The workers. */
+    private final ThreadPoolExecutor processor;
+
+    /** The number of worker threads. */
+    private final int threads;
+
+    /** Queue depth observed on each submission. */
+    private final Histogram queueDepth;
+
+    /** Time spent by tasks in the queue. */
+    private final Timer waitTimes;
+
+    /** Time spent by tasks rendering. */
+    private final Timer taskTimes;
+
+    /**
+     * Returns the instance shared by renderers which were not given an
+     * executor explicitly. It has one worker per available processor and
+     * does not publish any metrics.
+     *
+     * @return See above.
+     */
+    public static synchronized RenderingExecutor getDefault() {
+        if (defaultInstance == null) {
+            defaultInstance = new RenderingExecutor(0, 0, new NullMetrics());
+        }
+        return defaultInstance;
+    }
+
+    /**
+     * Creates a new instance.
+     *
+     * @param threads The number of worker threads. If <code>0</code> or
+     *            lower, the number of available processors is used.
+     * @param queueSize The maximum number of tasks waiting for a worker. If
+     *            <code>0</code> or lower, {@link #DEFAULT_QUEUE_FACTOR} times
+     *            the number of threads is used.
+     * @param metrics Where to publish the queue and task metrics.
+     */
+    public RenderingExecutor(int threads, int queueSize, Metrics metrics) {
+        if (threads <= 0) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+        if (queueSize <= 0) {
+            queueSize = threads * DEFAULT_QUEUE_FACTOR;
+        }
+        this.threads = threads;
+        this.queueDepth = metrics.histogram(this, "queueDepth");
+        this.waitTimes = metrics.timer(this, "waitTimes");
+        this.taskTimes = metrics.timer(this, "taskTimes");
+        this.processor = new ThreadPoolExecutor(threads, threads,
+                60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize),
+                new RenderingThreadFactory(),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        this.processor.allowCoreThreadTimeOut(true);
+        log.info("Rendering executor: threads=" + threads
+                + ", queueSize=" + queueSize);
+    }
+
+    /**
+     * Returns the number of worker threads, i.e. the number of tasks it is
+     * worth splitting a rendering operation into.
+     *
+     * @return See above.
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Runs the passed tasks and waits for all of them to complete. The first
+     * task is run in the calling thread, the others are handed to the
+     * workers.
+     *
+     * @param tasks The tasks to run.
+     * @throws QuantizationException If a task failed to quantize a pixel
+     *             intensity value.
+     */
+    public void invokeAll(RenderingTask[] tasks) throws QuantizationException {
+        int n = tasks.length;
+        if (n == 0) {
+            return;
+        }
+        Future<?>[] futures = new Future<?>[n]; // [0] unused.
+        while (0 < --n) {
+            futures[n] = processor.submit(new TimedTask(tasks[n]));
+            queueDepth.update(processor.getQueue().size());
+        }
+
+        // Call the first task in the current thread.
+        QuantizationException failure = null;
+        try {
+            tasks[0].call();
+        } catch (QuantizationException e) {
+            failure = e;
+        }
+
+        // Wait for all forked tasks (if any) to complete, even on failure,
+        // since they write into buffers owned by the caller.
+        for (n = 1; n < futures.length; ++n) {
+            try {
+                futures[n].get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof QuantizationException) {
+                    if (failure == null) {
+                        failure = (QuantizationException) cause;
+                    }
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else {
+                    throw new RuntimeException(cause);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Stops the workers once the queued tasks have been run.
+     */
+    public void shutdown() {
+        processor.shutdown();
+    }
+
+    /**
+     * Wraps a {@link RenderingTask} so that its time in the queue and its
+     * running time are recorded.
+     */
+    private class TimedTask implements RenderingTask {
+
+        private final RenderingTask task;
+
+        private final Timer.Context waiting;
+
+        TimedTask(RenderingTask task) {
+            this.task = task;
+            this.waiting = waitTimes.time();
+        }
+
+        public Object call() throws QuantizationException {
+            waiting.stop();
+            Timer.Context running = taskTimes.time();
+            try {
+                return task.call();
+            } finally {
+                running.stop();
+            }
+        }
+    }
+
+    /**
+     * Names the worker threads and makes them daemons so that they never
+     * prevent the JVM from exiting.
+     */
+    private static class RenderingThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r,
+                    "Rendering-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
@@ -8,10 +8,12 @@
 package omeis.providers.re;
 
 import java.io.IOException;
+import java.util.Map;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import ome.io.nio.PixelBuffer;
 import ome.model.core.Pixels;
 import ome.model.enums.RenderingModel;
 
@@ -32,6 +34,14 @@ import omeis.providers.re.quantum.QuantizationException;
  * a concrete strategy depending on on how transformed data is to be mapped into
  * a color space.
  * </p>
+ * <p>
+ * The {@link Renderer} creates a new strategy for each rendering request and
+ * binds it to that request with
+ * {@link #setRequest(Renderer, PixelBuffer, RenderingStats, Map, Optimizations)
+ * setRequest}. Everything that changes from one request to the next is held
+ * by the strategy rather than by the {@link Renderer}, so several requests
+ * can be rendered concurrently against the same rendering context.
+ * </p>
  * 
  * @see Renderer
  * @author Jean-Marie Burel &nbsp;&nbsp;&nbsp;&nbsp; <a
@@ -64,11 +74,18 @@ abstract class RenderingStrategy {
      * &#151; <i>XZ</i> plane.
      */
     protected int sizeX2;
-    
-    /**
-     * The maximum number of tasks that we will be using during rendering.
-     */
-    protected int maxTasks;
+
+    /** Collects the performance measurements of the request. */
+    protected RenderingStats stats;
+
+    /** The object that allows to access the pixels raw data of the request. */
+    protected PixelBuffer pixels;
+
+    /** The overlays to render, may be <code>null</code>. */
+    protected Map<byte[], Integer> overlays;
+
+    /** The optimizations that apply to the request. */
+    protected Optimizations optimizations;
 
     /**
      * Checks if the passed region is valid.
@@ -151,13 +168,32 @@ abstract class RenderingStrategy {
      */
     protected RenderingStrategy()
     {
-    	maxTasks = Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Binds this strategy to a rendering request. Must be called before any
+     * of the <code>render</code> methods.
+     * 
+     * @param ctx The rendering context.
+     * @param pixels The object that allows to access the pixels raw data.
+     * @param stats Collects the performance measurements of the request.
+     * @param overlays The overlays to render, may be <code>null</code>.
+     * @param optimizations The optimizations that apply to the request.
+     */
+    void setRequest(Renderer ctx, PixelBuffer pixels, RenderingStats stats,
+            Map<byte[], Integer> overlays, Optimizations optimizations)
+    {
+        this.renderer = ctx;
+        this.pixels = pixels;
+        this.stats = stats;
+        this.overlays = overlays;
+        this.optimizations = optimizations;
     }
 
     /**
      * Returns an RGB buffer for usage. Note that the buffer is reallocated
      * upon each call. Should only be called within the context of a
-     * "render" operation as it requires a {@link renderer}.
+     * "render" operation as it requires the {@link #stats} of the request.
      * 
      * @param x1 The size to allocate along the X1-axis.
      * @param x2 The size to allocate along the X2-axis.
@@ -165,7 +201,6 @@ abstract class RenderingStrategy {
      */
     protected RGBBuffer getRgbBuffer()
     {
-    	RenderingStats stats = renderer.getStats();
     	stats.startMalloc();
     	RGBBuffer buf = new RGBBuffer(sizeX1, sizeX2);
 		stats.endMalloc();
@@ -175,13 +210,12 @@ abstract class RenderingStrategy {
 	/**
      * Returns an RGB integer buffer for usage. Note that the buffer is
      * reallocated upon each call. Should only be called within the context of
-     * a "render" operation as it requires a {@link renderer}.
+     * a "render" operation as it requires the {@link #stats} of the request.
      * 
      * @return See above.
      */
 	protected RGBIntBuffer getIntBuffer()
     {
-    	RenderingStats stats = renderer.getStats();
     	stats.startMalloc();
     	RGBIntBuffer buf =  new RGBIntBuffer(sizeX1, sizeX2);
     	stats.endMalloc();
@@ -191,13 +225,12 @@ abstract class RenderingStrategy {
     /**
      * Returns an RGBA integer buffer for usage. Note that the buffer is
      * reallocated upon each call. Should only be called within the context of
-     * a "render" operation as it requires a {@link renderer}.
+     * a "render" operation as it requires the {@link #stats} of the request.
      * 
      * @return See above.
      */
 	protected RGBAIntBuffer getRGBAIntBuffer()
     {
-    	RenderingStats stats = renderer.getStats();
     	stats.startMalloc();
     	RGBAIntBuffer buf =  new RGBAIntBuffer(sizeX1, sizeX2);
     	stats.endMalloc();
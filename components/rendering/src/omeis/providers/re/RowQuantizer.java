@@ -0,0 +1,242 @@
+/*
+ * omeis.providers.re.RowQuantizer
+ *
+ *   Copyright 2016 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package omeis.providers.re;
+
+import java.nio.ByteBuffer;
+
+import ome.util.PixelData;
+
+import omeis.providers.re.data.Plane2D;
+import omeis.providers.re.quantum.QuantizationException;
+import omeis.providers.re.quantum.Quantization_8_16_bit;
+import omeis.providers.re.quantum.QuantumStrategy;
+
+/**
+ * Quantizes the pixels of one row of a rendered region at a time. The
+ * implementations are specialized for the pixels type so that the values are
+ * read straight from the {@link ByteBuffer} backing the plane and, for 8 and
+ * 16 bit integral types, mapped with the table returned by
+ * {@link Quantization_8_16_bit#getTypeLUT()} rather than going through
+ * {@link PixelData#getPixelValueDirect(int)} and
+ * {@link QuantumStrategy#quantize(double)} for each pixel.
+ *
+ * @since 5.2.4
+ */
+abstract class RowQuantizer {
+
+    /** The width of the rendered region. */
+    protected final int width;
+
+    /**
+     * Creates a new instance.
+     *
+     * @param width The width of the rendered region.
+     */
+    RowQuantizer(int width) {
+        this.width = width;
+    }
+
+    /**
+     * Creates the quantizer best suited to the passed plane and strategy.
+     *
+     * @param plane The wavelength data.
+     * @param qs The quantum strategy of the wavelength.
+     * @param width The width of the rendered region.
+     * @return See above.
+     * @throws QuantizationException If an error occurred while building the
+     *             look-up table.
+     */
+    static RowQuantizer make(Plane2D plane, QuantumStrategy qs, int width)
+            throws QuantizationException {
+        if (plane.isXYPlanar()) {
+            PixelData data = plane.getData();
+            ByteBuffer buf = data.getData();
+            int type = data.javaType();
+            if (qs instanceof Quantization_8_16_bit) {
+                byte[] lut = ((Quantization_8_16_bit) qs).getTypeLUT();
+                if (lut != null) {
+                    if (type == PixelData.BYTE && lut.length == 0x100) {
+                        return data.isSigned() ?
+                                new Int8Quantizer(buf, lut, width) :
+                                new UInt8Quantizer(buf, lut, width);
+                    }
+                    if (type == PixelData.SHORT && lut.length == 0x10000) {
+                        return data.isSigned() ?
+                                new Int16Quantizer(buf, lut, width) :
+                                new UInt16Quantizer(buf, lut, width);
+                    }
+                }
+            }
+            if (type == PixelData.FLOAT) {
+                return new FloatQuantizer(buf, qs, width);
+            }
+        }
+        return new GenericQuantizer(plane, qs, width);
+    }
+
+    /**
+     * Quantizes the pixels <code>[x1Start, x1End)</code> of the row
+     * <code>x2</code>.
+     *
+     * @param x2 The row.
+     * @param x1Start The first column.
+     * @param x1End The column after the last one.
+     * @param out Receives the quantized values, starting at index 0.
+     * @throws QuantizationException If an error occurred while quantizing.
+     */
+    abstract void quantizeRow(int x2, int x1Start, int x1End, int[] out)
+            throws QuantizationException;
+
+    /** Unsigned 8-bit pixels mapped through the type LUT. */
+    private static final class UInt8Quantizer extends RowQuantizer {
+
+        private final ByteBuffer buf;
+
+        private final byte[] lut;
+
+        UInt8Quantizer(ByteBuffer buf, byte[] lut, int width) {
+            super(width);
+            this.buf = buf;
+            this.lut = lut;
+        }
+
+        void quantizeRow(int x2, int x1Start, int x1End, int[] out) {
+            int pix = width * x2 + x1Start;
+            for (int i = 0, n = x1End - x1Start; i < n; i++, pix++) {
+                out[i] = lut[buf.get(pix) & 0xFF] & 0xFF;
+            }
+        }
+    }
+
+    /** Signed 8-bit pixels mapped through the type LUT. */
+    private static final class Int8Quantizer extends RowQuantizer {
+
+        private final ByteBuffer buf;
+
+        private final byte[] lut;
+
+        Int8Quantizer(ByteBuffer buf, byte[] lut, int width) {
+            super(width);
+            this.buf = buf;
+            this.lut = lut;
+        }
+
+        void quantizeRow(int x2, int x1Start, int x1End, int[] out) {
+            int pix = width * x2 + x1Start;
+            for (int i = 0, n = x1End - x1Start; i < n; i++, pix++) {
+                out[i] = lut[buf.get(pix) - Byte.MIN_VALUE] & 0xFF;
+            }
+        }
+    }
+
+    /** Unsigned 16-bit pixels mapped through the type LUT. */
+    private static final class UInt16Quantizer extends RowQuantizer {
+
+        private final ByteBuffer buf;
+
+        private final byte[] lut;
+
+        UInt16Quantizer(ByteBuffer buf, byte[] lut, int width) {
+            super(width);
+            this.buf = buf;
+            this.lut = lut;
+        }
+
+        void quantizeRow(int x2, int x1Start, int x1End, int[] out) {
+            int offset = (width * x2 + x1Start) << 1;
+            for (int i = 0, n = x1End - x1Start; i < n; i++, offset += 2) {
+                out[i] = lut[buf.getShort(offset) & 0xFFFF] & 0xFF;
+            }
+        }
+    }
+
+    /** Signed 16-bit pixels mapped through the type LUT. */
+    private static final class Int16Quantizer extends RowQuantizer {
+
+        private final ByteBuffer buf;
+
+        private final byte[] lut;
+
+        Int16Quantizer(ByteBuffer buf, byte[] lut, int width) {
+            super(width);
+            this.buf = buf;
+            this.lut = lut;
+        }
+
+        void quantizeRow(int x2, int x1Start, int x1End, int[] out) {
+            int offset = (width * x2 + x1Start) << 1;
+            for (int i = 0, n = x1End - x1Start; i < n; i++, offset += 2) {
+                out[i] = lut[buf.getShort(offset) - Short.MIN_VALUE] & 0xFF;
+            }
+        }
+    }
+
+    /**
+     * Floating point pixels read straight from the buffer and mapped by the
+     * strategy, which caches the quantized values itself.
+     */
+    private static final class FloatQuantizer extends RowQuantizer {
+
+        private final ByteBuffer buf;
+
+        private final QuantumStrategy qs;
+
+        FloatQuantizer(ByteBuffer buf, QuantumStrategy qs, int width) {
+            super(width);
+            this.buf = buf;
+            this.qs = qs;
+        }
+
+        void quantizeRow(int x2, int x1Start, int x1End, int[] out)
+                throws QuantizationException {
+            int offset = (width * x2 + x1Start) << 2;
+            for (int i = 0, n = x1End - x1Start; i < n; i++, offset += 4) {
+                out[i] = qs.quantize(buf.getFloat(offset));
+            }
+        }
+    }
+
+    /**
+     * Any other plane, pixels type or strategy, e.g. overlays or non
+     * <i>XY</i> planes.
+     */
+    private static final class GenericQuantizer extends RowQuantizer {
+
+        private final Plane2D plane;
+
+        private final PixelData data;
+
+        private final QuantumStrategy qs;
+
+        private final int bytesPerPixel;
+
+        private final boolean isXYPlanar;
+
+        GenericQuantizer(Plane2D plane, QuantumStrategy qs, int width) {
+            super(width);
+            this.plane = plane;
+            this.data = plane.getData();
+            this.qs = qs;
+            this.bytesPerPixel = data.bytesPerPixel();
+            this.isXYPlanar = plane.isXYPlanar();
+        }
+
+        void quantizeRow(int x2, int x1Start, int x1End, int[] out)
+                throws QuantizationException {
+            int i = 0;
+            for (int x1 = x1Start; x1 < x1End; ++x1, ++i) {
+                if (isXYPlanar) {
+                    out[i] = qs.quantize(data.getPixelValueDirect(
+                            (width * x2 + x1) * bytesPerPixel));
+                } else {
+                    out[i] = qs.quantize(plane.getPixelValue(x1, x2));
+                }
+            }
+        }
+    }
+}
@@ -229,6 +229,21 @@ public class CodomainChain {
         return intervalStart;
     }
 
+    /**
+     * Returns <code>true</code> if the chain leaves every value of the
+     * codomain interval unchanged, whatever contexts it contains.
+     * 
+     * @return See above.
+     */
+    public boolean isIdentity() {
+        for (int i = 0; i < LUT.length; i++) {
+            if (LUT[i] != intervalStart + i) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * Removes all {@link CodomainMapContext}s except the identity and resets
      * the interval.
@@ -12,6 +12,7 @@ import loci.formats.FormatTools;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import ome.io.nio.Histogram;
 import ome.io.nio.PixelBuffer;
 import ome.model.core.Channel;
 import ome.model.core.Pixels;
@@ -279,6 +280,40 @@ public class StatsFactory {
         }
     }
 
+    /**
+     * Determines the inputWindow as
+     * {@link #computeLocationStats(Pixels, PixelBuffer, PlaneDef, int)} does,
+     * then narrows it down to percentiles of the pixels' values.
+     *
+     * @param metadata The pixels to parse.
+     * @param pixelsData The buffer.
+     * @param pd The plane to handle.
+     * @param index The channel index.
+     * @param histogram The histogram of the channel or <code>null</code> to
+     *            keep the global range.
+     * @param lowerPercentile The percentile, from <code>0</code> to
+     *            <code>100</code>, used as <code>inputStart</code>.
+     * @param upperPercentile The percentile, from <code>0</code> to
+     *            <code>100</code>, used as <code>inputEnd</code>.
+     */
+    public void computeLocationStats(final Pixels metadata,
+            final PixelBuffer pixelsData, final PlaneDef pd, final int index,
+            final Histogram histogram, final double lowerPercentile,
+            final double upperPercentile) {
+        computeLocationStats(metadata, pixelsData, pd, index);
+        if (histogram == null || histogram.getTotal() == 0) {
+            return;
+        }
+        double start = Math.max(inputStart,
+                histogram.percentile(lowerPercentile));
+        double end = Math.min(inputEnd, histogram.percentile(upperPercentile));
+        // A window collapsed by a dominant value keeps the global range.
+        if (start < end) {
+            inputStart = start;
+            inputEnd = end;
+        }
+    }
+
     /**
      * Returns the statistics.
      * 
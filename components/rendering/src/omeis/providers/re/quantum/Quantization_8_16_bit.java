@@ -9,6 +9,7 @@ package omeis.providers.re.quantum;
 
 import ome.model.core.Pixels;
 import ome.model.display.QuantumDef;
+import omeis.providers.re.data.PlaneFactory;
 
 /**
  * Quantization process. In charge of building a look-up table for each active
@@ -73,6 +74,13 @@ public class Quantization_8_16_bit extends QuantumStrategy {
      */
     private int cdStart, cdEnd;
 
+    /**
+     * The quantized value of every value of the pixels type, indexed by the
+     * value minus the minimum of the type. Built lazily by
+     * {@link #getTypeLUT()} and discarded whenever the mapping changes.
+     */
+    private volatile byte[] typeLUT;
+
     /**
      * Initializes the LUT. Comparable getGlobalMin and getGlobalMax assumed to
      * be Integer, QuantumStrategy enforces min &lt; max. QuantumFactory makes
@@ -220,6 +228,7 @@ public class Quantization_8_16_bit extends QuantumStrategy {
      * gof.
      */
     private void buildLUT() {
+        typeLUT = null;
     	double dStart = getWindowStart(), dEnd = getWindowEnd();
         if (LUT == null) {
             initLUT((int) dStart, (int) dEnd);
@@ -274,6 +283,61 @@ public class Quantization_8_16_bit extends QuantumStrategy {
         buildLUT();
     }
 
+    /**
+     * Overridden to discard the table returned by {@link #getTypeLUT()}
+     * since values outside of the LUT are mapped using the extent.
+     *
+     * @see QuantumStrategy#setExtent(double, double)
+     */
+    @Override
+    public void setExtent(double globalMin, double globalMax) {
+        super.setExtent(globalMin, globalMax);
+        typeLUT = null;
+    }
+
+    /**
+     * Returns the quantized value, as an unsigned byte, of every value of the
+     * pixels type. The value <code>v</code> is mapped to the element at
+     * <code>v - m</code> where <code>m</code> is the minimum value of the
+     * type i.e. <code>-128</code> for <code>int8</code>, <code>-32768</code>
+     * for <code>int16</code> and <code>0</code> for the unsigned types.
+     * Unlike the internal LUT, the table covers values outside of the
+     * window and of the significant bits, so that rendering loops can
+     * index it without any bounds check.
+     *
+     * @return See above or <code>null</code> if the pixels type is not an
+     *         8 or 16 bit integral type.
+     * @throws QuantizationException If an error occurred while quantizing.
+     */
+    public synchronized byte[] getTypeLUT() throws QuantizationException {
+        if (typeLUT == null) {
+            String type = pixels.getPixelsType().getValue();
+            int typeMin;
+            int size;
+            if (PlaneFactory.UINT8.equals(type)) {
+                typeMin = 0;
+                size = 0x100;
+            } else if (PlaneFactory.INT8.equals(type)) {
+                typeMin = Byte.MIN_VALUE;
+                size = 0x100;
+            } else if (PlaneFactory.UINT16.equals(type)) {
+                typeMin = 0;
+                size = 0x10000;
+            } else if (PlaneFactory.INT16.equals(type)) {
+                typeMin = Short.MIN_VALUE;
+                size = 0x10000;
+            } else {
+                return null;
+            }
+            byte[] table = new byte[size];
+            for (int i = 0; i < size; i++) {
+                table[i] = (byte) quantize(typeMin + i);
+            }
+            typeLUT = table;
+        }
+        return typeLUT;
+    }
+
     /**
      * Creates a new strategy.
      * 
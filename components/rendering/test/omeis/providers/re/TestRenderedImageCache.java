@@ -0,0 +1,89 @@
+/*
+ *   Copyright 2016 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package omeis.providers.re;
+
+import java.util.Arrays;
+
+import ome.system.metrics.NullMetrics;
+
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Unit test cases for {@link RenderedImageCache}: lookups by pixels set and
+ * key, the byte budget and the invalidation of a pixels set.
+ */
+@Test
+public class TestRenderedImageCache {
+
+    private static final int LENGTH = 1000;
+
+    private RenderedImageCache cache;
+
+    @BeforeMethod
+    public void setUp() {
+        cache = new RenderedImageCache(3 * (LENGTH + 100), new NullMetrics());
+    }
+
+    private static byte[] data(int seed) {
+        byte[] data = new byte[LENGTH];
+        Arrays.fill(data, (byte) seed);
+        return data;
+    }
+
+    public void testGetReturnsPutImage() {
+        byte[] data = data(1);
+        cache.put(1L, "a", data);
+        Assert.assertSame(cache.get(1L, "a"), data);
+        Assert.assertNull(cache.get(1L, "b"));
+        Assert.assertNull(cache.get(2L, "a"));
+    }
+
+    public void testPutReplacesImage() {
+        cache.put(1L, "a", data(1));
+        byte[] data = data(2);
+        cache.put(1L, "a", data);
+        Assert.assertSame(cache.get(1L, "a"), data);
+        Assert.assertEquals(cache.getCount(), 1);
+    }
+
+    public void testLeastRecentlyUsedIsEvicted() {
+        cache.put(1L, "a", data(1));
+        cache.put(1L, "b", data(2));
+        cache.put(1L, "c", data(3));
+        cache.get(1L, "a");
+        cache.put(1L, "d", data(4));
+        Assert.assertEquals(cache.getCount(), 3);
+        Assert.assertNotNull(cache.get(1L, "a"));
+        Assert.assertNull(cache.get(1L, "b"));
+        Assert.assertTrue(cache.getSize() <= 3 * (LENGTH + 100));
+    }
+
+    public void testImageLargerThanCacheIsNotAdded() {
+        cache.put(1L, "a", new byte[4 * LENGTH]);
+        Assert.assertNull(cache.get(1L, "a"));
+        Assert.assertEquals(cache.getSize(), 0);
+    }
+
+    public void testInvalidateRemovesOnlyPixelsSet() {
+        cache.put(1L, "a", data(1));
+        cache.put(1L, "b", data(2));
+        cache.put(2L, "a", data(3));
+        cache.invalidate(1L);
+        Assert.assertNull(cache.get(1L, "a"));
+        Assert.assertNull(cache.get(1L, "b"));
+        Assert.assertNotNull(cache.get(2L, "a"));
+        Assert.assertEquals(cache.getCount(), 1);
+    }
+
+    public void testDisabledCacheHoldsNothing() {
+        cache = new RenderedImageCache(0, new NullMetrics());
+        Assert.assertFalse(cache.isEnabled());
+        cache.put(1L, "a", data(1));
+        Assert.assertNull(cache.get(1L, "a"));
+    }
+}
@@ -32,6 +32,11 @@ import org.slf4j.LoggerFactory;
 /**
  * {@link PixelBuffer} implementation which uses Bio-Formats to
  * read pixels data directly from original files.
+ * <p>
+ * The Bio-Formats reader is not thread-safe, so the methods that read pixels
+ * data or change the resolution level are synchronized. This lets several
+ * rendering requests share an instance.
+ * </p>
  *
  * @since Beta4.1
  */
@@ -58,7 +63,7 @@ public class BfPixelBuffer implements PixelBuffer, Serializable {
         this.bfReader = bfReader;
     }
 
-    protected BfPixelsWrapper reader() {
+    protected synchronized BfPixelsWrapper reader() {
         BfPixelsWrapper wrapper = reader.get();
         if (wrapper == null) {
             try {
@@ -94,6 +99,15 @@ public class BfPixelBuffer implements PixelBuffer, Serializable {
         return bfReader.isLittleEndian();
     }
 
+    /**
+     * Returns the pixels type of the underlying Bio-Formats reader.
+     * @return See above.
+     */
+    public String getPixelsType()
+    {
+        return reader().getPixelsType();
+    }
+
     /**
      * Sets the current series in the underlying Bio-Formats reader.
      * @param series The series to set.
@@ -126,7 +140,7 @@ public class BfPixelBuffer implements PixelBuffer, Serializable {
         reader().checkBounds(x, y, z, c, t);
     }
 
-    public void close() throws IOException {
+    public synchronized void close() throws IOException {
         reader().close();
         reader.set(null);
     }
@@ -171,7 +185,7 @@ public class BfPixelBuffer implements PixelBuffer, Serializable {
         return reader().getPath();
     }
 
-    public PixelData getPlane(Integer z, Integer c, Integer t)
+    public synchronized PixelData getPlane(Integer z, Integer c, Integer t)
             throws IOException, DimensionsOutOfBoundsException {
         final BfPixelsWrapper reader = reader();
         PixelData d;
@@ -184,7 +198,7 @@ public class BfPixelBuffer implements PixelBuffer, Serializable {
         return d;
     }
 
-    public byte[] getPlaneDirect(Integer z, Integer c, Integer t, byte[] buffer)
+    public synchronized byte[] getPlaneDirect(Integer z, Integer c, Integer t, byte[] buffer)
             throws IOException, DimensionsOutOfBoundsException {
         try {
             final BfPixelsWrapper reader = reader();
@@ -276,7 +290,7 @@ public class BfPixelBuffer implements PixelBuffer, Serializable {
         return reader().getSizeZ();
     }
 
-    public PixelData getStack(Integer c, Integer t) throws IOException,
+    public synchronized PixelData getStack(Integer c, Integer t) throws IOException,
             DimensionsOutOfBoundsException {
         final BfPixelsWrapper reader = reader();
         PixelData d;
@@ -290,7 +304,7 @@ public class BfPixelBuffer implements PixelBuffer, Serializable {
         return d;
     }
 
-    public byte[] getStackDirect(Integer c, Integer t, byte[] buffer)
+    public synchronized byte[] getStackDirect(Integer c, Integer t, byte[] buffer)
             throws IOException, DimensionsOutOfBoundsException {
         try {
             final BfPixelsWrapper reader = reader();
@@ -417,7 +431,7 @@ public class BfPixelBuffer implements PixelBuffer, Serializable {
         return reader.getHypercubeSize(offset,size,step);
     }
 
-    public PixelData getHypercube(List<Integer> offset, List<Integer> size,
+    public synchronized PixelData getHypercube(List<Integer> offset, List<Integer> size,
             List<Integer> step) throws IOException, DimensionsOutOfBoundsException
     {
         final BfPixelsWrapper reader = reader();
@@ -432,7 +446,7 @@ public class BfPixelBuffer implements PixelBuffer, Serializable {
         return d;
     }
 
-    public byte[] getHypercubeDirect(List<Integer> offset, List<Integer> size,
+    public synchronized byte[] getHypercubeDirect(List<Integer> offset, List<Integer> size,
             List<Integer> step, byte[] buffer)
             throws IOException, DimensionsOutOfBoundsException {
         try {
@@ -449,16 +463,30 @@ public class BfPixelBuffer implements PixelBuffer, Serializable {
             Integer height, Integer z, Integer c, Integer t, Integer stride)
             throws IOException, DimensionsOutOfBoundsException
             {
+        if (stride == null || stride < 0) stride = 0;
+        int n = stride + 1;
+        // Only read whole steps, as RomioPixelBuffer does: the rendering
+        // expects width/n columns per row, where a hypercube would read
+        // ceil(width/n) of them.
+        width = (width / n) * n;
+        height = (height / n) * n;
+        if (width == 0 || height == 0) {
+            PixelData d = new PixelData(reader().getPixelsType(),
+                    ByteBuffer.wrap(new byte[0]));
+            d.setOrder(isLittleEndian()?
+                    ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+            return d;
+        }
         List<Integer> offset = Arrays.asList(new Integer[]{x,y,z,c,t});
         List<Integer> size = Arrays.asList(new Integer[]{width,height,1,1,1});
-        List<Integer> step = Arrays.asList(new Integer[]{stride+1,stride+1,1,1,1});
+        List<Integer> step = Arrays.asList(new Integer[]{n,n,1,1,1});
         return getHypercube(offset, size, step);
     }
 
     /* (non-Javadoc)
      * @see ome.io.nio.PixelBuffer#getTile(java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer)
      */
-    public PixelData getTile(Integer z, Integer c, Integer t, Integer x,
+    public synchronized PixelData getTile(Integer z, Integer c, Integer t, Integer x,
             Integer y, Integer w, Integer h) throws IOException
     {
         final BfPixelsWrapper reader = reader();
@@ -481,7 +509,7 @@ public class BfPixelBuffer implements PixelBuffer, Serializable {
     /* (non-Javadoc)
      * @see ome.io.nio.PixelBuffer#getTileDirect(java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, byte[])
      */
-    public byte[] getTileDirect(Integer z, Integer c, Integer t, Integer x,
+    public synchronized byte[] getTileDirect(Integer z, Integer c, Integer t, Integer x,
             Integer y, Integer w, Integer h, byte[] buffer) throws IOException
     {
         try
@@ -557,7 +585,7 @@ public class BfPixelBuffer implements PixelBuffer, Serializable {
     /* (non-Javadoc)
      * @see ome.io.nio.PixelBuffer#setResolutionLevel(int)
      */
-    public void setResolutionLevel(int resolutionLevel)
+    public synchronized void setResolutionLevel(int resolutionLevel)
     {
         // Ensure the reader has been initialized
         reader();
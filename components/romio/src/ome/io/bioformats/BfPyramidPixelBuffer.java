@@ -30,6 +30,7 @@ import ome.conditions.ResourceError;
 import ome.io.nio.ConfiguredTileSizes;
 import ome.io.nio.DimensionsOutOfBoundsException;
 import ome.io.nio.PixelBuffer;
+import ome.io.nio.TileCache;
 import ome.io.nio.TileSizes;
 import ome.model.core.Pixels;
 import ome.util.PixelData;
@@ -119,7 +120,23 @@ public class BfPyramidPixelBuffer implements PixelBuffer {
     private FileLock fileLock;
 
     /** The byte order of the compressed pyramid. */
-    private ByteOrder byteOrder = ByteOrder.BIG_ENDIAN;
+    private volatile ByteOrder byteOrder = ByteOrder.BIG_ENDIAN;
+
+    /** Shared cache of the decoded tiles, may be <code>null</code>. */
+    private volatile TileCache tileCache;
+
+    /**
+     * The pixels type of the pyramid, set once the reader is initialized.
+     * Along with {@link #generation} and {@link #resolutionLevel}, it lets
+     * cached tiles be returned without holding this buffer's monitor.
+     */
+    private volatile String pixelsType;
+
+    /** The modification time of the pyramid file when it was opened. */
+    private volatile long generation;
+
+    /** The current resolution level of the reader. */
+    private volatile int resolutionLevel;
 
     public static final String PYR_LOCK_EXT = ".pyr_lock";
 
@@ -208,6 +225,34 @@ public class BfPyramidPixelBuffer implements PixelBuffer {
         delegate = new BfPixelBuffer(readerFile.getAbsolutePath(), reader);
         byteOrder = delegate.isLittleEndian()? ByteOrder.LITTLE_ENDIAN
                 : ByteOrder.BIG_ENDIAN;
+        resolutionLevel = delegate.getResolutionLevel();
+        generation = readerFile.lastModified();
+        pixelsType = delegate.getPixelsType();
+    }
+
+    /**
+     * Sets the cache shared by the pixel buffers to hold the decoded tiles.
+     * @param tileCache The cache, may be <code>null</code>.
+     */
+    public void setTileCache(TileCache tileCache)
+    {
+        this.tileCache = tileCache;
+    }
+
+    /**
+     * Returns the key of a tile in the tile cache.
+     * @return See above or <code>null</code> if there is no cache or the
+     * reader is not initialized.
+     */
+    private TileCache.Key tileKey(int z, int c, int t, int x, int y, int w,
+            int h, boolean direct)
+    {
+        if (tileCache == null || pixelsType == null || pixels.getId() == null)
+        {
+            return null;
+        }
+        return new TileCache.Key(pixels.getId(), generation, resolutionLevel,
+                z, c, t, x, y, w, h, direct);
     }
 
     /**
@@ -645,6 +690,7 @@ public class BfPyramidPixelBuffer implements PixelBuffer {
      */
     public synchronized void close() throws IOException
     {
+        pixelsType = null;
         try
         {
             if (delegate != null)
@@ -1003,30 +1049,70 @@ public class BfPyramidPixelBuffer implements PixelBuffer {
     /* (non-Javadoc)
      * @see ome.io.nio.PixelBuffer#getTile(java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer)
      */
-    public synchronized PixelData getTile(Integer z, Integer c, Integer t,
+    public PixelData getTile(Integer z, Integer c, Integer t,
             Integer x, Integer y, Integer w, Integer h) throws IOException
     {
-        checkTileParameters(x, y, w, h);
-        t = getRasterizedT(z, c, t);
-        c = 0;
-        z = 0;
-        PixelData data = delegate().getTile(z, c, t, x, y, w, h);
-        data.setOrder(byteOrder);
+        TileCache.Key key = tileKey(z, c, t, x, y, w, h, false);
+        if (key != null)
+        {
+            byte[] cached = tileCache.get(key);
+            if (cached != null)
+            {
+                PixelData data = new PixelData(
+                        pixelsType, ByteBuffer.wrap(cached.clone()));
+                data.setOrder(byteOrder);
+                return data;
+            }
+        }
+        PixelData data;
+        synchronized (this)
+        {
+            checkTileParameters(x, y, w, h);
+            data = delegate().getTile(
+                    0, 0, getRasterizedT(z, c, t), x, y, w, h);
+            data.setOrder(byteOrder);
+            key = tileKey(z, c, t, x, y, w, h, false);
+        }
+        if (key != null)
+        {
+            tileCache.put(key, data.getData().array().clone());
+        }
         return data;
     }
 
     /* (non-Javadoc)
      * @see ome.io.nio.PixelBuffer#getTileDirect(java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, byte[])
      */
-    public synchronized byte[] getTileDirect(Integer z, Integer c, Integer t,
+    public byte[] getTileDirect(Integer z, Integer c, Integer t,
             Integer x, Integer y, Integer w, Integer h, byte[] buffer)
         throws IOException
     {
-        checkTileParameters(x, y, w, h);
-        t = getRasterizedT(z, c, t);
-        c = 0;
-        z = 0;
-        return delegate().getTileDirect(z, c, t, x, y, w, h, buffer);
+        TileCache.Key key = tileKey(z, c, t, x, y, w, h, true);
+        if (key != null)
+        {
+            byte[] cached = tileCache.get(key);
+            if (cached != null && cached.length <= buffer.length)
+            {
+                System.arraycopy(cached, 0, buffer, 0, cached.length);
+                return buffer;
+            }
+        }
+        int length;
+        synchronized (this)
+        {
+            checkTileParameters(x, y, w, h);
+            delegate().getTileDirect(
+                    0, 0, getRasterizedT(z, c, t), x, y, w, h, buffer);
+            length = w * h * delegate().getByteWidth();
+            key = tileKey(z, c, t, x, y, w, h, true);
+        }
+        if (key != null && length <= buffer.length)
+        {
+            byte[] copy = new byte[length];
+            System.arraycopy(buffer, 0, copy, 0, length);
+            tileCache.put(key, copy);
+        }
+        return buffer;
     }
 
     /* (non-Javadoc)
@@ -1238,5 +1324,6 @@ public class BfPyramidPixelBuffer implements PixelBuffer {
             throw new ApiUsageException("In write mode!");
         }
         delegate().setResolutionLevel(resolutionLevel);
+        this.resolutionLevel = delegate().getResolutionLevel();
     }
 }
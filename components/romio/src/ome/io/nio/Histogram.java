@@ -0,0 +1,408 @@
+/*
+ * ome.io.nio.Histogram
+ *
+ *   Copyright 2016 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.io.nio;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import ome.util.PixelData;
+
+/**
+ * Histogram of the values of the pixels of a channel, with equally wide bins
+ * between a minimum and a maximum. Values outside of that range are not
+ * counted.
+ * <p>
+ * For integral pixel types the range is inclusive and each bin covers the
+ * same number of values. The histograms returned by {@link #exact(String)},
+ * for pixel types of up to {@link #MAX_EXACT_BITS} bits, have one bin per
+ * possible value: they can be accumulated in one pass without knowing the
+ * range of the data beforehand, then {@link #rebin(double, double, int)
+ * rebinned} over any range or queried for {@link #percentile(double)
+ * percentiles} without loss.
+ * </p>
+ * <p>
+ * Instances are not thread safe. Threads accumulating concurrently should
+ * each use their own histogram and {@link #add(Histogram) merge} them.
+ * </p>
+ *
+ * @since 5.2.4
+ */
+public class Histogram {
+
+    /** The largest bit depth for which there can be one bin per value. */
+    public static final int MAX_EXACT_BITS = 16;
+
+    /** Identifies the serialized form, followed by its version. */
+    private static final int MAGIC = 0x4f484953;
+
+    private static final int VERSION = 1;
+
+    /** The lowest value counted. */
+    private final double min;
+
+    /** The highest value counted. */
+    private final double max;
+
+    /** Whether the values are integers. */
+    private final boolean integral;
+
+    /** The width of the range covered by the bins. */
+    private final double extent;
+
+    private final long[] counts;
+
+    /**
+     * Creates an empty histogram.
+     *
+     * @param min The lowest value counted.
+     * @param max The highest value counted.
+     * @param integral Whether the values are integers, in which case
+     *            <code>max</code> is the last value of the last bin rather
+     *            than its upper bound.
+     * @param binCount The number of bins.
+     */
+    public Histogram(double min, double max, boolean integral, int binCount) {
+        if (binCount < 1) {
+            throw new IllegalArgumentException(
+                    "Invalid number of bins: " + binCount);
+        }
+        if (max < min || Double.isNaN(min) || Double.isNaN(max)) {
+            throw new IllegalArgumentException(
+                    "Invalid range: " + min + "-" + max);
+        }
+        this.min = min;
+        this.max = max;
+        this.integral = integral;
+        this.extent = integral ? max - min + 1 : max - min;
+        this.counts = new long[binCount];
+    }
+
+    /**
+     * Creates an empty histogram with one bin per possible value of a pixel
+     * type.
+     *
+     * @param pixelsType The OME pixels type, e.g. <code>uint16</code>.
+     * @return See above, or <code>null</code> if the type is a floating point
+     *         type or has more than {@link #MAX_EXACT_BITS} bits.
+     */
+    public static Histogram exact(String pixelsType) {
+        if (!supportsExact(pixelsType)) {
+            return null;
+        }
+        PixelData type = new PixelData(pixelsType, null);
+        double min = type.getMinimum();
+        double max = type.getMaximum();
+        return new Histogram(min, max, true, (int) (max - min + 1));
+    }
+
+    /**
+     * Returns whether {@link #exact(String)} supports a pixel type.
+     *
+     * @param pixelsType The OME pixels type.
+     * @return See above.
+     */
+    public static boolean supportsExact(String pixelsType) {
+        if (pixelsType == null) {
+            return false;
+        }
+        PixelData type = new PixelData(pixelsType, null);
+        return type.javaType() == PixelData.BYTE
+                || type.javaType() == PixelData.SHORT;
+    }
+
+    /**
+     * Returns an empty histogram with the same bins as this one.
+     *
+     * @return See above.
+     */
+    public Histogram emptyCopy() {
+        return new Histogram(min, max, integral, counts.length);
+    }
+
+    /**
+     * Returns whether each bin holds a single value.
+     *
+     * @return See above.
+     */
+    public boolean isExact() {
+        return integral && extent == counts.length;
+    }
+
+    /**
+     * Returns the lowest value counted.
+     *
+     * @return See above.
+     */
+    public double getMin() {
+        return min;
+    }
+
+    /**
+     * Returns the highest value counted.
+     *
+     * @return See above.
+     */
+    public double getMax() {
+        return max;
+    }
+
+    /**
+     * Returns the number of bins.
+     *
+     * @return See above.
+     */
+    public int getBinCount() {
+        return counts.length;
+    }
+
+    /**
+     * Returns the number of values counted by each bin. The array is not
+     * copied.
+     *
+     * @return See above.
+     */
+    public long[] getCounts() {
+        return counts;
+    }
+
+    /**
+     * Returns the number of values counted.
+     *
+     * @return See above.
+     */
+    public long getTotal() {
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        return total;
+    }
+
+    /**
+     * Returns the lowest value of a bin.
+     *
+     * @param bin The index of the bin.
+     * @return See above.
+     */
+    public double getBinStart(int bin) {
+        return min + bin * extent / counts.length;
+    }
+
+    /**
+     * Returns the index of the bin counting a value.
+     *
+     * @param value The value.
+     * @return See above, or <code>-1</code> if the value is out of range.
+     */
+    public int getBin(double value) {
+        if (!(value >= min && value <= max)) {
+            return -1;
+        }
+        if (extent == 0) {
+            return 0;
+        }
+        int bin = (int) ((value - min) * counts.length / extent);
+        return bin < counts.length ? bin : counts.length - 1;
+    }
+
+    /**
+     * Counts a value.
+     *
+     * @param value The value.
+     */
+    public void add(double value) {
+        int bin = getBin(value);
+        if (bin >= 0) {
+            counts[bin]++;
+        }
+    }
+
+    /**
+     * Counts all the pixels of a block of pixel data.
+     *
+     * @param data The pixel data, of the type the histogram was created for.
+     */
+    public void add(PixelData data) {
+        int n = data.size();
+        if (isExact() && min == data.getMinimum()
+                && max == data.getMaximum()) {
+            // The bins are then indexed by value, straight from the buffer.
+            ByteBuffer b = data.getData();
+            int offset = (int) -min;
+            if (data.javaType() == PixelData.BYTE) {
+                int mask = data.isSigned() ? -1 : 0xff;
+                for (int i = 0; i < n; i++) {
+                    counts[(b.get(i) & mask) + offset]++;
+                }
+                return;
+            }
+            if (data.javaType() == PixelData.SHORT) {
+                int mask = data.isSigned() ? -1 : 0xffff;
+                for (int i = 0; i < n; i++) {
+                    counts[(b.getShort(2 * i) & mask) + offset]++;
+                }
+                return;
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            add(data.getPixelValue(i));
+        }
+    }
+
+    /**
+     * Adds the counts of another histogram with the same bins.
+     *
+     * @param other The other histogram.
+     */
+    public void add(Histogram other) {
+        if (other.min != min || other.max != max
+                || other.integral != integral
+                || other.counts.length != counts.length) {
+            throw new IllegalArgumentException("Incompatible histograms.");
+        }
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+    }
+
+    /**
+     * Returns the lowest and highest values counted. For histograms which
+     * are not exact, these are the lowest value of the first and last
+     * non-empty bins.
+     *
+     * @return See above, or <code>null</code> if the histogram is empty.
+     */
+    public double[] getRange() {
+        int first = 0;
+        while (first < counts.length && counts[first] == 0) {
+            first++;
+        }
+        if (first == counts.length) {
+            return null;
+        }
+        int last = counts.length - 1;
+        while (counts[last] == 0) {
+            last--;
+        }
+        return new double[] { getBinStart(first), getBinStart(last) };
+    }
+
+    /**
+     * Returns the counts of a histogram with different bins. Each bin of this
+     * histogram is counted by the new bin holding its lowest value, which is
+     * exact if this histogram {@link #isExact() is}.
+     *
+     * @param newMin The lowest value counted.
+     * @param newMax The highest value counted.
+     * @param binCount The number of bins.
+     * @return See above.
+     */
+    public long[] rebin(double newMin, double newMax, int binCount) {
+        Histogram rebinned = new Histogram(newMin, newMax, integral, binCount);
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] > 0) {
+                int bin = rebinned.getBin(getBinStart(i));
+                if (bin >= 0) {
+                    rebinned.counts[bin] += counts[i];
+                }
+            }
+        }
+        return rebinned.counts;
+    }
+
+    /**
+     * Returns the lowest value of the bin below which, inclusive, lies a given
+     * percentage of the values counted.
+     *
+     * @param percent The percentage, from <code>0</code> to <code>100</code>.
+     *            <code>0</code> returns the lowest value counted and
+     *            <code>100</code> the highest.
+     * @return See above, or <code>NaN</code> if the histogram is empty.
+     */
+    public double percentile(double percent) {
+        long total = getTotal();
+        if (total == 0) {
+            return Double.NaN;
+        }
+        double p = Math.max(0, Math.min(100, percent));
+        long target = Math.max(1, (long) Math.ceil(p * total / 100));
+        long sum = 0;
+        for (int i = 0; i < counts.length; i++) {
+            sum += counts[i];
+            if (sum >= target) {
+                return getBinStart(i);
+            }
+        }
+        return getBinStart(counts.length - 1);
+    }
+
+    /**
+     * Writes the histogram.
+     *
+     * @param out Where to write the histogram to.
+     * @throws IOException If the histogram cannot be written.
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeDouble(min);
+        out.writeDouble(max);
+        out.writeBoolean(integral);
+        out.writeInt(counts.length);
+        // Most bins of exact histograms are empty: only the others are
+        // written, each after the number of empty bins preceding it.
+        int empty = 0;
+        for (long count : counts) {
+            if (count == 0) {
+                empty++;
+            } else {
+                out.writeInt(empty);
+                out.writeLong(count);
+                empty = 0;
+            }
+        }
+        out.writeInt(-1);
+    }
+
+    /**
+     * Reads a histogram written by {@link #write(DataOutput)}.
+     *
+     * @param in Where to read the histogram from.
+     * @return See above.
+     * @throws IOException If the histogram cannot be read or is invalid.
+     */
+    public static Histogram read(DataInput in) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a histogram.");
+        }
+        int version = in.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported histogram version: " + version);
+        }
+        double min = in.readDouble();
+        double max = in.readDouble();
+        boolean integral = in.readBoolean();
+        Histogram histogram;
+        try {
+            histogram = new Histogram(min, max, integral, in.readInt());
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e.getMessage());
+        }
+        int bin = -1;
+        for (int empty = in.readInt(); empty >= 0; empty = in.readInt()) {
+            bin += empty + 1;
+            if (bin >= histogram.counts.length) {
+                throw new IOException("Histogram bin out of range: " + bin);
+            }
+            histogram.counts[bin] = in.readLong();
+        }
+        return histogram;
+    }
+}
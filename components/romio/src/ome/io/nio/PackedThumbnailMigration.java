@@ -0,0 +1,154 @@
+/*
+ * ome.io.nio.PackedThumbnailMigration
+ *
+ *   Copyright 2016 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.io.nio;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Moves the thumbnail files of a data directory to its
+ * {@link PackedThumbnailStore}. Each thumbnail is read back from the store
+ * before its file is deleted. Must be run while the server is stopped, which
+ * the lock of the store enforces.
+ * <p>
+ * Usage: <code>PackedThumbnailMigration DATA_DIR [--keep] [SEGMENT_SIZE]</code>
+ * where <code>--keep</code> leaves the thumbnail files in place.
+ * </p>
+ *
+ * @since 5.2.4
+ */
+public class PackedThumbnailMigration {
+
+    /** The directory holding the thumbnail files. */
+    private final File thumbnails;
+
+    /** The store the thumbnails are moved to. */
+    private final PackedThumbnailStore store;
+
+    /** Whether to leave the thumbnail files in place. */
+    private final boolean keep;
+
+    private int moved;
+
+    private int skipped;
+
+    /**
+     * Creates a new instance.
+     *
+     * @param dataDirectory The data directory, e.g. <code>/OMERO</code>.
+     * @param store The packed thumbnail store of that directory.
+     * @param keep Whether to leave the thumbnail files in place.
+     */
+    public PackedThumbnailMigration(File dataDirectory,
+            PackedThumbnailStore store, boolean keep) {
+        this.thumbnails = new File(dataDirectory,
+                AbstractFileSystemService.THUMBNAILS_PATH);
+        this.store = store;
+        this.keep = keep;
+    }
+
+    /**
+     * Moves all the thumbnail files to the store.
+     *
+     * @throws IOException If a thumbnail could not be moved.
+     */
+    public void run() throws IOException {
+        if (thumbnails.isDirectory()) {
+            migrate(thumbnails);
+        }
+    }
+
+    /**
+     * Returns the number of thumbnails moved.
+     *
+     * @return See above.
+     */
+    public int getMoved() {
+        return moved;
+    }
+
+    /**
+     * Returns the number of files which were not thumbnails.
+     *
+     * @return See above.
+     */
+    public int getSkipped() {
+        return skipped;
+    }
+
+    private void migrate(File directory) throws IOException {
+        File[] files = directory.listFiles();
+        Arrays.sort(files);
+        for (File file : files) {
+            if (file.getAbsoluteFile().equals(
+                    store.getDirectory().getAbsoluteFile())) {
+                continue;
+            }
+            if (file.isDirectory()) {
+                migrate(file);
+                if (!keep && file.list().length == 0) {
+                    file.delete();
+                }
+                continue;
+            }
+            long id;
+            try {
+                id = Long.parseLong(file.getName());
+            } catch (NumberFormatException e) {
+                skipped++;
+                continue;
+            }
+            byte[] data = FileUtils.readFileToByteArray(file);
+            store.put(id, data);
+            if (!Arrays.equals(data, store.get(id))) {
+                throw new IOException("Thumbnail " + id
+                        + " could not be read back from the store.");
+            }
+            if (!keep && !file.delete()) {
+                throw new IOException("Cannot delete " + file);
+            }
+            moved++;
+        }
+    }
+
+    public static void main(String[] argv) throws IOException {
+        if (argv.length < 1 || argv.length > 3) {
+            System.err.println("usage: PackedThumbnailMigration DATA_DIR"
+                    + " [--keep] [SEGMENT_SIZE]");
+            System.exit(1);
+        }
+        File dataDirectory = new File(argv[0]);
+        boolean keep = false;
+        long segmentSize = 256L * 1024 * 1024;
+        for (int i = 1; i < argv.length; i++) {
+            if ("--keep".equals(argv[i])) {
+                keep = true;
+            } else {
+                segmentSize = Long.parseLong(argv[i]);
+            }
+        }
+        PackedThumbnailStore store = new PackedThumbnailStore(
+                new File(dataDirectory,
+                        ThumbnailService.PACKED_THUMBNAILS_PATH),
+                segmentSize);
+        try {
+            PackedThumbnailMigration migration =
+                new PackedThumbnailMigration(dataDirectory, store, keep);
+            migration.run();
+            System.out.println(String.format(
+                    "Moved %d thumbnails to %s, skipped %d other files.",
+                    migration.getMoved(), store.getDirectory(),
+                    migration.getSkipped()));
+        } finally {
+            store.close();
+        }
+    }
+}
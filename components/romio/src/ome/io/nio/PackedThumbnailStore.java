@@ -0,0 +1,842 @@
+/*
+ * ome.io.nio.PackedThumbnailStore
+ *
+ *   Copyright 2016 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.io.nio;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stores thumbnails by appending them to a few large segment files rather
+ * than writing one file per thumbnail.
+ * <p>
+ * Each record of a segment is the thumbnail id, the length of the thumbnail
+ * and the thumbnail itself. A removal appends a record with a length of
+ * <code>-1</code>. The index from thumbnail id to segment and offset is held
+ * in memory and rebuilt by scanning the segments, oldest first, when the
+ * store is opened; a record left incomplete at the end of the last segment
+ * is truncated. Thumbnails are read from memory-mapped segments, except for
+ * the segment being appended to, which is read with positional reads.
+ * </p>
+ * <p>
+ * Replaced and removed thumbnails leave garbage behind. A background
+ * compactor copies the live records of the segments with too much garbage to
+ * the end of the store and deletes those segments.
+ * </p>
+ * <p>
+ * A store may only be opened by a single process at a time, which is
+ * enforced with a lock on a file of the store's directory.
+ * </p>
+ *
+ * @since 5.2.4
+ */
+public class PackedThumbnailStore {
+
+    /** The logger for this particular class */
+    private static final Logger log =
+        LoggerFactory.getLogger(PackedThumbnailStore.class);
+
+    /** The name of the file locked by the process using the store. */
+    public static final String LOCK_FILE = "store.lock";
+
+    /** The prefix of the segment file names. */
+    public static final String SEGMENT_PREFIX = "segment-";
+
+    /** The suffix of the segment file names. */
+    public static final String SEGMENT_SUFFIX = ".dat";
+
+    /** The largest segment size, so that offsets fit in an integer. */
+    public static final long MAX_SEGMENT_SIZE = 1L << 30;
+
+    /** The size of the id and length preceding each thumbnail. */
+    private static final int HEADER = 12;
+
+    /** The length recorded for a removed thumbnail. */
+    private static final int REMOVED = -1;
+
+    /** The directory holding the segments. */
+    private final File directory;
+
+    /** The size beyond which a new segment is started. */
+    private final long segmentSize;
+
+    /** Held while the store is open. */
+    private final FileLock fileLock;
+
+    /** The channel of {@link #LOCK_FILE}. */
+    private final FileChannel lockChannel;
+
+    /**
+     * Guards the index and the segments. Reads share it, appends and the
+     * steps of a compaction take it exclusively.
+     */
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /** The location of each thumbnail, see {@link #location(int, long)}. */
+    private final LongLongMap index = new LongLongMap();
+
+    /** The segments by number, the last one being appended to. */
+    private final TreeMap<Integer, Segment> segments =
+        new TreeMap<Integer, Segment>();
+
+    /** The segment being appended to. */
+    private Segment active;
+
+    /** Runs the compactions, may be <code>null</code>. */
+    private ScheduledExecutorService compactor;
+
+    /**
+     * Opens a store, creating it if necessary, and rebuilds its index.
+     *
+     * @param directory The directory holding the segments.
+     * @param segmentSize The size beyond which a new segment is started, at
+     *            most {@link #MAX_SEGMENT_SIZE}.
+     * @throws IOException If the store could not be read or is in use by
+     *             another process.
+     */
+    public PackedThumbnailStore(File directory, long segmentSize)
+            throws IOException {
+        if (segmentSize <= 0 || segmentSize > MAX_SEGMENT_SIZE) {
+            throw new IllegalArgumentException(
+                    "Invalid segment size: " + segmentSize);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        lockChannel = new RandomAccessFile(
+                new File(directory, LOCK_FILE), "rw").getChannel();
+        FileLock acquired;
+        try {
+            acquired = lockChannel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            acquired = null;  // Held by this process already.
+        }
+        fileLock = acquired;
+        if (fileLock == null) {
+            lockChannel.close();
+            throw new IOException("Thumbnail store " + directory
+                    + " is in use by another process.");
+        }
+        try {
+            load();
+        } catch (IOException e) {
+            closeSegments();
+            fileLock.release();
+            lockChannel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Starts compacting the store in the background.
+     *
+     * @param period The time between two compactions, in seconds.
+     * @param threshold The fraction of garbage beyond which a segment is
+     *            compacted.
+     */
+    public synchronized void startCompactor(long period,
+            final double threshold) {
+        if (compactor != null) {
+            return;
+        }
+        compactor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "ThumbnailCompactor");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        compactor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    compact(threshold);
+                } catch (Throwable t) {
+                    log.error("Error compacting thumbnail store "
+                            + directory, t);
+                }
+            }
+        }, period, period, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stops the compactor, waiting for a compaction in progress to complete,
+     * and closes the segments. The store may not be used afterwards.
+     *
+     * @throws IOException If a segment could not be closed.
+     */
+    public void close() throws IOException {
+        ScheduledExecutorService stopping;
+        synchronized (this) {
+            stopping = compactor;
+            compactor = null;
+        }
+        if (stopping != null) {
+            // Not interrupted: an interrupted write would close the channel
+            // of the active segment under the compaction.
+            stopping.shutdown();
+            try {
+                while (!stopping.awaitTermination(10, TimeUnit.SECONDS)) {
+                    log.info("Waiting for the compaction of thumbnail store "
+                            + directory + " to complete.");
+                }
+            } catch (InterruptedException e) {
+                // The compaction then fails on the closed segments; the
+                // segment it copies from is only deleted once forced.
+                Thread.currentThread().interrupt();
+            }
+        }
+        lock.writeLock().lock();
+        try {
+            closeSegments();
+            index.clear();
+            if (fileLock.isValid()) {
+                fileLock.release();
+            }
+            lockChannel.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the directory holding the segments.
+     *
+     * @return See above.
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Returns the number of thumbnails held.
+     *
+     * @return See above.
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return index.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the number of segment files.
+     *
+     * @return See above.
+     */
+    public int getSegmentCount() {
+        lock.readLock().lock();
+        try {
+            return segments.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns whether a thumbnail is held.
+     *
+     * @param id The thumbnail id.
+     * @return See above.
+     */
+    public boolean contains(long id) {
+        lock.readLock().lock();
+        try {
+            return index.get(id) != LongLongMap.MISSING;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the length of a thumbnail.
+     *
+     * @param id The thumbnail id.
+     * @return The length or <code>-1</code> if the thumbnail is not held.
+     * @throws IOException If the segment could not be read.
+     */
+    public int getLength(long id) throws IOException {
+        lock.readLock().lock();
+        try {
+            long location = index.get(id);
+            if (location == LongLongMap.MISSING) {
+                return -1;
+            }
+            return readLength(location);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns a thumbnail.
+     *
+     * @param id The thumbnail id.
+     * @return The thumbnail or <code>null</code> if it is not held.
+     * @throws IOException If the segment could not be read.
+     */
+    public byte[] get(long id) throws IOException {
+        lock.readLock().lock();
+        try {
+            long location = index.get(id);
+            if (location == LongLongMap.MISSING) {
+                return null;
+            }
+            return read(location);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Adds or replaces a thumbnail.
+     *
+     * @param id The thumbnail id.
+     * @param data The thumbnail.
+     * @throws IOException If the thumbnail could not be written.
+     */
+    public void put(long id, byte[] data) throws IOException {
+        lock.writeLock().lock();
+        try {
+            release(index.get(id));
+            long location = append(id, data, data.length);
+            index.put(id, location);
+            active.live += HEADER + data.length;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes a thumbnail.
+     *
+     * @param id The thumbnail id.
+     * @return <code>true</code> if the thumbnail was held.
+     * @throws IOException If the removal could not be recorded.
+     */
+    public boolean remove(long id) throws IOException {
+        lock.writeLock().lock();
+        try {
+            long location = index.remove(id);
+            if (location == LongLongMap.MISSING) {
+                return false;
+            }
+            release(location);
+            append(id, null, REMOVED);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Compacts the segments, other than the one being appended to, whose
+     * fraction of garbage is at least <code>threshold</code>.
+     *
+     * @param threshold The fraction of garbage beyond which a segment is
+     *            compacted.
+     * @return The number of segments compacted.
+     * @throws IOException If a segment could not be compacted.
+     */
+    public int compact(double threshold) throws IOException {
+        List<Segment> candidates = new ArrayList<Segment>();
+        lock.readLock().lock();
+        try {
+            for (Segment segment : segments.values()) {
+                if (segment != active && segment.size > 0
+                        && 1.0 - (double) segment.live / segment.size
+                            >= threshold) {
+                    candidates.add(segment);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        for (Segment segment : candidates) {
+            compact(segment);
+        }
+        return candidates.size();
+    }
+
+    /**
+     * Copies the live records and the still relevant removals of a segment
+     * to the end of the store and deletes the segment. Each record is copied
+     * under its own exclusive lock so that readers are only held up briefly.
+     */
+    private void compact(Segment segment) throws IOException {
+        long start = System.currentTimeMillis();
+        long[] ids;
+        long[] removed;
+        boolean oldest;
+        lock.readLock().lock();
+        try {
+            ids = index.keysWithValuesIn(location(segment.number, 0),
+                    location(segment.number + 1, 0));
+            removed = segment.removals();
+            oldest = segments.firstKey() == segment.number;
+        } finally {
+            lock.readLock().unlock();
+        }
+        for (long id : ids) {
+            lock.writeLock().lock();
+            try {
+                long location = index.get(id);
+                if (segmentOf(location) != segment.number) {
+                    continue;  // Replaced or removed since.
+                }
+                byte[] data = read(location);
+                segment.live -= HEADER + data.length;
+                index.put(id, append(id, data, data.length));
+                active.live += HEADER + data.length;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+        lock.writeLock().lock();
+        try {
+            // A removal only matters while an older segment may still hold
+            // the thumbnail and if it has not been added again since.
+            if (!oldest) {
+                for (long id : removed) {
+                    if (index.get(id) == LongLongMap.MISSING) {
+                        append(id, null, REMOVED);
+                    }
+                }
+            }
+            // The copies must be on disk before the originals are gone.
+            active.channel.force(true);
+            segments.remove(segment.number);
+            segment.close();
+            if (!segment.file.delete()) {
+                log.warn("Could not delete compacted segment "
+                        + segment.file);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        log.info(String.format(
+                "Compacted thumbnail segment %s: %d thumbnails, %d bytes " +
+                "reclaimed in %d ms.", segment.file.getName(), ids.length,
+                segment.size, System.currentTimeMillis() - start));
+    }
+
+    /**
+     * Scans the segments and rebuilds the index.
+     */
+    private void load() throws IOException {
+        File[] files = directory.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.startsWith(SEGMENT_PREFIX)
+                    && name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        for (File file : files) {
+            String name = file.getName();
+            int number = Integer.parseInt(name.substring(
+                    SEGMENT_PREFIX.length(),
+                    name.length() - SEGMENT_SUFFIX.length()));
+            segments.put(number, new Segment(number, file));
+        }
+        for (Segment segment : segments.values()) {
+            scan(segment, segment.number == segments.lastKey());
+        }
+        if (segments.isEmpty()) {
+            roll();
+        } else {
+            active = segments.lastEntry().getValue();
+        }
+        log.info(String.format(
+                "Opened thumbnail store %s: %d thumbnails in %d segments.",
+                directory, index.size(), segments.size()));
+    }
+
+    /**
+     * Adds the records of a segment to the index.
+     *
+     * @param last Whether the segment is the last one, in which case an
+     *            incomplete record at its end is truncated.
+     */
+    private void scan(Segment segment, boolean last) throws IOException {
+        ByteBuffer buffer = segment.map(segment.size);
+        long offset = 0;
+        while (offset < segment.size) {
+            int length = offset + HEADER <= segment.size ?
+                    buffer.getInt((int) offset + 8) : Integer.MIN_VALUE;
+            if (length < REMOVED
+                    || offset + HEADER + Math.max(length, 0) > segment.size) {
+                if (last) {
+                    log.warn(String.format(
+                            "Truncating incomplete record of %s at %d.",
+                            segment.file, offset));
+                    segment.truncate(offset);
+                } else {
+                    log.warn(String.format(
+                            "Ignoring the end of %s from %d onwards.",
+                            segment.file, offset));
+                }
+                break;
+            }
+            long id = buffer.getLong((int) offset);
+            if (length == REMOVED) {
+                release(index.remove(id));
+                offset += HEADER;
+            } else {
+                release(index.put(id, location(segment.number, offset)));
+                segment.live += HEADER + length;
+                offset += HEADER + length;
+            }
+        }
+    }
+
+    /**
+     * Appends a record to the active segment, starting a new one first if
+     * it would grow beyond the segment size.
+     *
+     * @return The location of the record.
+     */
+    private long append(long id, byte[] data, int length) throws IOException {
+        int recordSize = HEADER + Math.max(length, 0);
+        if (active.size > 0 && active.size + recordSize > segmentSize) {
+            roll();
+        }
+        ByteBuffer record = ByteBuffer.allocate(recordSize);
+        record.putLong(id);
+        record.putInt(length);
+        if (data != null) {
+            record.put(data);
+        }
+        record.flip();
+        long offset = active.size;
+        while (record.hasRemaining()) {
+            active.channel.write(record, offset + record.position());
+        }
+        active.size += recordSize;
+        return location(active.number, offset);
+    }
+
+    /**
+     * Seals the active segment, if any, and starts a new one. The sealed
+     * segment is forced to disk, so that a compaction only has to force the
+     * active segment before deleting the segment it copied from.
+     */
+    private void roll() throws IOException {
+        if (active != null) {
+            active.channel.force(true);
+        }
+        int number = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+        File file = new File(directory,
+                String.format("%s%06d%s", SEGMENT_PREFIX, number,
+                        SEGMENT_SUFFIX));
+        Segment segment = new Segment(number, file);
+        segments.put(number, segment);
+        active = segment;
+    }
+
+    /**
+     * Accounts for a record becoming garbage.
+     *
+     * @param location The location of the record or
+     *            {@link LongLongMap#MISSING}.
+     */
+    private void release(long location) throws IOException {
+        if (location != LongLongMap.MISSING) {
+            Segment segment = segments.get(segmentOf(location));
+            segment.live -= HEADER + readLength(location);
+        }
+    }
+
+    private int readLength(long location) throws IOException {
+        Segment segment = segments.get(segmentOf(location));
+        ByteBuffer length = ByteBuffer.allocate(4);
+        segment.read(offsetOf(location) + 8, length);
+        return length.getInt(0);
+    }
+
+    private byte[] read(long location) throws IOException {
+        Segment segment = segments.get(segmentOf(location));
+        long offset = offsetOf(location);
+        byte[] data = new byte[readLength(location)];
+        segment.read(offset + HEADER, ByteBuffer.wrap(data));
+        return data;
+    }
+
+    private static long location(int segment, long offset) {
+        return ((long) segment << 32) | offset;
+    }
+
+    private static int segmentOf(long location) {
+        return (int) (location >>> 32);
+    }
+
+    private static long offsetOf(long location) {
+        return location & 0xFFFFFFFFL;
+    }
+
+    private void closeSegments() throws IOException {
+        IOException failure = null;
+        for (Segment segment : segments.values()) {
+            try {
+                segment.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        segments.clear();
+        active = null;
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * A segment file.
+     */
+    private class Segment {
+
+        final int number;
+
+        final File file;
+
+        final FileChannel channel;
+
+        /** The number of bytes written. */
+        long size;
+
+        /** The number of bytes of the records in the index. */
+        long live;
+
+        /** The mapping of the segment, once sealed. */
+        private MappedByteBuffer mapped;
+
+        Segment(int number, File file) throws IOException {
+            this.number = number;
+            this.file = file;
+            this.channel = new RandomAccessFile(file, "rw").getChannel();
+            this.size = channel.size();
+        }
+
+        /**
+         * Returns a view of the first <code>end</code> bytes of the segment,
+         * mapping it if necessary.
+         */
+        synchronized ByteBuffer map(long end) throws IOException {
+            if (mapped == null || mapped.capacity() < end) {
+                mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+            return mapped.duplicate();
+        }
+
+        /**
+         * Fills <code>buffer</code> from <code>offset</code>. The segment
+         * being appended to is read with positional reads, so that it does
+         * not need mapping again as it grows.
+         */
+        void read(long offset, ByteBuffer buffer) throws IOException {
+            if (this == active) {
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, offset + buffer.position()) < 0) {
+                        throw new IOException("Unexpected end of " + file);
+                    }
+                }
+                return;
+            }
+            ByteBuffer source = map(offset + buffer.remaining());
+            source.position((int) offset);
+            source.limit((int) offset + buffer.remaining());
+            buffer.put(source);
+        }
+
+        /**
+         * Returns the ids of the removal records.
+         */
+        long[] removals() throws IOException {
+            ByteBuffer buffer = map(size);
+            long[] ids = new long[16];
+            int count = 0;
+            long offset = 0;
+            while (offset + HEADER <= size) {
+                int length = buffer.getInt((int) offset + 8);
+                if (length == REMOVED) {
+                    if (count == ids.length) {
+                        ids = Arrays.copyOf(ids, count * 2);
+                    }
+                    ids[count++] = buffer.getLong((int) offset);
+                } else if (length < REMOVED) {
+                    break;
+                }
+                offset += HEADER + Math.max(length, 0);
+            }
+            return Arrays.copyOf(ids, count);
+        }
+
+        void truncate(long offset) throws IOException {
+            channel.truncate(offset);
+            size = offset;
+            mapped = null;
+        }
+
+        void close() throws IOException {
+            mapped = null;
+            channel.close();
+        }
+    }
+
+    /**
+     * Open addressing map of <code>long</code> keys to non-negative
+     * <code>long</code> values, which takes a fraction of the memory of a
+     * {@link Map} for the millions of thumbnails a store may hold.
+     */
+    static final class LongLongMap {
+
+        /** Returned for missing keys. */
+        static final long MISSING = -1;
+
+        /** Marks the free slots. */
+        private static final long FREE = Long.MIN_VALUE;
+
+        private long[] keys;
+
+        private long[] values;
+
+        private int size;
+
+        LongLongMap() {
+            clear();
+        }
+
+        void clear() {
+            keys = new long[1024];
+            values = new long[1024];
+            Arrays.fill(keys, FREE);
+            size = 0;
+        }
+
+        int size() {
+            return size;
+        }
+
+        private int slot(long key) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32)) & (keys.length - 1);
+        }
+
+        private int find(long key) {
+            int mask = keys.length - 1;
+            int i = slot(key);
+            while (keys[i] != FREE && keys[i] != key) {
+                i = (i + 1) & mask;
+            }
+            return i;
+        }
+
+        long get(long key) {
+            int i = find(key);
+            return keys[i] == FREE ? MISSING : values[i];
+        }
+
+        long put(long key, long value) {
+            if (key == FREE) {
+                throw new IllegalArgumentException("Invalid key: " + key);
+            }
+            int i = find(key);
+            if (keys[i] == key) {
+                long previous = values[i];
+                values[i] = value;
+                return previous;
+            }
+            keys[i] = key;
+            values[i] = value;
+            if (++size * 4 > keys.length * 3) {
+                grow();
+            }
+            return MISSING;
+        }
+
+        long remove(long key) {
+            int i = find(key);
+            if (keys[i] == FREE) {
+                return MISSING;
+            }
+            long previous = values[i];
+            // Shift back the following entries of the cluster.
+            int mask = keys.length - 1;
+            int j = i;
+            while (true) {
+                j = (j + 1) & mask;
+                if (keys[j] == FREE) {
+                    break;
+                }
+                int k = slot(keys[j]);
+                if (i <= j ? (i < k && k <= j) : (i < k || k <= j)) {
+                    continue;
+                }
+                keys[i] = keys[j];
+                values[i] = values[j];
+                i = j;
+            }
+            keys[i] = FREE;
+            size--;
+            return previous;
+        }
+
+        /**
+         * Returns the keys whose values are in <code>[from, to)</code>.
+         */
+        long[] keysWithValuesIn(long from, long to) {
+            long[] found = new long[16];
+            int count = 0;
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != FREE && values[i] >= from && values[i] < to) {
+                    if (count == found.length) {
+                        found = Arrays.copyOf(found, count * 2);
+                    }
+                    found[count++] = keys[i];
+                }
+            }
+            return Arrays.copyOf(found, count);
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            long[] oldValues = values;
+            keys = new long[oldKeys.length * 2];
+            values = new long[oldValues.length * 2];
+            Arrays.fill(keys, FREE);
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != FREE) {
+                    put(oldKeys[i], oldValues[i]);
+                }
+            }
+        }
+    }
+}
@@ -8,12 +8,20 @@
 package ome.io.nio;
 
 import java.awt.Dimension;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteOrder;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 import loci.formats.ChannelFiller;
 import loci.formats.ChannelSeparator;
@@ -65,6 +73,9 @@ public class PixelsService extends AbstractFileSystemService
 	/** Suffix for an the image pyramid of a given pixels set. */
 	public static final String PYRAMID_SUFFIX = "_pyramid";
 
+	/** Suffix for the channel histograms of a given pixels set. */
+	public static final String HISTOGRAM_SUFFIX = "_histogram";
+
 	/** Null plane size constant. */
 	public static final int NULL_PLANE_SIZE = 64;
 
@@ -92,10 +103,21 @@ public class PixelsService extends AbstractFileSystemService
 
 	private Timer tileTimes;
 
+	private Timer tileWriteTimes;
+
 	private Timer minmaxTimes;
 	
 	private IQuery iQuery;
 
+	/**
+	 * Number of threads reading the tiles of a single pyramid, see
+	 * {@link #setPyramidThreads(int)}.
+	 */
+	private int pyramidThreads;
+
+	/** Shared cache of the tiles read from pyramids, may be null. */
+	private TileCache tileCache;
+
 	/** Null plane byte array. */
 	public static final byte[] nullPlane = new byte[] { -128, 127, -128, 127,
 			-128, 127, -128, 127, -128, 127, // 10
@@ -185,9 +207,45 @@ public class PixelsService extends AbstractFileSystemService
 
     public void setMetrics(Metrics metrics) {
         this.tileTimes = metrics.timer(this, "tileTimes");
+        this.tileWriteTimes = metrics.timer(this, "tileWriteTimes");
         this.minmaxTimes = metrics.timer(this, "minmaxTimes");
     }
 
+    /**
+     * Sets the number of threads reading, and reducing to the channel
+     * minimum and maximum, the tiles of a pyramid being created. The tiles
+     * are always written by a single thread.
+     * @param pyramidThreads The number of threads. If <code>0</code> or
+     * lower, the number of available processors is used.
+     * @since 5.2.4
+     */
+    public void setPyramidThreads(int pyramidThreads) {
+        this.pyramidThreads = pyramidThreads;
+    }
+
+    /**
+     * Returns the number of threads reading the tiles of a pyramid being
+     * created.
+     * @return See above.
+     * @since 5.2.4
+     */
+    public int getPyramidThreads() {
+        if (pyramidThreads <= 0) {
+            return Runtime.getRuntime().availableProcessors();
+        }
+        return pyramidThreads;
+    }
+
+    /**
+     * Sets the cache of the decoded tiles shared by the pyramid pixel
+     * buffers created by this service.
+     * @param tileCache The cache, may be <code>null</code>.
+     * @since 5.2.4
+     */
+    public void setTileCache(TileCache tileCache) {
+        this.tileCache = tileCache;
+    }
+
     public long getMemoizerWait() {
         return memoizerWait;
     }
@@ -255,6 +313,7 @@ public class PixelsService extends AbstractFileSystemService
                 new PixelsPyramidMinMaxStore(pixels.getSizeC());
             BfPixelBuffer bfPixelBuffer = createMinMaxBfPixelBuffer(
                     originalFilePath, series, minMaxStore);
+            final Histogram[] histograms = createHistograms(pixels);
 
             try
             {
@@ -267,7 +326,11 @@ public class PixelsService extends AbstractFileSystemService
                             Timer.Context ctx = minmaxTimes == null ?
                                 null : minmaxTimes.time();
                             try {
-                                bfPixelBuffer.getPlane(z, c, t);
+                                PixelData plane =
+                                        bfPixelBuffer.getPlane(z, c, t);
+                                if (histograms != null) {
+                                    histograms[c].add(plane);
+                                }
                             } finally {
                                 if (ctx != null) {
                                     ctx.stop();
@@ -276,6 +339,10 @@ public class PixelsService extends AbstractFileSystemService
                         }
                     }
                 }
+                if (histograms != null)
+                {
+                    saveHistograms(pixels.getId(), histograms);
+                }
                 return minMaxStore.createStatsInfo();
             }
             catch (IOException e)
@@ -335,13 +402,21 @@ public class PixelsService extends AbstractFileSystemService
             final String pixelsFilePath, final String originalFilePath) {
 
         final PixelBuffer source;
+        final Callable<PixelBuffer> sourceFactory;
         final Dimension tileSize;
         final PixelsPyramidMinMaxStore minMaxStore;
+        final int series;
 
         if (pixelsFile.exists())
         {
             minMaxStore = null;
+            series = 0;
             source = createRomioPixelBuffer(pixelsFilePath, pixels, false);
+            sourceFactory = new Callable<PixelBuffer>() {
+                public PixelBuffer call() {
+                    return createRomioPixelBuffer(pixelsFilePath, pixels, false);
+                }
+            };
             // FIXME: This should be configuration or service driven
             // FIXME: Also implemented in RenderingBean.getTileSize()
             tileSize = new Dimension(Math.min(pixels.getSizeX(), sizes.getTileWidth()),
@@ -349,14 +424,21 @@ public class PixelsService extends AbstractFileSystemService
         }
         else
         {
+            // The minimum and maximum are reduced from the tiles read by
+            // the pipeline, each worker using its own reader.
             minMaxStore = new PixelsPyramidMinMaxStore(pixels.getSizeC());
-            int series = getSeries(pixels);
-            BfPixelBuffer bfPixelBuffer = createMinMaxBfPixelBuffer(
-                    originalFilePath, series, minMaxStore);
+            series = getSeries(pixels);
+            BfPixelBuffer bfPixelBuffer = createBfPixelBuffer(
+                    originalFilePath, series);
             pixelsPyramid.setByteOrder(
                     bfPixelBuffer.isLittleEndian()? ByteOrder.LITTLE_ENDIAN
                             : ByteOrder.BIG_ENDIAN);
             source = bfPixelBuffer;
+            sourceFactory = new Callable<PixelBuffer>() {
+                public PixelBuffer call() {
+                    return createBfPixelBuffer(originalFilePath, series);
+                }
+            };
             // If the tile sizes we've been given are completely ridiculous
             // then reset them to WIDTHxHEIGHT. Currently these conditions are:
             //  * TileWidth == ImageWidth
@@ -394,59 +476,40 @@ public class PixelsService extends AbstractFileSystemService
 
         try
         {
-            final double totalTiles =
-                source.getSizeZ() * source.getSizeC() * source.getSizeT() *
-                (Math.ceil(source.getSizeX() / tileSize.getWidth())) *
-                (Math.ceil(source.getSizeY() / tileSize.getHeight()));
-            final int tenPercent = Math.max((int) totalTiles / 10, 1);
-            Utils.forEachTile(new TileLoopIteration() {
-                public void run(int z, int c, int t, int x, int y, int w,
-                            int h, int tileCount)
+            PyramidTilePipeline pipeline = new PyramidTilePipeline(pixels,
+                    pixelsPyramid, source, sourceFactory, tileSize,
+                    getPyramidThreads());
+            pipeline.setTimers(tileTimes, tileWriteTimes);
+            Histogram[] histograms = createHistograms(pixels);
+            double[][] minMax = pipeline.run(minMaxStore != null, histograms);
+            if (minMax != null)
             {
-                if (log.isInfoEnabled()
-                    && tileCount % tenPercent == 0)
-                {
-                    log.info(String.format(
-                            "Pyramid creation for Pixels:%d %d/%d (%d%%).",
-                            pixels.getId(), tileCount + 1, (int) totalTiles,
-                            (int) (tileCount / totalTiles * 100)));
-                }
-                try
+                for (int c = 0; c < minMax.length; c++)
                 {
-                    Timer.Context ctx = tileTimes == null ? null : tileTimes.time();
-                    try {
-                        PixelData tile = source.getTile(z, c, t, x, y, w, h);
-                        pixelsPyramid.setTile(
-                            tile.getData().array(), z, c, t, x, y, w, h);
-                        tile.dispose();
-                    } finally {
-                        if (ctx != null) {
-                            ctx.stop();
-                        }
-                    }
-                }
-                catch (IOException e1)
-                {
-                    log.error("FAIL -- Error during tile population", e1);
-                    try
-                    {
-                        pixelsPyramidFile.delete();
-                        FileUtils.touch(pixelsPyramidFile); // ticket:5189
-                    }
-                    catch (Exception e2)
-                    {
-                        log.warn("Error clearing empty or incomplete pixel " +
-                                 "buffer.", e2);
-                    }
-                    return;
+                    minMaxStore.setChannelGlobalMinMax(
+                            c, minMax[c][0], minMax[c][1], series);
                 }
             }
-            }, source, (int) tileSize.getWidth(), (int) tileSize.getHeight());
-
+            if (histograms != null)
+            {
+                saveHistograms(pixels.getId(), histograms);
+            }
             log.info("SUCCESS -- Pyramid created for pixels id:" + pixels.getId());
-
         }
-
+        catch (IOException e1)
+        {
+            log.error("FAIL -- Error during tile population", e1);
+            try
+            {
+                pixelsPyramidFile.delete();
+                FileUtils.touch(pixelsPyramidFile); // ticket:5189
+            }
+            catch (Exception e2)
+            {
+                log.warn("Error clearing empty or incomplete pixel " +
+                         "buffer.", e2);
+            }
+        }
         finally
         {
             if (source != null)
@@ -833,7 +896,10 @@ public class PixelsService extends AbstractFileSystemService
                 // #5159. Creating the path if we need to write.
                 createSubpath(filePath);
             }
-            return new BfPyramidPixelBuffer(pixels, filePath, write);
+            BfPyramidPixelBuffer buffer =
+                    new BfPyramidPixelBuffer(pixels, filePath, write);
+            buffer.setTileCache(tileCache);
+            return buffer;
         }
         catch (Exception e)
         {
@@ -858,6 +924,149 @@ public class PixelsService extends AbstractFileSystemService
         return new RomioPixelBuffer(pixelsFilePath, pixels, allowModification);
     }
 
+    /**
+     * Returns the path of the channel histograms of a pixels set.
+     *
+     * @param id The id of the pixels set.
+     * @return See above.
+     */
+    public String getHistogramPath(Long id)
+    {
+        return getPixelsPath(id) + HISTOGRAM_SUFFIX;
+    }
+
+    /**
+     * Creates empty histograms for the channels of a pixels set, with one bin
+     * per possible value.
+     *
+     * @param pixels The pixels set.
+     * @return See above, or <code>null</code> if the pixels type does not
+     * allow {@link Histogram#exact(String) exact} histograms.
+     */
+    public Histogram[] createHistograms(Pixels pixels)
+    {
+        String type = pixels.getPixelsType() == null ?
+                null : pixels.getPixelsType().getValue();
+        if (!Histogram.supportsExact(type))
+        {
+            return null;
+        }
+        Histogram[] histograms = new Histogram[pixels.getSizeC()];
+        for (int c = 0; c < histograms.length; c++)
+        {
+            histograms[c] = Histogram.exact(type);
+        }
+        return histograms;
+    }
+
+    /**
+     * Returns the channel histograms of a pixels set, as saved by
+     * {@link #saveHistograms(Long, Histogram[])} when its pyramid or
+     * statistics were created.
+     *
+     * @param id The id of the pixels set.
+     * @return The histograms indexed by channel, or <code>null</code> if
+     * there are none or they cannot be read.
+     */
+    public Histogram[] getHistograms(Long id)
+    {
+        File file = new File(getHistogramPath(id));
+        if (!file.exists())
+        {
+            return null;
+        }
+        DataInputStream in = null;
+        try
+        {
+            in = new DataInputStream(new BufferedInputStream(
+                    new GZIPInputStream(new FileInputStream(file))));
+            Histogram[] histograms = new Histogram[in.readInt()];
+            for (int c = 0; c < histograms.length; c++)
+            {
+                histograms[c] = Histogram.read(in);
+            }
+            return histograms;
+        }
+        catch (IOException e)
+        {
+            log.warn("Cannot read histograms: " + file, e);
+            return null;
+        }
+        finally
+        {
+            if (in != null)
+            {
+                try
+                {
+                    in.close();
+                }
+                catch (IOException e)
+                {
+                    log.debug("Error closing histograms: " + file, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Saves the channel histograms of a pixels set, replacing any saved
+     * before. Failures are logged rather than thrown since the histograms
+     * can always be computed again from the pixels.
+     *
+     * @param id The id of the pixels set.
+     * @param histograms The histograms, indexed by channel.
+     */
+    public void saveHistograms(Long id, Histogram[] histograms)
+    {
+        String path = getHistogramPath(id);
+        createSubpath(path);
+        File file = new File(path);
+        // Written aside then renamed so that readers never see a partial file.
+        File tmp = new File(path + "." + Thread.currentThread().getId()
+                + ".tmp");
+        DataOutputStream out = null;
+        try
+        {
+            out = new DataOutputStream(new BufferedOutputStream(
+                    new GZIPOutputStream(new FileOutputStream(tmp))));
+            out.writeInt(histograms.length);
+            for (Histogram histogram : histograms)
+            {
+                histogram.write(out);
+            }
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file))
+            {
+                file.delete();
+                if (!tmp.renameTo(file))
+                {
+                    throw new IOException("Cannot rename " + tmp);
+                }
+            }
+            log.info("Saved histograms of Pixels:" + id);
+        }
+        catch (IOException e)
+        {
+            log.warn("Cannot save histograms: " + file, e);
+        }
+        finally
+        {
+            if (out != null)
+            {
+                try
+                {
+                    out.close();
+                }
+                catch (IOException e)
+                {
+                    log.debug("Error closing histograms: " + tmp, e);
+                }
+            }
+            tmp.delete();
+        }
+    }
+
     /**
 	 * Removes files from data repository based on a parameterized List of Long
 	 * pixels ids
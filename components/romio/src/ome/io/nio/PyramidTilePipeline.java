@@ -0,0 +1,509 @@
+/*
+ * ome.io.nio.PyramidTilePipeline
+ *
+ *   Copyright 2016 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.io.nio;
+
+import java.awt.Dimension;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ome.io.bioformats.BfPyramidPixelBuffer;
+import ome.model.core.Pixels;
+import ome.system.metrics.Timer;
+import ome.util.PixelData;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Copies every tile of a pixels set into a pixels pyramid. Tiles are read,
+ * and optionally reduced to the minimum and maximum of each channel, by a
+ * bounded set of worker threads, each using its own source pixel buffer.
+ * The pyramid writer is not thread safe and expects the tiles of a plane in
+ * order, so the tiles are written by the calling thread in the order of
+ * {@link Utils#forEachTile(TileLoopIteration, PixelBuffer, int, int)},
+ * taking the results from a queue of pending reads which holds at most a few
+ * tiles per worker.
+ *
+ * @since 5.2.4
+ */
+class PyramidTilePipeline
+{
+
+    /** The logger for this particular class */
+    private static final Logger log =
+        LoggerFactory.getLogger(PyramidTilePipeline.class);
+
+    /** The number of tiles read ahead of the writer per worker thread. */
+    private static final int TILES_PER_THREAD = 4;
+
+    /** The pixels set whose pyramid is being created. */
+    private final Pixels pixels;
+
+    /** The pyramid being written. */
+    private final BfPyramidPixelBuffer pyramid;
+
+    /** The buffer passed by the caller, which defines the dimensions. */
+    private final PixelBuffer source;
+
+    /** Creates additional source buffers for the workers. */
+    private final Callable<PixelBuffer> sourceFactory;
+
+    /** The size of the tiles read and written. */
+    private final Dimension tileSize;
+
+    /** The number of worker threads. */
+    private final int threads;
+
+    /** Source buffers not in use by a worker. */
+    private final BlockingQueue<PixelBuffer> idleSources =
+        new LinkedBlockingQueue<PixelBuffer>();
+
+    /** Source buffers created by this pipeline, closed once it is done. */
+    private final List<PixelBuffer> createdSources =
+        new ArrayList<PixelBuffer>();
+
+    /** The histograms of the current worker thread, once it has some. */
+    private final ThreadLocal<Histogram[]> currentHistograms =
+        new ThreadLocal<Histogram[]>();
+
+    /** The histograms of all the worker threads. */
+    private final List<Histogram[]> workerHistograms =
+        new ArrayList<Histogram[]>();
+
+    /** Time taken to read each tile, may be <code>null</code>. */
+    private Timer readTimes;
+
+    /** Time taken to write each tile, may be <code>null</code>. */
+    private Timer writeTimes;
+
+    /**
+     * Creates a new pipeline.
+     *
+     * @param pixels The pixels set whose pyramid is being created.
+     * @param pyramid The pyramid to write.
+     * @param source A buffer to read the tiles from, which the caller
+     *            remains responsible for closing.
+     * @param sourceFactory Creates the buffers used by the other workers.
+     * @param tileSize The size of the tiles.
+     * @param threads The number of worker threads, at least 1.
+     */
+    PyramidTilePipeline(Pixels pixels, BfPyramidPixelBuffer pyramid,
+            PixelBuffer source, Callable<PixelBuffer> sourceFactory,
+            Dimension tileSize, int threads)
+    {
+        this.pixels = pixels;
+        this.pyramid = pyramid;
+        this.source = source;
+        this.sourceFactory = sourceFactory;
+        this.tileSize = tileSize;
+        this.threads = Math.max(1, threads);
+        idleSources.add(source);
+    }
+
+    /**
+     * Sets the timers updated for each tile.
+     *
+     * @param readTimes Time taken to read a tile, may be <code>null</code>.
+     * @param writeTimes Time taken to write a tile, may be <code>null</code>.
+     */
+    void setTimers(Timer readTimes, Timer writeTimes)
+    {
+        this.readTimes = readTimes;
+        this.writeTimes = writeTimes;
+    }
+
+    /**
+     * Copies all the tiles.
+     *
+     * @param computeMinMax Whether to compute the minimum and maximum of
+     *            each channel while reading.
+     * @param histograms The histograms of the channels, which the pixels
+     *            read are added to, or <code>null</code>. The workers count
+     *            into their own copies, added up once all tiles are read.
+     * @return The minimum and maximum of each channel, indexed by channel
+     *         then <code>0</code> for the minimum and <code>1</code> for the
+     *         maximum, or <code>null</code> if not computed.
+     * @throws IOException If a tile could not be read or written.
+     */
+    double[][] run(boolean computeMinMax, Histogram[] histograms)
+            throws IOException
+    {
+        final List<Tile> tiles = new ArrayList<Tile>();
+        Utils.forEachTile(new TileLoopIteration() {
+            public void run(int z, int c, int t, int x, int y, int w, int h,
+                    int tileCount)
+            {
+                tiles.add(new Tile(z, c, t, x, y, w, h));
+            }
+        }, source, (int) tileSize.getWidth(), (int) tileSize.getHeight());
+
+        double[][] minMax = null;
+        if (computeMinMax)
+        {
+            minMax = new double[source.getSizeC()][];
+            for (int c = 0; c < minMax.length; c++)
+            {
+                minMax[c] = new double[] {
+                        Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY };
+            }
+        }
+
+        final int total = tiles.size();
+        final int tenPercent = Math.max(total / 10, 1);
+        final int window = threads * TILES_PER_THREAD;
+        final long start = System.currentTimeMillis();
+        long bytes = 0;
+        ExecutorService executor = Executors.newFixedThreadPool(
+                threads, new WorkerThreadFactory(pixels.getId()));
+        Deque<Future<Tile>> pending = new ArrayDeque<Future<Tile>>(window);
+        try
+        {
+            int next = 0;
+            for (int written = 0; written < total; written++)
+            {
+                while (next < total && pending.size() < window)
+                {
+                    pending.add(executor.submit(
+                            new ReadTask(tiles.get(next++), computeMinMax,
+                                    histograms)));
+                }
+                Tile tile = await(pending.poll());
+                tiles.set(written, null);
+                Timer.Context ctx = writeTimes == null ?
+                        null : writeTimes.time();
+                try
+                {
+                    pyramid.setTile(tile.data.getData().array(),
+                            tile.z, tile.c, tile.t,
+                            tile.x, tile.y, tile.w, tile.h);
+                }
+                finally
+                {
+                    if (ctx != null)
+                    {
+                        ctx.stop();
+                    }
+                    tile.data.dispose();
+                }
+                bytes += tile.length;
+                if (minMax != null)
+                {
+                    minMax[tile.c][0] = Math.min(minMax[tile.c][0], tile.min);
+                    minMax[tile.c][1] = Math.max(minMax[tile.c][1], tile.max);
+                }
+                if (log.isInfoEnabled() && written % tenPercent == 0)
+                {
+                    log.info(String.format(
+                            "Pyramid creation for Pixels:%d %d/%d (%d%%) " +
+                            "%.1f tiles/s.", pixels.getId(), written + 1,
+                            total, (int) (100L * written / total),
+                            rate(written + 1, start)));
+                }
+            }
+        }
+        finally
+        {
+            for (Future<Tile> future : pending)
+            {
+                future.cancel(true);
+            }
+            executor.shutdownNow();
+            awaitWorkers(executor);
+            closeCreatedSources();
+        }
+        if (histograms != null)
+        {
+            synchronized (workerHistograms)
+            {
+                for (Histogram[] worker : workerHistograms)
+                {
+                    for (int c = 0; c < histograms.length; c++)
+                    {
+                        histograms[c].add(worker[c]);
+                    }
+                }
+                workerHistograms.clear();
+            }
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        log.info(String.format(
+                "Pyramid tiles for Pixels:%d: %d tiles, %d bytes in %d ms " +
+                "(%.1f tiles/s, %.1f MB/s) using %d threads.",
+                pixels.getId(), total, bytes, elapsed, rate(total, start),
+                rate(bytes, start) / (1024 * 1024), threads));
+        return minMax;
+    }
+
+    /**
+     * Returns the number of items per second since the passed time.
+     */
+    private static double rate(long count, long start)
+    {
+        long elapsed = Math.max(1, System.currentTimeMillis() - start);
+        return count * 1000.0 / elapsed;
+    }
+
+    /**
+     * Waits for a tile to be read.
+     */
+    private static Tile await(Future<Tile> future) throws IOException
+    {
+        try
+        {
+            return future.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading tiles.", e);
+        }
+        catch (ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+            {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException)
+            {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Takes an idle source buffer, creating one if fewer than one per worker
+     * exist.
+     */
+    private PixelBuffer acquireSource() throws Exception
+    {
+        PixelBuffer source = idleSources.poll();
+        if (source != null)
+        {
+            return source;
+        }
+        synchronized (createdSources)
+        {
+            if (createdSources.size() + 1 < threads)
+            {
+                source = sourceFactory.call();
+                createdSources.add(source);
+                return source;
+            }
+        }
+        return idleSources.take();
+    }
+
+    /**
+     * Waits for the workers to finish the reads they started, which cannot
+     * be cancelled, so that no source buffer is closed while in use.
+     */
+    private void awaitWorkers(ExecutorService executor)
+    {
+        boolean interrupted = false;
+        try
+        {
+            while (true)
+            {
+                try
+                {
+                    if (executor.awaitTermination(1, TimeUnit.MINUTES))
+                    {
+                        return;
+                    }
+                    log.warn("Still waiting for the tile readers of " +
+                            "Pixels:" + pixels.getId() + " to stop.");
+                }
+                catch (InterruptedException e)
+                {
+                    interrupted = true;
+                }
+            }
+        }
+        finally
+        {
+            if (interrupted)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Closes the source buffers created by the pipeline.
+     */
+    private void closeCreatedSources()
+    {
+        synchronized (createdSources)
+        {
+            for (PixelBuffer source : createdSources)
+            {
+                try
+                {
+                    source.close();
+                }
+                catch (IOException e)
+                {
+                    log.warn("Error closing source pixel buffer.", e);
+                }
+            }
+            createdSources.clear();
+        }
+    }
+
+    /**
+     * Returns the histograms the current worker thread counts into.
+     */
+    private Histogram[] workerHistograms(Histogram[] histograms)
+    {
+        Histogram[] worker = currentHistograms.get();
+        if (worker == null)
+        {
+            worker = new Histogram[histograms.length];
+            for (int c = 0; c < worker.length; c++)
+            {
+                worker[c] = histograms[c].emptyCopy();
+            }
+            currentHistograms.set(worker);
+            synchronized (workerHistograms)
+            {
+                workerHistograms.add(worker);
+            }
+        }
+        return worker;
+    }
+
+    /**
+     * Reads a tile, computes its minimum and maximum and counts its pixels.
+     */
+    private class ReadTask implements Callable<Tile>
+    {
+
+        private final Tile tile;
+
+        private final boolean computeMinMax;
+
+        private final Histogram[] histograms;
+
+        ReadTask(Tile tile, boolean computeMinMax, Histogram[] histograms)
+        {
+            this.tile = tile;
+            this.computeMinMax = computeMinMax;
+            this.histograms = histograms;
+        }
+
+        public Tile call() throws Exception
+        {
+            PixelBuffer source = acquireSource();
+            Timer.Context ctx = readTimes == null ? null : readTimes.time();
+            try
+            {
+                tile.data = source.getTile(
+                        tile.z, tile.c, tile.t, tile.x, tile.y, tile.w, tile.h);
+            }
+            finally
+            {
+                if (ctx != null)
+                {
+                    ctx.stop();
+                }
+                idleSources.add(source);
+            }
+            tile.length = tile.data.getData().capacity();
+            if (computeMinMax)
+            {
+                PixelData data = tile.data;
+                double min = Double.POSITIVE_INFINITY;
+                double max = Double.NEGATIVE_INFINITY;
+                for (int i = 0, n = data.size(); i < n; i++)
+                {
+                    double value = data.getPixelValue(i);
+                    if (value < min)
+                    {
+                        min = value;
+                    }
+                    if (value > max)
+                    {
+                        max = value;
+                    }
+                }
+                tile.min = min;
+                tile.max = max;
+            }
+            if (histograms != null)
+            {
+                workerHistograms(histograms)[tile.c].add(tile.data);
+            }
+            return tile;
+        }
+    }
+
+    /**
+     * A tile of the pixels set and, once read, its data.
+     */
+    private static class Tile
+    {
+
+        final int z, c, t, x, y, w, h;
+
+        PixelData data;
+
+        long length;
+
+        double min, max;
+
+        Tile(int z, int c, int t, int x, int y, int w, int h)
+        {
+            this.z = z;
+            this.c = c;
+            this.t = t;
+            this.x = x;
+            this.y = y;
+            this.w = w;
+            this.h = h;
+        }
+    }
+
+    /**
+     * Names the workers after the pixels set and makes them daemons.
+     */
+    private static class WorkerThreadFactory implements ThreadFactory
+    {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        private final long pixelsId;
+
+        WorkerThreadFactory(long pixelsId)
+        {
+            this.pixelsId = pixelsId;
+        }
+
+        public Thread newThread(Runnable r)
+        {
+            Thread t = new Thread(r, "PyramidTile-" + pixelsId + "-"
+                    + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
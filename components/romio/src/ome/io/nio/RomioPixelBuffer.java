@@ -162,7 +162,8 @@ public class RomioPixelBuffer extends AbstractBuffer implements PixelBuffer {
         }
     }
 
-    private FileChannel getFileChannel() throws FileNotFoundException {
+    private synchronized FileChannel getFileChannel()
+            throws FileNotFoundException {
         if (channel == null) {
             file = new RandomAccessFile(getPath(), "rw");
             channel = file.getChannel();
@@ -177,7 +178,7 @@ public class RomioPixelBuffer extends AbstractBuffer implements PixelBuffer {
      * @throws IOException
      *             if an I/O error occurs.
      */
-    public void close() throws IOException {
+    public synchronized void close() throws IOException {
         if (channel != null) {
             try {
                 channel.close();
@@ -515,43 +516,116 @@ public class RomioPixelBuffer extends AbstractBuffer implements PixelBuffer {
     	checkBounds(x, y, z, c, t);
     	checkBounds(x+width-1, y+height-1, null, null, null);
     	
-    	PixelData plane = getPlane(z, c, t);
-    	Integer size;
-    	ByteBuffer buf;
-    	PixelData region = null;
-    	int offset;
-    	
-    	if (stride == 0) {
-    		size =  width*height*getByteWidth();
-            buf = ByteBuffer.wrap(new byte[size]);
-            region = new PixelData(pixels.getPixelsType().getValue(), buf);
-            for (int i = 0; i < height; i++) {
-            	for (int j = 0; j < width; j++) {
-            		offset = (i+y)*getSizeX()+x+j;
-            		region.setPixelValue(i*width+j, plane.getPixelValue(offset));
-            	}
+        int step = stride + 1;
+        int pixelSize = getByteWidth();
+        int rowSize = getRowSize();
+        int size = width * height * pixelSize / (step * step);
+        int columns = width / step;
+        byte[] buffer = new byte[size];
+        if (columns == 0 || size == 0) {
+            return new PixelData(
+                    pixels.getPixelsType().getValue(), ByteBuffer.wrap(buffer));
+        }
+        int rows = Math.min((height + step - 1) / step,
+                size / (columns * pixelSize));
+
+        // Only map the rows the region covers, from its first pixel to the
+        // last pixel of its last sampled row.
+        long offset = getRowOffset(y, z, c, t) + (long) x * pixelSize;
+        int span = (rows - 1) * step * rowSize + width * pixelSize;
+        PixelData source = getRegion(span, offset);
+        try {
+            ByteBuffer in = source.getData();
+            if (step == 1) {
+                copyRows(in, buffer, rows, width * pixelSize, rowSize);
+            } else {
+                gatherRows(in, buffer, rows, columns, step, pixelSize, rowSize);
             }
-            plane.dispose();
-            return region;
-    	}
-    	stride++;
-    	int w = width/stride;
-    	size = width*height*getByteWidth()/(stride*stride);
-        buf = ByteBuffer.wrap(new byte[size]);
-        region = new PixelData(pixels.getPixelsType().getValue(), buf);
-    	int k = 0;
-    	int l = 0;
-    	for (int i = 0; i < height; i = i+stride) {
-    		l = 0;
-        	for (int j = 0; j < width; j = j+stride) {
-        		offset = (i+y)*getSizeX()+x+j;
-        		region.setPixelValue(k*w+l, plane.getPixelValue(offset));
-        		l++;
-        	}
-        	k++;
+        } finally {
+            source.dispose();
+        }
+        return new PixelData(
+                pixels.getPixelsType().getValue(), ByteBuffer.wrap(buffer));
+    }
+
+    /**
+     * Copies <code>rows</code> rows of <code>rowBytes</code> bytes each from
+     * <code>in</code>, whose rows are <code>rowSize</code> bytes apart, into
+     * <code>out</code> with bulk transfers.
+     */
+    private static void copyRows(ByteBuffer in, byte[] out, int rows,
+            int rowBytes, int rowSize) {
+        if (rowBytes == rowSize) {
+            in.position(0);
+            in.get(out, 0, rows * rowBytes);
+            return;
+        }
+        for (int i = 0; i < rows; i++) {
+            in.position(i * rowSize);
+            in.get(out, i * rowBytes, rowBytes);
+        }
+    }
+
+    /**
+     * Copies every <code>step</code>th pixel of every <code>step</code>th row
+     * from <code>in</code> into <code>out</code>. The raw bytes are moved
+     * with a loop specialized for the pixel width, so no per-pixel
+     * conversion through <code>double</code> takes place.
+     */
+    private static void gatherRows(ByteBuffer in, byte[] out, int rows,
+            int columns, int step, int pixelSize, int rowSize) {
+        int rowStep = step * rowSize;
+        int pixelStep = step * pixelSize;
+        int o = 0;
+        switch (pixelSize) {
+            case 1:
+                for (int i = 0; i < rows; i++) {
+                    int p = i * rowStep;
+                    for (int j = 0; j < columns; j++, p += pixelStep) {
+                        out[o++] = in.get(p);
+                    }
+                }
+                break;
+            case 2: {
+                ByteBuffer dst = ByteBuffer.wrap(out).order(in.order());
+                for (int i = 0; i < rows; i++) {
+                    int p = i * rowStep;
+                    for (int j = 0; j < columns; j++, p += pixelStep, o += 2) {
+                        dst.putShort(o, in.getShort(p));
+                    }
+                }
+                break;
+            }
+            case 4: {
+                ByteBuffer dst = ByteBuffer.wrap(out).order(in.order());
+                for (int i = 0; i < rows; i++) {
+                    int p = i * rowStep;
+                    for (int j = 0; j < columns; j++, p += pixelStep, o += 4) {
+                        dst.putInt(o, in.getInt(p));
+                    }
+                }
+                break;
+            }
+            case 8: {
+                ByteBuffer dst = ByteBuffer.wrap(out).order(in.order());
+                for (int i = 0; i < rows; i++) {
+                    int p = i * rowStep;
+                    for (int j = 0; j < columns; j++, p += pixelStep, o += 8) {
+                        dst.putLong(o, in.getLong(p));
+                    }
+                }
+                break;
+            }
+            default:
+                for (int i = 0; i < rows; i++) {
+                    int p = i * rowStep;
+                    for (int j = 0; j < columns; j++, p += pixelStep) {
+                        for (int b = 0; b < pixelSize; b++) {
+                            out[o++] = in.get(p + b);
+                        }
+                    }
+                }
         }
-        plane.dispose();
-        return region;
     }
     
     /**
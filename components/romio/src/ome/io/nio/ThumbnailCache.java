@@ -0,0 +1,158 @@
+/*
+ * ome.io.nio.ThumbnailCache
+ *
+ *   Copyright 2016 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.io.nio;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import ome.system.metrics.Counter;
+import ome.system.metrics.Metrics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * In memory, least recently used cache of the compressed thumbnails read by
+ * {@link ThumbnailService}, bounded by the total number of bytes held. Entries
+ * are keyed by thumbnail id and only returned for the version of the
+ * thumbnail they were stored with.
+ * <p>
+ * Hits, misses and evictions are published as the <code>hits</code>,
+ * <code>misses</code> and <code>evictions</code> counters.
+ * </p>
+ *
+ * @since 5.2.4
+ */
+public class ThumbnailCache {
+
+    /** The logger for this particular class */
+    private static Logger log = LoggerFactory.getLogger(ThumbnailCache.class);
+
+    /** The maximum number of bytes held. */
+    private final long maxSize;
+
+    /** The thumbnails, from the least to the most recently used. */
+    private final LinkedHashMap<Long, Entry> entries =
+        new LinkedHashMap<Long, Entry>(16, 0.75f, true);
+
+    /** The number of bytes currently held. */
+    private long size;
+
+    private final Counter hits;
+
+    private final Counter misses;
+
+    private final Counter evictions;
+
+    /**
+     * Creates a new instance.
+     *
+     * @param maxSize The maximum number of bytes held. If <code>0</code> or
+     *            lower, nothing is cached.
+     * @param metrics Where to publish the hit, miss and eviction counters.
+     */
+    public ThumbnailCache(long maxSize, Metrics metrics) {
+        this.maxSize = maxSize;
+        this.hits = metrics.counter(this, "hits");
+        this.misses = metrics.counter(this, "misses");
+        this.evictions = metrics.counter(this, "evictions");
+        log.info("Thumbnail cache: maxSize=" + maxSize);
+    }
+
+    /**
+     * Returns a thumbnail.
+     *
+     * @param id The id of the thumbnail.
+     * @param version The version of the thumbnail, may be <code>null</code>.
+     * @return The compressed thumbnail or <code>null</code> if it is not
+     *         cached for that version.
+     */
+    public synchronized byte[] get(long id, Integer version) {
+        Entry entry = entries.get(id);
+        if (entry == null || !equals(entry.version, version)) {
+            misses.inc();
+            return null;
+        }
+        hits.inc();
+        return entry.data;
+    }
+
+    /**
+     * Adds or replaces a thumbnail, evicting the least recently used ones as
+     * necessary. Thumbnails larger than the cache are not added.
+     *
+     * @param id The id of the thumbnail.
+     * @param version The version of the thumbnail, may be <code>null</code>.
+     * @param data The compressed thumbnail, which must not be modified
+     *            afterwards.
+     */
+    public synchronized void put(long id, Integer version, byte[] data) {
+        invalidate(id);
+        if (data.length > maxSize) {
+            return;
+        }
+        entries.put(id, new Entry(version, data));
+        size += data.length;
+        Iterator<Entry> i = entries.values().iterator();
+        while (size > maxSize) {
+            Entry eldest = i.next();
+            i.remove();
+            size -= eldest.data.length;
+            evictions.inc();
+        }
+    }
+
+    /**
+     * Removes a thumbnail, if cached.
+     *
+     * @param id The id of the thumbnail.
+     */
+    public synchronized void invalidate(long id) {
+        Entry entry = entries.remove(id);
+        if (entry != null) {
+            size -= entry.data.length;
+        }
+    }
+
+    /**
+     * Returns the number of bytes currently held.
+     *
+     * @return See above.
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * Returns the number of thumbnails currently held.
+     *
+     * @return See above.
+     */
+    public synchronized int getCount() {
+        return entries.size();
+    }
+
+    private static boolean equals(Integer a, Integer b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /**
+     * A cached thumbnail.
+     */
+    private static class Entry {
+
+        final Integer version;
+
+        final byte[] data;
+
+        Entry(Integer version, byte[] data) {
+            this.version = version;
+            this.data = data;
+        }
+    }
+}
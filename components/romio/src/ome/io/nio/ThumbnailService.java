@@ -10,8 +10,11 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.Collection;
 import java.util.List;
 
+import org.apache.commons.io.FileUtils;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -29,12 +32,123 @@ public class ThumbnailService extends AbstractFileSystemService {
     private transient static Logger log = LoggerFactory
             .getLogger(ThumbnailService.class);
 
+    /**
+     * The directory, relative to the root, of the segments of the packed
+     * thumbnail store.
+     */
+    public final static String PACKED_THUMBNAILS_PATH = THUMBNAILS_PATH
+            + "Packed";
+
+    /* Cache of the thumbnails read or written, may be null. */
+    private ThumbnailCache cache;
+
+    /* The directory of the packed thumbnail store. */
+    private final File packedDirectory;
+
+    /* Whether thumbnails are written to the packed thumbnail store. */
+    private boolean packed;
+
+    private long segmentSize = 256L * 1024 * 1024;
+
+    private long compactionPeriod;
+
+    private double compactionThreshold = 0.5;
+
+    /* The packed thumbnail store, null unless packed and started. */
+    private volatile PackedThumbnailStore store;
+
     /**
      * Constructor
      * @param path
      */
     public ThumbnailService(String path) {
         super(path);
+        packedDirectory = new File(new File(path).getAbsoluteFile(),
+                PACKED_THUMBNAILS_PATH);
+    }
+
+    /**
+     * Sets whether thumbnails are appended to the segments of a
+     * {@link PackedThumbnailStore} rather than written one file each. Loose
+     * thumbnail files written beforehand remain readable and are moved to
+     * the store as they are replaced, or all at once by
+     * {@link PackedThumbnailMigration}.
+     *
+     * @param packed See above.
+     */
+    public void setPacked(boolean packed) {
+        this.packed = packed;
+    }
+
+    /**
+     * Sets the size beyond which the packed thumbnail store starts a new
+     * segment.
+     *
+     * @param segmentSize The size in bytes.
+     */
+    public void setSegmentSize(long segmentSize) {
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Sets the time between two compactions of the packed thumbnail store.
+     *
+     * @param compactionPeriod The time in seconds. If <code>0</code> or
+     *            lower, the store is not compacted.
+     */
+    public void setCompactionPeriod(long compactionPeriod) {
+        this.compactionPeriod = compactionPeriod;
+    }
+
+    /**
+     * Sets the fraction of replaced or removed thumbnails beyond which a
+     * segment of the packed thumbnail store is compacted.
+     *
+     * @param compactionThreshold A fraction between <code>0</code> and
+     *            <code>1</code>.
+     */
+    public void setCompactionThreshold(double compactionThreshold) {
+        this.compactionThreshold = compactionThreshold;
+    }
+
+    /**
+     * Opens the packed thumbnail store, if enabled.
+     *
+     * @throws IOException If the store could not be opened.
+     */
+    public void start() throws IOException {
+        if (!packed || store != null) {
+            return;
+        }
+        PackedThumbnailStore opened =
+            new PackedThumbnailStore(packedDirectory, segmentSize);
+        if (compactionPeriod > 0) {
+            opened.startCompactor(compactionPeriod, compactionThreshold);
+        }
+        store = opened;
+    }
+
+    /**
+     * Closes the packed thumbnail store, if open.
+     *
+     * @throws IOException If the store could not be closed.
+     */
+    public void close() throws IOException {
+        PackedThumbnailStore opened = store;
+        store = null;
+        if (opened != null) {
+            opened.close();
+        }
+    }
+
+    /**
+     * Sets the in memory cache of the thumbnails read or written. Without
+     * a cache, every thumbnail is read from disk.
+     *
+     * @param cache The cache, may be <code>null</code>.
+     */
+    public void setCache(ThumbnailCache cache) {
+        this.cache = cache;
     }
 
     /**
@@ -47,11 +161,23 @@ public class ThumbnailService extends AbstractFileSystemService {
     public void createThumbnail(Thumbnail thumbnail, byte[] buf)
             throws IOException {
         String path = getThumbnailPath(thumbnail.getId());
-        createSubpath(path);
 
-        FileOutputStream stream = new FileOutputStream(path);
-        stream.write(buf);
-        stream.close();
+        if (cache != null) {
+            cache.invalidate(thumbnail.getId());
+        }
+        PackedThumbnailStore store = this.store;
+        if (store != null) {
+            store.put(thumbnail.getId(), buf);
+            new File(path).delete();
+        } else {
+            createSubpath(path);
+            FileOutputStream stream = new FileOutputStream(path);
+            stream.write(buf);
+            stream.close();
+        }
+        if (cache != null) {
+            cache.put(thumbnail.getId(), thumbnail.getVersion(), buf.clone());
+        }
     }
 
     /**
@@ -60,7 +186,29 @@ public class ThumbnailService extends AbstractFileSystemService {
      * @param thumbnail
      */
     public long getThumbnailLength(Thumbnail thumbnail) {
-        File f = new File(getThumbnailPath(thumbnail.getId()));
+        return getThumbnailLength(thumbnail.getId());
+    }
+
+    /**
+     * Returns the length of a thumbnail, whether packed or on disk.
+     *
+     * @param id The thumbnail id.
+     * @return The length or <code>0</code> if there is no such thumbnail.
+     */
+    public long getThumbnailLength(long id) {
+        PackedThumbnailStore store = this.store;
+        if (store != null) {
+            try {
+                int length = store.getLength(id);
+                if (length >= 0) {
+                    return length;
+                }
+            } catch (IOException e) {
+                throw new ResourceError("Cannot read thumbnail " + id
+                        + ": " + e.getMessage());
+            }
+        }
+        File f = new File(getThumbnailPath(id));
         return f.length();
     }
 
@@ -72,6 +220,23 @@ public class ThumbnailService extends AbstractFileSystemService {
      * @throws IOException
      */
     public byte[] getThumbnail(Thumbnail thumbnail) throws IOException {
+        if (cache != null) {
+            byte[] cached = cache.get(thumbnail.getId(), thumbnail.getVersion());
+            if (cached != null) {
+                return cached.clone();
+            }
+        }
+        PackedThumbnailStore store = this.store;
+        if (store != null) {
+            byte[] packed = store.get(thumbnail.getId());
+            if (packed != null) {
+                if (cache != null) {
+                    cache.put(thumbnail.getId(), thumbnail.getVersion(),
+                            packed.clone());
+                }
+                return packed;
+            }
+        }
         byte[] buf = new byte[(int) getThumbnailLength(thumbnail)];
         return getThumbnail(thumbnail, buf);
     }
@@ -86,6 +251,19 @@ public class ThumbnailService extends AbstractFileSystemService {
      */
     public byte[] getThumbnail(Thumbnail thumbnail, byte[] buf)
             throws IOException {
+        PackedThumbnailStore store = this.store;
+        if (store != null) {
+            byte[] packed = store.get(thumbnail.getId());
+            if (packed != null) {
+                System.arraycopy(packed, 0, buf, 0,
+                        Math.min(packed.length, buf.length));
+                if (cache != null && buf.length == packed.length) {
+                    cache.put(thumbnail.getId(), thumbnail.getVersion(),
+                            packed);
+                }
+                return buf;
+            }
+        }
         String path = getThumbnailPath(thumbnail.getId());
         FileInputStream stream = new FileInputStream(path);
         try {
@@ -93,11 +271,18 @@ public class ThumbnailService extends AbstractFileSystemService {
         } finally {
             Utils.closeQuietly(stream);
         }
+        if (cache != null && buf.length == getThumbnailLength(thumbnail)) {
+            cache.put(thumbnail.getId(), thumbnail.getVersion(), buf.clone());
+        }
         return buf;
     }
 
     /**
-     * Return FileOutputStream of Thumbnail
+     * Return FileOutputStream of Thumbnail. With the packed thumbnail store,
+     * the thumbnail is written to a temporary file and moved to the store
+     * once the stream is closed. The thumbnail is dropped from the cache
+     * both now and once the stream is closed, since a read while it is
+     * written may cache the previous bytes again.
      * 
      * @param thumbnail
      * @return a {@link FileOutputStream}
@@ -106,8 +291,16 @@ public class ThumbnailService extends AbstractFileSystemService {
     public FileOutputStream getThumbnailOutputStream(Thumbnail thumbnail)
             throws IOException {
         String path = getThumbnailPath(thumbnail.getId());
+        if (cache != null) {
+            cache.invalidate(thumbnail.getId());
+        }
+        if (store != null) {
+            File temporary = File.createTempFile("thumbnail", ".tmp",
+                    packedDirectory);
+            return new PackingOutputStream(thumbnail.getId(), temporary);
+        }
         createSubpath(path);
-        return new FileOutputStream(path);
+        return new InvalidatingOutputStream(thumbnail.getId(), new File(path));
     }
 
     /**
@@ -118,6 +311,10 @@ public class ThumbnailService extends AbstractFileSystemService {
      */
     public boolean getThumbnailExists(Thumbnail thumbnail)
             throws IOException {
+        PackedThumbnailStore store = this.store;
+        if (store != null && store.contains(thumbnail.getId())) {
+            return true;
+        }
         String path = getThumbnailPath(thumbnail.getId());
         return new File(path).exists();
     }
@@ -134,6 +331,7 @@ public class ThumbnailService extends AbstractFileSystemService {
         File file;
         boolean success = false;
 
+        removePackedThumbnails(thumbnailIds);
         for (Long id : thumbnailIds)
         {
             String thumbnailPath = getThumbnailPath(id);
@@ -157,4 +355,98 @@ public class ThumbnailService extends AbstractFileSystemService {
             }
         }
     }
+
+    /**
+     * Removes thumbnails from the packed thumbnail store and the cache,
+     * leaving any thumbnail files on disk untouched.
+     *
+     * @param thumbnailIds The ids of the thumbnails to remove.
+     * @throws ResourceError If the removals could not be recorded.
+     */
+    public void removePackedThumbnails(Collection<Long> thumbnailIds) {
+        PackedThumbnailStore store = this.store;
+        for (Long id : thumbnailIds) {
+            if (cache != null) {
+                cache.invalidate(id);
+            }
+            if (store != null) {
+                try {
+                    if (store.remove(id) && log.isInfoEnabled()) {
+                        log.info("INFO: Packed thumbnail " + id
+                                + " deleted.");
+                    }
+                } catch (IOException e) {
+                    throw new ResourceError("Packed thumbnail " + id
+                            + " deletion failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops the thumbnail from the cache on {@link #close()}, once its new
+     * bytes are in place.
+     */
+    private class InvalidatingOutputStream extends FileOutputStream {
+
+        protected final long id;
+
+        private boolean closed;
+
+        InvalidatingOutputStream(long id, File file) throws IOException {
+            super(file);
+            this.id = id;
+        }
+
+        @Override
+        public void close() throws IOException {
+            super.close();
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                written();
+            } finally {
+                if (cache != null) {
+                    cache.invalidate(id);
+                }
+            }
+        }
+
+        /**
+         * Puts the bytes written in place, once the stream is closed.
+         */
+        protected void written() throws IOException {
+            // Already in place.
+        }
+    }
+
+    /**
+     * Writes to a temporary file which is moved to the packed thumbnail store
+     * on {@link #close()}.
+     */
+    private class PackingOutputStream extends InvalidatingOutputStream {
+
+        private final File temporary;
+
+        PackingOutputStream(long id, File temporary) throws IOException {
+            super(id, temporary);
+            this.temporary = temporary;
+        }
+
+        @Override
+        protected void written() throws IOException {
+            try {
+                PackedThumbnailStore store = ThumbnailService.this.store;
+                if (store == null) {
+                    throw new IOException("Thumbnail store closed.");
+                }
+                store.put(id, FileUtils.readFileToByteArray(temporary));
+                new File(getThumbnailPath(id)).delete();
+            } finally {
+                temporary.delete();
+            }
+        }
+    }
 }
@@ -0,0 +1,270 @@
+/*
+ * ome.io.nio.TileCache
+ *
+ *   Copyright 2016 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.io.nio;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import ome.system.metrics.Counter;
+import ome.system.metrics.Metrics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * In memory, least recently used cache of the tiles decoded from pixel
+ * pyramids, shared by all the pixel buffers created by {@link PixelsService}
+ * and bounded by the total number of bytes held. The entries are split
+ * between several independently locked stripes by key so that concurrent
+ * readers seldom wait on each other.
+ * <p>
+ * Hits, misses and evictions are published as the <code>hits</code>,
+ * <code>misses</code> and <code>evictions</code> counters.
+ * </p>
+ *
+ * @since 5.2.4
+ */
+public class TileCache {
+
+    /** The logger for this particular class */
+    private static Logger log = LoggerFactory.getLogger(TileCache.class);
+
+    /** The most stripes used. */
+    private static final int MAX_STRIPES = 16;
+
+    /** The least number of bytes per stripe. */
+    private static final long MIN_STRIPE_SIZE = 4 * 1024 * 1024;
+
+    private final Stripe[] stripes;
+
+    private final Counter hits;
+
+    private final Counter misses;
+
+    private final Counter evictions;
+
+    /**
+     * Creates a new instance.
+     *
+     * @param maxSize The maximum number of bytes held. If <code>0</code> or
+     *            lower, nothing is cached.
+     * @param metrics Where to publish the hit, miss and eviction counters.
+     */
+    public TileCache(long maxSize, Metrics metrics) {
+        int count = (int) Math.max(1,
+                Math.min(MAX_STRIPES, maxSize / MIN_STRIPE_SIZE));
+        stripes = new Stripe[count];
+        for (int i = 0; i < count; i++) {
+            stripes[i] = new Stripe(maxSize / count);
+        }
+        this.hits = metrics.counter(this, "hits");
+        this.misses = metrics.counter(this, "misses");
+        this.evictions = metrics.counter(this, "evictions");
+        log.info("Tile cache: maxSize=" + maxSize + ", stripes=" + count);
+    }
+
+    private Stripe stripe(Key key) {
+        return stripes[(key.hashCode() & Integer.MAX_VALUE) % stripes.length];
+    }
+
+    /**
+     * Returns a tile.
+     *
+     * @param key The tile.
+     * @return The tile's bytes, which must not be modified, or
+     *         <code>null</code> if it is not cached.
+     */
+    public byte[] get(Key key) {
+        byte[] data = stripe(key).get(key);
+        if (data == null) {
+            misses.inc();
+        } else {
+            hits.inc();
+        }
+        return data;
+    }
+
+    /**
+     * Adds or replaces a tile, evicting the least recently used ones of its
+     * stripe as necessary.
+     *
+     * @param key The tile.
+     * @param data The tile's bytes, which must not be modified afterwards.
+     */
+    public void put(Key key, byte[] data) {
+        int evicted = stripe(key).put(key, data);
+        for (int i = 0; i < evicted; i++) {
+            evictions.inc();
+        }
+    }
+
+    /**
+     * Returns the number of bytes currently held.
+     *
+     * @return See above.
+     */
+    public long getSize() {
+        long size = 0;
+        for (Stripe stripe : stripes) {
+            size += stripe.getSize();
+        }
+        return size;
+    }
+
+    /**
+     * Returns the number of tiles currently held.
+     *
+     * @return See above.
+     */
+    public int getCount() {
+        int count = 0;
+        for (Stripe stripe : stripes) {
+            count += stripe.getCount();
+        }
+        return count;
+    }
+
+    /**
+     * Identifies a tile of a given pyramid file. The tiles returned by
+     * {@link PixelBuffer#getTile} and {@link PixelBuffer#getTileDirect} may
+     * differ in byte order, hence are distinguished.
+     */
+    public static final class Key {
+
+        private final long pixelsId;
+
+        private final long generation;
+
+        private final int resolution;
+
+        private final int z, c, t, x, y, w, h;
+
+        private final boolean direct;
+
+        private final int hash;
+
+        /**
+         * Creates a new instance.
+         *
+         * @param pixelsId The id of the pixels set.
+         * @param generation Distinguishes the successive pyramid files of a
+         *            pixels set, e.g. their last modification time.
+         * @param resolution The resolution level.
+         * @param z The Z-section.
+         * @param c The channel.
+         * @param t The timepoint.
+         * @param x The X offset of the tile.
+         * @param y The Y offset of the tile.
+         * @param w The width of the tile.
+         * @param h The height of the tile.
+         * @param direct Whether the tile is the one returned by
+         *            {@link PixelBuffer#getTileDirect}.
+         */
+        public Key(long pixelsId, long generation, int resolution, int z,
+                int c, int t, int x, int y, int w, int h, boolean direct) {
+            this.pixelsId = pixelsId;
+            this.generation = generation;
+            this.resolution = resolution;
+            this.z = z;
+            this.c = c;
+            this.t = t;
+            this.x = x;
+            this.y = y;
+            this.w = w;
+            this.h = h;
+            this.direct = direct;
+            int result = (int) (pixelsId ^ (pixelsId >>> 32));
+            result = 31 * result + (int) (generation ^ (generation >>> 32));
+            result = 31 * result + resolution;
+            result = 31 * result + z;
+            result = 31 * result + c;
+            result = 31 * result + t;
+            result = 31 * result + x;
+            result = 31 * result + y;
+            result = 31 * result + w;
+            result = 31 * result + h;
+            this.hash = 31 * result + (direct ? 1 : 0);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return pixelsId == other.pixelsId
+                && generation == other.generation
+                && resolution == other.resolution
+                && z == other.z && c == other.c && t == other.t
+                && x == other.x && y == other.y
+                && w == other.w && h == other.h
+                && direct == other.direct;
+        }
+    }
+
+    /**
+     * A least recently used part of the cache.
+     */
+    private static class Stripe {
+
+        private final long maxSize;
+
+        private final LinkedHashMap<Key, byte[]> entries =
+            new LinkedHashMap<Key, byte[]>(16, 0.75f, true);
+
+        private long size;
+
+        Stripe(long maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        synchronized byte[] get(Key key) {
+            return entries.get(key);
+        }
+
+        /**
+         * @return The number of tiles evicted.
+         */
+        synchronized int put(Key key, byte[] data) {
+            byte[] previous = entries.remove(key);
+            if (previous != null) {
+                size -= previous.length;
+            }
+            if (data.length > maxSize) {
+                return 0;
+            }
+            entries.put(key, data);
+            size += data.length;
+            int evicted = 0;
+            Iterator<byte[]> i = entries.values().iterator();
+            while (size > maxSize) {
+                byte[] eldest = i.next();
+                i.remove();
+                size -= eldest.length;
+                evicted++;
+            }
+            return evicted;
+        }
+
+        synchronized long getSize() {
+            return size;
+        }
+
+        synchronized int getCount() {
+            return entries.size();
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ *   Copyright 2016 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package ome.io.nio.utests;
+
+import static org.testng.AssertJUnit.*;
+
+import java.io.File;
+import java.io.IOException;
+
+import loci.formats.in.FakeReader;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.annotations.*;
+
+import ome.io.bioformats.BfPixelBuffer;
+import ome.util.PixelData;
+
+/**
+ * Checks that the strided region reads of the Bio-Formats pixel buffer
+ * return the same layout as those of the ROMIO pixel buffer: only whole
+ * steps are read, so that a width the step does not divide does not shear
+ * the rows.
+ */
+public class BfPlaneRegionUnitTest {
+
+    private static final int SIZE_X = 33;
+
+    private static final int SIZE_Y = 20;
+
+    private static final String ROOT =
+        PathUtil.getInstance().getTemporaryDataFilePath();
+
+    private BfPixelBuffer pixelBuffer;
+
+    private PixelData plane;
+
+    @BeforeClass
+    public void setUp() throws Exception {
+        File dir = new File(ROOT);
+        dir.mkdirs();
+        File fake = new File(dir, "test&sizeX=" + SIZE_X + "&sizeY=" + SIZE_Y
+                + "&pixelType=uint16.fake");
+        fake.createNewFile();
+        pixelBuffer = new BfPixelBuffer(fake.getAbsolutePath(),
+                new FakeReader());
+        plane = pixelBuffer.getPlane(0, 0, 0);
+    }
+
+    @AfterClass
+    public void tearDown() throws IOException {
+        pixelBuffer.close();
+        FileUtils.deleteDirectory(new File(ROOT));
+    }
+
+    private void assertStrided(int x, int y, int width, int height, int stride)
+            throws Exception {
+        int step = stride + 1;
+        int columns = width / step;
+        int rows = height / step;
+        PixelData region = pixelBuffer.getPlaneRegion(
+                x, y, width, height, 0, 0, 0, stride);
+        assertEquals(columns * rows, region.size());
+        for (int i = 0; i < rows; i++) {
+            for (int j = 0; j < columns; j++) {
+                int index = (y + i * step) * SIZE_X + x + j * step;
+                assertEquals(plane.getPixelValue(index),
+                        region.getPixelValue(i * columns + j));
+            }
+        }
+    }
+
+    @Test
+    public void testWidthNotDividedByStep() throws Exception {
+        assertStrided(0, 0, SIZE_X, SIZE_Y, 1);
+        assertStrided(0, 0, SIZE_X, SIZE_Y, 2);
+    }
+
+    @Test
+    public void testHeightNotDividedByStep() throws Exception {
+        assertStrided(0, 0, 32, 19, 3);
+    }
+
+    @Test
+    public void testRegionSmallerThanStep() throws Exception {
+        assertEquals(0, pixelBuffer.getPlaneRegion(
+                0, 0, 2, 2, 0, 0, 0, 2).size());
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ *   Copyright 2016 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package ome.io.nio.utests;
+
+import static org.testng.AssertJUnit.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.testng.annotations.Test;
+
+import ome.io.nio.Histogram;
+import ome.util.PixelData;
+
+/**
+ * Checks the counting, rebinning, percentiles and serialization of
+ * {@link Histogram}.
+ */
+public class HistogramUnitTest {
+
+    /** A block of <code>uint16</code> pixels holding the given values. */
+    private static PixelData uint16(int... values) {
+        ByteBuffer buffer = ByteBuffer.allocate(2 * values.length);
+        for (int value : values) {
+            buffer.putShort((short) value);
+        }
+        return new PixelData("uint16", buffer);
+    }
+
+    @Test
+    public void testExactTypes() {
+        assertTrue(Histogram.supportsExact("uint8"));
+        assertTrue(Histogram.supportsExact("int16"));
+        assertFalse(Histogram.supportsExact("uint32"));
+        assertFalse(Histogram.supportsExact("float"));
+        assertNull(Histogram.exact("double"));
+        Histogram histogram = Histogram.exact("int8");
+        assertTrue(histogram.isExact());
+        assertEquals(256, histogram.getBinCount());
+        assertEquals(-128.0, histogram.getMin());
+        assertEquals(127.0, histogram.getMax());
+    }
+
+    @Test
+    public void testAddPixelData() {
+        Histogram histogram = Histogram.exact("uint16");
+        histogram.add(uint16(0, 3, 3, 65535, 40000));
+        long[] counts = histogram.getCounts();
+        assertEquals(5, histogram.getTotal());
+        assertEquals(1, counts[0]);
+        assertEquals(2, counts[3]);
+        assertEquals(1, counts[40000]);
+        assertEquals(1, counts[65535]);
+        assertTrue(Arrays.equals(new double[] { 0, 65535 },
+                histogram.getRange()));
+    }
+
+    @Test
+    public void testSignedPixelData() {
+        Histogram histogram = Histogram.exact("int8");
+        histogram.add(new PixelData("int8",
+                ByteBuffer.wrap(new byte[] { -128, -1, 0, 127 })));
+        long[] counts = histogram.getCounts();
+        assertEquals(1, counts[0]);
+        assertEquals(1, counts[127]);
+        assertEquals(1, counts[128]);
+        assertEquals(1, counts[255]);
+    }
+
+    @Test
+    public void testRebin() {
+        Histogram histogram = Histogram.exact("uint8");
+        for (int value = 0; value < 256; value++) {
+            histogram.add(value);
+        }
+        long[] counts = histogram.rebin(0, 255, 4);
+        assertTrue(Arrays.equals(new long[] { 64, 64, 64, 64 }, counts));
+        // Values outside of the new range are not counted.
+        counts = histogram.rebin(100, 199, 10);
+        for (long count : counts) {
+            assertEquals(10, count);
+        }
+    }
+
+    @Test
+    public void testFloatingPointBins() {
+        Histogram histogram = new Histogram(0, 1, false, 4);
+        histogram.add(0);
+        histogram.add(0.3);
+        histogram.add(0.99);
+        histogram.add(1);
+        histogram.add(1.5);
+        assertTrue(Arrays.equals(new long[] { 1, 1, 0, 2 },
+                histogram.getCounts()));
+        assertEquals(-1, histogram.getBin(-0.1));
+    }
+
+    @Test
+    public void testPercentile() {
+        Histogram histogram = Histogram.exact("uint8");
+        assertTrue(Double.isNaN(histogram.percentile(50)));
+        for (int value = 1; value <= 100; value++) {
+            histogram.add(value);
+        }
+        assertEquals(1.0, histogram.percentile(0));
+        assertEquals(1.0, histogram.percentile(1));
+        assertEquals(50.0, histogram.percentile(50));
+        assertEquals(99.0, histogram.percentile(99));
+        assertEquals(100.0, histogram.percentile(100));
+    }
+
+    @Test
+    public void testMerge() {
+        Histogram first = Histogram.exact("uint16");
+        Histogram second = first.emptyCopy();
+        first.add(uint16(1, 2));
+        second.add(uint16(2, 3));
+        first.add(second);
+        assertEquals(4, first.getTotal());
+        assertEquals(2, first.getCounts()[2]);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testMergeIncompatible() {
+        Histogram.exact("uint16").add(Histogram.exact("uint8"));
+    }
+
+    @Test
+    public void testWriteRead() throws IOException {
+        Histogram histogram = Histogram.exact("uint16");
+        histogram.add(uint16(7, 7, 1000, 65535));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        histogram.write(new DataOutputStream(bytes));
+        // Only the non-empty bins are written.
+        assertTrue(bytes.size() < 100);
+        Histogram read = Histogram.read(new DataInputStream(
+                new ByteArrayInputStream(bytes.toByteArray())));
+        assertTrue(read.isExact());
+        assertEquals(histogram.getMin(), read.getMin());
+        assertEquals(histogram.getMax(), read.getMax());
+        assertTrue(Arrays.equals(histogram.getCounts(), read.getCounts()));
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testReadInvalid() throws IOException {
+        Histogram.read(new DataInputStream(
+                new ByteArrayInputStream(new byte[] { 1, 2, 3, 4, 5, 6 })));
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ *   Copyright 2016 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package ome.io.nio.utests;
+
+import static org.testng.AssertJUnit.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.annotations.*;
+
+import ome.io.nio.PackedThumbnailMigration;
+import ome.io.nio.PackedThumbnailStore;
+import ome.io.nio.ThumbnailService;
+import ome.model.display.Thumbnail;
+
+/**
+ * Checks that the {@link PackedThumbnailStore} keeps the latest version of
+ * each thumbnail across segments, reopening and compaction, and that
+ * {@link ThumbnailService} and {@link PackedThumbnailMigration} use it.
+ */
+public class PackedThumbnailStoreUnitTest {
+
+    private static final int LENGTH = 1000;
+
+    /** Room for three thumbnails per segment. */
+    private static final long SEGMENT_SIZE = 3 * (LENGTH + 12);
+
+    private String root;
+
+    private File directory;
+
+    private PackedThumbnailStore store;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        root = PathUtil.getInstance().getTemporaryDataFilePath();
+        directory = new File(root, ThumbnailService.PACKED_THUMBNAILS_PATH);
+        store = new PackedThumbnailStore(directory, SEGMENT_SIZE);
+    }
+
+    @AfterMethod
+    public void tearDown() throws IOException {
+        store.close();
+        FileUtils.deleteDirectory(new File(root));
+    }
+
+    private static byte[] data(int seed) {
+        byte[] data = new byte[LENGTH];
+        Arrays.fill(data, (byte) seed);
+        return data;
+    }
+
+    private void reopen() throws IOException {
+        store.close();
+        store = new PackedThumbnailStore(directory, SEGMENT_SIZE);
+    }
+
+    @Test
+    public void testPutGetRemove() throws IOException {
+        assertNull(store.get(1L));
+        assertEquals(-1, store.getLength(1L));
+        store.put(1L, data(1));
+        store.put(2L, data(2));
+        store.put(1L, data(3));
+        assertTrue(Arrays.equals(data(3), store.get(1L)));
+        assertTrue(Arrays.equals(data(2), store.get(2L)));
+        assertEquals(LENGTH, store.getLength(1L));
+        assertTrue(store.remove(2L));
+        assertFalse(store.remove(2L));
+        assertFalse(store.contains(2L));
+        assertEquals(1, store.size());
+    }
+
+    @Test
+    public void testSegmentsRollOver() throws IOException {
+        for (int i = 1; i <= 10; i++) {
+            store.put(i, data(i));
+        }
+        assertEquals(4, store.getSegmentCount());
+        for (int i = 1; i <= 10; i++) {
+            assertTrue(Arrays.equals(data(i), store.get(i)));
+        }
+    }
+
+    @Test
+    public void testReopenRebuildsIndex() throws IOException {
+        for (int i = 1; i <= 10; i++) {
+            store.put(i, data(i));
+        }
+        store.put(4L, data(40));
+        store.remove(5L);
+        reopen();
+        assertEquals(9, store.size());
+        assertTrue(Arrays.equals(data(40), store.get(4L)));
+        assertNull(store.get(5L));
+        assertTrue(Arrays.equals(data(10), store.get(10L)));
+    }
+
+    @Test
+    public void testReopenTruncatesIncompleteRecord() throws IOException {
+        store.put(1L, data(1));
+        store.close();
+        File segment = new File(directory, PackedThumbnailStore.SEGMENT_PREFIX
+                + "000001" + PackedThumbnailStore.SEGMENT_SUFFIX);
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        try {
+            file.seek(file.length());
+            file.writeLong(2L);
+            file.writeInt(LENGTH);
+            file.write(new byte[10]);
+        } finally {
+            file.close();
+        }
+        store = new PackedThumbnailStore(directory, SEGMENT_SIZE);
+        assertEquals(1, store.size());
+        assertEquals(LENGTH + 12, segment.length());
+        store.put(2L, data(2));
+        reopen();
+        assertTrue(Arrays.equals(data(2), store.get(2L)));
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testSingleProcess() throws IOException {
+        new PackedThumbnailStore(directory, SEGMENT_SIZE);
+    }
+
+    @Test
+    public void testCompaction() throws IOException {
+        for (int i = 1; i <= 6; i++) {
+            store.put(i, data(i));
+        }
+        store.remove(1L);
+        store.remove(2L);
+        store.put(4L, data(40));
+        store.remove(5L);
+        int segments = store.getSegmentCount();
+        assertEquals(2, store.compact(0.5));
+        assertTrue(store.getSegmentCount() < segments);
+        reopen();
+        assertEquals(3, store.size());
+        assertNull(store.get(1L));
+        assertNull(store.get(2L));
+        assertTrue(Arrays.equals(data(3), store.get(3L)));
+        assertTrue(Arrays.equals(data(40), store.get(4L)));
+        assertNull(store.get(5L));
+        assertTrue(Arrays.equals(data(6), store.get(6L)));
+    }
+
+    @Test
+    public void testThumbnailService() throws IOException {
+        store.close();
+        ThumbnailService service = new ThumbnailService(root);
+        service.setPacked(true);
+        service.setSegmentSize(SEGMENT_SIZE);
+        service.start();
+        try {
+            Thumbnail t = new Thumbnail();
+            t.setId(1L);
+            service.createThumbnail(t, data(1));
+            assertFalse(new File(service.getThumbnailPath(1L)).exists());
+            assertTrue(service.getThumbnailExists(t));
+            assertEquals(LENGTH, service.getThumbnailLength(t));
+            assertTrue(Arrays.equals(data(1), service.getThumbnail(t)));
+
+            FileOutputStream stream = service.getThumbnailOutputStream(t);
+            stream.write(data(2));
+            stream.close();
+            assertTrue(Arrays.equals(data(2),
+                    service.getThumbnail(t, new byte[LENGTH])));
+
+            service.removeThumbnails(Collections.singletonList(1L));
+            assertFalse(service.getThumbnailExists(t));
+        } finally {
+            service.close();
+        }
+        store = new PackedThumbnailStore(directory, SEGMENT_SIZE);
+    }
+
+    @Test
+    public void testMigration() throws IOException {
+        ThumbnailService service = new ThumbnailService(root);
+        for (long id = 999; id <= 1001; id++) {
+            Thumbnail t = new Thumbnail();
+            t.setId(id);
+            service.createThumbnail(t, data((int) id));
+        }
+        new PackedThumbnailMigration(new File(root), store, false).run();
+        for (long id = 999; id <= 1001; id++) {
+            assertTrue(Arrays.equals(data((int) id), store.get(id)));
+            assertFalse(new File(service.getThumbnailPath(id)).exists());
+        }
+        File thumbnails = new File(root,
+                ThumbnailService.THUMBNAILS_PATH);
+        assertEquals(Collections.singletonList("Packed"),
+                Arrays.asList(thumbnails.list()));
+    }
+}
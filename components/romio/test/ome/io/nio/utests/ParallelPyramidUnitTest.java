@@ -0,0 +1,128 @@
+/*
+ *   Copyright 2016 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package ome.io.nio.utests;
+
+import static org.testng.AssertJUnit.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.annotations.*;
+
+import ome.io.nio.PixelBuffer;
+import ome.io.nio.PixelsService;
+import ome.io.nio.RomioPixelBuffer;
+import ome.io.nio.TileLoopIteration;
+import ome.io.nio.Utils;
+import ome.model.core.Pixels;
+import ome.model.enums.PixelsType;
+import ome.util.PixelData;
+
+/**
+ * Creates a pyramid from a ROMIO pixels file with several threads reading
+ * the tiles and checks that every tile landed where it belongs.
+ */
+public class ParallelPyramidUnitTest {
+
+    private static final int SIZE_X = 1000;
+
+    private static final int SIZE_Y = 1010;
+
+    private static final int SIZE_C = 2;
+
+    private static final int TILE_SIZE = 256;
+
+    private String root;
+
+    private Pixels pixels;
+
+    private PixelsService service;
+
+    @BeforeClass
+    public void setUp() throws Exception {
+        root = PathUtil.getInstance().getTemporaryDataFilePath();
+        pixels = new Pixels();
+        pixels.setId(1L);
+        pixels.setSizeX(SIZE_X);
+        pixels.setSizeY(SIZE_Y);
+        pixels.setSizeZ(1);
+        pixels.setSizeC(SIZE_C);
+        pixels.setSizeT(1);
+        PixelsType type = new PixelsType();
+        type.setValue("uint16");
+        pixels.setPixelsType(type);
+
+        service = new PixelsService(root) {
+            public boolean requiresPixelsPyramid(Pixels pixels) {
+                return true;
+            }
+        };
+        service.setPyramidThreads(4);
+
+        String path = service.getPixelsPath(pixels.getId());
+        new File(path).getParentFile().mkdirs();
+        RomioPixelBuffer romio = new RomioPixelBuffer(path, pixels, true);
+        try {
+            for (int c = 0; c < SIZE_C; c++) {
+                ByteBuffer plane = ByteBuffer.allocate(SIZE_X * SIZE_Y * 2);
+                for (int i = 0; i < SIZE_X * SIZE_Y; i++) {
+                    plane.putShort((short) value(i % SIZE_X, i / SIZE_X, c));
+                }
+                plane.flip();
+                romio.setPlane(plane, 0, c, 0);
+            }
+        } finally {
+            romio.close();
+        }
+    }
+
+    @AfterClass
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(new File(root));
+    }
+
+    private static int value(int x, int y, int c) {
+        return (c * 7919 + y * 31 + x) & 0xFFFF;
+    }
+
+    @Test
+    public void testMakePyramid() throws Exception {
+        service.makePyramid(pixels);
+        File pyramid = new File(service.getPixelsPath(pixels.getId())
+                + PixelsService.PYRAMID_SUFFIX);
+        assertTrue(pyramid.exists());
+        assertTrue(pyramid.length() > 0);
+
+        final PixelBuffer buffer = service.getPixelBuffer(pixels, false);
+        try {
+            buffer.setResolutionLevel(buffer.getResolutionLevels() - 1);
+            assertEquals(SIZE_X, buffer.getSizeX());
+            assertEquals(SIZE_Y, buffer.getSizeY());
+            int tileCount = Utils.forEachTile(new TileLoopIteration() {
+                public void run(int z, int c, int t, int x, int y, int w,
+                        int h, int tileCount) {
+                    PixelData tile;
+                    try {
+                        tile = buffer.getTile(z, c, t, x, y, w, h);
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                    assertEquals(w * h, tile.size());
+                    for (int i = 0; i < h; i++) {
+                        for (int j = 0; j < w; j++) {
+                            assertEquals(value(x + j, y + i, c),
+                                    (int) tile.getPixelValue(i * w + j));
+                        }
+                    }
+                }
+            }, buffer, TILE_SIZE, TILE_SIZE);
+            assertEquals(4 * 4 * SIZE_C, tileCount);
+        } finally {
+            buffer.close();
+        }
+    }
+}
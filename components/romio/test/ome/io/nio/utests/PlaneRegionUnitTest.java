@@ -0,0 +1,116 @@
+/*
+ *   Copyright 2016 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package ome.io.nio.utests;
+
+import static org.testng.AssertJUnit.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.annotations.*;
+
+import ome.io.nio.PixelBuffer;
+import ome.io.nio.PixelsService;
+import ome.model.core.Pixels;
+import ome.model.enums.PixelsType;
+import ome.util.PixelData;
+
+/**
+ * Checks the row based region reads of the ROMIO pixel buffer against the
+ * values written to a known plane.
+ */
+public class PlaneRegionUnitTest {
+
+    private static final int SIZE_X = 64;
+
+    private static final int SIZE_Y = 48;
+
+    private static final String ROOT =
+        PathUtil.getInstance().getTemporaryDataFilePath();
+
+    private PixelBuffer pixelBuffer;
+
+    @AfterClass
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(new File(ROOT));
+    }
+
+    @BeforeClass
+    public void setUp() throws Exception {
+        Pixels pixels = new Pixels();
+        pixels.setId(1L);
+        pixels.setSizeX(SIZE_X);
+        pixels.setSizeY(SIZE_Y);
+        pixels.setSizeZ(1);
+        pixels.setSizeC(2);
+        pixels.setSizeT(1);
+        PixelsType type = new PixelsType();
+        type.setValue("uint16");
+        pixels.setPixelsType(type);
+
+        PixelsService service = new PixelsService(ROOT);
+        pixelBuffer = service._getPixelBuffer(pixels, true);
+        for (int c = 0; c < 2; c++) {
+            ByteBuffer plane = ByteBuffer.allocate(SIZE_X * SIZE_Y * 2);
+            for (int i = 0; i < SIZE_X * SIZE_Y; i++) {
+                plane.putShort((short) value(i % SIZE_X, i / SIZE_X, c));
+            }
+            plane.flip();
+            pixelBuffer.setPlane(plane, 0, c, 0);
+        }
+    }
+
+    private static int value(int x, int y, int c) {
+        return (c * 10000 + y * SIZE_X + x) & 0xFFFF;
+    }
+
+    private void assertRegion(PixelData region, int x, int y, int width,
+            int height, int c, int step) {
+        int columns = width / step;
+        int rows = region.size() / columns;
+        assertEquals((height + step - 1) / step, rows);
+        for (int i = 0; i < rows; i++) {
+            for (int j = 0; j < columns; j++) {
+                assertEquals(value(x + j * step, y + i * step, c),
+                        (int) region.getPixelValue(i * columns + j));
+            }
+        }
+    }
+
+    @Test
+    public void testRegion() throws Exception {
+        PixelData region = pixelBuffer.getPlaneRegion(5, 7, 20, 10, 0, 1, 0, 0);
+        assertEquals(20 * 10, region.size());
+        assertRegion(region, 5, 7, 20, 10, 1, 1);
+    }
+
+    @Test
+    public void testFullWidthRegion() throws Exception {
+        PixelData region = pixelBuffer.getPlaneRegion(0, 3, SIZE_X, 5, 0, 0, 0, 0);
+        assertRegion(region, 0, 3, SIZE_X, 5, 0, 1);
+    }
+
+    @Test
+    public void testLastRowRegion() throws Exception {
+        PixelData region = pixelBuffer.getPlaneRegion(
+                SIZE_X - 4, SIZE_Y - 1, 4, 1, 0, 1, 0, null);
+        assertRegion(region, SIZE_X - 4, SIZE_Y - 1, 4, 1, 1, 1);
+    }
+
+    @Test
+    public void testStridedRegion() throws Exception {
+        PixelData region = pixelBuffer.getPlaneRegion(2, 4, 32, 16, 0, 1, 0, 1);
+        assertEquals(16 * 8, region.size());
+        assertRegion(region, 2, 4, 32, 16, 1, 2);
+    }
+
+    @Test
+    public void testTile() throws Exception {
+        PixelData tile = pixelBuffer.getTile(0, 0, 0, 16, 16, 16, 16);
+        assertRegion(tile, 16, 16, 16, 16, 0, 1);
+    }
+}
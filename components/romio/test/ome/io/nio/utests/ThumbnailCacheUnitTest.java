@@ -0,0 +1,169 @@
+/*
+ *   Copyright 2016 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package ome.io.nio.utests;
+
+import static org.testng.AssertJUnit.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.annotations.*;
+
+import ome.io.nio.ThumbnailCache;
+import ome.io.nio.ThumbnailService;
+import ome.model.display.Thumbnail;
+import ome.system.metrics.NullMetrics;
+
+/**
+ * Checks that {@link ThumbnailService} serves thumbnails from its
+ * {@link ThumbnailCache}, that the cache stays within its budget and that
+ * thumbnails which are written or removed are invalidated.
+ */
+public class ThumbnailCacheUnitTest {
+
+    private static final int LENGTH = 1000;
+
+    private String root;
+
+    private ThumbnailCache cache;
+
+    private ThumbnailService service;
+
+    @BeforeMethod
+    public void setUp() {
+        root = PathUtil.getInstance().getTemporaryDataFilePath();
+        cache = new ThumbnailCache(3 * LENGTH, new NullMetrics());
+        service = new ThumbnailService(root);
+        service.setCache(cache);
+    }
+
+    @AfterMethod
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(new File(root));
+    }
+
+    private static Thumbnail thumbnail(long id, int version) {
+        Thumbnail thumbnail = new Thumbnail();
+        thumbnail.setId(id);
+        thumbnail.setVersion(version);
+        return thumbnail;
+    }
+
+    private static byte[] data(int seed) {
+        byte[] data = new byte[LENGTH];
+        Arrays.fill(data, (byte) seed);
+        return data;
+    }
+
+    private void deleteFromDisk(Thumbnail thumbnail) {
+        File file = new File(service.getThumbnailPath(thumbnail.getId()));
+        assertTrue(file.delete());
+    }
+
+    @Test
+    public void testHitDoesNotReadDisk() throws IOException {
+        Thumbnail t = thumbnail(1L, 0);
+        service.createThumbnail(t, data(1));
+        deleteFromDisk(t);
+        assertTrue(Arrays.equals(data(1), service.getThumbnail(t)));
+    }
+
+    @Test
+    public void testMissIsCachedOnRead() throws IOException {
+        Thumbnail t = thumbnail(2L, 0);
+        FileOutputStream stream = service.getThumbnailOutputStream(t);
+        try {
+            stream.write(data(2));
+        } finally {
+            stream.close();
+        }
+        assertEquals(0, cache.getCount());
+        assertTrue(Arrays.equals(data(2), service.getThumbnail(t)));
+        assertEquals(1, cache.getCount());
+        deleteFromDisk(t);
+        assertTrue(Arrays.equals(data(2), service.getThumbnail(t)));
+    }
+
+    @Test
+    public void testOtherVersionIsReadFromDisk() throws IOException {
+        Thumbnail t = thumbnail(3L, 0);
+        service.createThumbnail(t, data(3));
+        FileUtils.writeByteArrayToFile(
+                new File(service.getThumbnailPath(t.getId())), data(4));
+        t.setVersion(1);
+        assertTrue(Arrays.equals(data(4), service.getThumbnail(t)));
+    }
+
+    @Test
+    public void testOutputStreamInvalidates() throws IOException {
+        Thumbnail t = thumbnail(4L, 0);
+        service.createThumbnail(t, data(4));
+        FileOutputStream stream = service.getThumbnailOutputStream(t);
+        try {
+            stream.write(data(5));
+        } finally {
+            stream.close();
+        }
+        assertTrue(Arrays.equals(data(5), service.getThumbnail(t)));
+    }
+
+    @Test
+    public void testOutputStreamInvalidatesOnClose() throws IOException {
+        Thumbnail t = thumbnail(5L, 0);
+        service.createThumbnail(t, data(4));
+        FileOutputStream stream = service.getThumbnailOutputStream(t);
+        try {
+            // As a read while the thumbnail is written may do.
+            cache.put(t.getId(), t.getVersion(), data(4));
+            stream.write(data(5));
+        } finally {
+            stream.close();
+        }
+        assertNull(cache.get(t.getId(), t.getVersion()));
+        assertTrue(Arrays.equals(data(5), service.getThumbnail(t)));
+    }
+
+    @Test
+    public void testRemoveInvalidates() throws IOException {
+        Thumbnail t = thumbnail(6L, 0);
+        service.createThumbnail(t, data(6));
+        service.removeThumbnails(Collections.singletonList(t.getId()));
+        assertEquals(0, cache.getCount());
+        assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsEvicted() throws IOException {
+        Thumbnail[] thumbnails = new Thumbnail[4];
+        for (int i = 0; i < 3; i++) {
+            thumbnails[i] = thumbnail(10L + i, 0);
+            service.createThumbnail(thumbnails[i], data(i));
+        }
+        // Use the first one so that the second one is the eldest.
+        service.getThumbnail(thumbnails[0]);
+        thumbnails[3] = thumbnail(13L, 0);
+        service.createThumbnail(thumbnails[3], data(3));
+        assertEquals(3, cache.getCount());
+        assertEquals(3 * LENGTH, cache.getSize());
+        assertNotNull(cache.get(10L, 0));
+        assertNull(cache.get(11L, 0));
+        assertNotNull(cache.get(12L, 0));
+        assertNotNull(cache.get(13L, 0));
+    }
+
+    @Test
+    public void testReturnedThumbnailsAreCopies() throws IOException {
+        Thumbnail t = thumbnail(20L, 0);
+        byte[] data = data(7);
+        service.createThumbnail(t, data);
+        data[0] = 0;
+        service.getThumbnail(t)[1] = 0;
+        assertTrue(Arrays.equals(data(7), service.getThumbnail(t)));
+    }
+}
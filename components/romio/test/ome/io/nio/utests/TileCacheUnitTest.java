@@ -0,0 +1,143 @@
+/*
+ *   Copyright 2016 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package ome.io.nio.utests;
+
+import static org.testng.AssertJUnit.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.annotations.*;
+
+import ome.io.nio.PixelBuffer;
+import ome.io.nio.PixelsService;
+import ome.io.nio.RomioPixelBuffer;
+import ome.io.nio.TileCache;
+import ome.model.core.Pixels;
+import ome.model.enums.PixelsType;
+import ome.system.metrics.NullMetrics;
+import ome.util.PixelData;
+
+/**
+ * Checks that the {@link TileCache} stays within its budget and that the
+ * pyramid pixel buffers of a {@link PixelsService} share it.
+ */
+public class TileCacheUnitTest {
+
+    private static final int SIZE_X = 600;
+
+    private static final int SIZE_Y = 500;
+
+    private static final int TILE_SIZE = 256;
+
+    private String root;
+
+    private Pixels pixels;
+
+    private PixelsService service;
+
+    @BeforeClass
+    public void setUp() throws Exception {
+        root = PathUtil.getInstance().getTemporaryDataFilePath();
+        pixels = new Pixels();
+        pixels.setId(1L);
+        pixels.setSizeX(SIZE_X);
+        pixels.setSizeY(SIZE_Y);
+        pixels.setSizeZ(1);
+        pixels.setSizeC(1);
+        pixels.setSizeT(1);
+        PixelsType type = new PixelsType();
+        type.setValue("uint16");
+        pixels.setPixelsType(type);
+
+        service = new PixelsService(root) {
+            public boolean requiresPixelsPyramid(Pixels pixels) {
+                return true;
+            }
+        };
+
+        String path = service.getPixelsPath(pixels.getId());
+        new File(path).getParentFile().mkdirs();
+        RomioPixelBuffer romio = new RomioPixelBuffer(path, pixels, true);
+        try {
+            ByteBuffer plane = ByteBuffer.allocate(SIZE_X * SIZE_Y * 2);
+            for (int i = 0; i < SIZE_X * SIZE_Y; i++) {
+                plane.putShort((short) i);
+            }
+            plane.flip();
+            romio.setPlane(plane, 0, 0, 0);
+        } finally {
+            romio.close();
+        }
+        service.makePyramid(pixels);
+    }
+
+    @AfterClass
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(new File(root));
+    }
+
+    private static TileCache.Key key(int x) {
+        return new TileCache.Key(1L, 0L, 0, 0, 0, 0, x, 0, 10, 10, false);
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEvicted() {
+        TileCache cache = new TileCache(300, new NullMetrics());
+        cache.put(key(0), new byte[100]);
+        cache.put(key(1), new byte[100]);
+        cache.put(key(2), new byte[100]);
+        assertNotNull(cache.get(key(0)));
+        cache.put(key(3), new byte[100]);
+        assertEquals(300, cache.getSize());
+        assertNotNull(cache.get(key(0)));
+        assertNull(cache.get(key(1)));
+        assertNotNull(cache.get(key(3)));
+        cache.put(key(4), new byte[400]);
+        assertNull(cache.get(key(4)));
+    }
+
+    @Test
+    public void testTilesSharedByBuffers() throws IOException {
+        TileCache cache = new TileCache(16 * 1024 * 1024, new NullMetrics());
+        service.setTileCache(cache);
+        PixelBuffer first = service.getPixelBuffer(pixels, false);
+        PixelBuffer second = service.getPixelBuffer(pixels, false);
+        try {
+            first.setResolutionLevel(first.getResolutionLevels() - 1);
+            second.setResolutionLevel(second.getResolutionLevels() - 1);
+            PixelData read = first.getTile(0, 0, 0, TILE_SIZE, 0,
+                    TILE_SIZE, TILE_SIZE);
+            assertEquals(1, cache.getCount());
+            PixelData cached = second.getTile(0, 0, 0, TILE_SIZE, 0,
+                    TILE_SIZE, TILE_SIZE);
+            assertEquals(1, cache.getCount());
+            assertEquals(read.getOrder(), cached.getOrder());
+            for (int i = 0; i < TILE_SIZE * TILE_SIZE; i++) {
+                assertEquals(read.getPixelValue(i), cached.getPixelValue(i));
+            }
+            assertEquals(TILE_SIZE, (int) read.getPixelValue(0));
+
+            byte[] direct = new byte[TILE_SIZE * TILE_SIZE * 2];
+            first.getTileDirect(0, 0, 0, 0, 0, TILE_SIZE, TILE_SIZE, direct);
+            assertEquals(2, cache.getCount());
+            byte[] cachedDirect = new byte[direct.length];
+            second.getTileDirect(0, 0, 0, 0, 0, TILE_SIZE, TILE_SIZE,
+                    cachedDirect);
+            assertTrue(Arrays.equals(direct, cachedDirect));
+
+            second.setResolutionLevel(0);
+            second.getTile(0, 0, 0, 0, 0, 64, 64);
+            assertEquals(3, cache.getCount());
+        } finally {
+            first.close();
+            second.close();
+            service.setTileCache(null);
+        }
+    }
+}
@@ -34,6 +34,24 @@ public interface LocalCompress {
 	void compressToStream(BufferedImage image, OutputStream outputStream)
 		throws IOException;
 
+    /**
+     * Compresses a packed RGB raster, as rendered by the rendering engine,
+     * in the configured format without going through a buffered image.
+     * 
+     * @param buf
+     *            the pixels, one per element, the blue component in the
+     *            lowest byte.
+     * @param sizeX
+     *            the width of the raster.
+     * @param sizeY
+     *            the height of the raster.
+     * @return the compressed image.
+     * @throws IOException
+     *             if there is a problem when encoding the image.
+     * @see #getCompressionFormat()
+     */
+    byte[] compress(int[] buf, int sizeX, int sizeY) throws IOException;
+
 	/**
 	 * Sets the current compression level for the service. (The default is 85%)
 	 * 
@@ -49,4 +67,13 @@ public interface LocalCompress {
 	 * @return the current compression level
 	 */
 	float getCompressionLevel();
+
+    /**
+     * Returns the format of the images returned by
+     * {@link #compress(int[], int, int)}, <code>jpeg</code> or
+     * <code>png</code>. {@link #compressToStream(BufferedImage, OutputStream)}
+     * always writes JPEG images.
+     * @return the compression format
+     */
+    String getCompressionFormat();
 }
@@ -18,6 +18,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import ome.api.IUpdate;
 import ome.model.IEnum;
 import ome.model.IObject;
 import ome.model.acquisition.Detector;
@@ -62,9 +63,12 @@ import ome.model.stats.StatsInfo;
 import ome.system.ServiceFactory;
 import ome.conditions.ApiUsageException;
 import ome.conditions.ValidationException;
+import ome.util.ContextFilter;
+import ome.util.Filterable;
 import ome.util.LSID;
 import ome.util.SqlAction;
 
+import org.hibernate.Session;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.perf4j.slf4j.Slf4JStopWatch;
@@ -97,6 +101,13 @@ public class OMEROMetadataStore
 
     private SqlAction sql;
 
+    /**
+     * Number of plane information saved per flush of the session by
+     * {@link #saveToDB(FilesetJobLink, Session)}, <code>0</code> to save the
+     * whole graph at once.
+     */
+    private int saveBatchSize = 0;
+
     /** A map of imageIndex vs. Image object ordered by first access. */
     private Map<Integer, Image> imageList = 
     	new LinkedHashMap<Integer, Image>();
@@ -1862,6 +1873,17 @@ public class OMEROMetadataStore
         this.sql = sql;
     }
 
+    /**
+     * Sets the number of plane information saved per flush of the session
+     * by {@link #saveToDB(FilesetJobLink, Session)}.
+     * @param saveBatchSize the batch size, <code>0</code> or lower to save
+     * the whole graph at once
+     */
+    public void setSaveBatchSize(int saveBatchSize)
+    {
+        this.saveBatchSize = saveBatchSize;
+    }
+
     /*
      * (non-Javadoc)
      * 
@@ -2171,6 +2193,31 @@ public class OMEROMetadataStore
      */
     public List<Pixels> saveToDB(FilesetJobLink link)
     {
+        return saveToDB(link, null);
+    }
+
+    /**
+     * Saves the current object graph to the database. If a save batch size
+     * was set with {@link #setSaveBatchSize(int)} and a session is given,
+     * the graph is saved in a streaming fashion: the images are inserted
+     * without their plane information and the session is cleared, then the
+     * plane information is inserted and the session flushed and cleared in
+     * batches of that size. The graph is not reloaded, the returned Pixels
+     * are the saved ones with their identifiers set and without their plane
+     * information.
+     * @param link a link from the fileset to be linked from
+     * @param session the Hibernate session the update service works in,
+     * may be <code>null</code> to save the whole graph at once
+     * @return List of the Pixels objects with their attached object graphs
+     * that have been saved.
+     */
+    public List<Pixels> saveToDB(FilesetJobLink link, Session session)
+    {
+        if (saveBatchSize > 0 && session != null)
+        {
+            return saveToDBInBatches(link, session);
+        }
+
     	// Check the entire object graph, optimizing and sections that may
     	// be collapsed.
     	checkAndCollapseGraph();
@@ -2199,6 +2246,95 @@ public class OMEROMetadataStore
    		return toReturn;
     }
 
+    /**
+     * Saves the current object graph in batches of {@link #saveBatchSize}
+     * plane information, clearing the session in between so that its size
+     * stays bounded. The images of a plate are reachable from each other via
+     * the wells so they are all inserted at once.
+     */
+    private List<Pixels> saveToDBInBatches(FilesetJobLink link,
+            Session session)
+    {
+        checkAndCollapseGraph();
+        linkFileset(link);
+
+        // Detach the plane information, usually the largest part of the
+        // graph, so that it is inserted separately.
+        List<PlaneInfo> planeInfos = new ArrayList<PlaneInfo>();
+        for (Image image : imageList.values())
+        {
+            Pixels pixels = image.getPrimaryPixels();
+            if (pixels != null && pixels.sizeOfPlaneInfo() > 0)
+            {
+                List<PlaneInfo> detached =
+                    new ArrayList<PlaneInfo>(pixels.unmodifiablePlaneInfo());
+                pixels.clearPlaneInfo();
+                for (PlaneInfo planeInfo : detached)
+                {
+                    planeInfo.setPixels(pixels);
+                }
+                planeInfos.addAll(detached);
+            }
+        }
+
+        // saveAndReturnIds() only accepts new, unloaded or enumeration
+        // objects; anything else already saved is only referred to.
+        Image[] imageArray =
+            imageList.values().toArray(new Image[imageList.size()]);
+        ContextFilter unloader = new ContextFilter()
+        {
+            @Override
+            public Filterable filter(String fieldId, Filterable f)
+            {
+                if (f instanceof IObject && !(f instanceof IEnum))
+                {
+                    IObject o = (IObject) f;
+                    if (o.isLoaded() && o.getId() != null)
+                    {
+                        return o.proxy();
+                    }
+                }
+                return super.filter(fieldId, f);
+            }
+        };
+        for (Image image : imageArray)
+        {
+            unloader.filter(null, image);
+        }
+
+        IUpdate update = sf.getUpdateService();
+        StopWatch s1 = new Slf4JStopWatch("omero.saveImportGraph");
+        update.saveAndReturnIds(imageArray);
+        session.clear();
+        s1.stop();
+
+        StopWatch s2 = new Slf4JStopWatch("omero.saveImportPlaneInfo");
+        int size = planeInfos.size();
+        for (int start = 0; start < size; start += saveBatchSize)
+        {
+            int end = Math.min(size, start + saveBatchSize);
+            List<PlaneInfo> batch = planeInfos.subList(start, end);
+            for (PlaneInfo planeInfo : batch)
+            {
+                planeInfo.setPixels(planeInfo.getPixels().proxy());
+            }
+            update.saveAndReturnIds(batch.toArray(new PlaneInfo[batch.size()]));
+            session.clear();
+        }
+        s2.stop();
+        log.info("Saved " + imageArray.length + " images and " + size
+                + " plane information in batches of " + saveBatchSize);
+
+        List<Pixels> toReturn = new ArrayList<Pixels>();
+        for (int i = 0; i < imageArray.length; i++)
+        {
+            Pixels pixels = imageArray[i].getPrimaryPixels();
+            pixelsList.put(i, pixels);
+            toReturn.add(pixels);
+        }
+        return toReturn;
+    }
+
     /**
      * Checks if the format is a graphics format or not.
      *
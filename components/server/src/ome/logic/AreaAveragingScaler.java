@@ -0,0 +1,148 @@
+/*
+ *   Copyright 2016 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.logic;
+
+/**
+ * Resizes packed RGB rasters, as returned by
+ * {@link omeis.providers.re.Renderer#renderAsPackedInt(omeis.providers.re.data.PlaneDef, ome.io.nio.PixelBuffer)},
+ * with a separable area-averaging kernel.
+ * <p>
+ * Each output pixel is the mean of the input pixels it covers, weighted by how
+ * much of each is covered. The rows are resized first, then the columns, so
+ * the cost is proportional to the size of the input plus the size of the
+ * output rather than to their product. The weights are exact integers, so no
+ * colour drifts however large the reduction.
+ * </p>
+ *
+ * @since 5.2.4
+ */
+public final class AreaAveragingScaler {
+
+    private AreaAveragingScaler() {
+        // Static methods only.
+    }
+
+    /**
+     * Resizes a packed RGB raster.
+     *
+     * @param rgb The pixels, one per element, the blue component in the
+     *            lowest byte. The highest byte is ignored.
+     * @param sizeX The width of the raster.
+     * @param sizeY The height of the raster.
+     * @param targetX The width of the resized raster.
+     * @param targetY The height of the resized raster.
+     * @return The resized raster, <code>targetX</code> by
+     *         <code>targetY</code> pixels.
+     */
+    public static int[] scale(int[] rgb, int sizeX, int sizeY,
+            int targetX, int targetY) {
+        if (sizeX < 1 || sizeY < 1 || targetX < 1 || targetY < 1) {
+            throw new IllegalArgumentException(String.format(
+                    "Cannot scale %dx%d to %dx%d",
+                    sizeX, sizeY, targetX, targetY));
+        }
+        if (rgb.length < sizeX * sizeY) {
+            throw new IllegalArgumentException(
+                    "Raster smaller than " + sizeX + "x" + sizeY);
+        }
+        if (sizeX == targetX && sizeY == targetY) {
+            int[] copy = new int[targetX * targetY];
+            System.arraycopy(rgb, 0, copy, 0, copy.length);
+            return copy;
+        }
+        Kernel kx = new Kernel(sizeX, targetX);
+        Kernel ky = new Kernel(sizeY, targetY);
+
+        // Rows: sums of each component weighted by up to sizeX, per channel.
+        int[] red = new int[targetX * sizeY];
+        int[] green = new int[red.length];
+        int[] blue = new int[red.length];
+        for (int y = 0; y < sizeY; y++) {
+            int row = y * sizeX;
+            int out = y * targetX;
+            for (int x = 0; x < targetX; x++, out++) {
+                int r = 0, g = 0, b = 0;
+                int end = kx.offsets[x + 1];
+                for (int k = kx.offsets[x], i = row + kx.first[x]; k < end;
+                        k++, i++) {
+                    int w = kx.weights[k];
+                    int p = rgb[i];
+                    r += w * ((p >> 16) & 0xff);
+                    g += w * ((p >> 8) & 0xff);
+                    b += w * (p & 0xff);
+                }
+                red[out] = r;
+                green[out] = g;
+                blue[out] = b;
+            }
+        }
+
+        // Columns, then normalize by the total weight with rounding.
+        long total = (long) sizeX * sizeY;
+        long half = total / 2;
+        int[] scaled = new int[targetX * targetY];
+        for (int y = 0; y < targetY; y++) {
+            int end = ky.offsets[y + 1];
+            int out = y * targetX;
+            for (int x = 0; x < targetX; x++, out++) {
+                long r = 0, g = 0, b = 0;
+                for (int k = ky.offsets[y], i = ky.first[y] * targetX + x;
+                        k < end; k++, i += targetX) {
+                    long w = ky.weights[k];
+                    r += w * red[i];
+                    g += w * green[i];
+                    b += w * blue[i];
+                }
+                scaled[out] = 0xff000000
+                        | (int) ((r + half) / total) << 16
+                        | (int) ((g + half) / total) << 8
+                        | (int) ((b + half) / total);
+            }
+        }
+        return scaled;
+    }
+
+    /**
+     * The input pixels covered by each output pixel along one axis, and by how
+     * much. Input pixel <i>i</i> spans <code>[i * target, (i + 1) * target)
+     * </code> and output pixel <i>o</i> spans <code>[o * size, (o + 1) * size)
+     * </code>, so the weights of an output pixel add up to <code>size</code>.
+     */
+    private static final class Kernel {
+
+        /** The first input pixel of each output pixel. */
+        final int[] first;
+
+        /**
+         * Where the weights of each output pixel start in {@link #weights},
+         * with one more element for the end of the last one.
+         */
+        final int[] offsets;
+
+        final int[] weights;
+
+        Kernel(int size, int target) {
+            first = new int[target];
+            offsets = new int[target + 1];
+            // Each output pixel covers at most size / target + 2 inputs.
+            weights = new int[target * (size / target + 2)];
+            int k = 0;
+            for (int o = 0; o < target; o++) {
+                long start = (long) o * size;
+                long end = start + size;
+                int i = (int) (start / target);
+                first[o] = i;
+                offsets[o] = k;
+                for (; (long) i * target < end; i++) {
+                    long lo = Math.max(start, (long) i * target);
+                    long hi = Math.min(end, (long) (i + 1) * target);
+                    weights[k++] = (int) (hi - lo);
+                }
+            }
+            offsets[target] = k;
+        }
+    }
+}
@@ -11,44 +11,65 @@ import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.io.OutputStream;
 
-import javax.imageio.IIOImage;
-import javax.imageio.ImageIO;
-import javax.imageio.ImageWriteParam;
-import javax.imageio.ImageWriter;
-import javax.imageio.stream.ImageOutputStream;
-
 import ome.api.local.LocalCompress;
 
 public class CompressImpl implements LocalCompress {
 
 	/** The default compression quality in fractional percent. */
     private float quality = 0.85F;
-	
+
+    /** The format of the images compressed from packed rasters. */
+    private String format = ImageEncoder.JPEG;
+
+    /** The deflate level of PNG images, from 0 (fastest) to 9 (smallest). */
+    private int pngLevel = 6;
+
+    /**
+     * Sets the format of the images compressed from packed rasters,
+     * <code>jpeg</code> or <code>png</code>.
+     *
+     * @param format The format.
+     */
+    public void setFormat(String format)
+    {
+        if (!ImageEncoder.isSupported(format)) {
+            throw new IllegalArgumentException(
+                    "Unsupported compression format: " + format);
+        }
+        this.format = format;
+    }
+
+    /**
+     * Sets the deflate level of PNG images, from 0 (fastest) to 9 (smallest).
+     *
+     * @param pngLevel The level.
+     */
+    public void setPngLevel(int pngLevel)
+    {
+        if (pngLevel < 0 || pngLevel > 9) {
+            throw new IllegalArgumentException(
+                    "PNG level out of range: " + pngLevel);
+        }
+        this.pngLevel = pngLevel;
+    }
+
     /* (non-Javadoc)
      * @see ome.api.ICompress#compressToStream(java.awt.image.BufferedImage, java.io.OutputStream)
      */
     public void compressToStream(BufferedImage image, OutputStream outputStream)
     	throws IOException
     {
-        // Get a JPEG image writer
-        ImageWriter jpegWriter =
-        	ImageIO.getImageWritersByFormatName("jpeg").next();
-
-        // Setup the compression value from (0.05, 0.75 and 0.95)
-        ImageWriteParam iwp = jpegWriter.getDefaultWriteParam();
-        iwp.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
-        iwp.setCompressionQuality(quality);
+        ImageEncoder.encodeJpeg(image, quality, outputStream);
+    }
 
-        // Write the JPEG to our ByteArray stream
-    	ImageOutputStream imageOutputStream = null;
-        try {
-        	imageOutputStream = ImageIO.createImageOutputStream(outputStream);
-        	jpegWriter.setOutput(imageOutputStream);
-        	jpegWriter.write(null, new IIOImage(image, null, null), iwp);
-        } finally {
-        	if (imageOutputStream != null)
-        		imageOutputStream.close();
-        }
+    /* (non-Javadoc)
+     * @see ome.api.local.LocalCompress#compress(int[], int, int)
+     */
+    public byte[] compress(int[] buf, int sizeX, int sizeY)
+        throws IOException
+    {
+        return ImageEncoder.encode(buf, sizeX, sizeY, format, quality,
+                pngLevel);
     }
 
 	/* (non-Javadoc)
@@ -58,7 +79,7 @@ public class CompressImpl implements LocalCompress {
 	{
 		quality = percentage;
 	}
-	
+
 	/* (non-Javadoc)
 	 * @see ome.api.ICompress#getCompressionLevel()
 	 */
@@ -66,4 +87,12 @@ public class CompressImpl implements LocalCompress {
 	{
 		return quality;
 	}
+
+    /* (non-Javadoc)
+     * @see ome.api.local.LocalCompress#getCompressionFormat()
+     */
+    public String getCompressionFormat()
+    {
+        return format;
+    }
 }
@@ -0,0 +1,311 @@
+/*
+ *   Copyright 2016 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.logic;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+import ome.util.ImageUtil;
+
+/**
+ * Encodes packed RGB rasters, as returned by
+ * {@link omeis.providers.re.Renderer#renderAsPackedInt(omeis.providers.re.data.PlaneDef, ome.io.nio.PixelBuffer)},
+ * as JPEG or PNG images.
+ * <p>
+ * The encoding state is kept per thread and reused from one image to the
+ * next: each thread has its own JPEG writer and parameters, its own deflater
+ * and a growable output buffer. JPEG images are written through a memory
+ * cache rather than the temporary file {@link ImageIO} uses by default, and
+ * PNG images are deflated straight from the packed pixels into the output
+ * buffer.
+ * </p>
+ * <p>
+ * PNG images are lossless, 8-bit RGB. The deflate level, from 0 to 9, trades
+ * encoding speed for size. Above level 1 the rows are filtered with the
+ * <i>Sub</i> filter, which usually makes rendered images noticeably smaller.
+ * </p>
+ *
+ * @since 5.2.4
+ */
+public final class ImageEncoder {
+
+    /** Identifies the JPEG format. */
+    public static final String JPEG = "jpeg";
+
+    /** Identifies the PNG format. */
+    public static final String PNG = "png";
+
+    /** Buffers larger than this are not kept for the next image. */
+    private static final int MAX_RETAINED_SIZE = 16 * 1024 * 1024;
+
+    /** The minimum room left in the output buffer before deflating. */
+    private static final int DEFLATE_CHUNK = 64 * 1024;
+
+    private static final byte[] PNG_SIGNATURE = new byte[] {
+        (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n' };
+
+    private static final byte[] IHDR = new byte[] { 'I', 'H', 'D', 'R' };
+
+    private static final byte[] IDAT = new byte[] { 'I', 'D', 'A', 'T' };
+
+    private static final byte[] IEND = new byte[] { 'I', 'E', 'N', 'D' };
+
+    /** The encoding state of each thread. */
+    private static final ThreadLocal<State> STATE = new ThreadLocal<State>() {
+        @Override
+        protected State initialValue() {
+            return new State();
+        }
+    };
+
+    private ImageEncoder() {
+        // Static methods only.
+    }
+
+    /**
+     * Returns whether the passed format is supported.
+     *
+     * @param format The format, {@link #JPEG} or {@link #PNG}.
+     * @return See above.
+     */
+    public static boolean isSupported(String format) {
+        return JPEG.equals(format) || PNG.equals(format);
+    }
+
+    /**
+     * Encodes a packed RGB raster.
+     *
+     * @param rgb The pixels, one per element, the blue component in the
+     *            lowest byte. The highest byte is ignored.
+     * @param sizeX The width of the raster.
+     * @param sizeY The height of the raster.
+     * @param format The format, {@link #JPEG} or {@link #PNG}.
+     * @param quality The JPEG quality, from 0 to 1.
+     * @param level The PNG deflate level, from 0 to 9.
+     * @return The encoded image.
+     * @throws IOException If the JPEG writer fails.
+     */
+    public static byte[] encode(int[] rgb, int sizeX, int sizeY,
+            String format, float quality, int level) throws IOException {
+        State state = STATE.get();
+        try {
+            if (PNG.equals(format)) {
+                writePng(state, rgb, sizeX, sizeY, level);
+            } else {
+                writeJpeg(state,
+                        ImageUtil.createBufferedImage(rgb, sizeX, sizeY),
+                        quality);
+            }
+            return state.out.toByteArray();
+        } finally {
+            state.release();
+        }
+    }
+
+    /**
+     * Encodes an image as JPEG.
+     *
+     * @param image The image.
+     * @param quality The JPEG quality, from 0 to 1.
+     * @param stream The stream to write the image to.
+     * @throws IOException If the image cannot be written.
+     */
+    public static void encodeJpeg(BufferedImage image, float quality,
+            OutputStream stream) throws IOException {
+        State state = STATE.get();
+        try {
+            writeJpeg(state, image, quality);
+            state.out.writeTo(stream);
+        } finally {
+            state.release();
+        }
+    }
+
+    private static void writeJpeg(State state, BufferedImage image,
+            float quality) throws IOException {
+        ImageWriter writer = state.getJpegWriter();
+        ImageWriteParam param = state.jpegParam;
+        param.setCompressionQuality(quality);
+        ImageOutputStream ios = new MemoryCacheImageOutputStream(state.out);
+        try {
+            writer.setOutput(ios);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.reset();
+            ios.close();
+        }
+    }
+
+    private static void writePng(State state, int[] rgb, int sizeX,
+            int sizeY, int level) {
+        Buffer out = state.out;
+        out.write(PNG_SIGNATURE, 0, PNG_SIGNATURE.length);
+
+        byte[] header = new byte[13];
+        putInt(header, 0, sizeX);
+        putInt(header, 4, sizeY);
+        header[8] = 8; // Bit depth
+        header[9] = 2; // Truecolour
+        writeChunk(out, IHDR, header, state.crc);
+
+        int start = out.size();
+        out.writeInt(0); // Length, set once known
+        out.write(IDAT, 0, IDAT.length);
+        Deflater deflater = state.deflater;
+        deflater.reset();
+        deflater.setLevel(level);
+        boolean sub = level > 1;
+        int rowLength = 1 + 3 * sizeX;
+        byte[] row = state.getRow(rowLength);
+        row[0] = (byte) (sub ? 1 : 0);
+        for (int y = 0, i = 0; y < sizeY; y++) {
+            for (int x = 0, j = 1; x < sizeX; x++, i++) {
+                int p = rgb[i];
+                row[j++] = (byte) (p >> 16);
+                row[j++] = (byte) (p >> 8);
+                row[j++] = (byte) p;
+            }
+            if (sub) {
+                // Right to left so that the left pixels are still raw.
+                for (int j = rowLength - 1; j > 3; j--) {
+                    row[j] -= row[j - 3];
+                }
+            }
+            deflater.setInput(row, 0, rowLength);
+            while (!deflater.needsInput()) {
+                out.deflate(deflater);
+            }
+        }
+        deflater.finish();
+        while (!deflater.finished()) {
+            out.deflate(deflater);
+        }
+        int length = out.size() - start - 8;
+        out.setInt(start, length);
+        CRC32 crc = state.crc;
+        crc.reset();
+        crc.update(out.array(), start + 4, length + 4);
+        out.writeInt((int) crc.getValue());
+
+        writeChunk(out, IEND, new byte[0], crc);
+    }
+
+    private static void writeChunk(Buffer out, byte[] type, byte[] data,
+            CRC32 crc) {
+        out.writeInt(data.length);
+        out.write(type, 0, type.length);
+        out.write(data, 0, data.length);
+        crc.reset();
+        crc.update(type);
+        crc.update(data);
+        out.writeInt((int) crc.getValue());
+    }
+
+    private static void putInt(byte[] b, int offset, int value) {
+        b[offset] = (byte) (value >>> 24);
+        b[offset + 1] = (byte) (value >>> 16);
+        b[offset + 2] = (byte) (value >>> 8);
+        b[offset + 3] = (byte) value;
+    }
+
+    /**
+     * A growable output buffer which can be deflated into and patched.
+     */
+    private static final class Buffer extends ByteArrayOutputStream {
+
+        Buffer() {
+            super(DEFLATE_CHUNK);
+        }
+
+        byte[] array() {
+            return buf;
+        }
+
+        int capacity() {
+            return buf.length;
+        }
+
+        void writeInt(int value) {
+            ensureRoom(4);
+            putInt(buf, count, value);
+            count += 4;
+        }
+
+        void setInt(int offset, int value) {
+            putInt(buf, offset, value);
+        }
+
+        void deflate(Deflater deflater) {
+            ensureRoom(DEFLATE_CHUNK);
+            count += deflater.deflate(buf, count, buf.length - count);
+        }
+
+        private void ensureRoom(int room) {
+            if (buf.length - count < room) {
+                buf = Arrays.copyOf(buf,
+                        Math.max(2 * buf.length, count + room));
+            }
+        }
+    }
+
+    /**
+     * The encoding state of a thread.
+     */
+    private static final class State {
+
+        Buffer out = new Buffer();
+
+        final Deflater deflater = new Deflater();
+
+        final CRC32 crc = new CRC32();
+
+        byte[] row = new byte[0];
+
+        ImageWriter jpegWriter;
+
+        ImageWriteParam jpegParam;
+
+        ImageWriter getJpegWriter() {
+            if (jpegWriter == null) {
+                jpegWriter = ImageIO.getImageWritersByFormatName(JPEG).next();
+                jpegParam = jpegWriter.getDefaultWriteParam();
+                jpegParam.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            }
+            return jpegWriter;
+        }
+
+        byte[] getRow(int length) {
+            if (row.length < length) {
+                row = new byte[length];
+            }
+            return row;
+        }
+
+        /** Prepares the state for the next image. */
+        void release() {
+            if (out.capacity() > MAX_RETAINED_SIZE) {
+                out = new Buffer();
+            } else {
+                out.reset();
+            }
+            if (row.length > MAX_RETAINED_SIZE) {
+                row = new byte[0];
+            }
+        }
+    }
+}
@@ -63,6 +63,26 @@ public class QueryImpl extends AbstractLevel1Service implements LocalQuery {
         this.analyzer = analyzer;
     }
 
+    /**
+     * Number of rows fetched from the database at a time by
+     * {@link #projection(String, Parameters)}.
+     */
+    protected int fetchSize = 0;
+
+    /**
+     * Sets the number of rows {@link #projection(String, Parameters)} fetches
+     * from the database at a time, so that the driver does not hold a copy of
+     * the whole result while the returned list is built. The list still holds
+     * all the rows; {@link Parameters#page(Integer, Integer)} bounds it, and
+     * the blitz QueryCursor service reads a large result page by page.
+     *
+     * @param fetchSize the number of rows, or <code>0</code> to have the
+     * driver load all the rows beforehand
+     */
+    public void setFetchSize(int fetchSize) {
+        this.fetchSize = fetchSize;
+    }
+
     public Class<? extends ServiceInterface> getServiceInterface() {
         return IQuery.class;
     }
@@ -410,6 +430,7 @@ public class QueryImpl extends AbstractLevel1Service implements LocalQuery {
     public List<Object[]> projection(final String query, Parameters p) {
         final Parameters params = (p == null ? new Parameters() : p);
         final Query<List<Object>> q = getQueryFactory().lookup(query, params);
+        q.setFetchSize(fetchSize);
 
         @SuppressWarnings("rawtypes")
         final List rv = (List) getHibernateTemplate().execute(q);
@@ -30,6 +30,7 @@ import ome.api.ServiceInterface;
 import ome.conditions.ConcurrencyException;
 import ome.conditions.ResourceError;
 import ome.conditions.ValidationException;
+import ome.io.nio.Histogram;
 import ome.io.nio.PixelBuffer;
 import ome.io.nio.PixelsService;
 import ome.model.IObject;
@@ -91,6 +92,12 @@ public class RenderingSettingsImpl extends AbstractLevel2Service implements
 
     /** Reference to the service used to retrieve the pixels metadata. */
     protected transient IPixels pixelsMetadata;
+
+    /** The percentile of the pixel values used as the default input start. */
+    private double lowerPercentile = 0;
+
+    /** The percentile of the pixel values used as the default input end. */
+    private double upperPercentile = 100;
  
     /**
      * Returns the min/max depending on the pixels type if the values
@@ -889,6 +896,10 @@ public class RenderingSettingsImpl extends AbstractLevel2Service implements
         ChannelBinding cb;
         double min, max;
         QuantumStrategy qs;
+        Histogram[] histograms = null;
+        if (lowerPercentile > 0 || upperPercentile < 100) {
+            histograms = pixelsData.getHistograms(pixels.getId());
+        }
         for (int w = 0; w < pixels.sizeOfChannels(); w++) {
             // FIXME: This is where we need to have the ChannelBinding -->
             // Channel linkage. Without it, we have to assume that the order in
@@ -896,7 +907,10 @@ public class RenderingSettingsImpl extends AbstractLevel2Service implements
             // of the channels linked to the pixels set.
         	
             cb = cbs.get(w);
-            sf.computeLocationStats(pixels, buf, planeDef, w);
+            Histogram histogram = histograms != null && w < histograms.length
+                    ? histograms[w] : null;
+            sf.computeLocationStats(pixels, buf, planeDef, w, histogram,
+                    lowerPercentile, upperPercentile);
             cb.setNoiseReduction(sf.isNoiseReduction());
             min = sf.getInputStart();
             max = sf.getInputEnd();
@@ -1097,6 +1111,37 @@ public class RenderingSettingsImpl extends AbstractLevel2Service implements
         pixelsData = dataService;
     }
 
+    /**
+     * Sets the percentile of the pixel values of each channel used as the
+     * default input start. For use during configuration.
+     *
+     * @param lowerPercentile
+     *            The value to set, from <code>0</code> to <code>100</code>.
+     */
+    public void setLowerPercentile(double lowerPercentile) {
+        checkPercentile(lowerPercentile);
+        this.lowerPercentile = lowerPercentile;
+    }
+
+    /**
+     * Sets the percentile of the pixel values of each channel used as the
+     * default input end. For use during configuration.
+     *
+     * @param upperPercentile
+     *            The value to set, from <code>0</code> to <code>100</code>.
+     */
+    public void setUpperPercentile(double upperPercentile) {
+        checkPercentile(upperPercentile);
+        this.upperPercentile = upperPercentile;
+    }
+
+    private static void checkPercentile(double percentile) {
+        if (!(percentile >= 0 && percentile <= 100)) {
+            throw new IllegalArgumentException(
+                    "Percentile out of range: " + percentile);
+        }
+    }
+
     /**
      * Returns the interface this implementation is for.
      * @see AbstractLevel2Service#getServiceInterface()
@@ -13,9 +13,18 @@ import java.io.IOException;
 import java.nio.BufferOverflowException;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import ome.annotations.RolesAllowed;
 import ome.api.IPixels;
@@ -27,14 +36,18 @@ import ome.conditions.ResourceError;
 import ome.conditions.RootException;
 import ome.conditions.ValidationException;
 import ome.io.nio.DimensionsOutOfBoundsException;
+import ome.io.nio.Histogram;
 import ome.io.nio.PixelBuffer;
 import ome.io.nio.PixelsService;
 import ome.io.nio.RomioPixelBuffer;
 import ome.model.core.Pixels;
+import ome.model.stats.StatsInfo;
 import ome.parameters.Parameters;
 import ome.util.PixelData;
 import ome.util.ShallowCopy;
 import ome.util.SqlAction;
+import omeis.providers.re.data.PlaneDef;
+import omeis.providers.re.data.RegionDef;
 
 import org.apache.commons.codec.binary.Hex;
 import org.slf4j.Logger;
@@ -91,6 +104,9 @@ public class RawPixelsBean extends AbstractStatefulBean implements
     /** The server's OMERO data directory. */
     private transient String omeroDataDir;
 
+    /** The threads reading the tiles requested by {@link #getTiles}. */
+    private transient ExecutorService tileExecutor;
+
     /**
      * default constructor
      */
@@ -142,6 +158,17 @@ public class RawPixelsBean extends AbstractStatefulBean implements
         this.sql = sql;
     }
 
+    /**
+     * Tile executor Bean injector
+     * @param tileExecutor the threads, shared by all the instances, reading
+     * the tiles requested together. If not set, they are read by the calling
+     * thread.
+     */
+    public synchronized final void setTileExecutor(ExecutorService tileExecutor) {
+        getBeanHelper().throwIfAlreadySet(this.tileExecutor, tileExecutor);
+        this.tileExecutor = tileExecutor;
+    }
+
     // ~ Lifecycle methods
     // =========================================================================
 
@@ -793,6 +820,57 @@ public class RawPixelsBean extends AbstractStatefulBean implements
         return readBuffer;
     }
 
+    /* (non-Javadoc)
+     * @see ome.api.RawPixelsStore#getTiles(int[][])
+     */
+    @RolesAllowed("user")
+    public synchronized byte[][] getTiles(int[][] tiles)
+    {
+        errorIfNotLoaded();
+
+        if (tiles == null) {
+            throw new ApiUsageException("No tiles.");
+        }
+        int level = buffer.getResolutionLevel();
+        // The tiles are read level after level, in order of first request.
+        Map<Integer, List<Integer>> byLevel =
+                new LinkedHashMap<Integer, List<Integer>>();
+        for (int i = 0; i < tiles.length; i++) {
+            int[] tile = tiles[i];
+            if (tile == null || (tile.length != 7 && tile.length != 8)) {
+                throw new ApiUsageException("Tile " + i
+                        + " is not {z, c, t, x, y, w, h[, level]}.");
+            }
+            if (tile[5] < 0 || tile[6] < 0) {
+                throw new ApiUsageException("Tile " + i + " has a negative size.");
+            }
+            Integer tileLevel = tile.length == 8 ? tile[7] : level;
+            List<Integer> indexes = byLevel.get(tileLevel);
+            if (indexes == null) {
+                indexes = new ArrayList<Integer>();
+                byLevel.put(tileLevel, indexes);
+            }
+            indexes.add(i);
+        }
+
+        byte[][] data = new byte[tiles.length][];
+        try {
+            for (Map.Entry<Integer, List<Integer>> entry : byLevel.entrySet()) {
+                if (buffer.getResolutionLevel() != entry.getKey()) {
+                    buffer.setResolutionLevel(entry.getKey());
+                }
+                readTiles(tiles, entry.getValue(), data);
+            }
+        } catch (Exception e) {
+            handleException(e);
+        } finally {
+            if (buffer.getResolutionLevel() != level) {
+                buffer.setResolutionLevel(level);
+            }
+        }
+        return data;
+    }
+
     /* (non-Javadoc)
      * @see ome.api.RawPixelsStore#setTile(byte[], int, int, int, int, int, int, int)
      */
@@ -814,4 +892,342 @@ public class RawPixelsBean extends AbstractStatefulBean implements
         }
     }
 
+    /* (non-Javadoc)
+     * @see ome.api.RawPixelsStore#getHistogram(int[], int, boolean, omeis.providers.re.data.PlaneDef)
+     */
+    @RolesAllowed("user")
+    public synchronized Map<Integer, long[]> getHistogram(int[] channels,
+            int binCount, boolean globalRange, PlaneDef plane)
+    {
+        errorIfNotLoaded();
+
+        if (binCount < 1) {
+            throw new ApiUsageException("Invalid number of bins: " + binCount);
+        }
+        if (plane != null && plane.getSlice() != PlaneDef.XY) {
+            throw new ApiUsageException("Only XY planes are supported.");
+        }
+        int sizeC = pixelsInstance.getSizeC();
+        for (int c : channels) {
+            if (c < 0 || c >= sizeC) {
+                throw new ApiUsageException("Invalid channel: " + c);
+            }
+        }
+        double[][] global = globalRange ? getGlobalMinMax() : null;
+
+        // The histograms saved with the pyramid or the statistics cover
+        // whole channels and have one bin per value, so that they can be
+        // rebinned over any range.
+        String type = pixelsInstance.getPixelsType().getValue();
+        boolean exact = Histogram.supportsExact(type);
+        Histogram[] saved = null;
+        if (plane == null && exact) {
+            saved = dataService.getHistograms(id);
+            if (saved != null && saved.length != sizeC) {
+                saved = null;
+            }
+        }
+
+        int level = buffer.getResolutionLevel();
+        int fullResolution = buffer.getResolutionLevels() - 1;
+        Map<Integer, long[]> histograms = new HashMap<Integer, long[]>();
+        try {
+            if (level != fullResolution) {
+                buffer.setResolutionLevel(fullResolution);
+            }
+            Histogram[] counted = new Histogram[sizeC];
+            for (int c : channels) {
+                if (histograms.containsKey(c)) {
+                    continue;
+                }
+                double[] range = global == null ? null : global[c];
+                Histogram histogram;
+                if (exact) {
+                    histogram = saved != null ? saved[c] : Histogram.exact(type);
+                    if (saved == null) {
+                        count(histogram, c, plane);
+                        counted[c] = histogram;
+                    }
+                    if (range == null) {
+                        range = histogram.getRange();
+                    }
+                    histograms.put(c, range == null ? new long[binCount]
+                            : histogram.rebin(range[0], range[1], binCount));
+                } else {
+                    if (range == null) {
+                        range = countRange(c, plane);
+                    }
+                    if (range == null) {
+                        histograms.put(c, new long[binCount]);
+                        continue;
+                    }
+                    histogram = new Histogram(range[0], range[1],
+                            !buffer.isFloat(), binCount);
+                    count(histogram, c, plane);
+                    histograms.put(c, histogram.getCounts());
+                }
+            }
+            if (plane == null && exact && saved == null
+                    && histograms.size() == sizeC) {
+                dataService.saveHistograms(id, counted);
+            }
+        } catch (Exception e) {
+            handleException(e);
+        } finally {
+            if (level != fullResolution) {
+                buffer.setResolutionLevel(level);
+            }
+        }
+        return histograms;
+    }
+
+    /**
+     * Returns the global minimum and maximum of each channel, or
+     * <code>null</code> for the channels without statistics.
+     */
+    private double[][] getGlobalMinMax()
+    {
+        Pixels pixels = iQuery.findByQuery(
+                "select p from Pixels as p " +
+                "left outer join fetch p.channels as c " +
+                "left outer join fetch c.statsInfo " +
+                "where p.id = :id", new Parameters().addId(id));
+        double[][] global = new double[pixelsInstance.getSizeC()][];
+        if (pixels == null) {
+            return global;
+        }
+        for (int c = 0; c < global.length && c < pixels.sizeOfChannels();
+                c++) {
+            StatsInfo stats = pixels.getChannel(c) == null ? null
+                    : pixels.getChannel(c).getStatsInfo();
+            if (stats != null && stats.getGlobalMin() != null
+                    && stats.getGlobalMax() != null
+                    && stats.getGlobalMin() <= stats.getGlobalMax()) {
+                global[c] = new double[] { stats.getGlobalMin(),
+                        stats.getGlobalMax() };
+            }
+        }
+        return global;
+    }
+
+    /**
+     * Counts the pixels of a channel, tile by tile, either in a plane or in
+     * all the planes.
+     */
+    private void count(Histogram histogram, int c, PlaneDef plane)
+    {
+        for (PixelData tile : new TileIterator(c, plane)) {
+            try {
+                histogram.add(tile);
+            } finally {
+                tile.dispose();
+            }
+        }
+    }
+
+    /**
+     * Returns the minimum and maximum of the pixels of a channel, either in
+     * a plane or in all the planes, or <code>null</code> if there are none.
+     */
+    private double[] countRange(int c, PlaneDef plane)
+    {
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        for (PixelData tile : new TileIterator(c, plane)) {
+            try {
+                for (int i = 0, n = tile.size(); i < n; i++) {
+                    double v = tile.getPixelValue(i);
+                    if (v < min) {
+                        min = v;
+                    }
+                    if (v > max) {
+                        max = v;
+                    }
+                }
+            } finally {
+                tile.dispose();
+            }
+        }
+        return min <= max ? new double[] { min, max } : null;
+    }
+
+    /**
+     * Reads tiles at the current resolution level. For a
+     * {@link RomioPixelBuffer}, which reads its file directly, horizontally
+     * adjacent tiles of the same plane and rows are read together and the
+     * runs of tiles so formed are read concurrently. Other buffers read each
+     * tile on its own in the calling thread, so that each tile is looked up
+     * in their tile cache; they read what they miss one tile at a time
+     * anyway.
+     * @param tiles all the tiles requested.
+     * @param indexes the indexes of the tiles to read.
+     * @param data where to store the pixels of each tile, by index.
+     */
+    private void readTiles(final int[][] tiles, List<Integer> indexes,
+            byte[][] data) throws Exception
+    {
+        final int byteWidth = buffer.getByteWidth();
+        final boolean direct = buffer instanceof RomioPixelBuffer;
+        List<TileRun> runs = TileRun.runs(tiles, indexes, byteWidth, direct);
+
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        if (direct && tileExecutor != null) {
+            for (int i = 1; i < runs.size(); i++) {
+                futures.add(tileExecutor.submit(new TileRunReader(
+                        runs.get(i), byteWidth, data)));
+            }
+        }
+        try {
+            if (futures.isEmpty()) {
+                for (TileRun r : runs) {
+                    new TileRunReader(r, byteWidth, data).call();
+                }
+            } else {
+                new TileRunReader(runs.get(0), byteWidth, data).call();
+            }
+        } finally {
+            // Wait for all the reads, even on failure, since they use the
+            // buffer whose resolution level is about to change.
+            Exception failure = null;
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    failure = e;
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause() instanceof Exception ?
+                                (Exception) e.getCause() : e;
+                    }
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    /**
+     * Reads a run of tiles and splits it into its tiles.
+     */
+    private class TileRunReader implements Callable<Void>
+    {
+        private final TileRun run;
+
+        private final int byteWidth;
+
+        private final byte[][] data;
+
+        TileRunReader(TileRun run, int byteWidth, byte[][] data) {
+            this.run = run;
+            this.byteWidth = byteWidth;
+            this.data = data;
+        }
+
+        public Void call() throws IOException {
+            byte[] pixels = new byte[RomioPixelBuffer.safeLongToInteger(
+                    (long) run.w * run.h * byteWidth)];
+            pixels = buffer.getTileDirect(run.z, run.c, run.t, run.x, run.y,
+                    run.w, run.h, pixels);
+            run.split(pixels, byteWidth, data);
+            return null;
+        }
+    }
+
+    /**
+     * Reads the tiles of a channel, either in a plane, possibly restricted
+     * to a region, or in all the planes, so that the memory used does not
+     * depend on the size of the planes.
+     */
+    private class TileIterator implements Iterable<PixelData>
+    {
+        private final int c;
+
+        private final int x0, y0, x1, y1;
+
+        private final int z0, z1, t0, t1;
+
+        private final int tileWidth, tileHeight;
+
+        TileIterator(int c, PlaneDef plane)
+        {
+            this.c = c;
+            RegionDef region = plane == null ? null : plane.getRegion();
+            int sizeX = buffer.getSizeX();
+            int sizeY = buffer.getSizeY();
+            if (region == null) {
+                x0 = 0;
+                y0 = 0;
+                x1 = sizeX;
+                y1 = sizeY;
+            } else {
+                x0 = Math.max(0, region.getX());
+                y0 = Math.max(0, region.getY());
+                x1 = Math.min(sizeX, region.getX() + region.getWidth());
+                y1 = Math.min(sizeY, region.getY() + region.getHeight());
+            }
+            if (plane == null) {
+                z0 = 0;
+                z1 = buffer.getSizeZ();
+                t0 = 0;
+                t1 = buffer.getSizeT();
+            } else {
+                z0 = plane.getZ();
+                z1 = z0 + 1;
+                t0 = plane.getT();
+                t1 = t0 + 1;
+            }
+            Dimension tileSize = buffer.getTileSize();
+            tileWidth = Math.max(1, (int) tileSize.getWidth());
+            tileHeight = Math.max(1, (int) tileSize.getHeight());
+        }
+
+        public Iterator<PixelData> iterator()
+        {
+            return new Iterator<PixelData>() {
+
+                private int z = z0, t = t0, x = x0, y = y0;
+
+                public boolean hasNext()
+                {
+                    return x < x1 && y < y1 && z < z1 && t < t1;
+                }
+
+                public PixelData next()
+                {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    int w = Math.min(tileWidth, x1 - x);
+                    int h = Math.min(tileHeight, y1 - y);
+                    PixelData tile;
+                    try {
+                        tile = buffer.getTile(z, c, t, x, y, w, h);
+                    } catch (IOException e) {
+                        throw new ResourceError(e.getMessage());
+                    }
+                    x += tileWidth;
+                    if (x >= x1) {
+                        x = x0;
+                        y += tileHeight;
+                        if (y >= y1) {
+                            y = y0;
+                            if (++z >= z1) {
+                                z = z0;
+                                t++;
+                            }
+                        }
+                    }
+                    return tile;
+                }
+
+                public void remove()
+                {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+    }
+
 }
@@ -6,8 +6,6 @@
 package ome.services;
 
 import java.awt.Dimension;
-import java.awt.image.BufferedImage;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
@@ -45,11 +43,13 @@ import ome.services.util.Executor;
 import ome.system.EventContext;
 import ome.system.ServiceFactory;
 import ome.system.SimpleEventContext;
-import ome.util.ImageUtil;
 import ome.util.ShallowCopy;
 import omeis.providers.re.RGBBuffer;
+import omeis.providers.re.RenderedImageCache;
 import omeis.providers.re.Renderer;
+import omeis.providers.re.RenderingExecutor;
 import omeis.providers.re.RenderingEngine;
+import omeis.providers.re.codomain.CodomainChain;
 import omeis.providers.re.codomain.CodomainMapContext;
 import omeis.providers.re.data.PlaneDef;
 import omeis.providers.re.data.RegionDef;
@@ -74,6 +74,17 @@ import org.springframework.transaction.annotation.Transactional;
  * so to maintain safety.)
  * </p>
  * <p>
+ * Settings are changed under the write lock while planes and regions are
+ * rendered under the read lock, so that concurrent tile requests against the
+ * same engine run in parallel. Everything specific to a request, such as its
+ * masks, is passed down to the {@link Renderer} rather than stored in it.
+ * Behind the service stack, {@link ome.tools.hibernate.SessionHandler} lets
+ * only the render methods overlap, each with a Hibernate session of its own
+ * while the session of the engine is in use. The render methods must
+ * therefore only query the database through {@link #ex} and use the state
+ * loaded by {@link #load()}; any other call waits for the calls before it.
+ * </p>
+ * <p>
  * Finally the {@link RenderingEngine} component doesn't make use of constructs
  * that could compromise liveness.
  * </p>
@@ -146,6 +157,12 @@ public class RenderingBean implements RenderingEngine, Serializable {
     /** Reference to the compression service. */
     private final LocalCompress compressionSrv;
 
+    /** The shared pool of rendering threads. */
+    private transient RenderingExecutor renderingExecutor;
+
+    /** The shared cache of compressed rendered images, may be null. */
+    private transient RenderedImageCache imageCache;
+
     /** Notification that the bean has just returned from passivation. */
     private transient boolean wasPassivated = false;
 
@@ -180,6 +197,41 @@ public class RenderingBean implements RenderingEngine, Serializable {
         this.compressionSrv = compress;
     }
 
+    /**
+     * Rendering executor Bean injector.
+     *
+     * @param renderingExecutor
+     *          The shared pool of rendering threads.
+     */
+    public void setRenderingExecutor(RenderingExecutor renderingExecutor) {
+        this.renderingExecutor = renderingExecutor;
+    }
+
+    /**
+     * Rendered image cache Bean injector. Without a cache, every call to
+     * {@link #renderCompressed(PlaneDef)} renders and compresses the plane.
+     *
+     * @param imageCache
+     *          The shared cache of compressed rendered images, may be
+     *          <code>null</code>.
+     */
+    public void setImageCache(RenderedImageCache imageCache) {
+        this.imageCache = imageCache;
+    }
+
+    /**
+     * Returns the configured pool of rendering threads or the default one if
+     * none has been injected.
+     *
+     * @return See above.
+     */
+    private RenderingExecutor getRenderingExecutor() {
+        if (renderingExecutor == null) {
+            return RenderingExecutor.getDefault();
+        }
+        return renderingExecutor;
+    }
+
     @RolesAllowed("user")
     public long getRenderingDefId() {
         if (rendDefObj == null || rendDefObj.getId() == null) {
@@ -404,7 +456,11 @@ public class RenderingBean implements RenderingEngine, Serializable {
             // Loading last to try to ensure that the buffer will get closed.
             PixelBuffer buffer = getPixelBuffer();
             renderer = new Renderer(quantumFactory, renderingModels, pixelsObj,
-                    rendDefObj, buffer);
+                    rendDefObj, buffer, getRenderingExecutor());
+            if (resolutionLevel != null)
+            {
+                renderer.setResolutionLevel(resolutionLevel);
+            }
         } finally {
             rwl.writeLock().unlock();
         }
@@ -420,7 +476,13 @@ public class RenderingBean implements RenderingEngine, Serializable {
     @RolesAllowed("user")
     public void setOverlays(Map<byte[], Integer> overlays)
     {
-    	renderer.setOverlays(overlays);
+        rwl.writeLock().lock();
+
+        try {
+            renderer.setOverlays(overlays);
+        } finally {
+            rwl.writeLock().unlock();
+        }
     }
 
     /**
@@ -461,11 +523,8 @@ public class RenderingBean implements RenderingEngine, Serializable {
 
         try {
             final Map<byte[], Integer> overlays = getMasks(pd);
-            if (overlays.size() > 0) {
-                renderer.setOverlays(overlays);
-            }
             errorIfInvalidState();
-            return renderer.render(pd);
+            return renderer.render(pd, overlays);
         } catch (IOException e) {
             log.error("IO error while rendering.", e);
             throw new ResourceError(e.getMessage());
@@ -484,20 +543,13 @@ public class RenderingBean implements RenderingEngine, Serializable {
      */
     @RolesAllowed("user")
     public int[] renderAsPackedInt(PlaneDef pd) {
-        rwl.writeLock().lock();
+        rwl.readLock().lock();
 
         try {
             final Map<byte[], Integer> overlays = getMasks(pd);
-            if (overlays.size() > 0) {
-                renderer.setOverlays(overlays);
-            }
             errorIfInvalidState();
             checkPlaneDef(pd);
-            if (resolutionLevel != null)
-            {
-                renderer.setResolutionLevel(resolutionLevel);
-            }
-            return renderer.renderAsPackedInt(pd, null);
+            return renderer.renderAsPackedInt(pd, null, overlays);
         } catch (IOException e) {
             log.error("IO error while rendering.", e);
             throw new ResourceError(e.getMessage());
@@ -505,24 +557,31 @@ public class RenderingBean implements RenderingEngine, Serializable {
             log.error("Quantization exception while rendering.", e);
             throw new InternalException(e.getMessage());
         } finally {
-            rwl.writeLock().unlock();
+            rwl.readLock().unlock();
         }
     }
 
     /**
      * Implemented as specified by the {@link RenderingEngine} interface.
      * 
-     * @see LocalCompress#compressToStream(BufferedImage, java.io.OutputStream)
+     * @see LocalCompress#compress(int[], int, int)
      */
     @RolesAllowed("user")
     public byte[] renderCompressed(PlaneDef pd) {
-        rwl.writeLock().lock();
+        rwl.readLock().lock();
 
-        ByteArrayOutputStream byteStream = null;
         try {
             final Map<byte[], Integer> overlays = getMasks(pd);
-            if (overlays.size() > 0) {
-                renderer.setOverlays(overlays);
+            errorIfInvalidState();
+            String cacheKey = null;
+            if (overlays.size() == 0) {
+                cacheKey = getImageCacheKey(pd);
+            }
+            if (cacheKey != null) {
+                byte[] cached = imageCache.get(pixelsObj.getId(), cacheKey);
+                if (cached != null) {
+                    return cached.clone();
+                }
             }
             int stride = pd.getStride();
             if (stride < 0) stride = 0;
@@ -537,25 +596,78 @@ public class RenderingBean implements RenderingEngine, Serializable {
             }
             sizeX = sizeX/stride;
             sizeY = sizeY/stride;
-            BufferedImage image = ImageUtil.createBufferedImage(buf, sizeX,
-                    sizeY);
-            byteStream = new ByteArrayOutputStream();
-            compressionSrv.compressToStream(image, byteStream);
-            return byteStream.toByteArray();
+            byte[] compressed = compressionSrv.compress(buf, sizeX, sizeY);
+            if (cacheKey != null) {
+                imageCache.put(pixelsObj.getId(), cacheKey, compressed.clone());
+            }
+            return compressed;
         } catch (IOException e) {
             log.error("Could not compress rendered image.", e);
             throw new ResourceError(e.getMessage());
         } finally {
-            rwl.writeLock().unlock();
-            try {
-                if (byteStream != null) {
-                    byteStream.close();
-                }
-            } catch (IOException e) {
-                log.error("Could not close byte stream.", e);
-                throw new ResourceError(e.getMessage());
+            rwl.readLock().unlock();
+        }
+    }
+
+    /**
+     * Describes everything besides the pixels set that determines the output
+     * of {@link #renderCompressed(PlaneDef)}: the plane or region, the
+     * resolution level, the current (possibly unsaved) rendering settings and
+     * the compression level. Must be called with a valid state.
+     *
+     * @param pd The plane to render.
+     * @return The key of the image in the {@link #imageCache} or
+     *         <code>null</code> if it must not be cached.
+     */
+    private String getImageCacheKey(PlaneDef pd) {
+        if (imageCache == null || !imageCache.isEnabled()
+                || renderer.getOverlays() != null
+                && renderer.getOverlays().size() > 0) {
+            return null;
+        }
+        CodomainChain chain = renderer.getCodomainChain();
+        if (!chain.isIdentity()) {
+            return null;
+        }
+        StringBuilder key = new StringBuilder(256);
+        key.append(pd.getSlice()).append(',').append(pd.getZ()).append(',');
+        key.append(pd.getT()).append(',').append(pd.getX()).append(',');
+        key.append(pd.getY()).append(',').append(pd.getStride());
+        RegionDef region = pd.getRegion();
+        if (region != null) {
+            key.append(",r").append(region.getX()).append(',');
+            key.append(region.getY()).append(',').append(region.getWidth());
+            key.append(',').append(region.getHeight());
+        }
+        int level = resolutionLevel != null ? resolutionLevel
+                : renderer.getResolutionLevel();
+        key.append(";l").append(level);
+        key.append(";c").append(compressionSrv.getCompressionFormat());
+        key.append(',').append(compressionSrv.getCompressionLevel());
+        RenderingDef def = renderer.getRenderingDef();
+        QuantumDef qDef = def.getQuantization();
+        key.append(";m").append(def.getModel().getId());
+        key.append(";q").append(qDef.getBitResolution()).append(',');
+        key.append(chain.getIntervalStart()).append(',');
+        key.append(chain.getIntervalEnd());
+        for (ChannelBinding cb : renderer.getChannelBindings()) {
+            key.append(';');
+            if (!cb.getActive()) {
+                // Inactive channels do not contribute to the output.
+                key.append('-');
+                continue;
             }
+            key.append(cb.getFamily().getId()).append(',');
+            key.append(cb.getCoefficient()).append(',');
+            key.append(cb.getInputStart()).append(',');
+            key.append(cb.getInputEnd()).append(',');
+            key.append(cb.getNoiseReduction()).append(',');
+            key.append(cb.getRed()).append(',').append(cb.getGreen());
+            key.append(',').append(cb.getBlue()).append(',');
+            key.append(cb.getAlpha()).append(',');
+            key.append(cb.getLookupTable());
         }
+        return key.toString();
     }
 
     /**
@@ -570,10 +682,6 @@ public class RenderingBean implements RenderingEngine, Serializable {
 
         try {
             errorIfInvalidState();
-            if (resolutionLevel != null)
-            {
-                renderer.setResolutionLevel(resolutionLevel);
-            }
             ChannelBinding[] channelBindings = renderer.getChannelBindings();
             byte[][][][] planes = new byte[1][pixelsObj.getSizeC()][1][];
             long pixelsId = pixelsObj.getId();
@@ -611,41 +719,24 @@ public class RenderingBean implements RenderingEngine, Serializable {
     /**
      * Implemented as specified by the {@link RenderingEngine} interface.
      * 
-     * @see LocalCompress#compressToStream(BufferedImage, java.io.OutputStream)
+     * @see LocalCompress#compress(int[], int, int)
      */
     @RolesAllowed("user")
     public byte[] renderProjectedCompressed(int algorithm, int timepoint,
             int stepping, int start, int end) {
         rwl.writeLock().lock();
 
-        ByteArrayOutputStream byteStream = null;
         try {
-            if (resolutionLevel != null)
-            {
-                renderer.setResolutionLevel(resolutionLevel);
-            }
             int[] buf = renderProjectedAsPackedInt(algorithm, timepoint,
                     stepping, start, end);
             int sizeX = pixelsObj.getSizeX();
             int sizeY = pixelsObj.getSizeY();
-            BufferedImage image = ImageUtil.createBufferedImage(buf, sizeX,
-                    sizeY);
-            byteStream = new ByteArrayOutputStream();
-            compressionSrv.compressToStream(image, byteStream);
-            return byteStream.toByteArray();
+            return compressionSrv.compress(buf, sizeX, sizeY);
         } catch (IOException e) {
             log.error("Could not compress rendered image.", e);
             throw new ResourceError(e.getMessage());
         } finally {
             rwl.writeLock().unlock();
-            try {
-                if (byteStream != null) {
-                    byteStream.close();
-                }
-            } catch (IOException e) {
-                log.error("Could not close byte stream.", e);
-                throw new ResourceError(e.getMessage());
-            }
         }
     }
 
@@ -833,6 +924,9 @@ public class RenderingBean implements RenderingEngine, Serializable {
                             IUpdate update = sf.getUpdateService();
                             return update.saveAndReturnObject(rendDefObj).getId();
                         }});
+            if (imageCache != null) {
+                imageCache.invalidate(pixelsObj.getId());
+            }
 
             if (saveAs) {
                 loadRenderingDef(id);
@@ -8,24 +8,27 @@ package ome.services;
 import java.awt.Dimension;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayOutputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.Serializable;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import ome.annotations.RolesAllowed;
 import ome.api.IPixels;
 import ome.api.IRenderingSettings;
 import ome.api.IRepositoryInfo;
-import ome.api.IScale;
 import ome.api.ServiceInterface;
 import ome.api.ThumbnailStore;
 import ome.api.local.LocalCompress;
@@ -39,6 +42,7 @@ import ome.io.nio.PixelBuffer;
 import ome.io.nio.PixelsService;
 import ome.io.nio.ThumbnailService;
 import ome.logic.AbstractLevel2Service;
+import ome.logic.AreaAveragingScaler;
 import ome.model.core.Pixels;
 import ome.model.display.RenderingDef;
 import ome.model.display.Thumbnail;
@@ -50,6 +54,7 @@ import ome.system.EventContext;
 import ome.system.SimpleEventContext;
 import ome.util.ImageUtil;
 import omeis.providers.re.Renderer;
+import omeis.providers.re.RenderingExecutor;
 import omeis.providers.re.data.PlaneDef;
 import omeis.providers.re.quantum.QuantizationException;
 import omeis.providers.re.quantum.QuantumFactory;
@@ -88,15 +93,18 @@ public class ThumbnailBean extends AbstractLevel2Service
      */
     private static final Integer PROGRESS_VERSION = -1;
 
+    /**
+     * Number of thumbnails of a set rendered ahead of the calling thread per
+     * thumbnail thread. Each of them holds a renderer and its pixel buffer.
+     */
+    private static final int PENDING_PER_THREAD = 2;
+
     /** The logger for this class. */
     private transient static Logger log = LoggerFactory.getLogger(ThumbnailBean.class);
 
     /** The renderer that this service uses for thumbnail creation. */
     private transient Renderer renderer;
 
-    /** The scaling service will be used to scale buffered images. */
-    private transient IScale iScale;
-
     /** The pixels service, will be used to load pixels and settings. */
     private transient IPixels iPixels;
 
@@ -115,6 +123,12 @@ public class ThumbnailBean extends AbstractLevel2Service
     /** The rendering settings service. */
     private transient IRenderingSettings settingsService;
 
+    /** The shared pool of rendering threads. */
+    private transient RenderingExecutor renderingExecutor;
+
+    /** The shared pool of threads rendering the thumbnails of a set. */
+    private transient ThumbnailExecutor thumbnailExecutor;
+
     /** The list of all families supported by the {@link Renderer}. */
     private transient List<Family> families;
 
@@ -236,7 +250,6 @@ public class ThumbnailBean extends AbstractLevel2Service
             pixels = null;
             thumbnailMetadata = null;
             renderer = null;
-            iScale = null;
             ioService = null;
         } finally {
             rwl.writeLock().unlock();
@@ -341,7 +354,7 @@ public class ThumbnailBean extends AbstractLevel2Service
         // Loading last to try to ensure that the buffer will get closed.
         PixelBuffer buffer = pixelDataService.getPixelBuffer(pixels, false);
         renderer = new Renderer(quantumFactory, renderingModels, pixels,
-                settings, buffer);
+                settings, buffer, getRenderingExecutor());
         dirty = false;
     }
 
@@ -393,17 +406,6 @@ public class ThumbnailBean extends AbstractLevel2Service
         this.iPixels = iPixels;
     }
 
-    /**
-     * Scale service Bean injector.
-     *
-     * @param iScale
-     *            an <code>IScale</code>.
-     */
-    public void setScaleService(IScale iScale) {
-        getBeanHelper().throwIfAlreadySet(this.iScale, iScale);
-        this.iScale = iScale;
-    }
-
     /**
      * I/O service (ThumbnailService) Bean injector.
      *
@@ -449,6 +451,57 @@ public class ThumbnailBean extends AbstractLevel2Service
         this.settingsService = settingsService;
     }
 
+    /**
+     * Rendering executor Bean injector.
+     *
+     * @param renderingExecutor
+     *            the shared pool of rendering threads.
+     */
+    public void setRenderingExecutor(RenderingExecutor renderingExecutor) {
+        getBeanHelper().throwIfAlreadySet(this.renderingExecutor,
+                renderingExecutor);
+        this.renderingExecutor = renderingExecutor;
+    }
+
+    /**
+     * Returns the configured pool of rendering threads or the default one if
+     * none has been injected.
+     *
+     * @return See above.
+     */
+    private RenderingExecutor getRenderingExecutor() {
+        if (renderingExecutor == null) {
+            return RenderingExecutor.getDefault();
+        }
+        return renderingExecutor;
+    }
+
+    /**
+     * ThumbnailExecutor bean injector. For use during configuration. Can
+     * only be called once.
+     *
+     * @param thumbnailExecutor
+     *            the shared pool of threads rendering thumbnail sets.
+     */
+    public void setThumbnailExecutor(ThumbnailExecutor thumbnailExecutor) {
+        getBeanHelper().throwIfAlreadySet(this.thumbnailExecutor,
+                thumbnailExecutor);
+        this.thumbnailExecutor = thumbnailExecutor;
+    }
+
+    /**
+     * Returns the configured pool of thumbnail set threads or the default one
+     * if none has been injected.
+     *
+     * @return See above.
+     */
+    private ThumbnailExecutor getThumbnailExecutor() {
+        if (thumbnailExecutor == null) {
+            return ThumbnailExecutor.getDefault();
+        }
+        return thumbnailExecutor;
+    }
+
     /**
      * Compresses a buffered image thumbnail to disk.
      *
@@ -466,16 +519,15 @@ public class ThumbnailBean extends AbstractLevel2Service
             iRepositoryInfo.sanityCheckRepository();
         }
 
-        FileOutputStream stream = ioService.getThumbnailOutputStream(thumb);
-        try {
-            if (inProgress) {
-                compressInProgressImageToStream(thumb, stream);
-            } else {
-                compressionService.compressToStream(image, stream);
-            }
-        } finally {
-            stream.close();
+        // Compressed in memory so that the thumbnail reaches the thumbnail
+        // service, and its packed store if enabled, in a single write.
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        if (inProgress) {
+            compressInProgressImageToStream(thumb, stream);
+        } else {
+            compressionService.compressToStream(image, stream);
         }
+        ioService.createThumbnail(thumb, stream.toByteArray());
     }
 
     /**
@@ -575,31 +627,64 @@ public class ThumbnailBean extends AbstractLevel2Service
             theT = settings.getDefaultT();
         PlaneDef pd = new PlaneDef(PlaneDef.XY, theT);
         pd.setZ(theZ);
-        // Use a resolution level that matches our requested size if we can
+        return createScaledImage(renderer, pixels, thumbnailMetadata, pd);
+    }
+
+    /**
+     * Renders a plane and scales it to the size of a thumbnail. Only uses
+     * the objects passed, so that the thumbnails of a set can be rendered
+     * concurrently, each with its own renderer.
+     *
+     * @param renderer the renderer to use, loaded for <code>pixels</code>.
+     * @param pixels the pixels set to render.
+     * @param thumbnailMetadata the thumbnail to create.
+     * @param pd the plane to render.
+     * @return a scaled buffered image.
+     */
+    private BufferedImage createScaledImage(Renderer renderer, Pixels pixels,
+            Thumbnail thumbnailMetadata, PlaneDef pd)
+    {
+        // Use the coarsest resolution level that is at least as large as the
+        // thumbnail, so that the cost depends on the size of the thumbnail
+        // rather than on the size of the image.
+        int thumbnailSizeX = thumbnailMetadata.getSizeX();
+        int thumbnailSizeY = thumbnailMetadata.getSizeY();
         PixelBuffer pixelBuffer = renderer.getPixels();
         int originalSizeX = pixels.getSizeX();
         int originalSizeY = pixels.getSizeY();
-        int pixelBufferSizeX = pixelBuffer.getSizeX();
-        int pixelBufferSizeY = pixelBuffer.getSizeY();
-        if (pixelBuffer.getResolutionLevels() > 1)
+        int resolutionLevels = pixelBuffer.getResolutionLevels();
+        if (resolutionLevels > 1)
         {
-            int resolutionLevel = pixelBuffer.getResolutionLevels();
-            while (resolutionLevel > 0)
+            // Descriptions are ordered from the full resolution down.
+            List<List<Integer>> descriptions =
+                    pixelBuffer.getResolutionDescriptions();
+            int index = descriptions.size() - 1;
+            while (index > 0)
             {
-                resolutionLevel--;
-                renderer.setResolutionLevel(resolutionLevel);
-                pixelBufferSizeX = pixelBuffer.getSizeX();
-                pixelBufferSizeY = pixelBuffer.getSizeY();
-                if (pixelBufferSizeX <= thumbnailMetadata.getSizeX()
-                    || pixelBufferSizeY <= thumbnailMetadata.getSizeY())
+                List<Integer> sizes = descriptions.get(index);
+                if (sizes.get(0) >= thumbnailSizeX
+                    && sizes.get(1) >= thumbnailSizeY)
                 {
                     break;
                 }
+                index--;
             }
-            log.debug(String.format("Using resolution level %d -- %dx%d",
-                    resolutionLevel, pixelBufferSizeX, pixelBufferSizeY));
+            int resolutionLevel = resolutionLevels - 1 - index;
             renderer.setResolutionLevel(resolutionLevel);
+            log.debug(String.format("Using resolution level %d -- %dx%d",
+                    resolutionLevel, pixelBuffer.getSizeX(),
+                    pixelBuffer.getSizeY()));
         }
+        int pixelBufferSizeX = pixelBuffer.getSizeX();
+        int pixelBufferSizeY = pixelBuffer.getSizeY();
+
+        // Skip whole pixels while the plane stays at least as large as the
+        // thumbnail, the area average below takes care of the remainder.
+        int step = Math.max(1, Math.min(pixelBufferSizeX / thumbnailSizeX,
+                pixelBufferSizeY / thumbnailSizeY));
+        pd.setStride(step - 1);
+        int renderedSizeX = pixelBufferSizeX / step;
+        int renderedSizeY = pixelBufferSizeY / step;
 
         // Render the planes and translate to a buffered image
         Pixels rendererPixels = renderer.getMetadata();
@@ -610,17 +695,16 @@ public class ThumbnailBean extends AbstractLevel2Service
             rendererPixels.setSizeX(pixelBufferSizeX);
             rendererPixels.setSizeY(pixelBufferSizeY);
             int[] buf = renderer.renderAsPackedInt(pd, null);
-            BufferedImage image = ImageUtil.createBufferedImage(
-                    buf, pixelBufferSizeX, pixelBufferSizeY);
-
-            // Finally, scale our image using scaling factors (percentage).
-            float xScale = (float)
-                    thumbnailMetadata.getSizeX() / pixelBufferSizeX;
-            float yScale = (float)
-                    thumbnailMetadata.getSizeY() / pixelBufferSizeY;
-            log.debug(String.format("Using scaling factors x:%f y:%f",
-                    xScale, yScale));
-            return iScale.scaleBufferedImage(image, xScale, yScale);
+
+            // Finally, area average down to the size of the thumbnail.
+            log.debug(String.format("Scaling %dx%d (stride %d) to %dx%d",
+                    renderedSizeX, renderedSizeY, step - 1,
+                    thumbnailSizeX, thumbnailSizeY));
+            int[] scaled = AreaAveragingScaler.scale(buf,
+                    renderedSizeX, renderedSizeY,
+                    thumbnailSizeX, thumbnailSizeY);
+            return ImageUtil.createBufferedImage(
+                    scaled, thumbnailSizeX, thumbnailSizeY);
         }
         catch (IOException e)
         {
@@ -800,6 +884,25 @@ public class ThumbnailBean extends AbstractLevel2Service
     /** Actually does the work specified by {@link createThumbnail()}.*/
     private Thumbnail _createThumbnail() {
         StopWatch s1 = new Slf4JStopWatch("omero._createThumbnail");
+        prepareThumbnailMetadata();
+
+        BufferedImage image = createScaledImage(null, null);
+        try {
+            compressThumbnailToDisk(thumbnailMetadata, image);
+            s1.stop();
+            return thumbnailMetadata;
+        } catch (IOException e) {
+            log.error("Thumbnail could not be compressed.", e);
+            throw new ResourceError(e.getMessage());
+        }
+    }
+
+    /**
+     * Updates the version of the current thumbnail metadata, or replaces it,
+     * before the thumbnail is created. Touches the database, so must be
+     * called in the thread of the service call.
+     */
+    private void prepareThumbnailMetadata() {
         if (thumbnailMetadata == null) {
             throw new ValidationException("Missing thumbnail metadata.");
         } else if (ctx.dirtyMetadata(pixels.getId())) {
@@ -830,16 +933,6 @@ public class ThumbnailBean extends AbstractLevel2Service
         // dirtyMetadata is left false here because we may be creating a
         // thumbnail for the first time and the Thumbnail object has just been
         // created upstream of us.
-
-        BufferedImage image = createScaledImage(null, null);
-        try {
-            compressThumbnailToDisk(thumbnailMetadata, image);
-            s1.stop();
-            return thumbnailMetadata;
-        } catch (IOException e) {
-            log.error("Thumbnail could not be compressed.", e);
-            throw new ResourceError(e.getMessage());
-        }
     }
 
     private static void _setMetadataVersion(Thumbnail tb, boolean inProgress) {
@@ -934,7 +1027,11 @@ public class ThumbnailBean extends AbstractLevel2Service
     }
 
     /**
-     * Performs the logic of retrieving a set of thumbnails.
+     * Performs the logic of retrieving a set of thumbnails. Cached thumbnails
+     * are returned straight away while the missing or out of date ones are
+     * rendered concurrently on the {@link ThumbnailExecutor}, each with its
+     * own renderer. Everything touching the database, including loading the
+     * renderers, stays in the calling thread.
      * @param pixelsIds The Pixels IDs to retrieve thumbnails for.
      * @return Map of Pixels ID vs. thumbnail bytes.
      */
@@ -944,6 +1041,9 @@ public class ThumbnailBean extends AbstractLevel2Service
         Map<Long, byte[]> toReturn = new HashMap<Long, byte[]>();
 
         List<Thumbnail> toSave = new ArrayList<Thumbnail>();
+        ThumbnailExecutor executor = getThumbnailExecutor();
+        int window = executor.getThreads() * PENDING_PER_THREAD;
+        Deque<PendingThumbnail> pending = new ArrayDeque<PendingThumbnail>();
         for (Long pixelsId : pixelsIds)
         {
             // Ensure that the renderer has been made dirty otherwise the
@@ -978,15 +1078,54 @@ public class ThumbnailBean extends AbstractLevel2Service
                 }
                 try
                 {
-                    // At this point, we're sure that we have a thumbnail obj
-                    // that we want to use, but retrieveThumbnail likes to
-                    // re-generate. For the moment, we're saving and restoring
-                    // that value to prevent creating a new one.
-                    byte[] thumbnail = retrieveThumbnail(false);
-                    toReturn.put(pixelsId, thumbnail);
-                    if (dirtyMetadata)
+                    if (!inProgress && !ctx.isThumbnailCached(pixelsId))
+                    {
+                        // Loads the renderer, which may find that the
+                        // pyramid is still being generated.
+                        errorIfInvalidState();
+                    }
+                    if (inProgress || ctx.isThumbnailCached(pixelsId))
+                    {
+                        // At this point, we're sure that we have a thumbnail
+                        // obj that we want to use, but retrieveThumbnail
+                        // likes to re-generate. For the moment, we're saving
+                        // and restoring that value to prevent creating a new
+                        // one.
+                        byte[] thumbnail = retrieveThumbnail(false);
+                        toReturn.put(pixelsId, thumbnail);
+                        if (dirtyMetadata)
+                        {
+                            toSave.add(thumbnailMetadata);
+                        }
+                    }
+                    else
                     {
-                        toSave.add(thumbnailMetadata);
+                        if (log.isDebugEnabled())
+                        {
+                            log.debug("Cache miss, thumbnail missing or " +
+                                    "out of date.");
+                        }
+                        if (diskSpaceChecking) {
+                            iRepositoryInfo.sanityCheckRepository();
+                        }
+                        prepareThumbnailMetadata();
+                        PlaneDef pd = new PlaneDef(
+                                PlaneDef.XY, settings.getDefaultT());
+                        pd.setZ(settings.getDefaultZ());
+                        // The task temporarily resizes the Pixels of the
+                        // renderer; keep them away from this thread's flushes.
+                        iQuery.evict(pixels);
+                        Future<byte[]> future = executor.submit(
+                                new ThumbnailTask(renderer, pixels,
+                                        thumbnailMetadata, pd));
+                        // The task now owns, and closes, the renderer.
+                        renderer = null;
+                        pending.add(new PendingThumbnail(pixelsId,
+                                thumbnailMetadata, dirtyMetadata, future));
+                        while (pending.size() >= window)
+                        {
+                            awaitThumbnail(pending.poll(), toReturn, toSave);
+                        }
                     }
                 }
                 finally
@@ -1001,6 +1140,11 @@ public class ThumbnailBean extends AbstractLevel2Service
                 toReturn.put(pixelsId, null);
             }
         }
+        resetMetadata();
+        while (!pending.isEmpty())
+        {
+            awaitThumbnail(pending.poll(), toReturn, toSave);
+        }
         // We're doing the update or creation and save as a two step
         // process due to the possible unloaded Pixels. If we do not,
         // Pixels will be unloaded and we will hit
@@ -1013,6 +1157,106 @@ public class ThumbnailBean extends AbstractLevel2Service
         return toReturn;
     }
 
+    /**
+     * Waits for a thumbnail of a set to be rendered and records the result.
+     * @param p The pending thumbnail.
+     * @param toReturn Map of Pixels ID vs. thumbnail bytes to update.
+     * @param toSave The thumbnail metadata to save.
+     */
+    private void awaitThumbnail(PendingThumbnail p,
+            Map<Long, byte[]> toReturn, List<Thumbnail> toSave)
+    {
+        try
+        {
+            toReturn.put(p.pixelsId, p.future.get());
+            if (p.dirtyMetadata)
+            {
+                toSave.add(p.thumbnailMetadata);
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            p.future.cancel(true);
+            log.warn("Interrupted while retrieving thumbnail in set for " +
+                    "Pixels ID " + p.pixelsId + ".");
+            toReturn.put(p.pixelsId, null);
+        }
+        catch (ExecutionException e)
+        {
+            log.warn("Retrieving thumbnail in set for " +
+                    "Pixels ID " + p.pixelsId + " failed.", e.getCause());
+            toReturn.put(p.pixelsId, null);
+        }
+    }
+
+    /**
+     * A thumbnail of a set being rendered by the {@link ThumbnailExecutor}.
+     */
+    private static class PendingThumbnail
+    {
+        final Long pixelsId;
+
+        final Thumbnail thumbnailMetadata;
+
+        final boolean dirtyMetadata;
+
+        final Future<byte[]> future;
+
+        PendingThumbnail(Long pixelsId, Thumbnail thumbnailMetadata,
+                boolean dirtyMetadata, Future<byte[]> future)
+        {
+            this.pixelsId = pixelsId;
+            this.thumbnailMetadata = thumbnailMetadata;
+            this.dirtyMetadata = dirtyMetadata;
+            this.future = future;
+        }
+    }
+
+    /**
+     * Renders, compresses and writes to disk a thumbnail of a set with its
+     * own renderer, which it closes once done. Does not touch the database.
+     */
+    private class ThumbnailTask implements Callable<byte[]>
+    {
+        private final Renderer renderer;
+
+        private final Pixels pixels;
+
+        private final Thumbnail thumbnailMetadata;
+
+        private final PlaneDef pd;
+
+        ThumbnailTask(Renderer renderer, Pixels pixels,
+                Thumbnail thumbnailMetadata, PlaneDef pd)
+        {
+            this.renderer = renderer;
+            this.pixels = pixels;
+            this.thumbnailMetadata = thumbnailMetadata;
+            this.pd = pd;
+        }
+
+        public byte[] call() throws IOException
+        {
+            StopWatch s1 = new Slf4JStopWatch("omero._createThumbnail");
+            try
+            {
+                BufferedImage image = createScaledImage(
+                        renderer, pixels, thumbnailMetadata, pd);
+                ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+                compressionService.compressToStream(image, byteStream);
+                byte[] thumbnail = byteStream.toByteArray();
+                ioService.createThumbnail(thumbnailMetadata, thumbnail);
+                s1.stop();
+                return thumbnail;
+            }
+            finally
+            {
+                renderer.close();
+            }
+        }
+    }
+
     /*
      * (non-Javadoc)
      *
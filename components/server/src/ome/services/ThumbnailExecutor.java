@@ -0,0 +1,116 @@
+/*
+ * ome.services.ThumbnailExecutor
+ *
+ *   Copyright 2016 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.services;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Server-wide, bounded pool of threads used by {@link ThumbnailBean} to
+ * render the cache misses of a thumbnail set concurrently, each with its own
+ * renderer. It is distinct from the
+ * {@link omeis.providers.re.RenderingExecutor} since the renderers running
+ * here hand the regions of their planes to that pool and wait for them.
+ * <p>
+ * Callers are expected to bound the number of tasks they have pending, as
+ * each task holds an open pixel buffer.
+ * </p>
+ *
+ * @since 5.2.4
+ */
+public class ThumbnailExecutor {
+
+    /** The logger for this particular class */
+    private static Logger log = LoggerFactory.getLogger(ThumbnailExecutor.class);
+
+    /** Lazily created instance used when none has been configured. */
+    private static ThumbnailExecutor defaultInstance;
+
+    /** The workers. */
+    private final ExecutorService processor;
+
+    /** The number of worker threads. */
+    private final int threads;
+
+    /**
+     * Returns the instance used by thumbnail services which were not given an
+     * executor explicitly. It has one worker per available processor.
+     *
+     * @return See above.
+     */
+    public static synchronized ThumbnailExecutor getDefault() {
+        if (defaultInstance == null) {
+            defaultInstance = new ThumbnailExecutor(0);
+        }
+        return defaultInstance;
+    }
+
+    /**
+     * Creates a new instance.
+     *
+     * @param threads The number of worker threads. If <code>0</code> or
+     *            lower, the number of available processors is used.
+     */
+    public ThumbnailExecutor(int threads) {
+        if (threads <= 0) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+        this.threads = threads;
+        this.processor = Executors.newFixedThreadPool(threads,
+                new ThumbnailThreadFactory());
+        log.info("Thumbnail executor: threads=" + threads);
+    }
+
+    /**
+     * Returns the number of worker threads.
+     *
+     * @return See above.
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Queues a task for the workers.
+     *
+     * @param task The task to run.
+     * @return The pending result of the task.
+     */
+    public <T> Future<T> submit(Callable<T> task) {
+        return processor.submit(task);
+    }
+
+    /**
+     * Stops the workers once the queued tasks have been run.
+     */
+    public void shutdown() {
+        processor.shutdown();
+    }
+
+    /**
+     * Names the worker threads and makes them daemons so that they never
+     * prevent the JVM from exiting.
+     */
+    private static class ThumbnailThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "Thumbnail-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ *   Copyright 2016 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.services;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Horizontally adjacent tiles of the same plane and rows, read together by
+ * {@link RawPixelsBean#getTiles(int[][])}. Each tile is given as
+ * <code>{z, c, t, x, y, w, h[, level]}</code>.
+ */
+class TileRun
+{
+    /** The largest number of bytes read at once for several tiles. */
+    static final long MAX_RUN_BYTES = 16 * 1024 * 1024;
+
+    final int[][] tiles;
+
+    final List<Integer> indexes = new ArrayList<Integer>();
+
+    final int z, c, t, x, y, h;
+
+    int w;
+
+    TileRun(int[][] tiles, int index)
+    {
+        this.tiles = tiles;
+        int[] tile = tiles[index];
+        z = tile[0];
+        c = tile[1];
+        t = tile[2];
+        x = tile[3];
+        y = tile[4];
+        w = tile[5];
+        h = tile[6];
+        indexes.add(index);
+    }
+
+    /**
+     * Groups tiles into runs.
+     * @param tiles all the tiles requested.
+     * @param indexes the indexes of the tiles to group.
+     * @param byteWidth the number of bytes per pixel.
+     * @param coalesce if adjacent tiles are to be read together, otherwise
+     * each tile is a run of its own.
+     * @return the runs, in order of plane, rows then columns.
+     */
+    static List<TileRun> runs(final int[][] tiles, List<Integer> indexes,
+            int byteWidth, boolean coalesce)
+    {
+        Integer[] sorted = indexes.toArray(new Integer[indexes.size()]);
+        Arrays.sort(sorted, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                int[] ta = tiles[a];
+                int[] tb = tiles[b];
+                // z, c, t, y, h then x.
+                for (int k : new int[] { 0, 1, 2, 4, 6, 3 }) {
+                    if (ta[k] != tb[k]) {
+                        return ta[k] < tb[k] ? -1 : 1;
+                    }
+                }
+                return 0;
+            }
+        });
+        List<TileRun> runs = new ArrayList<TileRun>();
+        TileRun run = null;
+        for (Integer index : sorted) {
+            if (run == null || !coalesce || !run.append(index, byteWidth)) {
+                run = new TileRun(tiles, index);
+                runs.add(run);
+            }
+        }
+        return runs;
+    }
+
+    /**
+     * Adds a tile to the run if it is immediately to its right.
+     * @return <code>true</code> if the tile was added.
+     */
+    boolean append(int index, int byteWidth)
+    {
+        int[] tile = tiles[index];
+        if (tile[0] != z || tile[1] != c || tile[2] != t
+                || tile[4] != y || tile[6] != h || tile[3] != x + w
+                || (long) (w + tile[5]) * h * byteWidth > MAX_RUN_BYTES) {
+            return false;
+        }
+        w += tile[5];
+        indexes.add(index);
+        return true;
+    }
+
+    /**
+     * Splits the pixels read for the run into its tiles.
+     * @param pixels the pixels of the run, row after row.
+     * @param byteWidth the number of bytes per pixel.
+     * @param data where to store the pixels of each tile, by index.
+     */
+    void split(byte[] pixels, int byteWidth, byte[][] data)
+    {
+        if (indexes.size() == 1) {
+            data[indexes.get(0)] = pixels;
+            return;
+        }
+        int runRow = w * byteWidth;
+        for (Integer index : indexes) {
+            int[] tile = tiles[index];
+            int row = tile[5] * byteWidth;
+            int offset = (tile[3] - x) * byteWidth;
+            byte[] tilePixels = new byte[row * h];
+            for (int i = 0; i < h; i++) {
+                System.arraycopy(pixels, i * runRow + offset,
+                        tilePixels, i * row, row);
+            }
+            data[index] = tilePixels;
+        }
+    }
+}
@@ -22,7 +22,9 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Set;
 
+import ome.conditions.ResourceError;
 import ome.io.nio.AbstractFileSystemService;
+import ome.io.nio.ThumbnailService;
 import ome.system.OmeroContext;
 
 import org.slf4j.Logger;
@@ -47,6 +49,8 @@ public class FileDeleter {
 
     private static final Logger log = LoggerFactory.getLogger(FileDeleter.class);
 
+    private static final String THUMBNAIL_SERVICE = "/OMERO/Thumbs";
+
     private OmeroContext ctx;
 
     private final AbstractFileSystemService afs;
@@ -76,7 +80,9 @@ public class FileDeleter {
         filesFailed += originalFD.deleteLocal();
         bytesFailed += originalFD.getBytesFailed();
 
-        thumbFD = new ThumbnailFileDeletions(afs, load(Type.Thumbnail));
+        final Set<Long> thumbnailIds = load(Type.Thumbnail);
+        removePackedThumbnails(thumbnailIds);
+        thumbFD = new ThumbnailFileDeletions(afs, thumbnailIds);
         filesFailed += thumbFD.deleteLocal();
         bytesFailed += thumbFD.getBytesFailed();
 
@@ -97,6 +103,25 @@ public class FileDeleter {
         }
     }
 
+    /**
+     * Removes the thumbnails held by the packed thumbnail store, if enabled,
+     * since {@link ThumbnailFileDeletions} only knows of thumbnail files.
+     * @param thumbnailIds the IDs of the deleted thumbnails
+     */
+    private void removePackedThumbnails(Set<Long> thumbnailIds) {
+        if (thumbnailIds.isEmpty() || ctx == null
+                || !ctx.containsBean(THUMBNAIL_SERVICE)) {
+            return;
+        }
+        final ThumbnailService thumbnailService =
+                (ThumbnailService) ctx.getBean(THUMBNAIL_SERVICE);
+        try {
+            thumbnailService.removePackedThumbnails(thumbnailIds);
+        } catch (ResourceError re) {
+            log.warn("Failed to delete packed thumbnails " + thumbnailIds, re);
+        }
+    }
+
     /**
      * Lookup the ids which are scheduled for deletion.
      * @param fileType non-null
@@ -56,6 +56,9 @@ public class PixelsFileDeletions extends AbstractFileDeletions {
             addLocalFile(pyrFile, id);
             // Now any lock file
             addLocalFile(lockFile, id);
+            // And the channel histograms
+            addLocalFile(new File(filePath + PixelsService.HISTOGRAM_SUFFIX),
+                    id);
 
             // Now any tmp files
             FileFilter tmpFileFilter = new WildcardFileFilter("."
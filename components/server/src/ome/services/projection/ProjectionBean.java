@@ -8,8 +8,9 @@
 package ome.services.projection;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -23,7 +24,6 @@ import ome.conditions.ResourceError;
 import ome.conditions.ValidationException;
 import ome.io.nio.DimensionsOutOfBoundsException;
 import ome.io.nio.PixelBuffer;
-import ome.util.PixelData;
 import ome.io.nio.PixelsService;
 import ome.logic.AbstractLevel2Service;
 import ome.model.core.Channel;
@@ -52,6 +52,9 @@ public class ProjectionBean extends AbstractLevel2Service implements IProjection
     /** Reference to the service used to retrieve the pixels data. */
     protected transient PixelsService pixelsService;
     
+    /** Reference to the engine performing the projections. */
+    protected transient ProjectionEngine projectionEngine;
+    
     /**
      * Returns the interface this implementation is for.
      * @see AbstractLevel2Service#getServiceInterface()
@@ -81,6 +84,17 @@ public class ProjectionBean extends AbstractLevel2Service implements IProjection
         this.pixelsService = pixelsService;
     }
     
+    /**
+     * ProjectionEngine bean injector. For use during configuration. Can only
+     * be called once.
+     */
+    public void setProjectionEngine(ProjectionEngine projectionEngine)
+    {
+        getBeanHelper().throwIfAlreadySet(
+                this.projectionEngine, projectionEngine);
+        this.projectionEngine = projectionEngine;
+    }
+    
     /* (non-Javadoc)
      * @see ome.api.IProjection#projectStack(long, ome.model.enums.PixelsType, int, int, int, int, int, int)
      */
@@ -89,97 +103,50 @@ public class ProjectionBean extends AbstractLevel2Service implements IProjection
                                int algorithm, int timepoint, int channelIndex, 
                                int stepping, int start, int end)
     {
-        ProjectionContext ctx = new ProjectionContext();
-        ctx.pixels = iQuery.get(Pixels.class, pixelsId);
-        PixelBuffer pixelBuffer = pixelsService.getPixelBuffer(
-                ctx.pixels, false);
-        zIntervalBoundsCheck(start, end, ctx.pixels.getSizeZ());
+        Pixels pixels = iQuery.get(Pixels.class, pixelsId);
+        zIntervalBoundsCheck(start, end, pixels.getSizeZ());
         outOfBoundsStepping(stepping);
         outOfBoundsCheck(channelIndex, "channel");
         outOfBoundsCheck(timepoint, "timepoint");
-        Integer v = ctx.pixels.getSizeT();
+        Integer v = pixels.getSizeT();
         if (timepoint >= v)
             throw new ValidationException("timepoint must be <"+v);
-        v = ctx.pixels.getSizeC();
+        v = pixels.getSizeC();
         if (channelIndex >= v)
             throw new ValidationException("channel index must be <"+v);
-        try
-        {
 
-            if (pixelsType == null)
-            {
-                pixelsType = ctx.pixels.getPixelsType();
-            }
-            else
-            {
-                pixelsType = iQuery.get(PixelsType.class, pixelsType.getId());
-            }
-
-            ctx.planeSizeInPixels = 
-                ctx.pixels.getSizeX() * ctx.pixels.getSizeY();
-            int planeSize = 
-                ctx.planeSizeInPixels * (iPixels.getBitDepth(pixelsType) / 8);
-            byte[] buf = new byte[planeSize];
-            ctx.from = pixelBuffer.getStack(channelIndex, timepoint);
-            ctx.to = new PixelData(pixelsType.getValue(), ByteBuffer.wrap(buf));
-
-            switch (algorithm)
-            {
-                case IProjection.MAXIMUM_INTENSITY:
-                {
-                    projectStackMax(ctx, stepping, start, end, false);
-                    break;
-                }
-                case IProjection.MEAN_INTENSITY:
-                {
-                    projectStackMean(ctx, stepping, start, end, false);
-                    break;
-                }
-                case IProjection.SUM_INTENSITY:
-                {
-                    projectStackSum(ctx, stepping, start, end, false);
-                    break;
-                }
-                default:
-                {
-                    throw new IllegalArgumentException(
-                            "Unknown algorithm: " + algorithm);
-                }
-            }
-            return buf;
+        if (pixelsType == null)
+        {
+            pixelsType = pixels.getPixelsType();
         }
-        catch (IOException e)
+        else
         {
-            String error = String.format(
-                    "I/O error retrieving stack C=%d T=%d: %s",
-                    channelIndex, timepoint, e.getMessage());
-            log.error(error, e);
-            throw new ResourceError(error);
+            pixelsType = iQuery.get(PixelsType.class, pixelsType.getId());
         }
-        catch (DimensionsOutOfBoundsException e)
+
+        final byte[][] projected = new byte[1][];
+        List<int[]> stacks = new ArrayList<int[]>();
+        stacks.add(new int[] { channelIndex, timepoint });
+        try
         {
-            String error = String.format(
-                    "C=%d or T=%d out of range for Pixels Id %d: %s",
-                    channelIndex, timepoint, ctx.pixels.getId(), e.getMessage());
-            log.error(error, e);
-            throw new ValidationException(error);
+            projectionEngine.project(getPixelBuffers(pixels),
+                    pixels.getSizeX(), pixels.getSizeY(),
+                    pixelsType.getValue(), iPixels.getBitDepth(pixelsType) / 8,
+                    algorithm, stepping, start, end, stacks,
+                    new ProjectionEngine.PlaneHandler() {
+                        public void handle(int c, int t, byte[] plane,
+                                double minimum, double maximum)
+                        {
+                            projected[0] = plane;
+                        }
+                    });
         }
-        finally
+        catch (IOException e)
         {
-            try
-            {
-                pixelBuffer.close();
-            }
-            catch (IOException e)
-            {
-                log.error("Buffer did not close successfully.", e);
-                throw new ResourceError(
-                        e.getMessage() + " Please check server log.");
-            }
-            if (ctx.from != null) {
-                ctx.from.dispose();
-            }
+            // Not thrown by the handler above.
+            throw new ResourceError(e.getMessage());
         }
+        return projected[0];
     }
 
     /* (non-Javadoc)
@@ -193,13 +160,12 @@ public class ProjectionBean extends AbstractLevel2Service implements IProjection
                               int zStart, int zEnd, String name)
     {
         // First, copy and resize our image with sizeZ = 1.
-        ProjectionContext ctx = new ProjectionContext();
-        ctx.pixels = iQuery.get(Pixels.class, pixelsId);
-        Image image = ctx.pixels.getImage();
+        final Pixels pixels = iQuery.get(Pixels.class, pixelsId);
+        Image image = pixels.getImage();
         name = name == null? image.getName() + " Projection" : name;
         //size of the new buffer.
         //Add control for z
-        zIntervalBoundsCheck(zStart, zEnd, ctx.pixels.getSizeZ());
+        zIntervalBoundsCheck(zStart, zEnd, pixels.getSizeZ());
         outOfBoundsStepping(stepping);
 
         Integer sizeT = tEnd-tStart+1;
@@ -215,7 +181,7 @@ public class ProjectionBean extends AbstractLevel2Service implements IProjection
         Pixels newPixels = newImage.getPixels(0);
         if (pixelsType == null)
         {
-            pixelsType = ctx.pixels.getPixelsType();
+            pixelsType = pixels.getPixelsType();
         }
         else
         {
@@ -225,114 +191,109 @@ public class ProjectionBean extends AbstractLevel2Service implements IProjection
         
         // Project each stack for each channel and each timepoint in the
         // entire image, copying into the pixel buffer the projected pixels.
-        PixelBuffer sourceBuffer = pixelsService.getPixelBuffer(
-                ctx.pixels, false);
-        try {
-            PixelBuffer destinationBuffer = pixelsService.getPixelBuffer(
-                    newPixels, true);
-            try
+        final List<int[]> stacks = new ArrayList<int[]>();
+        final double[] minimum = new double[channels.size()];
+        final double[] maximum = new double[channels.size()];
+        int newC = 0;
+        for (Integer c : channels)
+        {
+            minimum[newC] = Double.MAX_VALUE;
+            maximum[newC] = Double.MIN_VALUE;
+            for (int t = tStart; t <= tEnd; t++)
             {
-                ctx.planeSizeInPixels = ctx.pixels.getSizeX() * ctx.pixels.getSizeY();
-                int planeSize =
-                    ctx.planeSizeInPixels * (iPixels.getBitDepth(pixelsType) / 8);
-                byte[] buf = new byte[planeSize];
-                ctx.to = new PixelData(pixelsType.getValue(), ByteBuffer.wrap(buf));
-                int newC = 0;
-                for (Integer c : channels)
-                {
-                    ctx.minimum = Double.MAX_VALUE;
-                    ctx.maximum = Double.MIN_VALUE;
-                    for (int t = tStart; t <= tEnd; t++)
-                    {
-                        try
+                stacks.add(new int[] { c, t, newC });
+            }
+            newC++;
+        }
+        final PixelBuffer destinationBuffer = pixelsService.getPixelBuffer(
+                newPixels, true);
+        try
+        {
+            projectionEngine.project(getPixelBuffers(pixels),
+                    pixels.getSizeX(), pixels.getSizeY(),
+                    pixelsType.getValue(), iPixels.getBitDepth(pixelsType) / 8,
+                    algorithm, stepping, zStart, zEnd, stacks,
+                    new ProjectionEngine.PlaneHandler() {
+                        private int index;
+
+                        public void handle(int c, int t, byte[] plane,
+                                double planeMinimum, double planeMaximum)
+                            throws IOException
                         {
-                            ctx.from = sourceBuffer.getStack(c, t);
-                            switch (algorithm)
+                            int newC = stacks.get(index++)[2];
+                            try
                             {
-                                case IProjection.MAXIMUM_INTENSITY:
-                                {
-                                    projectStackMax(ctx, stepping, zStart, zEnd, true);
-                                    break;
-                                }
-                                case IProjection.MEAN_INTENSITY:
-                                {
-                                    projectStackMean(ctx, stepping, zStart, zEnd, true);
-                                    break;
-                                }
-                                case IProjection.SUM_INTENSITY:
-                                {
-                                    projectStackSum(ctx, stepping, zStart, zEnd, true);
-                                    break;
-                                }
-                                default:
-                                {
-                                    throw new IllegalArgumentException(
-                                            "Unknown algorithm: " + algorithm);
-                                }
+                                destinationBuffer.setPlane(plane, 0, newC, t);
                             }
-                            destinationBuffer.setPlane(buf, 0, newC, t);
-                        }
-                        catch (IOException e)
-                        {
-                            String error = String.format(
-                                    "I/O error retrieving stack C=%d T=%d: %s",
-                                    c, t, e.getMessage());
-                            log.error(error, e);
-                            throw new ResourceError(error);
-                        }
-                        catch (DimensionsOutOfBoundsException e)
-                        {
-                            String error = String.format(
-                                    "C=%d or T=%d out of range for Pixels Id %d: %s",
-                                    c, t, ctx.pixels.getId(), e.getMessage());
-                            log.error(error, e);
-                            throw new ValidationException(error);
-                        } finally {
-                            if (ctx.from != null) {
-                                ctx.from.dispose();
+                            catch (DimensionsOutOfBoundsException e)
+                            {
+                                String error = String.format(
+                                        "C=%d or T=%d out of range for Pixels Id %d: %s",
+                                        c, t, pixels.getId(), e.getMessage());
+                                log.error(error, e);
+                                throw new ValidationException(error);
                             }
+                            minimum[newC] =
+                                Math.min(minimum[newC], planeMinimum);
+                            maximum[newC] =
+                                Math.max(maximum[newC], planeMaximum);
                         }
-                    }
-                    // Handle the change of minimum and maximum for this channel.
-                    Channel channel = newPixels.getChannel(newC);
-                    StatsInfo si = new StatsInfo();
-                    si.setGlobalMin(ctx.minimum);
-                    si.setGlobalMax(ctx.maximum);
-                    channel.setStatsInfo(si);
-                    // Set our methodology
-                    newPixels.setMethodology(
-                            IProjection.METHODOLOGY_STRINGS[algorithm]);
-                    newC++;
-                }
-            }
-            finally
-            {
-                try
-                {
-                    destinationBuffer.close();
-                }
-                catch (IOException e)
-                {
-                    log.error("Buffer did not close successfully: " + destinationBuffer , e);
-                    throw new ResourceError(
-                            e.getMessage() + " Please check server log.");
-                }
-            }
-        } finally {
+                    });
+        }
+        catch (IOException e)
+        {
+            String error = String.format(
+                    "I/O error storing projection of Pixels Id %d: %s",
+                    pixels.getId(), e.getMessage());
+            log.error(error, e);
+            throw new ResourceError(error);
+        }
+        finally
+        {
             try
             {
-                sourceBuffer.close();
+                destinationBuffer.close();
             }
             catch (IOException e)
             {
-                log.error("Buffer did not close successfully: " + sourceBuffer, e);
+                log.error("Buffer did not close successfully: " + destinationBuffer , e);
                 throw new ResourceError(
                         e.getMessage() + " Please check server log.");
             }
         }
+        for (newC = 0; newC < channels.size(); newC++)
+        {
+            // Handle the change of minimum and maximum for this channel.
+            Channel channel = newPixels.getChannel(newC);
+            StatsInfo si = new StatsInfo();
+            si.setGlobalMin(minimum[newC]);
+            si.setGlobalMax(maximum[newC]);
+            channel.setStatsInfo(si);
+            // Set our methodology
+            newPixels.setMethodology(
+                    IProjection.METHODOLOGY_STRINGS[algorithm]);
+        }
         newImage = iUpdate.saveAndReturnObject(newImage);
         return newImage.getId();
     }
+
+    /**
+     * Returns a factory of read-only pixel buffers on the passed pixels set,
+     * used by the projection engine to give each of its threads a buffer.
+     * The engine opens them in this thread, since resolving the file of the
+     * pixels set needs the current session.
+     * @param pixels The pixels set to project.
+     * @return See above.
+     */
+    private Callable<PixelBuffer> getPixelBuffers(final Pixels pixels)
+    {
+        return new Callable<PixelBuffer>() {
+            public PixelBuffer call()
+            {
+                return pixelsService.getPixelBuffer(pixels, false);
+            }
+        };
+    }
     
     /**
      * Ensures that a particular dimension value is not out of range (ex. less
@@ -377,178 +338,4 @@ public class ProjectionBean extends AbstractLevel2Service implements IProjection
         if (start >= maxZ || end >= maxZ)
             throw new ValidationException("Z interval value cannot be >= "+maxZ);
     }
-    
-    /**
-     * Projects a stack based on the maximum intensity at each XY coordinate.
-     * @param ctx The context of our projection.
-     * @param stepping Stepping value to use while calculating the projection.
-     * For example, <code>stepping=1</code> will use every optical section from
-     * <code>start</code> to <code>end</code> where <code>stepping=2</code> will
-     * use every other section from <code>start</code> to <code>end</code> to
-     * perform the projection.
-     * @param start Optical section to start projecting from.
-     * @param end Optical section to finish projecting.
-     * @param doMinMax Whether or not to calculate the minimum and maximum of
-     * the projected pixel data.
-     */
-    private void projectStackMax(ProjectionContext ctx, int stepping,
-                                 int start, int end, boolean doMinMax)
-    {
-        int currentPlaneStart;
-        double projectedValue, stackValue;
-        double minimum = ctx.minimum;
-        double maximum = ctx.maximum;
-        for (int i = 0; i < ctx.planeSizeInPixels; i++)
-        {
-            projectedValue = 0;
-            for (int z = start; z <= end; z += stepping)
-            {
-                currentPlaneStart = ctx.planeSizeInPixels * z;
-                stackValue = ctx.from.getPixelValue(currentPlaneStart + i);
-                if (stackValue > projectedValue)
-                {
-                    projectedValue = stackValue;
-                }
-            }
-            ctx.to.setPixelValue(i, projectedValue);
-            if (doMinMax)
-            {
-                minimum = projectedValue < minimum? projectedValue : minimum;
-                maximum = projectedValue > maximum? projectedValue : maximum;
-            }
-        }
-        ctx.minimum = minimum;
-        ctx.maximum = maximum;
-    }
-    
-    /**
-     * Projects a stack based on the mean intensity at each XY coordinate.
-     * @param from The raw pixel data from the stack to project from.
-     * @param ctx The context of our projection.
-     * source Pixels set pixels type will be used.
-     * @param stepping Stepping value to use while calculating the projection.
-     * For example, <code>stepping=1</code> will use every optical section from
-     * <code>start</code> to <code>end</code> where <code>stepping=2</code> will
-     * use every other section from <code>start</code> to <code>end</code> to
-     * perform the projection.
-     * @param start Optical section to start projecting from.
-     * @param end Optical section to finish projecting.
-     * @param doMinMax Whether or not to calculate the minimum and maximum of
-     * the projected pixel data.
-     */
-    private void projectStackMean(ProjectionContext ctx, int stepping, 
-                                  int start, int end, boolean doMinMax)
-    {
-        projectStackMeanOrSum(ctx, stepping, start, end, true, doMinMax);
-    }
-    
-    /**
-     * Projects a stack based on the sum intensity at each XY coordinate.
-     * @param ctx The context of our projection.
-     * @param pixelsType The destination Pixels type. If <code>null</code>, the
-     * source Pixels set pixels type will be used.
-     * @param stepping Stepping value to use while calculating the projection.
-     * For example, <code>stepping=1</code> will use every optical section from
-     * <code>start</code> to <code>end</code> where <code>stepping=2</code> will
-     * use every other section from <code>start</code> to <code>end</code> to
-     * perform the projection.
-     * @param start Optical section to start projecting from.
-     * @param end Optical section to finish projecting.
-     * @param doMinMax Whether or not to calculate the minimum and maximum of
-     * the projected pixel data.
-     */
-    private void projectStackSum(ProjectionContext ctx, int stepping, 
-                                 int start, int end, boolean doMinMax)
-    {
-        projectStackMeanOrSum(ctx, stepping, start, end, false, doMinMax);
-    }
-    
-    /**
-     * Projects a stack based on the sum intensity at each XY coordinate with
-     * the option to also average the sum intensity.
-     * @param ctx The context of our projection.
-     * @param pixelsType The destination Pixels type. If <code>null</code>, the
-     * source Pixels set pixels type will be used.
-     * @param stepping Stepping value to use while calculating the projection.
-     * For example, <code>stepping=1</code> will use every optical section from
-     * <code>start</code> to <code>end</code> where <code>stepping=2</code> will
-     * use every other section from <code>start</code> to <code>end</code> to
-     * perform the projection.
-     * @param start Optical section to start projecting from.
-     * @param end Optical section to finish projecting.
-     * @param mean Whether or not we're performing an average post sum
-     * intensity projection.
-     * @param doMinMax Whether or not to calculate the minimum and maximum of
-     * the projected pixel data.
-     */
-    private void projectStackMeanOrSum(ProjectionContext ctx, int stepping,
-                                       int start, int end, 
-                                       boolean mean, boolean doMinMax)
-    {
-        double planeMaximum = ctx.to.getMaximum();
-
-        int currentPlaneStart;
-        double projectedValue, stackValue;
-        double minimum = ctx.minimum;
-        double maximum = ctx.maximum;
-        for (int i = 0; i < ctx.planeSizeInPixels; i++)
-        {
-            projectedValue = 0;
-            int projectedPlaneCount = 0;
-            for (int z = start; z < end; z += stepping)
-            {
-                currentPlaneStart = ctx.planeSizeInPixels * z;
-                stackValue = ctx.from.getPixelValue(currentPlaneStart + i);
-                projectedValue += stackValue;
-                projectedPlaneCount++;
-            }
-            if (mean)
-            {
-                projectedValue = projectedValue / projectedPlaneCount;
-            }
-            if (projectedValue > planeMaximum)
-            {
-                projectedValue = planeMaximum;
-            }
-            ctx.to.setPixelValue(i, projectedValue);
-            if (doMinMax)
-            {
-                minimum = projectedValue < minimum? projectedValue : minimum;
-                maximum = projectedValue > maximum? projectedValue : maximum;
-            }
-        }
-        ctx.minimum = minimum;
-        ctx.maximum = maximum;
-    }
-    
-    /**
-     * Stores the context of a projection operation.
-     * 
-     * Class is static to prevent any instances from holding onto
-     * {@link ProjectionBean} instances.
-     *
-     * @author Chris Allan &nbsp;&nbsp;&nbsp;&nbsp; <a
-     *         href="mailto:callan@blackcat.ca">callan@blackcat.ca</a>
-     * @since OMERO-Beta3.1
-     */
-    private static class ProjectionContext
-    {
-        /** The Pixels set we're currently working on. */
-        public Pixels pixels;
-        
-        /** Count of the number of pixels per plane for <code>pixels</code>. */
-        public int planeSizeInPixels;
-        
-        /** Current minimum for the projected pixel data. */
-        public double minimum = Double.MAX_VALUE;
-        
-        /** Current maximum for the projected pixel data. */
-        public double maximum = Double.MIN_VALUE;
-        
-        /** The raw pixel data from the stack to project from. */
-        public PixelData from;
-        
-        /** The raw pixel data buffer to project into. */
-        public PixelData to;
-    }
 }
@@ -0,0 +1,663 @@
+/*
+ * ome.services.projection.ProjectionEngine
+ *
+ *   Copyright 2016 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.services.projection;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ome.api.IProjection;
+import ome.conditions.ResourceError;
+import ome.conditions.ValidationException;
+import ome.io.nio.DimensionsOutOfBoundsException;
+import ome.io.nio.PixelBuffer;
+import ome.util.PixelData;
+
+/**
+ * Projects the stacks of a pixels set one optical section at a time. Only
+ * the section being read and a running accumulator per projected plane are
+ * held in memory, rather than whole stacks. The stacks, and the row bands of
+ * a stack when there are fewer stacks than threads, are projected on a
+ * bounded pool of threads shared by all projections, each thread reading
+ * through its own pixel buffer. The projected planes are handed back to the
+ * calling thread in the order of the requested stacks.
+ *
+ * @since 5.2.4
+ */
+public class ProjectionEngine
+{
+
+    /** The logger for this class. */
+    private static Logger log = LoggerFactory.getLogger(ProjectionEngine.class);
+
+    /** The number of stacks projected ahead of the consumer per thread. */
+    private static final int STACKS_PER_THREAD = 2;
+
+    /** The workers. */
+    private final ExecutorService executor;
+
+    /** The number of worker threads. */
+    private final int threads;
+
+    /**
+     * Receives the projected planes.
+     */
+    public interface PlaneHandler
+    {
+        /**
+         * Handles a projected plane.
+         * @param c The channel of the projected stack.
+         * @param t The timepoint of the projected stack.
+         * @param plane The projected plane.
+         * @param minimum The minimum of the projected values, at most
+         * <code>Double.MAX_VALUE</code>.
+         * @param maximum The maximum of the projected values, at least
+         * <code>Double.MIN_VALUE</code>.
+         * @throws IOException If the plane could not be stored.
+         */
+        void handle(int c, int t, byte[] plane, double minimum,
+                double maximum) throws IOException;
+    }
+
+    /**
+     * Creates a new instance.
+     * @param threads The number of worker threads. If <code>0</code> or
+     * lower, the number of available processors is used.
+     */
+    public ProjectionEngine(int threads)
+    {
+        if (threads <= 0)
+        {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+        this.threads = threads;
+        this.executor = Executors.newFixedThreadPool(
+                threads, new ProjectionThreadFactory());
+        log.info("Projection engine: threads=" + threads);
+    }
+
+    /**
+     * Stops the workers.
+     */
+    public void shutdown()
+    {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Projects stacks.
+     * @param buffers Opens a read-only pixel buffer on the source pixels set.
+     * Called in the calling thread, where the session and the security
+     * context are available, once per worker thread the projection uses,
+     * before any stack is submitted; the buffers are closed before
+     * returning.
+     * @param sizeX The width of the source pixels set.
+     * @param sizeY The height of the source pixels set.
+     * @param pixelsType The pixels type of the projected planes.
+     * @param bytesPerPixel The number of bytes per pixel of the projected
+     * planes.
+     * @param algorithm One of the {@link IProjection} algorithms.
+     * @param stepping Stepping value to use while calculating the projection.
+     * @param start Optical section to start projecting from.
+     * @param end Optical section to finish projecting.
+     * @param stacks The channel and timepoint of each stack to project.
+     * @param handler Receives the projected planes, in the order of
+     * <code>stacks</code>, in the calling thread.
+     * @throws IOException If the handler failed.
+     */
+    public void project(Callable<PixelBuffer> buffers, int sizeX, int sizeY,
+            String pixelsType, int bytesPerPixel, int algorithm, int stepping,
+            int start, int end, List<int[]> stacks, PlaneHandler handler)
+        throws IOException
+    {
+        switch (algorithm)
+        {
+            case IProjection.MAXIMUM_INTENSITY:
+            case IProjection.MEAN_INTENSITY:
+            case IProjection.SUM_INTENSITY:
+                break;
+            default:
+                throw new IllegalArgumentException(
+                        "Unknown algorithm: " + algorithm);
+        }
+        if (stacks.isEmpty())
+        {
+            return;
+        }
+        int bands = 1;
+        if (stacks.size() < threads)
+        {
+            bands = Math.min(sizeY,
+                    (threads + stacks.size() - 1) / stacks.size());
+        }
+        int window = threads * STACKS_PER_THREAD;
+        BufferPool pool = new BufferPool(buffers,
+                (int) Math.min(threads, (long) bands * stacks.size()));
+        Deque<Projection> pending = new ArrayDeque<Projection>(window);
+        Projection current = null;
+        try
+        {
+            int next = 0;
+            while (next < stacks.size() || !pending.isEmpty())
+            {
+                while (next < stacks.size() && pending.size() < window)
+                {
+                    int[] stack = stacks.get(next++);
+                    Projection p = new Projection(stack[0], stack[1],
+                            new byte[sizeX * sizeY * bytesPerPixel]);
+                    for (int i = 0; i < bands; i++)
+                    {
+                        int y0 = i * sizeY / bands;
+                        int y1 = (i + 1) * sizeY / bands;
+                        p.bands.add(executor.submit(new BandTask(pool,
+                                pixelsType, p, sizeX, y0, y1, bands > 1,
+                                algorithm, stepping, start, end)));
+                    }
+                    pending.add(p);
+                }
+                current = pending.poll();
+                double minimum = Double.MAX_VALUE;
+                double maximum = Double.MIN_VALUE;
+                for (Future<double[]> band : current.bands)
+                {
+                    double[] minMax = await(band, current);
+                    minimum = Math.min(minimum, minMax[0]);
+                    maximum = Math.max(maximum, minMax[1]);
+                }
+                handler.handle(current.c, current.t, current.plane,
+                        minimum, maximum);
+                current = null;
+            }
+        }
+        finally
+        {
+            // On failure, stop the bands still queued or running, including
+            // the other bands of the stack which failed, before their
+            // buffers are closed.
+            if (current != null)
+            {
+                current.cancel();
+            }
+            for (Projection p : pending)
+            {
+                p.cancel();
+            }
+            pool.close();
+        }
+    }
+
+    /**
+     * Waits for a band to be projected, translating the failures as the
+     * service used to.
+     */
+    private static double[] await(Future<double[]> band, Projection p)
+    {
+        try
+        {
+            return band.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new ResourceError("Interrupted while projecting.");
+        }
+        catch (ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+            {
+                String error = String.format(
+                        "I/O error retrieving stack C=%d T=%d: %s",
+                        p.c, p.t, cause.getMessage());
+                log.error(error, cause);
+                throw new ResourceError(error);
+            }
+            if (cause instanceof DimensionsOutOfBoundsException)
+            {
+                String error = String.format(
+                        "C=%d or T=%d out of range: %s",
+                        p.c, p.t, cause.getMessage());
+                log.error(error, cause);
+                throw new ValidationException(error);
+            }
+            if (cause instanceof RuntimeException)
+            {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * The projection of a single stack.
+     */
+    private static class Projection
+    {
+        final int c, t;
+
+        final byte[] plane;
+
+        final List<Future<double[]>> bands = new ArrayList<Future<double[]>>();
+
+        Projection(int c, int t, byte[] plane)
+        {
+            this.c = c;
+            this.t = t;
+            this.plane = plane;
+        }
+
+        /** Cancels the bands, interrupting those running. */
+        void cancel()
+        {
+            for (Future<double[]> band : bands)
+            {
+                band.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Projects rows <code>[y0, y1)</code> of a stack, returning the minimum
+     * and maximum of the projected values.
+     */
+    private static class BandTask implements Callable<double[]>
+    {
+        private final BufferPool pool;
+
+        private final String pixelsType;
+
+        private final Projection p;
+
+        private final int sizeX, y0, y1;
+
+        private final boolean tiled;
+
+        private final int algorithm, stepping, start, end;
+
+        BandTask(BufferPool pool, String pixelsType, Projection p, int sizeX,
+                int y0, int y1, boolean tiled, int algorithm, int stepping,
+                int start, int end)
+        {
+            this.pool = pool;
+            this.pixelsType = pixelsType;
+            this.p = p;
+            this.sizeX = sizeX;
+            this.y0 = y0;
+            this.y1 = y1;
+            this.tiled = tiled;
+            this.algorithm = algorithm;
+            this.stepping = stepping;
+            this.start = start;
+            this.end = end;
+        }
+
+        public double[] call() throws Exception
+        {
+            int n = sizeX * (y1 - y0);
+            double[] acc = new double[n];
+            boolean max = algorithm == IProjection.MAXIMUM_INTENSITY;
+            // As before, the maximum intensity includes the end section while
+            // the sum and mean intensities stop before it.
+            int last = max ? end : end - 1;
+            int count = 0;
+            PixelBuffer buffer = pool.acquire();
+            try
+            {
+                for (int z = start; z <= last; z += stepping)
+                {
+                    if (Thread.currentThread().isInterrupted())
+                    {
+                        throw new InterruptedException();
+                    }
+                    PixelData section = tiled ?
+                            buffer.getTile(z, p.c, p.t, 0, y0, sizeX, y1 - y0)
+                            : buffer.getPlane(z, p.c, p.t);
+                    try
+                    {
+                        if (max)
+                        {
+                            max(section, acc);
+                        }
+                        else
+                        {
+                            sum(section, acc);
+                        }
+                    }
+                    finally
+                    {
+                        section.dispose();
+                    }
+                    count++;
+                }
+            }
+            finally
+            {
+                pool.release(buffer);
+            }
+
+            PixelData to = new PixelData(pixelsType, ByteBuffer.wrap(p.plane));
+            double planeMaximum = to.getMaximum();
+            boolean mean = algorithm == IProjection.MEAN_INTENSITY;
+            double minimum = Double.MAX_VALUE;
+            double maximum = Double.MIN_VALUE;
+            int offset = sizeX * y0;
+            for (int i = 0; i < n; i++)
+            {
+                double value = acc[i];
+                if (!max)
+                {
+                    if (mean)
+                    {
+                        value = value / count;
+                    }
+                    if (value > planeMaximum)
+                    {
+                        value = planeMaximum;
+                    }
+                }
+                to.setPixelValue(offset + i, value);
+                minimum = value < minimum? value : minimum;
+                maximum = value > maximum? value : maximum;
+            }
+            return new double[] { minimum, maximum };
+        }
+    }
+
+    /**
+     * Keeps in <code>acc</code> the maximum of its values, which start at
+     * <code>0</code>, and of the pixel values of <code>section</code>.
+     */
+    static void max(PixelData section, double[] acc)
+    {
+        ByteBuffer b = section.getData();
+        int n = acc.length;
+        boolean signed = section.isSigned();
+        switch (section.javaType())
+        {
+            case PixelData.BYTE:
+                if (signed)
+                {
+                    for (int i = 0; i < n; i++)
+                    {
+                        int v = b.get(i);
+                        if (v > acc[i]) acc[i] = v;
+                    }
+                }
+                else
+                {
+                    for (int i = 0; i < n; i++)
+                    {
+                        int v = b.get(i) & 0xFF;
+                        if (v > acc[i]) acc[i] = v;
+                    }
+                }
+                return;
+            case PixelData.SHORT:
+                if (signed)
+                {
+                    for (int i = 0; i < n; i++)
+                    {
+                        int v = b.getShort(i << 1);
+                        if (v > acc[i]) acc[i] = v;
+                    }
+                }
+                else
+                {
+                    for (int i = 0; i < n; i++)
+                    {
+                        int v = b.getShort(i << 1) & 0xFFFF;
+                        if (v > acc[i]) acc[i] = v;
+                    }
+                }
+                return;
+            case PixelData.INT:
+                if (signed)
+                {
+                    for (int i = 0; i < n; i++)
+                    {
+                        int v = b.getInt(i << 2);
+                        if (v > acc[i]) acc[i] = v;
+                    }
+                }
+                else
+                {
+                    for (int i = 0; i < n; i++)
+                    {
+                        long v = b.getInt(i << 2) & 0xFFFFFFFFL;
+                        if (v > acc[i]) acc[i] = v;
+                    }
+                }
+                return;
+            case PixelData.FLOAT:
+                for (int i = 0; i < n; i++)
+                {
+                    float v = b.getFloat(i << 2);
+                    if (v > acc[i]) acc[i] = v;
+                }
+                return;
+            case PixelData.DOUBLE:
+                for (int i = 0; i < n; i++)
+                {
+                    double v = b.getDouble(i << 3);
+                    if (v > acc[i]) acc[i] = v;
+                }
+                return;
+            default:
+                for (int i = 0; i < n; i++)
+                {
+                    double v = section.getPixelValue(i);
+                    if (v > acc[i]) acc[i] = v;
+                }
+        }
+    }
+
+    /**
+     * Adds to <code>acc</code> the pixel values of <code>section</code>.
+     */
+    static void sum(PixelData section, double[] acc)
+    {
+        ByteBuffer b = section.getData();
+        int n = acc.length;
+        boolean signed = section.isSigned();
+        switch (section.javaType())
+        {
+            case PixelData.BYTE:
+                if (signed)
+                {
+                    for (int i = 0; i < n; i++)
+                    {
+                        acc[i] += b.get(i);
+                    }
+                }
+                else
+                {
+                    for (int i = 0; i < n; i++)
+                    {
+                        acc[i] += b.get(i) & 0xFF;
+                    }
+                }
+                return;
+            case PixelData.SHORT:
+                if (signed)
+                {
+                    for (int i = 0; i < n; i++)
+                    {
+                        acc[i] += b.getShort(i << 1);
+                    }
+                }
+                else
+                {
+                    for (int i = 0; i < n; i++)
+                    {
+                        acc[i] += b.getShort(i << 1) & 0xFFFF;
+                    }
+                }
+                return;
+            case PixelData.INT:
+                if (signed)
+                {
+                    for (int i = 0; i < n; i++)
+                    {
+                        acc[i] += b.getInt(i << 2);
+                    }
+                }
+                else
+                {
+                    for (int i = 0; i < n; i++)
+                    {
+                        acc[i] += b.getInt(i << 2) & 0xFFFFFFFFL;
+                    }
+                }
+                return;
+            case PixelData.FLOAT:
+                for (int i = 0; i < n; i++)
+                {
+                    acc[i] += b.getFloat(i << 2);
+                }
+                return;
+            case PixelData.DOUBLE:
+                for (int i = 0; i < n; i++)
+                {
+                    acc[i] += b.getDouble(i << 3);
+                }
+                return;
+            default:
+                for (int i = 0; i < n; i++)
+                {
+                    acc[i] += section.getPixelValue(i);
+                }
+        }
+    }
+
+    /**
+     * Hands out one pixel buffer per worker thread of a projection. The
+     * buffers are all opened when the pool is created, in the calling thread,
+     * since opening a buffer may need the session of the caller.
+     */
+    private static class BufferPool
+    {
+        /** How long to wait for a running band to return its buffer. */
+        private static final long CLOSE_TIMEOUT = 30;
+
+        private final BlockingQueue<PixelBuffer> idle =
+            new LinkedBlockingQueue<PixelBuffer>();
+
+        private final List<PixelBuffer> opened = new ArrayList<PixelBuffer>();
+
+        BufferPool(Callable<PixelBuffer> factory, int size)
+        {
+            try
+            {
+                for (int i = 0; i < size; i++)
+                {
+                    PixelBuffer buffer = factory.call();
+                    opened.add(buffer);
+                    idle.add(buffer);
+                }
+            }
+            catch (RuntimeException e)
+            {
+                close();
+                throw e;
+            }
+            catch (Exception e)
+            {
+                close();
+                throw new ResourceError(
+                        "Could not open pixel buffer: " + e.getMessage());
+            }
+        }
+
+        PixelBuffer acquire() throws InterruptedException
+        {
+            return idle.take();
+        }
+
+        void release(PixelBuffer buffer)
+        {
+            idle.add(buffer);
+        }
+
+        /**
+         * Closes the buffers, waiting for the bands still running to return
+         * theirs.
+         */
+        void close()
+        {
+            List<PixelBuffer> returned = new ArrayList<PixelBuffer>();
+            boolean interrupted = false;
+            try
+            {
+                while (returned.size() < opened.size())
+                {
+                    PixelBuffer buffer =
+                        idle.poll(CLOSE_TIMEOUT, TimeUnit.SECONDS);
+                    if (buffer == null)
+                    {
+                        log.warn("Closing pixel buffers still in use by a "
+                                + "projection band");
+                        break;
+                    }
+                    returned.add(buffer);
+                }
+            }
+            catch (InterruptedException e)
+            {
+                interrupted = true;
+            }
+            for (PixelBuffer buffer : opened)
+            {
+                try
+                {
+                    buffer.close();
+                }
+                catch (IOException e)
+                {
+                    log.error("Buffer did not close successfully: "
+                            + buffer, e);
+                }
+            }
+            opened.clear();
+            if (interrupted)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Names the worker threads and makes them daemons.
+     */
+    private static class ProjectionThreadFactory implements ThreadFactory
+    {
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(Runnable r)
+        {
+            Thread t = new Thread(r, "Projection-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
@@ -13,7 +13,9 @@
 package ome.services.query;
 
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 import org.slf4j.Logger;
@@ -21,6 +23,9 @@ import org.slf4j.LoggerFactory;
 import org.hibernate.Criteria;
 import org.hibernate.FetchMode;
 import org.hibernate.HibernateException;
+import org.hibernate.JDBCException;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
 import org.hibernate.Session;
 import org.springframework.orm.hibernate3.HibernateCallback;
 
@@ -110,6 +115,15 @@ public abstract class Query<T> implements HibernateCallback {
      */
     private org.hibernate.Criteria _criteria;
 
+    /**
+     * number of rows fetched from the database at a time when the results of
+     * a {@link org.hibernate.Query} are read as they arrive, or 0 to have the
+     * driver load them all beforehand.
+     * 
+     * @see #setFetchSize(int)
+     */
+    private int fetchSize = 0;
+
     /* have to have the Parameters */
     private Query() {
         this.defs = null;
@@ -238,7 +252,10 @@ public abstract class Query<T> implements HibernateCallback {
             if (_query != null) {
                 _query.setFirstResult(offset);
                 _query.setMaxResults(limit);
-                return unique ? _query.uniqueResult() : _query.list();
+                if (unique) {
+                    return _query.uniqueResult();
+                }
+                return fetchSize > 0 ? scroll(_query) : _query.list();
             } else {
                 _criteria.setFirstResult(offset);
                 _criteria.setMaxResults(limit);
@@ -250,6 +267,51 @@ public abstract class Query<T> implements HibernateCallback {
         }
     }
 
+    /**
+     * makes the non-unique results of a {@link org.hibernate.Query} be read
+     * through forward-only {@link ScrollableResults}, the given number of rows
+     * at a time, rather than by {@link org.hibernate.Query#list()}. The rows
+     * are then no longer all held by the JDBC driver on top of the returned
+     * list. Queries fetching collections, which Hibernate cannot scroll,
+     * still use {@link org.hibernate.Query#list()}.
+     * 
+     * @param fetchSize
+     *            the number of rows fetched at a time, or 0 to use
+     *            {@link org.hibernate.Query#list()}.
+     */
+    public void setFetchSize(int fetchSize) {
+        this.fetchSize = fetchSize;
+    }
+
+    /**
+     * reads the results of the query as they are fetched, returning them as
+     * {@link org.hibernate.Query#list()} would.
+     */
+    private List<Object> scroll(org.hibernate.Query query) {
+        query.setFetchSize(fetchSize);
+        ScrollableResults rows;
+        try {
+            rows = query.scroll(ScrollMode.FORWARD_ONLY);
+        } catch (JDBCException e) {
+            throw e;
+        } catch (HibernateException e) {
+            // Hibernate refuses to scroll e.g. collection fetches before
+            // running any SQL; list() either copes or fails likewise.
+            log.debug("Cannot scroll, listing instead: " + e.getMessage());
+            return query.list();
+        }
+        try {
+            List<Object> rv = new ArrayList<Object>();
+            while (rows.next()) {
+                Object[] row = rows.get();
+                rv.add(row.length == 1 ? row[0] : row);
+            }
+            return rv;
+        } finally {
+            rows.close();
+        }
+    }
+
     /**
      * main point of entry for subclasses. This method must build either a
      * {@link org.hibernate.Criteria} or a {@link org.hibernate.Query} instance
@@ -10,7 +10,9 @@ import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 import java.util.WeakHashMap;
 
 import javax.sql.DataSource;
@@ -38,7 +40,8 @@ import org.springframework.orm.hibernate3.SessionHolder;
 import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 /**
- * holder for Hibernate sessions in stateful servics. A count of calls is kept.
+ * holder for Hibernate sessions in stateful servics. A count of calls is kept,
+ * guarded by the status itself: at most one call uses the session at a time.
  * 
  * @author Josh Moore &nbsp;&nbsp;&nbsp;&nbsp; <a
  *         href="mailto:josh.moore@gmx.de">josh.moore@gmx.de</a>
@@ -51,12 +54,23 @@ class SessionStatus {
 
     Session session;
 
+    /**
+     * If the session was only opened for one concurrent call, see
+     * {@link SessionHandler#setConcurrentMethods(Set)}, and is closed after it.
+     */
+    final boolean temporary;
+
     SessionStatus(Session session) {
+        this(session, false);
+    }
+
+    SessionStatus(Session session, boolean temporary) {
         if (null == session) {
             throw new IllegalArgumentException("No null sessions.");
         }
 
         this.session = session;
+        this.temporary = temporary;
     }
 
 }
@@ -78,6 +92,15 @@ class SessionStatus {
  * http://www.carbonfive.com/community/archives/2005/07/ive_been_meanin.html
  * http://www.hibernate.org/377.html
  * 
+ * A Hibernate {@link Session} must not be used by two threads at once, so a
+ * call on a stateful service waits while another thread is using its
+ * session. The exception are the read-only methods listed by
+ * {@link #setConcurrentMethods(Set)}, such as the render methods of the
+ * rendering engine: while the session of the service is in use they run
+ * with a new session of their own, which is closed after the call. They may
+ * therefore only query the database and use the state the service loaded
+ * earlier, never lazily load through the objects of the service.
+ * 
  * @author Josh Moore &nbsp;&nbsp;&nbsp;&nbsp; <a
  *         href="mailto:josh.moore@gmx.de">josh.moore@gmx.de</a>
  * @version 3.0 <small> (<b>Internal version:</b> $Rev$ $Date$) </small>
@@ -108,6 +131,12 @@ public class SessionHandler implements MethodInterceptor,
 
     private final static SessionHolder DUMMY = new EmptySessionHolder();
 
+    /**
+     * Methods, as <code>interface.method</code>, which may run while another
+     * call uses the session of the stateful service.
+     */
+    private volatile Set<String> concurrentMethods = Collections.emptySet();
+
     final private static String CTOR_MSG = "Both arguments to the SessionHandler"
             + " constructor should be not null.";
 
@@ -139,6 +168,19 @@ public class SessionHandler implements MethodInterceptor,
         this.ctx = (OmeroContext) applicationContext;
     }
 
+    /**
+     * Sets the read-only methods of stateful services which are given a
+     * session of their own when they are called while another call uses the
+     * session of the service, instead of waiting for it.
+     * @param concurrentMethods the methods, each given as the name of the
+     * service interface, a period and the name of the method
+     */
+    public void setConcurrentMethods(Set<String> concurrentMethods) {
+        this.concurrentMethods = concurrentMethods == null ?
+                Collections.<String>emptySet()
+                : new HashSet<String>(concurrentMethods);
+    }
+
     //
     // LOOKUP METHODS
     //
@@ -222,6 +264,9 @@ public class SessionHandler implements MethodInterceptor,
             // it here.
             try {
                 if (isCloseSession(invocation)) {
+                    if (status != null) {
+                        release(status);
+                    }
                     ctx.publishMessage(new RegisterServiceCleanupMessage(this,
                             invocation.getThis()) {
                         @Override
@@ -236,8 +281,12 @@ public class SessionHandler implements MethodInterceptor,
                     if (status != null) {
                         // Guarantee that no one has changed the FlushMode
                         status.session.setFlushMode(FlushMode.MANUAL);
-                        status.session.disconnect();
-                        status.calls--;
+                        if (status.temporary) {
+                            status.session.close();
+                        } else {
+                            status.session.disconnect();
+                            release(status);
+                        }
                     }
                 }
             } catch (Exception e) {
@@ -261,7 +310,6 @@ public class SessionHandler implements MethodInterceptor,
     private SessionStatus newOrRestoredSession(MethodInvocation invocation)
             throws HibernateException {
 
-        SessionStatus status = getStatus(invocation);
         Session previousSession = nullOrSessionBoundToThread();
 
         // a session is currently running.
@@ -280,42 +328,66 @@ public class SessionHandler implements MethodInterceptor,
 
         // we may or may not be in a session, but if we haven't yet bound
         // it to This, then we need to.
-        else if (status == null || !status.session.isOpen()) {
-            Session currentSession = acquireAndBindSession();
-            status = new SessionStatus(currentSession);
-            putStatus(invocation, status);
+        SessionStatus status;
+        synchronized (__sessions) {
+            status = getStatus(invocation);
+            if (status == null || !status.session.isOpen()) {
+                debug("Opening session.");
+                status = new SessionStatus(factory.openSession());
+                putStatus(invocation, status);
+            }
         }
 
-        // the session bound to This is already currently being called. abort!
-        else if (status.calls > 1) {
-            throw new InternalException(
-                    "Hibernate session is not re-entrant.\n"
-                            + "Either you have two threads operating on the same "
-                            + "stateful object (don't do this)\n or you have a "
-                            + "recursive call (recurse on the unwrapped object). ");
+        // the session bound to This is currently being called by another
+        // thread. Concurrent methods get their own session, others wait.
+        synchronized (status) {
+            while (status.calls > 0) {
+                if (isConcurrent(invocation)) {
+                    debug("Session in use. Opening temporary session.");
+                    SessionStatus temporary =
+                        new SessionStatus(acquireAndBindSession(), true);
+                    temporary.calls++;
+                    return temporary;
+                }
+                try {
+                    status.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InternalException(
+                            "Interrupted while waiting for stateful session.");
+                }
+            }
+            // It's ready to be used. Increment.
+            status.calls++;
         }
 
-        // all is fine.
-        else {
-            debug("Binding and reconnecting session.");
-            // TODO doesn't make sense to check, because hibernate always
-            // says "yes" if it has a connectionProvider
-            // if (status.session.isConnected())
-            // {
-            // throw new InternalException("Session already connected!");
-            // }
+        debug("Binding and reconnecting session.");
+        try {
             bindSession(status.session);
-            // Connection connection =
-            // DataSourceUtils.getConnection(dataSource);
-            // status.session.reconnect(connection);
+        } catch (RuntimeException e) {
+            release(status);
+            throw e;
         }
-
-        // It's ready to be used. Increment.
-        status.calls++;
         return status;
 
     }
 
+    /**
+     * Lets the next waiting call use the session of the stateful service.
+     */
+    private void release(SessionStatus status) {
+        synchronized (status) {
+            status.calls--;
+            status.notifyAll();
+        }
+    }
+
+    private boolean isConcurrent(MethodInvocation invocation) {
+        Method method = invocation.getMethod();
+        return concurrentMethods.contains(
+                method.getDeclaringClass().getName() + "." + method.getName());
+    }
+
     // ~ SESSIONS
     // =========================================================================
 
@@ -0,0 +1,236 @@
+/*
+ *   Copyright 2016 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package ome.server.itests;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import ome.formats.OMEROMetadataStore;
+import ome.model.core.Channel;
+import ome.model.core.Image;
+import ome.model.core.LogicalChannel;
+import ome.model.core.Pixels;
+import ome.model.core.PlaneInfo;
+import ome.model.enums.DimensionOrder;
+import ome.model.enums.PixelsType;
+import ome.model.enums.UnitsTime;
+import ome.model.fs.Fileset;
+import ome.model.fs.FilesetJobLink;
+import ome.model.screen.Plate;
+import ome.model.screen.Well;
+import ome.model.screen.WellSample;
+import ome.model.units.Time;
+import ome.parameters.Parameters;
+import ome.system.ServiceFactory;
+import ome.util.SqlAction;
+import ome.services.util.Executor;
+
+import org.hibernate.Session;
+import org.springframework.transaction.annotation.Transactional;
+import org.testng.annotations.Test;
+
+/**
+ * Saves an import graph with {@link OMEROMetadataStore} in batches of plane
+ * information and checks that it is saved as a whole.
+ */
+public class MetadataStoreBatchSaveTest extends AbstractManagedContextTest {
+
+    /** Images outside of the plate, then images of its wells. */
+    private static final int IMAGES = 2, WELLS = 2;
+
+    private static final int SIZE_Z = 3, SIZE_C = 2, SIZE_T = 2;
+
+    private static final int PLANES = SIZE_Z * SIZE_C * SIZE_T;
+
+    /** Divides neither the planes of an image nor all the planes. */
+    private static final int BATCH_SIZE = 5;
+
+    private static Map<String, Integer> indexes(Object... keysAndValues) {
+        Map<String, Integer> indexes = new LinkedHashMap<String, Integer>();
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            indexes.put((String) keysAndValues[i],
+                    (Integer) keysAndValues[i + 1]);
+        }
+        return indexes;
+    }
+
+    /**
+     * Identifies the plane (z, c, t) of the image of the given index.
+     */
+    private static double deltaT(int image, int z, int c, int t) {
+        return image * 1000 + (t * SIZE_C + c) * SIZE_Z + z;
+    }
+
+    /**
+     * Adds the images, two of them outside of a plate and two in its wells,
+     * as the importer does.
+     */
+    private void populate(OMEROMetadataStore store, PixelsType type,
+            DimensionOrder order) {
+        store.createRoot();
+        int images = IMAGES + WELLS;
+        for (int i = 0; i < images; i++) {
+            store.updateObject("Image:" + i, new Image("Image " + i),
+                    indexes("imageIndex", i));
+            Pixels pixels = new Pixels();
+            pixels.setSizeX(1);
+            pixels.setSizeY(1);
+            pixels.setSizeZ(SIZE_Z);
+            pixels.setSizeC(SIZE_C);
+            pixels.setSizeT(SIZE_T);
+            pixels.setSha1("09bc7b2dcc9a510f4ab3a40c47f7a4cb77954356");
+            pixels.setPixelsType(type);
+            pixels.setDimensionOrder(order);
+            store.updateObject("Pixels:" + i, pixels,
+                    indexes("imageIndex", i, "pixelsIndex", 0));
+            for (int c = 0; c < SIZE_C; c++) {
+                store.updateObject(String.format("Channel:%d:%d", i, c),
+                        new Channel(),
+                        indexes("imageIndex", i, "channelIndex", c));
+                store.updateObject(
+                        String.format("LogicalChannel:%d:%d", i, c),
+                        new LogicalChannel(),
+                        indexes("imageIndex", i, "channelIndex", c));
+            }
+            int plane = 0;
+            for (int t = 0; t < SIZE_T; t++) {
+                for (int c = 0; c < SIZE_C; c++) {
+                    for (int z = 0; z < SIZE_Z; z++) {
+                        PlaneInfo planeInfo = new PlaneInfo();
+                        planeInfo.setTheZ(z);
+                        planeInfo.setTheC(c);
+                        planeInfo.setTheT(t);
+                        planeInfo.setDeltaT(new Time(deltaT(i, z, c, t),
+                                UnitsTime.SECOND));
+                        store.updateObject(
+                                String.format("PlaneInfo:%d:%d", i, plane),
+                                planeInfo, indexes("imageIndex", i,
+                                        "pixelsIndex", 0, "planeIndex",
+                                        plane++));
+                    }
+                }
+            }
+        }
+        store.updateObject("Plate:0", new Plate("Plate"),
+                indexes("plateIndex", 0));
+        Map<String, String[]> references = new HashMap<String, String[]>();
+        for (int w = 0; w < WELLS; w++) {
+            store.updateObject("Well:0:" + w, new Well(),
+                    indexes("plateIndex", 0, "wellIndex", w));
+            String wellSample = String.format("WellSample:0:%d:0", w);
+            store.updateObject(wellSample, new WellSample(), indexes(
+                    "plateIndex", 0, "wellIndex", w, "wellSampleIndex", 0));
+            references.put(wellSample, new String[] { "Image:" + (IMAGES + w) });
+        }
+        store.updateReferences(references);
+    }
+
+    @Test
+    public void testSaveInBatches() {
+        loginNewUser();
+        final PixelsType type = iQuery.findByString(PixelsType.class,
+                "value", "uint8");
+        final DimensionOrder order = iQuery.findByString(DimensionOrder.class,
+                "value", "XYZCT");
+        Fileset fileset = new Fileset();
+        fileset.setTemplatePrefix(uuid() + "/");
+        fileset = iUpdate.saveAndReturnObject(fileset);
+        final FilesetJobLink link = new FilesetJobLink();
+        link.setParent(fileset);
+        final SqlAction sql = (SqlAction) applicationContext
+                .getBean("simpleSqlAction");
+        final int images = IMAGES + WELLS;
+        // The minimum and maximum of each channel identify the image.
+        final double[][][] minMax = new double[images][SIZE_C][];
+        for (int i = 0; i < images; i++) {
+            for (int c = 0; c < SIZE_C; c++) {
+                minMax[i][c] = new double[] { i * 10 + c, i * 10 + c + 5 };
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        List<Long> pixelsIds = (List<Long>) executor.execute(loginAop.p,
+                new Executor.SimpleWork(this, "testSaveInBatches") {
+                    @Transactional(readOnly = false)
+                    public Object doWork(Session session, ServiceFactory sf) {
+                        OMEROMetadataStore store =
+                            new OMEROMetadataStore(sf, sql);
+                        populate(store, type, order);
+                        store.setSaveBatchSize(BATCH_SIZE);
+                        List<Pixels> saved = store.saveToDB(link, session);
+                        List<Long> ids = new ArrayList<Long>();
+                        for (int i = 0; i < saved.size(); i++) {
+                            Pixels pixels = saved.get(i);
+                            assertEquals("Image " + i,
+                                    pixels.getImage().getName());
+                            assertEquals(0, pixels.sizeOfPlaneInfo());
+                            ids.add(pixels.getId());
+                        }
+                        // Uses the Pixels kept by the store for each image.
+                        store.populateMinMax(minMax);
+                        return ids;
+                    }
+                });
+        assertEquals(images, pixelsIds.size());
+        assertTrue(images * PLANES > BATCH_SIZE);
+
+        Set<Long> distinct = new HashSet<Long>(pixelsIds);
+        assertEquals(images, distinct.size());
+        for (int i = 0; i < images; i++) {
+            long pixelsId = pixelsIds.get(i);
+            Pixels pixels = iQuery.findByQuery("select p from Pixels p "
+                    + "join fetch p.image where p.id = :id",
+                    new Parameters().addId(pixelsId));
+            assertEquals("Image " + i, pixels.getImage().getName());
+            assertEquals(fileset.getId(),
+                    iQuery.projection("select i.fileset.id from Image i "
+                            + "where i.id = :id", new Parameters()
+                            .addId(pixels.getImage().getId())).get(0)[0]);
+
+            // Every plane information is saved, linked to its Pixels.
+            List<PlaneInfo> planeInfos = iQuery.findAllByQuery(
+                    "select pi from PlaneInfo pi where pi.pixels.id = :id",
+                    new Parameters().addId(pixelsId));
+            assertEquals(PLANES, planeInfos.size());
+            Set<Double> deltaTs = new HashSet<Double>();
+            for (PlaneInfo planeInfo : planeInfos) {
+                double deltaT = planeInfo.getDeltaT().getValue();
+                assertEquals(deltaT(i, planeInfo.getTheZ(),
+                        planeInfo.getTheC(), planeInfo.getTheT()), deltaT);
+                deltaTs.add(deltaT);
+            }
+            assertEquals(PLANES, deltaTs.size());
+
+            // The store kept the same Pixels for the image as it returned.
+            List<Object[]> stats = iQuery.projection(
+                    "select c.statsInfo.globalMin, c.statsInfo.globalMax "
+                    + "from Channel c where c.pixels.id = :id "
+                    + "order by c.statsInfo.globalMin",
+                    new Parameters().addId(pixelsId));
+            assertEquals(SIZE_C, stats.size());
+            for (int c = 0; c < SIZE_C; c++) {
+                assertEquals(minMax[i][c][0], stats.get(c)[0]);
+                assertEquals(minMax[i][c][1], stats.get(c)[1]);
+            }
+        }
+
+        // The plate was saved with its wells and images.
+        List<Object[]> wellImages = iQuery.projection(
+                "select ws.image.id from WellSample ws "
+                + "where ws.well.plate.name = :name and ws.image.fileset.id = :fs",
+                new Parameters().addString("name", "Plate")
+                .addLong("fs", fileset.getId()));
+        assertEquals(WELLS, wellImages.size());
+        long total = (Long) iQuery.projection(
+                "select count(pi) from PlaneInfo pi where pi.pixels.id in (:ids)",
+                new Parameters().addIds(pixelsIds)).get(0)[0];
+        assertEquals(images * PLANES, total);
+    }
+}
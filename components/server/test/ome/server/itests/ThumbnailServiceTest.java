@@ -5,6 +5,7 @@
 
 package ome.server.itests;
 
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
@@ -173,6 +174,29 @@ public class ThumbnailServiceTest extends AbstractManagedContextTest {
         assertTrue(before.length != after.length);
     }
 
+    @Test
+    public void testThumbnailSetLargerThanRenderingWindow()
+        throws Exception {
+        loginNewUser();
+        Set<Long> pixelsIds = new HashSet<Long>();
+        int n = Runtime.getRuntime().availableProcessors() * 4 + 1;
+        for (int i = 0; i < n; i++) {
+            pixelsIds.add(makePixels().getId());
+        }
+        ThumbnailStore tb = this.factory.createThumbnailService();
+        // Cache misses, rendered concurrently.
+        Map<Long, byte[]> misses = tb.getThumbnailSet(64, 64, pixelsIds);
+        // Cache hits, read back from disk.
+        Map<Long, byte[]> hits = tb.getThumbnailSet(64, 64, pixelsIds);
+        assertEquals(pixelsIds, misses.keySet());
+        assertEquals(pixelsIds, hits.keySet());
+        for (Long pixelsId : pixelsIds) {
+            assertNotNull(misses.get(pixelsId));
+            assertTrue(Arrays.equals(misses.get(pixelsId),
+                    hits.get(pixelsId)));
+        }
+    }
+
     @Test(groups = {"ticket:3161"})
     public void testTicket3161ThreeUserView() throws Exception {
         Experimenter e1 = loginNewUser();
@@ -7,6 +7,7 @@
 package ome.server.itests.query;
 
 import java.util.List;
+import java.util.Map;
 
 import ome.model.annotations.FileAnnotation;
 import ome.model.annotations.LongAnnotation;
@@ -112,4 +113,49 @@ public class ProjectionTest extends AbstractManagedContextTest {
         assertEquals(i.getId(), values[0]);
         assertEquals((long) 1, values[1]);
     }
+
+    @Test
+    public void testRowsReadAsFetched() {
+        loginNewUser();
+        String uuid = uuid();
+        for (int n = 0; n < 3; n++) {
+            iUpdate.saveObject(new_Image(uuid));
+        }
+        Parameters p = new Parameters().addString("uuid", uuid);
+
+        // A single column is wrapped, as when read all at once.
+        List<Object[]> ids = iQuery.projection(
+                "select i.id from Image i where i.name = :uuid order by i.id",
+                p);
+        assertEquals(3, ids.size());
+        assertTrue(ids.get(0)[0] instanceof Long);
+
+        List<Object[]> rv = iQuery.projection("select new map(i.id as id, i.name as name) "
+                + "from Image i where i.name = :uuid", p);
+        assertEquals(3, rv.size());
+        assertEquals(uuid, ((Map) rv.get(0)[0]).get("name"));
+
+        // Pages are read from their offset.
+        p.page(2, 5);
+        rv = iQuery.projection(
+                "select i.id, i.name from Image i where i.name = :uuid "
+                + "order by i.id", p);
+        assertEquals(1, rv.size());
+        assertEquals(ids.get(2)[0], rv.get(0)[0]);
+    }
+
+    @Test
+    public void testCollectionFetchListed() {
+        loginNewUser();
+        String uuid = uuid();
+        iUpdate.saveObject(new_Image(uuid));
+        Parameters p = new Parameters().addString("uuid", uuid);
+
+        // Hibernate cannot scroll this, so the rows are read all at once.
+        List<Object[]> rv = iQuery.projection("select i from Image i "
+                + "left outer join fetch i.annotationLinks "
+                + "where i.name = :uuid", p);
+        assertEquals(1, rv.size());
+        assertEquals(uuid, ((Image) rv.get(0)[0]).getName());
+    }
 }
@@ -0,0 +1,238 @@
+/*
+ *   Copyright 2016 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package ome.server.utests.handlers;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import ome.api.StatefulServiceInterface;
+import ome.tools.hibernate.SessionHandler;
+import omeis.providers.re.RenderingEngine;
+
+import org.aopalliance.intercept.MethodInvocation;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+import org.hibernate.classic.Session;
+import org.springframework.orm.hibernate3.SessionHolder;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Checks that {@link SessionHandler} never lets two threads use the
+ * Hibernate session of a stateful service at once: the configured
+ * concurrent methods get a session of their own, other calls wait.
+ */
+@Test(groups = { "hibernate", "stateful" })
+public class SessionHandlerConcurrencyTest {
+
+    private static final String RENDER =
+        RenderingEngine.class.getName() + ".renderCompressed";
+
+    /** The sessions opened by the factory, in order. */
+    private final List<Session> opened = new CopyOnWriteArrayList<Session>();
+
+    /** The sessions closed. */
+    private final List<Session> closed = new CopyOnWriteArrayList<Session>();
+
+    private SessionFactory factory;
+
+    private SessionHandler handler;
+
+    private StatefulServiceInterface service;
+
+    private ExecutorService threads;
+
+    private CountDownLatch release;
+
+    @BeforeMethod
+    public void setUp() {
+        factory = proxy(SessionFactory.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (method.getName().equals("openSession")) {
+                    Session session = newSession();
+                    opened.add(session);
+                    return session;
+                }
+                return defaultValue(proxy, method, args);
+            }
+        });
+        handler = new SessionHandler(factory);
+        handler.setConcurrentMethods(new HashSet<String>(
+                Arrays.asList(RENDER)));
+        service = proxy(StatefulServiceInterface.class, null);
+        threads = Executors.newCachedThreadPool();
+        release = new CountDownLatch(1);
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        release.countDown();
+        threads.shutdownNow();
+    }
+
+    private Session newSession() {
+        final Session[] session = new Session[1];
+        session[0] = proxy(Session.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                String name = method.getName();
+                if (name.equals("isOpen")) {
+                    return !closed.contains(session[0]);
+                } else if (name.equals("close")) {
+                    closed.add(session[0]);
+                    return null;
+                } else if (name.equals("beginTransaction")) {
+                    return proxy(Transaction.class, null);
+                }
+                return defaultValue(proxy, method, args);
+            }
+        });
+        return session[0];
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        if (handler == null) {
+            handler = new InvocationHandler() {
+                public Object invoke(Object proxy, Method method,
+                        Object[] args) {
+                    return defaultValue(proxy, method, args);
+                }
+            };
+        }
+        return (T) Proxy.newProxyInstance(type.getClassLoader(),
+                new Class[] { type }, handler);
+    }
+
+    private static Object defaultValue(Object proxy, Method method,
+            Object[] args) {
+        String name = method.getName();
+        if (name.equals("equals")) {
+            return proxy == args[0];
+        } else if (name.equals("hashCode")) {
+            return System.identityHashCode(proxy);
+        } else if (name.equals("toString")) {
+            return "proxy";
+        }
+        Class<?> type = method.getReturnType();
+        if (type == boolean.class) {
+            return false;
+        } else if (type == int.class) {
+            return 0;
+        } else if (type == long.class) {
+            return 0L;
+        }
+        return null;
+    }
+
+    /**
+     * Calls a method of the service from another thread. The call returns
+     * the Hibernate session bound while it ran and, if <code>started</code>
+     * is given, blocks until {@link #release} once it started.
+     */
+    private Future<Object> call(String methodName,
+            final CountDownLatch started) throws Exception {
+        final Method method = methodName.equals("renderCompressed") ?
+                RenderingEngine.class.getMethod(methodName,
+                        omeis.providers.re.data.PlaneDef.class)
+                : RenderingEngine.class.getMethod(methodName, int.class);
+        final MethodInvocation invocation = proxy(MethodInvocation.class,
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method m,
+                            Object[] args) throws Throwable {
+                        String name = m.getName();
+                        if (name.equals("getThis")) {
+                            return service;
+                        } else if (name.equals("getMethod")) {
+                            return method;
+                        } else if (name.equals("proceed")) {
+                            Object session = ((SessionHolder)
+                                TransactionSynchronizationManager
+                                .getResource(factory)).getSession();
+                            if (started != null) {
+                                started.countDown();
+                                Assert.assertTrue(release.await(5,
+                                        TimeUnit.SECONDS));
+                            }
+                            return session;
+                        }
+                        return defaultValue(proxy, m, args);
+                    }
+                });
+        return threads.submit(new Callable<Object>() {
+            public Object call() throws Exception {
+                TransactionSynchronizationManager.initSynchronization();
+                try {
+                    return handler.invoke(invocation);
+                } catch (Exception e) {
+                    throw e;
+                } catch (Throwable t) {
+                    throw new RuntimeException(t);
+                } finally {
+                    handler.cleanThread();
+                    TransactionSynchronizationManager.clearSynchronization();
+                }
+            }
+        });
+    }
+
+    public void testConcurrentRendersGetOwnSessions() throws Exception {
+        CountDownLatch started = new CountDownLatch(3);
+        Future<Object> first = call("renderCompressed", started);
+        Future<Object> second = call("renderCompressed", started);
+        Future<Object> third = call("renderCompressed", started);
+        // All three renders run at once.
+        Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+        release.countDown();
+        Object a = first.get(5, TimeUnit.SECONDS);
+        Object b = second.get(5, TimeUnit.SECONDS);
+        Object c = third.get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(new HashSet<Object>(Arrays.asList(a, b, c)).size(),
+                3);
+        // The service keeps its session, the others are closed.
+        Assert.assertEquals(opened.size(), 3);
+        Assert.assertEquals(closed.size(), 2);
+        Assert.assertFalse(closed.contains(opened.get(0)));
+    }
+
+    public void testOtherCallWaitsForSession() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        Future<Object> render = call("renderCompressed", started);
+        Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+        Future<Object> setter = call("setDefaultZ", null);
+        try {
+            setter.get(200, TimeUnit.MILLISECONDS);
+            Assert.fail("call did not wait for the session");
+        } catch (TimeoutException e) {
+            // expected
+        }
+        release.countDown();
+        Object session = render.get(5, TimeUnit.SECONDS);
+        Assert.assertSame(setter.get(5, TimeUnit.SECONDS), session);
+        Assert.assertEquals(opened.size(), 1);
+        Assert.assertTrue(closed.isEmpty());
+    }
+
+    public void testRenderAloneUsesServiceSession() throws Exception {
+        Object first = call("renderCompressed", null).get(5, TimeUnit.SECONDS);
+        Object second = call("setDefaultZ", null).get(5, TimeUnit.SECONDS);
+        Assert.assertSame(first, second);
+        Assert.assertEquals(opened.size(), 1);
+    }
+}
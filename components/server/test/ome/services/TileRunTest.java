@@ -0,0 +1,103 @@
+/*
+ *   Copyright 2016 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package ome.services;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Checks that {@link TileRun} groups horizontally adjacent tiles and splits
+ * the pixels read for a run back into its tiles.
+ */
+@Test(groups = "unit")
+public class TileRunTest {
+
+    private static List<Integer> all(int[][] tiles) {
+        List<Integer> indexes = new ArrayList<Integer>();
+        for (int i = 0; i < tiles.length; i++) {
+            indexes.add(i);
+        }
+        return indexes;
+    }
+
+    public void testAdjacentTilesCoalesced() {
+        int[][] tiles = {
+                { 0, 0, 0, 20, 0, 10, 5 },
+                { 0, 0, 0, 0, 0, 10, 5 },
+                { 0, 0, 0, 10, 0, 10, 5 },
+                // Next rows.
+                { 0, 0, 0, 0, 5, 10, 5 },
+                // Not adjacent.
+                { 0, 0, 0, 40, 0, 10, 5 },
+                // Other channel.
+                { 0, 1, 0, 30, 0, 10, 5 } };
+        List<TileRun> runs = TileRun.runs(tiles, all(tiles), 1, true);
+        Assert.assertEquals(runs.size(), 4);
+        TileRun run = runs.get(0);
+        Assert.assertEquals(run.indexes, Arrays.asList(1, 2, 0));
+        Assert.assertEquals(run.x, 0);
+        Assert.assertEquals(run.w, 30);
+        Assert.assertEquals(runs.get(1).indexes, Arrays.asList(4));
+        Assert.assertEquals(runs.get(2).indexes, Arrays.asList(3));
+        Assert.assertEquals(runs.get(3).indexes, Arrays.asList(5));
+    }
+
+    public void testNotCoalesced() {
+        int[][] tiles = {
+                { 0, 0, 0, 10, 0, 10, 5 },
+                { 0, 0, 0, 0, 0, 10, 5 } };
+        List<TileRun> runs = TileRun.runs(tiles, all(tiles), 1, false);
+        Assert.assertEquals(runs.size(), 2);
+        Assert.assertEquals(runs.get(0).indexes, Arrays.asList(1));
+        Assert.assertEquals(runs.get(1).indexes, Arrays.asList(0));
+        Assert.assertEquals(runs.get(1).w, 10);
+    }
+
+    public void testLargeRunsCut() {
+        int side = 1024;
+        int[][] tiles = new int[9][];
+        for (int i = 0; i < tiles.length; i++) {
+            tiles[i] = new int[] { 0, 0, 0, i * side, 0, side, side };
+        }
+        // 16 MB hold 8 tiles of 2 bytes per pixel.
+        List<TileRun> runs = TileRun.runs(tiles, all(tiles), 2, true);
+        Assert.assertEquals(runs.size(), 2);
+        Assert.assertEquals(runs.get(0).indexes.size(), 8);
+        Assert.assertEquals((long) runs.get(0).w * side * 2,
+                TileRun.MAX_RUN_BYTES);
+        Assert.assertEquals(runs.get(1).indexes, Arrays.asList(8));
+    }
+
+    public void testSplit() {
+        int byteWidth = 2;
+        int[][] tiles = {
+                { 0, 0, 0, 3, 0, 1, 2 },
+                { 0, 0, 0, 0, 0, 3, 2 } };
+        List<TileRun> runs = TileRun.runs(tiles, all(tiles), byteWidth, true);
+        Assert.assertEquals(runs.size(), 1);
+        // Two rows of four pixels, each byte its offset.
+        byte[] pixels = new byte[2 * 4 * byteWidth];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = (byte) i;
+        }
+        byte[][] data = new byte[2][];
+        runs.get(0).split(pixels, byteWidth, data);
+        Assert.assertEquals(data[1],
+                new byte[] { 0, 1, 2, 3, 4, 5, 8, 9, 10, 11, 12, 13 });
+        Assert.assertEquals(data[0], new byte[] { 6, 7, 14, 15 });
+    }
+
+    public void testSingleTileNotCopied() {
+        int[][] tiles = { { 0, 0, 0, 0, 0, 2, 2 } };
+        byte[] pixels = new byte[4];
+        byte[][] data = new byte[1][];
+        TileRun.runs(tiles, all(tiles), 1, true).get(0).split(pixels, 1, data);
+        Assert.assertSame(data[0], pixels);
+    }
+}
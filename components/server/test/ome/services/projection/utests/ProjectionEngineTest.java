@@ -0,0 +1,374 @@
+/*
+ * ome.services.projection.utests.ProjectionEngineTest
+ *
+ *   Copyright 2016 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.services.projection.utests;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ome.api.IProjection;
+import ome.conditions.ResourceError;
+import ome.io.nio.InMemoryPlanarPixelBuffer;
+import ome.io.nio.PixelBuffer;
+import ome.model.core.Pixels;
+import ome.model.enums.PixelsType;
+import ome.services.projection.ProjectionEngine;
+import ome.util.PixelData;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import static org.testng.AssertJUnit.*;
+
+/**
+ * Checks the planes projected by {@link ProjectionEngine}, with whole stacks
+ * and with stacks split into bands of rows, against a pixel by pixel
+ * projection of the same stacks.
+ *
+ * @since 5.2.4
+ */
+public class ProjectionEngineTest
+{
+
+    private static final String UINT16 = "uint16";
+
+    private static final int SIZE_X = 67;
+
+    private static final int SIZE_Y = 41;
+
+    private static final int SIZE_Z = 7;
+
+    private static final int SIZE_C = 2;
+
+    private static final int SIZE_T = 3;
+
+    private Pixels pixels;
+
+    private byte[][][][] planes;
+
+    private ProjectionEngine engine;
+
+    @BeforeClass
+    public void setUp()
+    {
+        PixelsType type = new PixelsType();
+        type.setValue(UINT16);
+        pixels = new Pixels();
+        pixels.setSizeX(SIZE_X);
+        pixels.setSizeY(SIZE_Y);
+        pixels.setSizeZ(SIZE_Z);
+        pixels.setSizeC(SIZE_C);
+        pixels.setSizeT(SIZE_T);
+        pixels.setPixelsType(type);
+        planes = new byte[SIZE_Z][SIZE_C][SIZE_T][];
+        for (int z = 0; z < SIZE_Z; z++)
+        {
+            for (int c = 0; c < SIZE_C; c++)
+            {
+                for (int t = 0; t < SIZE_T; t++)
+                {
+                    ByteBuffer plane = ByteBuffer.allocate(SIZE_X * SIZE_Y * 2);
+                    for (int i = 0; i < SIZE_X * SIZE_Y; i++)
+                    {
+                        plane.putShort((short) value(i, z, c, t));
+                    }
+                    planes[z][c][t] = plane.array();
+                }
+            }
+        }
+        engine = new ProjectionEngine(4);
+    }
+
+    @AfterClass
+    public void tearDown()
+    {
+        engine.shutdown();
+    }
+
+    private static int value(int i, int z, int c, int t)
+    {
+        return (i * 131 + z * 7919 + c * 104729 + t * 15485863) & 0xFFFF;
+    }
+
+    /**
+     * Opens buffers on the test planes, which also serve row bands.
+     */
+    private Callable<PixelBuffer> buffers()
+    {
+        return new Callable<PixelBuffer>() {
+            public PixelBuffer call()
+            {
+                return new InMemoryPlanarPixelBuffer(pixels, planes) {
+                    public PixelData getTile(Integer z, Integer c, Integer t,
+                            Integer x, Integer y, Integer w, Integer h)
+                    {
+                        assertEquals(0, x.intValue());
+                        assertEquals(SIZE_X, w.intValue());
+                        byte[] tile = new byte[w * h * 2];
+                        System.arraycopy(planes[z][c][t], y * SIZE_X * 2,
+                                tile, 0, tile.length);
+                        return new PixelData(UINT16,
+                                ByteBuffer.wrap(tile));
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Projects a stack pixel by pixel, as the projection service used to.
+     */
+    private byte[] reference(int algorithm, int c, int t, int stepping,
+            int start, int end)
+    {
+        byte[] buf = new byte[SIZE_X * SIZE_Y * 2];
+        PixelData to = new PixelData(UINT16,
+                ByteBuffer.wrap(buf));
+        for (int i = 0; i < SIZE_X * SIZE_Y; i++)
+        {
+            double projected = 0;
+            if (algorithm == IProjection.MAXIMUM_INTENSITY)
+            {
+                for (int z = start; z <= end; z += stepping)
+                {
+                    projected = Math.max(projected, value(i, z, c, t));
+                }
+            }
+            else
+            {
+                int count = 0;
+                for (int z = start; z < end; z += stepping)
+                {
+                    projected += value(i, z, c, t);
+                    count++;
+                }
+                if (algorithm == IProjection.MEAN_INTENSITY)
+                {
+                    projected = projected / count;
+                }
+                projected = Math.min(projected, to.getMaximum());
+            }
+            to.setPixelValue(i, projected);
+        }
+        return buf;
+    }
+
+    /**
+     * Projects the passed stacks and compares each plane with the reference.
+     */
+    private void assertProjection(final int algorithm, final int stepping,
+            final int start, final int end, final List<int[]> stacks)
+        throws IOException
+    {
+        final List<int[]> handled = new ArrayList<int[]>();
+        engine.project(buffers(), SIZE_X, SIZE_Y, UINT16, 2,
+                algorithm, stepping, start, end, stacks,
+                new ProjectionEngine.PlaneHandler() {
+                    public void handle(int c, int t, byte[] plane,
+                            double minimum, double maximum)
+                    {
+                        handled.add(new int[] { c, t });
+                        byte[] expected =
+                            reference(algorithm, c, t, stepping, start, end);
+                        assertTrue(Arrays.equals(expected, plane));
+                        PixelData data = new PixelData(
+                                UINT16, ByteBuffer.wrap(plane));
+                        double min = Double.MAX_VALUE;
+                        double max = Double.MIN_VALUE;
+                        for (int i = 0; i < data.size(); i++)
+                        {
+                            min = Math.min(min, data.getPixelValue(i));
+                            max = Math.max(max, data.getPixelValue(i));
+                        }
+                        assertEquals(min, minimum);
+                        assertEquals(max, maximum);
+                    }
+                });
+        assertEquals(stacks.size(), handled.size());
+        for (int i = 0; i < stacks.size(); i++)
+        {
+            assertTrue(Arrays.equals(stacks.get(i), handled.get(i)));
+        }
+    }
+
+    private List<int[]> allStacks()
+    {
+        List<int[]> stacks = new ArrayList<int[]>();
+        for (int c = 0; c < SIZE_C; c++)
+        {
+            for (int t = 0; t < SIZE_T; t++)
+            {
+                stacks.add(new int[] { c, t });
+            }
+        }
+        return stacks;
+    }
+
+    private List<int[]> oneStack()
+    {
+        List<int[]> stacks = new ArrayList<int[]>();
+        stacks.add(new int[] { 1, 2 });
+        return stacks;
+    }
+
+    @Test
+    public void testMaximumIntensity() throws IOException
+    {
+        assertProjection(IProjection.MAXIMUM_INTENSITY, 1, 0, SIZE_Z - 1,
+                allStacks());
+    }
+
+    @Test
+    public void testMeanIntensity() throws IOException
+    {
+        assertProjection(IProjection.MEAN_INTENSITY, 2, 1, SIZE_Z - 1,
+                allStacks());
+    }
+
+    @Test
+    public void testSumIntensity() throws IOException
+    {
+        assertProjection(IProjection.SUM_INTENSITY, 1, 0, SIZE_Z - 1,
+                allStacks());
+    }
+
+    @Test
+    public void testMaximumIntensityInBands() throws IOException
+    {
+        assertProjection(IProjection.MAXIMUM_INTENSITY, 2, 0, SIZE_Z - 1,
+                oneStack());
+    }
+
+    @Test
+    public void testMeanIntensityInBands() throws IOException
+    {
+        assertProjection(IProjection.MEAN_INTENSITY, 1, 0, SIZE_Z - 1,
+                oneStack());
+    }
+
+    @Test
+    public void testSumIntensityInBands() throws IOException
+    {
+        assertProjection(IProjection.SUM_INTENSITY, 1, 2, 5, oneStack());
+    }
+
+    @Test
+    public void testBuffersOpenedInCallingThread() throws IOException
+    {
+        final List<Thread> openers =
+            Collections.synchronizedList(new ArrayList<Thread>());
+        final Callable<PixelBuffer> buffers = buffers();
+        engine.project(new Callable<PixelBuffer>() {
+                    public PixelBuffer call() throws Exception
+                    {
+                        openers.add(Thread.currentThread());
+                        return buffers.call();
+                    }
+                }, SIZE_X, SIZE_Y, UINT16, 2,
+                IProjection.MAXIMUM_INTENSITY, 1, 0, SIZE_Z - 1, allStacks(),
+                new ProjectionEngine.PlaneHandler() {
+                    public void handle(int c, int t, byte[] plane,
+                            double minimum, double maximum)
+                    {
+                    }
+                });
+        assertEquals(4, openers.size());
+        for (Thread opener : openers)
+        {
+            assertSame(Thread.currentThread(), opener);
+        }
+    }
+
+    /**
+     * Checks that when a stack fails, the bands still queued or running are
+     * stopped and no longer read once the buffers are closed.
+     */
+    @Test
+    public void testFailureStopsBands()
+    {
+        final AtomicInteger opened = new AtomicInteger();
+        final AtomicInteger closed = new AtomicInteger();
+        final AtomicBoolean readAfterClose = new AtomicBoolean();
+        Callable<PixelBuffer> buffers = new Callable<PixelBuffer>() {
+            public PixelBuffer call()
+            {
+                opened.incrementAndGet();
+                return new InMemoryPlanarPixelBuffer(pixels, planes) {
+                    private volatile boolean isClosed;
+
+                    public PixelData getPlane(Integer z, Integer c, Integer t)
+                        throws IOException
+                    {
+                        if (isClosed)
+                        {
+                            readAfterClose.set(true);
+                        }
+                        if (c == 0 && t == 1 && z == 3)
+                        {
+                            throw new IOException("Unreadable section");
+                        }
+                        try
+                        {
+                            Thread.sleep(5);
+                        }
+                        catch (InterruptedException e)
+                        {
+                            Thread.currentThread().interrupt();
+                        }
+                        return new PixelData(UINT16,
+                                ByteBuffer.wrap(planes[z][c][t]));
+                    }
+
+                    public void close()
+                    {
+                        isClosed = true;
+                        closed.incrementAndGet();
+                    }
+                };
+            }
+        };
+        final List<int[]> handled = new ArrayList<int[]>();
+        try
+        {
+            engine.project(buffers, SIZE_X, SIZE_Y, UINT16, 2,
+                    IProjection.SUM_INTENSITY, 1, 0, SIZE_Z - 1, allStacks(),
+                    new ProjectionEngine.PlaneHandler() {
+                        public void handle(int c, int t, byte[] plane,
+                                double minimum, double maximum)
+                        {
+                            handled.add(new int[] { c, t });
+                        }
+                    });
+            fail("Expected the projection to fail.");
+        }
+        catch (ResourceError e)
+        {
+            assertTrue(e.getMessage().contains("C=0 T=1"));
+        }
+        catch (IOException e)
+        {
+            fail("Handler did not throw: " + e);
+        }
+        assertEquals(1, handled.size());
+        assertEquals(opened.get(), closed.get());
+        assertFalse(readAfterClose.get());
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testUnknownAlgorithm() throws IOException
+    {
+        assertProjection(-1, 1, 0, SIZE_Z - 1, oneStack());
+    }
+}
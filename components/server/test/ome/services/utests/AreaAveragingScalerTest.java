@@ -0,0 +1,119 @@
+/*
+ *   Copyright 2016 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.services.utests;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import ome.logic.AreaAveragingScaler;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Checks the results of {@link AreaAveragingScaler} against a straightforward
+ * computation of the covered areas.
+ */
+@Test(groups = "unit")
+public class AreaAveragingScalerTest {
+
+    private static int[] raster(int sizeX, int sizeY) {
+        Random random = new Random(sizeX * 31 + sizeY);
+        int[] rgb = new int[sizeX * sizeY];
+        for (int i = 0; i < rgb.length; i++) {
+            rgb[i] = random.nextInt();
+        }
+        return rgb;
+    }
+
+    /** Averages the input pixels covered by each output pixel, in doubles. */
+    private static int[] reference(int[] rgb, int sizeX, int sizeY,
+            int targetX, int targetY) {
+        int[] scaled = new int[targetX * targetY];
+        double fx = (double) sizeX / targetX;
+        double fy = (double) sizeY / targetY;
+        for (int oy = 0; oy < targetY; oy++) {
+            for (int ox = 0; ox < targetX; ox++) {
+                double[] sum = new double[3];
+                for (int y = 0; y < sizeY; y++) {
+                    double wy = overlap(y, oy * fy, (oy + 1) * fy);
+                    for (int x = 0; x < sizeX && wy > 0; x++) {
+                        double w = wy * overlap(x, ox * fx, (ox + 1) * fx);
+                        int p = rgb[y * sizeX + x];
+                        sum[0] += w * ((p >> 16) & 0xff);
+                        sum[1] += w * ((p >> 8) & 0xff);
+                        sum[2] += w * (p & 0xff);
+                    }
+                }
+                double area = fx * fy;
+                scaled[oy * targetX + ox] =
+                        (int) Math.round(sum[0] / area) << 16
+                        | (int) Math.round(sum[1] / area) << 8
+                        | (int) Math.round(sum[2] / area);
+            }
+        }
+        return scaled;
+    }
+
+    private static double overlap(int i, double start, double end) {
+        return Math.max(0, Math.min(i + 1, end) - Math.max(i, start));
+    }
+
+    private static void assertScaled(int sizeX, int sizeY,
+            int targetX, int targetY) {
+        int[] rgb = raster(sizeX, sizeY);
+        int[] scaled = AreaAveragingScaler.scale(rgb, sizeX, sizeY,
+                targetX, targetY);
+        int[] expected = reference(rgb, sizeX, sizeY, targetX, targetY);
+        Assert.assertEquals(scaled.length, targetX * targetY);
+        for (int i = 0; i < scaled.length; i++) {
+            for (int shift = 0; shift < 24; shift += 8) {
+                int actual = (scaled[i] >> shift) & 0xff;
+                int wanted = (expected[i] >> shift) & 0xff;
+                // Allow for rounding halves either way.
+                Assert.assertTrue(Math.abs(actual - wanted) <= 1,
+                        "pixel " + i + ": " + actual + " != " + wanted);
+            }
+        }
+    }
+
+    public void testIntegralReduction() {
+        assertScaled(64, 48, 16, 12);
+    }
+
+    public void testFractionalReduction() {
+        assertScaled(301, 77, 96, 25);
+    }
+
+    public void testEnlargement() {
+        assertScaled(7, 5, 20, 13);
+    }
+
+    public void testOneAxisOnly() {
+        assertScaled(100, 3, 9, 3);
+    }
+
+    public void testSameSizeCopies() {
+        int[] rgb = raster(13, 11);
+        int[] scaled = AreaAveragingScaler.scale(rgb, 13, 11, 13, 11);
+        Assert.assertNotSame(scaled, rgb);
+        Assert.assertEquals(scaled, rgb);
+    }
+
+    public void testUniformColourIsKept() {
+        int[] rgb = new int[1000 * 999];
+        Arrays.fill(rgb, 0xff123456);
+        int[] scaled = AreaAveragingScaler.scale(rgb, 1000, 999, 96, 77);
+        for (int p : scaled) {
+            Assert.assertEquals(p, 0xff123456);
+        }
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testEmptyTarget() {
+        AreaAveragingScaler.scale(new int[4], 2, 2, 0, 1);
+    }
+}
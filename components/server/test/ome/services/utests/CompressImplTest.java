@@ -0,0 +1,111 @@
+/*
+ *   Copyright 2016 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.services.utests;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import ome.logic.CompressImpl;
+import ome.util.ImageUtil;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Checks that {@link CompressImpl} encodes packed rasters as valid JPEG and
+ * lossless PNG images, also when its per-thread state is reused.
+ */
+@Test(groups = "unit")
+public class CompressImplTest {
+
+    private static final int SIZE_X = 301;
+
+    private static final int SIZE_Y = 77;
+
+    /** A raster mixing smooth gradients and noise. */
+    private static int[] raster() {
+        Random random = new Random(0);
+        int[] rgb = new int[SIZE_X * SIZE_Y];
+        for (int i = 0; i < rgb.length; i++) {
+            int x = i % SIZE_X;
+            int y = i / SIZE_X;
+            rgb[i] = i % 7 == 0 ? random.nextInt()
+                    : 0xff000000 | (3 * y) << 16 | x << 8 | 5;
+        }
+        return rgb;
+    }
+
+    private static BufferedImage read(byte[] data) throws Exception {
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(data));
+        Assert.assertNotNull(image);
+        Assert.assertEquals(image.getWidth(), SIZE_X);
+        Assert.assertEquals(image.getHeight(), SIZE_Y);
+        return image;
+    }
+
+    public void testJpeg() throws Exception {
+        CompressImpl compress = new CompressImpl();
+        Assert.assertEquals(compress.getCompressionFormat(), "jpeg");
+        int[] rgb = raster();
+        byte[] first = compress.compress(rgb, SIZE_X, SIZE_Y);
+        read(first);
+        Assert.assertEquals(compress.compress(rgb, SIZE_X, SIZE_Y), first);
+    }
+
+    public void testPngIsLossless() throws Exception {
+        CompressImpl compress = new CompressImpl();
+        compress.setFormat("png");
+        int[] rgb = raster();
+        for (int level = 0; level <= 9; level++) {
+            compress.setPngLevel(level);
+            BufferedImage image = read(compress.compress(rgb, SIZE_X, SIZE_Y));
+            for (int i = 0; i < rgb.length; i++) {
+                Assert.assertEquals(
+                        image.getRGB(i % SIZE_X, i / SIZE_X) & 0xffffff,
+                        rgb[i] & 0xffffff, "level " + level + ", pixel " + i);
+            }
+        }
+    }
+
+    public void testPngLevelsTradeSizeForSpeed() throws Exception {
+        CompressImpl compress = new CompressImpl();
+        compress.setFormat("png");
+        int[] rgb = raster();
+        compress.setPngLevel(0);
+        int stored = compress.compress(rgb, SIZE_X, SIZE_Y).length;
+        compress.setPngLevel(9);
+        int smallest = compress.compress(rgb, SIZE_X, SIZE_Y).length;
+        Assert.assertTrue(smallest < stored);
+    }
+
+    public void testCompressToStream() throws Exception {
+        CompressImpl compress = new CompressImpl();
+        compress.setFormat("png");
+        int[] rgb = raster();
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        compress.compressToStream(
+                ImageUtil.createBufferedImage(rgb, SIZE_X, SIZE_Y), stream);
+        byte[] data = stream.toByteArray();
+        // Always JPEG, whatever the format of the packed rasters.
+        Assert.assertEquals(data[0], (byte) 0xff);
+        Assert.assertEquals(data[1], (byte) 0xd8);
+        read(data);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testUnsupportedFormat() {
+        new CompressImpl().setFormat("webp");
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testPngLevelOutOfRange() {
+        new CompressImpl().setPngLevel(10);
+    }
+}
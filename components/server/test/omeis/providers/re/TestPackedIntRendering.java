@@ -0,0 +1,216 @@
+/*
+ *   Copyright (C) 2016 University of Dundee & Open Microscopy Environment.
+ *   All rights reserved.
+ *
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package omeis.providers.re;
+
+import java.util.Arrays;
+
+import ome.model.display.ChannelBinding;
+import ome.model.enums.RenderingModel;
+import omeis.providers.re.data.PlaneDef;
+import omeis.providers.re.quantum.QuantumStrategy;
+import omeis.providers.re.utests.BaseRenderingTest;
+
+import org.perf4j.LoggingStopWatch;
+import org.perf4j.StopWatch;
+import org.testng.annotations.Test;
+
+/**
+ * Compares the type-specialized quantization and colour table kernels used
+ * by {@link RenderHSBRegionTask} with the per-pixel path they replaced, both
+ * for equality of the rendered images and for speed, on 2048x2048
+ * <code>uint16</code> planes with 1, 3 and 5 channels.
+ */
+public class TestPackedIntRendering extends BaseRenderingTest
+{
+
+	/** The colours assigned to the channels when blending. */
+	private static final int[][] COLORS = new int[][] {
+		{ 255, 255, 0, 255 }, { 0, 255, 255, 255 }, { 255, 0, 255, 255 },
+		{ 128, 64, 255, 255 }, { 255, 128, 0, 255 } };
+
+	/** The number of channels of the pixels set being set up. */
+	private int sizeC = 3;
+
+	@Override
+	protected int getSizeX()
+	{
+		return 2048;
+	}
+
+	@Override
+	protected int getSizeY()
+	{
+		return 2048;
+	}
+
+	@Override
+	protected int getSizeC()
+	{
+		return sizeC;
+	}
+
+	/**
+	 * Sets up a renderer for <code>n</code> channels, all of them active,
+	 * using the {@link HSBStrategy}.
+	 *
+	 * @param n The number of channels.
+	 * @param primary Whether to use primary colours, which is only possible
+	 *                for up to 3 channels, or blended colours.
+	 * @param alpha The alpha of the channel colours.
+	 */
+	private void setUp(int n, boolean primary, int alpha)
+	{
+		sizeC = n;
+		setUp();
+		RenderingModel model = new RenderingModel();
+		model.setValue(Renderer.MODEL_RGB);
+		renderer.setModel(model);
+		for (int w = 0; w < n; w++)
+		{
+			renderer.setActive(w, true);
+			if (primary)
+			{
+				int[] c = new int[3];
+				c[w] = 255;
+				renderer.setRGBA(w, c[0], c[1], c[2], alpha);
+			}
+			else
+			{
+				int[] c = COLORS[w];
+				renderer.setRGBA(w, c[0], c[1], c[2], alpha);
+			}
+		}
+	}
+
+	/**
+	 * Renders the plane with the per-pixel algorithm that
+	 * {@link RenderHSBRegionTask} used before its kernels were specialized.
+	 *
+	 * @return The packed ARGB pixels.
+	 */
+	private int[] renderReference() throws Exception
+	{
+		int[] buf = new int[getSizeX() * getSizeY()];
+		ChannelBinding[] bindings = renderer.getChannelBindings();
+		Optimizations optimizations = renderer.getOptimizations();
+		boolean isPrimaryColor = optimizations.isPrimaryColorEnabled();
+		boolean isAlphaless = optimizations.isAlphalessRendering();
+		int colorOffset = 24;
+		for (int w = 0; w < bindings.length; w++)
+		{
+			ChannelBinding cb = bindings[w];
+			if (!cb.getActive())
+			{
+				continue;
+			}
+			QuantumStrategy qs =
+				renderer.getQuantumManager().getStrategyFor(w);
+			double redRatio = cb.getRed() / 255.0;
+			double greenRatio = cb.getGreen() / 255.0;
+			double blueRatio = cb.getBlue() / 255.0;
+			float alpha = cb.getAlpha().floatValue() / 255;
+			if (isPrimaryColor)
+			{
+				colorOffset = cb.getRed() == 255 ? 16 :
+					cb.getGreen() == 255 ? 8 : 0;
+			}
+			for (int pix = 0; pix < buf.length; pix++)
+			{
+				int discreteValue = qs.quantize(data.getPixelValue(pix));
+				if (colorOffset != 24)
+				{
+					buf[pix] |= 0xFF000000;
+					buf[pix] |= discreteValue << colorOffset;
+					continue;
+				}
+				int newRValue = (int) (redRatio * discreteValue);
+				int newGValue = (int) (greenRatio * discreteValue);
+				int newBValue = (int) (blueRatio * discreteValue);
+				if (!isAlphaless)
+				{
+					newRValue *= alpha;
+					newGValue *= alpha;
+					newBValue *= alpha;
+				}
+				int rValue = Math.min(255,
+						((buf[pix] & 0x00FF0000) >> 16) + newRValue);
+				int gValue = Math.min(255,
+						((buf[pix] & 0x0000FF00) >> 8) + newGValue);
+				int bValue = Math.min(255,
+						(buf[pix] & 0x000000FF) + newBValue);
+				buf[pix] = 0xFF000000 | rValue << 16 | gValue << 8 | bValue;
+			}
+		}
+		return buf;
+	}
+
+	/**
+	 * Renders the plane with both paths, checks that the images are the
+	 * same and logs the time taken by each.
+	 */
+	private void compare(String tag) throws Exception
+	{
+		PlaneDef def = new PlaneDef(PlaneDef.XY, 0);
+		int[] expected = null;
+		int[] actual = null;
+		for (int i = 0; i < 3; i++)
+		{
+			StopWatch stopWatch = new LoggingStopWatch("reference." + tag);
+			expected = renderReference();
+			stopWatch.stop();
+			stopWatch = new LoggingStopWatch("kernels." + tag);
+			actual = renderer.renderAsPackedInt(def, pixelBuffer);
+			stopWatch.stop();
+		}
+		assertTrue(Arrays.equals(expected, actual));
+	}
+
+	@Test(timeOut=120000)
+	public void testOneChannelPrimaryColor() throws Exception
+	{
+		setUp(1, true, 255);
+		assertTrue(renderer.getOptimizations().isPrimaryColorEnabled());
+		compare("1c.primary");
+	}
+
+	@Test(timeOut=120000)
+	public void testThreeChannelsPrimaryColor() throws Exception
+	{
+		setUp(3, true, 255);
+		assertTrue(renderer.getOptimizations().isPrimaryColorEnabled());
+		compare("3c.primary");
+	}
+
+	@Test(timeOut=120000)
+	public void testOneChannelBlended() throws Exception
+	{
+		setUp(1, false, 255);
+		compare("1c.blended");
+	}
+
+	@Test(timeOut=120000)
+	public void testThreeChannelsBlended() throws Exception
+	{
+		setUp(3, false, 255);
+		compare("3c.blended");
+	}
+
+	@Test(timeOut=120000)
+	public void testFiveChannelsBlended() throws Exception
+	{
+		setUp(5, false, 255);
+		compare("5c.blended");
+	}
+
+	@Test(timeOut=120000)
+	public void testFiveChannelsBlendedWithAlpha() throws Exception
+	{
+		setUp(5, false, 128);
+		assertFalse(renderer.getOptimizations().isAlphalessRendering());
+		compare("5c.alpha");
+	}
+}
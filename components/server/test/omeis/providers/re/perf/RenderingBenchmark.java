@@ -0,0 +1,544 @@
+/*
+ *   Copyright (C) 2016 University of Dundee & Open Microscopy Environment.
+ *   All rights reserved.
+ *
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package omeis.providers.re.perf;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import ome.api.IPixels;
+import ome.io.nio.InMemoryPlanarPixelBuffer;
+import ome.io.nio.PixelBuffer;
+import ome.io.nio.PixelsService;
+import ome.io.nio.RomioPixelBuffer;
+import ome.logic.RenderingSettingsImpl;
+import ome.model.core.Channel;
+import ome.model.core.Pixels;
+import ome.model.display.RenderingDef;
+import ome.model.enums.Family;
+import ome.model.enums.PixelsType;
+import ome.model.enums.RenderingModel;
+import ome.model.stats.StatsInfo;
+import ome.util.PixelData;
+import omeis.providers.re.Renderer;
+import omeis.providers.re.data.PlaneDef;
+import omeis.providers.re.data.RegionDef;
+import omeis.providers.re.quantum.QuantumFactory;
+import omeis.providers.re.quantum.QuantumStrategy;
+import omeis.providers.re.utests.TestPixelsMetadataService;
+
+import org.perf4j.LoggingStopWatch;
+import org.perf4j.StopWatch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+/**
+ * Benchmarks the rendering engine on synthetic planes held by an
+ * {@link InMemoryPlanarPixelBuffer}, so that it needs neither a database nor
+ * a binary repository. Each case is warmed up, then run a fixed number of
+ * times; the throughput in operations per second and the number of bytes
+ * allocated per operation are logged, and every operation is timed with a
+ * perf4j stop watch tagged with the name of the case.
+ * <p>
+ * The contention cases render the tiles of a plane stored in a ROMIO file
+ * from several client threads sharing one renderer, as a viewer does with a
+ * rendering engine, with and without a lock serializing the requests.
+ * </p>
+ * <p>
+ * The cases belong to the <code>perf</code> group, which is excluded from the
+ * unit suite. Run them with <code>perf.testng.xml</code>, e.g.
+ * <code>./build.py -f components/server/build.xml test
+ * -Dunit.suite=perf.testng.xml</code>.
+ * </p>
+ *
+ * @since 5.2.4
+ */
+@Test(groups = "perf")
+public class RenderingBenchmark
+{
+
+	/** The logger for this particular class */
+	private static final Logger log =
+		LoggerFactory.getLogger(RenderingBenchmark.class);
+
+	/** The number of operations run before measuring. */
+	private static final int WARMUP_COUNT = 3;
+
+	/** The number of operations measured. */
+	private static final int RUN_COUNT = 10;
+
+	/** The pixels types benchmarked. */
+	private static final String[] TYPES = new String[] {
+		"int8", "uint8", "int16", "uint16", "int32", "uint32",
+		"float", "double" };
+
+	/** The map families benchmarked. */
+	private static final String[] FAMILIES = new String[] {
+		QuantumFactory.LINEAR, QuantumFactory.POLYNOMIAL,
+		QuantumFactory.EXPONENTIAL, QuantumFactory.LOGARITHMIC };
+
+	/** The edge lengths of the square planes benchmarked. */
+	private static final int[] SIZES = new int[] { 512, 2048 };
+
+	/** The numbers of channels benchmarked with the RGB model. */
+	private static final int[] CHANNELS = new int[] { 1, 3, 5 };
+
+	/** The numbers of concurrent clients benchmarked. */
+	private static final int[] CLIENTS = new int[] { 1, 2, 4, 8 };
+
+	/** The edge length of the plane rendered tile by tile. */
+	private static final int TILED_SIZE = 2048;
+
+	/** The edge length of the tiles. */
+	private static final int TILE_SIZE = 256;
+
+	/** The enumerations available to the rendering settings. */
+	private final IPixels pixelsMetadataService =
+		new TestPixelsMetadataService();
+
+	/** Source of the synthetic pixel values. */
+	private final Random random = new Random(0);
+
+	/** Combines every parameter of the benchmark matrix. */
+	@DataProvider(name = "renderers")
+	public Object[][] renderers()
+	{
+		List<Object[]> cases = new ArrayList<Object[]>();
+		for (String type : TYPES)
+		{
+			for (String family : FAMILIES)
+			{
+				for (int size : SIZES)
+				{
+					cases.add(new Object[] {
+						type, family, size, 1, Renderer.MODEL_GREYSCALE });
+					for (int sizeC : CHANNELS)
+					{
+						cases.add(new Object[] {
+							type, family, size, sizeC, Renderer.MODEL_RGB });
+					}
+				}
+			}
+		}
+		return cases.toArray(new Object[cases.size()][]);
+	}
+
+	/** Combines the pixels types and map families. */
+	@DataProvider(name = "strategies")
+	public Object[][] strategies()
+	{
+		List<Object[]> cases = new ArrayList<Object[]>();
+		for (String type : TYPES)
+		{
+			for (String family : FAMILIES)
+			{
+				cases.add(new Object[] { type, family });
+			}
+		}
+		return cases.toArray(new Object[cases.size()][]);
+	}
+
+	/** Combines the numbers of clients with and without serialization. */
+	@DataProvider(name = "contention")
+	public Object[][] contention()
+	{
+		List<Object[]> cases = new ArrayList<Object[]>();
+		for (int clients : CLIENTS)
+		{
+			cases.add(new Object[] { clients, true });
+			cases.add(new Object[] { clients, false });
+		}
+		return cases.toArray(new Object[cases.size()][]);
+	}
+
+	/**
+	 * Benchmarks {@link Renderer#renderAsPackedInt(PlaneDef, PixelBuffer)},
+	 * which goes through the {@link omeis.providers.re.GreyScaleStrategy} or
+	 * the {@link omeis.providers.re.HSBStrategy} depending on the model.
+	 */
+	@Test(dataProvider = "renderers")
+	public void testRenderAsPackedInt(String type, String family, int size,
+			int sizeC, String model) throws Exception
+	{
+		Pixels pixels = createPixels(type, size, sizeC);
+		PixelBuffer buffer = createPixelBuffer(pixels);
+		Renderer renderer = createRenderer(pixels, buffer, family, model);
+		final PlaneDef def = new PlaneDef(PlaneDef.XY, 0);
+		final Renderer r = renderer;
+		final PixelBuffer b = buffer;
+		String tag = String.format("renderAsPackedInt.%s.%s.%dx%d.%dc.%s",
+				type, family, size, size, sizeC, model);
+		try
+		{
+			run(tag, new Operation() {
+				public void run() throws Exception
+				{
+					r.renderAsPackedInt(def, b);
+				}
+			});
+		}
+		finally
+		{
+			renderer.close();
+		}
+	}
+
+	/**
+	 * Benchmarks concurrent tile requests against a single renderer. One
+	 * operation renders every tile of a three channel plane, the tiles being
+	 * requested by <code>clients</code> threads. If <code>serialized</code>,
+	 * the requests take a single lock, as they did when rendering took the
+	 * write lock of the rendering engine.
+	 */
+	@Test(dataProvider = "contention")
+	public void testConcurrentTiles(int clients, boolean serialized)
+			throws Exception
+	{
+		Pixels pixels = createPixels("uint16", TILED_SIZE, 3);
+		File file = File.createTempFile("rendering-benchmark", ".pixels");
+		final ExecutorService pool = Executors.newFixedThreadPool(clients);
+		Renderer renderer = null;
+		try
+		{
+			FileOutputStream out = new FileOutputStream(file);
+			try
+			{
+				for (byte[][] plane : createPlanes(pixels)[0])
+				{
+					out.write(plane[0]);
+				}
+			}
+			finally
+			{
+				out.close();
+			}
+			PixelBuffer buffer =
+				new RomioPixelBuffer(file.getAbsolutePath(), pixels);
+			renderer = createRenderer(pixels, buffer, QuantumFactory.LINEAR,
+					Renderer.MODEL_RGB);
+			final Renderer r = renderer;
+			final Lock lock = serialized ? new ReentrantLock() : null;
+			String tag = String.format("concurrentTiles.%dclients.%s",
+					clients, serialized ? "serialized" : "parallel");
+			run(tag, new Operation() {
+				public void run() throws Exception
+				{
+					List<Future<int[]>> tiles = new ArrayList<Future<int[]>>();
+					for (int y = 0; y < TILED_SIZE; y += TILE_SIZE)
+					{
+						for (int x = 0; x < TILED_SIZE; x += TILE_SIZE)
+						{
+							tiles.add(pool.submit(
+									renderTile(r, lock, x, y)));
+						}
+					}
+					for (Future<int[]> tile : tiles)
+					{
+						tile.get();
+					}
+				}
+			});
+		}
+		finally
+		{
+			pool.shutdown();
+			if (renderer != null)
+			{
+				renderer.close();
+			}
+			file.delete();
+		}
+	}
+
+	/**
+	 * Returns a request for a tile.
+	 *
+	 * @param renderer The renderer shared by the clients.
+	 * @param lock The lock serializing the requests, <code>null</code> to
+	 *            run them in parallel.
+	 * @param x The X-coordinate of the tile.
+	 * @param y The Y-coordinate of the tile.
+	 * @return See above.
+	 */
+	private Callable<int[]> renderTile(final Renderer renderer,
+			final Lock lock, int x, int y)
+	{
+		final PlaneDef def = new PlaneDef(PlaneDef.XY, 0);
+		def.setRegion(new RegionDef(x, y, TILE_SIZE, TILE_SIZE));
+		return new Callable<int[]>() {
+			public int[] call() throws Exception
+			{
+				if (lock == null)
+				{
+					return renderer.renderAsPackedInt(def, null);
+				}
+				lock.lock();
+				try
+				{
+					return renderer.renderAsPackedInt(def, null);
+				}
+				finally
+				{
+					lock.unlock();
+				}
+			}
+		};
+	}
+
+	/**
+	 * Benchmarks {@link QuantumStrategy#quantize(double)} on every value of
+	 * a 1024x1024 plane.
+	 */
+	@Test(dataProvider = "strategies")
+	public void testQuantize(String type, String family) throws Exception
+	{
+		Pixels pixels = createPixels(type, 1024, 1);
+		PixelBuffer buffer = createPixelBuffer(pixels);
+		Renderer renderer = createRenderer(
+				pixels, buffer, family, Renderer.MODEL_GREYSCALE);
+		final QuantumStrategy qs = createStrategy(renderer, pixels);
+		final PixelData data = buffer.getPlane(0, 0, 0);
+		final int n = data.size();
+		String tag = String.format("quantize.%s.%s", type, family);
+		try
+		{
+			run(tag, new Operation() {
+				public void run() throws Exception
+				{
+					for (int i = 0; i < n; i++)
+					{
+						qs.quantize(data.getPixelValue(i));
+					}
+				}
+			});
+		}
+		finally
+		{
+			renderer.close();
+		}
+	}
+
+	/** A benchmarked operation. */
+	private interface Operation
+	{
+		void run() throws Exception;
+	}
+
+	/**
+	 * Warms up, then runs and measures the passed operation.
+	 *
+	 * @param tag The name of the case.
+	 * @param op The operation.
+	 */
+	private void run(String tag, Operation op) throws Exception
+	{
+		for (int i = 0; i < WARMUP_COUNT; i++)
+		{
+			op.run();
+		}
+		long allocated = getAllocatedBytes();
+		long start = System.nanoTime();
+		for (int i = 0; i < RUN_COUNT; i++)
+		{
+			StopWatch stopWatch = new LoggingStopWatch(tag);
+			op.run();
+			stopWatch.stop();
+		}
+		long elapsed = System.nanoTime() - start;
+		if (allocated >= 0)
+		{
+			allocated = getAllocatedBytes() - allocated;
+		}
+		log.info(String.format("%s: %.2f ops/s, %s bytes/op", tag,
+				RUN_COUNT * 1e9 / elapsed,
+				allocated < 0 ? "n/a" : String.valueOf(allocated / RUN_COUNT)));
+	}
+
+	/**
+	 * Returns the number of bytes allocated so far by the live threads,
+	 * including the rendering workers, or <code>-1</code> if the virtual
+	 * machine cannot tell.
+	 *
+	 * @return See above.
+	 */
+	private static long getAllocatedBytes()
+	{
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (!(bean instanceof com.sun.management.ThreadMXBean))
+		{
+			return -1;
+		}
+		com.sun.management.ThreadMXBean sun =
+			(com.sun.management.ThreadMXBean) bean;
+		if (!sun.isThreadAllocatedMemorySupported()
+				|| !sun.isThreadAllocatedMemoryEnabled())
+		{
+			return -1;
+		}
+		long total = 0;
+		for (long bytes : sun.getThreadAllocatedBytes(bean.getAllThreadIds()))
+		{
+			if (bytes > 0)
+			{
+				total += bytes;
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * Creates a single plane and time point pixels set whose channels share
+	 * the global minimum and maximum of the synthetic data.
+	 */
+	private Pixels createPixels(String type, int size, int sizeC)
+	{
+		PixelsType pixelsType = new PixelsType();
+		pixelsType.setValue(type);
+		pixelsType.setBitSize(PixelData.getBitDepth(type));
+		Pixels pixels = new Pixels(1L, true);
+		pixels.setSizeX(size);
+		pixels.setSizeY(size);
+		pixels.setSizeZ(1);
+		pixels.setSizeC(sizeC);
+		pixels.setSizeT(1);
+		pixels.setPixelsType(pixelsType);
+		for (int c = 0; c < sizeC; c++)
+		{
+			pixels.addChannel(new Channel());
+		}
+		return pixels;
+	}
+
+	/**
+	 * Fills an in memory buffer with random values, floating point values
+	 * being kept finite, and records the range of each channel.
+	 */
+	private PixelBuffer createPixelBuffer(Pixels pixels)
+	{
+		return new InMemoryPlanarPixelBuffer(pixels, createPlanes(pixels));
+	}
+
+	/**
+	 * Creates the planes of each channel, indexed by Z, C then T, filled
+	 * with random values, floating point values being kept finite, and
+	 * records the range of each channel.
+	 */
+	private byte[][][][] createPlanes(Pixels pixels)
+	{
+		String type = pixels.getPixelsType().getValue();
+		int size = pixels.getSizeX() * pixels.getSizeY();
+		int bytesPerPixel = PixelData.getBitDepth(type) / 8;
+		int sizeC = pixels.getSizeC();
+		byte[][][][] planes = new byte[1][sizeC][1][];
+		for (int c = 0; c < sizeC; c++)
+		{
+			byte[] plane = new byte[size * bytesPerPixel];
+			PixelData data = new PixelData(type, ByteBuffer.wrap(plane));
+			if (data.isFloat())
+			{
+				for (int i = 0; i < size; i++)
+				{
+					data.setPixelValue(i, random.nextGaussian() * 1000);
+				}
+			}
+			else
+			{
+				random.nextBytes(plane);
+			}
+			double min = Double.MAX_VALUE;
+			double max = -Double.MAX_VALUE;
+			for (int i = 0; i < size; i++)
+			{
+				double value = data.getPixelValue(i);
+				min = Math.min(min, value);
+				max = Math.max(max, value);
+			}
+			StatsInfo si = new StatsInfo();
+			si.setGlobalMin(min);
+			si.setGlobalMax(max);
+			pixels.getChannel(c).setStatsInfo(si);
+			planes[0][c][0] = plane;
+		}
+		return planes;
+	}
+
+	/**
+	 * Creates a renderer with the default settings, all channels active and
+	 * mapped with the passed family.
+	 */
+	private Renderer createRenderer(Pixels pixels, final PixelBuffer buffer,
+			String family, String model)
+	{
+		PixelsService pixelsService = new PixelsService("/tmp") {
+			@Override
+			public PixelBuffer getPixelBuffer(Pixels p, boolean write)
+			{
+				return buffer;
+			}
+		};
+		RenderingSettingsImpl settingsService = new RenderingSettingsImpl();
+		settingsService.setPixelsMetadata(pixelsMetadataService);
+		settingsService.setPixelsData(pixelsService);
+		RenderingDef settings = settingsService.createNewRenderingDef(pixels);
+		settingsService.resetDefaultsNoSave(settings, pixels);
+
+		List<Family> families =
+			pixelsMetadataService.getAllEnumerations(Family.class);
+		List<RenderingModel> renderingModels =
+			pixelsMetadataService.getAllEnumerations(RenderingModel.class);
+		QuantumFactory quantumFactory = new QuantumFactory(families);
+		Renderer renderer = new Renderer(quantumFactory, renderingModels,
+				pixels, settings, buffer);
+		for (RenderingModel m : renderingModels)
+		{
+			if (m.getValue().equals(model))
+			{
+				renderer.setModel(m);
+			}
+		}
+		Family f = quantumFactory.getFamily(family);
+		for (int w = 0; w < pixels.getSizeC(); w++)
+		{
+			renderer.setActive(w, true);
+			renderer.setQuantizationMap(w, f, 1.5, false);
+		}
+		return renderer;
+	}
+
+	/**
+	 * Creates a strategy configured like the one the renderer uses for the
+	 * first channel.
+	 */
+	private QuantumStrategy createStrategy(Renderer renderer, Pixels pixels)
+	{
+		QuantumFactory quantumFactory = new QuantumFactory(
+				pixelsMetadataService.<Family>getAllEnumerations(Family.class));
+		RenderingDef settings = renderer.getRenderingDef();
+		QuantumStrategy qs =
+			quantumFactory.getStrategy(settings.getQuantization(), pixels);
+		StatsInfo si = pixels.getChannel(0).getStatsInfo();
+		qs.setExtent(si.getGlobalMin(), si.getGlobalMax());
+		qs.setMapping(renderer.getChannelBindings()[0].getFamily(), 1.5,
+				false);
+		qs.setWindow(renderer.getChannelBindings()[0].getInputStart(),
+				renderer.getChannelBindings()[0].getInputEnd());
+		return qs;
+	}
+}
@@ -89,7 +89,32 @@ public class RawDataFacilityTest extends GatewayTest {
         
         Assert.assertEquals(planeData, rawDataPart);
     }
-    
+
+    @Test
+    public void testGetTiles() throws DataSourceException, DSOutOfServiceException, DSAccessException {
+        ImageData img = browseFacility.getImage(rootCtx, imgId);
+        // a 4x2 grid of adjacent tiles, requested out of order, and a
+        // tile overlapping two of them
+        int[][] tiles = new int[9][];
+        for (int i = 0; i < 8; i++) {
+            int col = (i * 3) % 4, row = i / 4;
+            tiles[i] = new int[] {0, 0, 0, col * 25, row * 50, 25, 50};
+        }
+        tiles[8] = new int[] {0, 0, 0, 10, 40, 30, 20};
+
+        List<Plane2D> planes = rawdataFacility.getTiles(rootCtx, img.getDefaultPixels(), tiles);
+        Assert.assertEquals(planes.size(), tiles.length);
+        for (int i = 0; i < tiles.length; i++) {
+            int x = tiles[i][3], y = tiles[i][4], w = tiles[i][5], h = tiles[i][6];
+            Plane2D plane = planes.get(i);
+            Assert.assertEquals(plane.getSizeX(), w);
+            Assert.assertEquals(plane.getSizeY(), h);
+            for (int j = 0; j < w * h; j++)
+                Assert.assertEquals(plane.getRawValue(j),
+                        rawData[(y + j / w) * 100 + x + j % w]);
+        }
+    }
+
     private void initData() throws Exception {
         ProjectData p = createProject(rootCtx);
         DatasetData d = createDataset(rootCtx, p);